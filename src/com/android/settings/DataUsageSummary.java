@@ -38,8 +38,6 @@ import static android.net.NetworkTemplate.buildTemplateMobileAll;
 import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
 import static android.net.TrafficStats.GB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
-import static android.net.TrafficStats.UID_REMOVED;
-import static android.net.TrafficStats.UID_TETHERING;
 import static android.telephony.TelephonyManager.SIM_STATE_READY;
 import static android.text.format.DateUtils.FORMAT_ABBREV_MONTH;
 import static android.text.format.DateUtils.FORMAT_SHOW_DATE;
@@ -62,7 +60,6 @@ import android.content.Intent;
 import android.content.Loader;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.content.pm.UserInfo;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.Color;
@@ -74,7 +71,6 @@ import android.net.INetworkStatsService;
 import android.net.INetworkStatsSession;
 import android.net.NetworkPolicy;
 import android.net.NetworkPolicyManager;
-import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.TrafficStats;
@@ -97,7 +93,6 @@ import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.text.format.Time;
 import android.util.Log;
-import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -132,6 +127,7 @@ import com.android.settings.net.ChartData;
 import com.android.settings.net.ChartDataLoader;
 import com.android.settings.net.DataUsageMeteredSettings;
 import com.android.settings.net.NetworkPolicyEditor;
+import com.android.settings.net.NetworkStatsCache;
 import com.android.settings.net.SummaryForAllUidLoader;
 import com.android.settings.net.UidDetail;
 import com.android.settings.net.UidDetailProvider;
@@ -147,8 +143,9 @@ import com.google.android.collect.Lists;
 
 import libcore.util.Objects;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -201,6 +198,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     private SubscriptionManager mSubscriptionManager;
 
     private INetworkStatsSession mStatsSession;
+    private NetworkStatsCache mStatsCache;
 
     private static final String PREF_FILE = "data_usage";
     private static final String PREF_SHOW_WIFI = "show_wifi";
@@ -209,6 +207,8 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     private SharedPreferences mPrefs;
 
     private TabHost mTabHost;
+    /** Tags of the tabs added to {@link #mTabHost}, in order. */
+    private final ArrayList<String> mTabTags = Lists.newArrayList();
     private ViewGroup mTabsContainer;
     private TabWidget mTabWidget;
     private ListView mListView;
@@ -322,6 +322,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         } catch (RemoteException e) {
             throw new RuntimeException(e);
         }
+        mStatsCache = new NetworkStatsCache();
 
         mShowWifi = mPrefs.getBoolean(PREF_SHOW_WIFI, false);
         mShowEthernet = mPrefs.getBoolean(PREF_SHOW_ETHERNET, false);
@@ -443,8 +444,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         mEmpty = (TextView) mHeader.findViewById(android.R.id.empty);
         mStupidPadding = mHeader.findViewById(R.id.stupid_padding);
 
-        final UserManager um = (UserManager) context.getSystemService(Context.USER_SERVICE);
-        mAdapter = new DataUsageAdapter(um, mUidDetailProvider, mInsetSide);
+        mAdapter = new DataUsageAdapter(mUidDetailProvider, mInsetSide);
         mListView.setOnItemClickListener(mListListener);
         mListView.setAdapter(mAdapter);
 
@@ -492,6 +492,8 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             @Override
             protected void onPostExecute(Void result) {
                 if (isAdded()) {
+                    // stats were polled, so anything cached is stale
+                    mStatsCache.invalidate();
                     updateBody();
                 }
             }
@@ -629,11 +631,18 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         mUidDetailProvider.clearCache();
         mUidDetailProvider = null;
 
+        mStatsCache.cancelPrefetch();
         TrafficStats.closeQuietly(mStatsSession);
 
         super.onDestroy();
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        ChartDataLoader.dumpLoadStats(prefix, writer);
+    }
+
     /**
      * Build and assign {@link LayoutTransition} to various containers. Should
      * only be assigned after initial layout is complete.
@@ -669,6 +678,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     private void updateTabs() {
         final Context context = getActivity();
         mTabHost.clearAllTabs();
+        mTabTags.clear();
 
         int simCount = mTelephonyManager.getSimCount();
 
@@ -720,6 +730,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
      * Build {@link TabSpec} with thin indicator, and empty content.
      */
     private TabSpec buildTabSpec(String tag, int titleRes) {
+        mTabTags.add(tag);
         return mTabHost.newTabSpec(tag).setIndicator(getText(titleRes)).setContent(
                 mEmptyTabContent);
     }
@@ -728,6 +739,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
      * Build {@link TabSpec} with thin indicator, and empty content.
      */
     private TabSpec buildTabSpec(String tag, CharSequence title) {
+        mTabTags.add(tag);
         return mTabHost.newTabSpec(tag).setIndicator(title).setContent(
                 mEmptyTabContent);
     }
@@ -780,45 +792,35 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             setPreferenceTitle(mDisableAtLimitView, R.string.data_usage_disable_mobile_limit);
             mDataEnabledSupported = isMobileDataAvailable(getSubId(currentTab));
 
-            // Match mobile traffic for this subscriber, but normalize it to
-            // catch any other merged subscribers.
-            mTemplate = buildTemplateMobileAll(
-                    getActiveSubscriberId(context, getSubId(currentTab)));
-            mTemplate = NetworkTemplate.normalize(mTemplate,
-                    mTelephonyManager.getMergedSubscriberIds());
-
         } else if (TAB_3G.equals(currentTab)) {
             if (LOGD) Log.d(TAG, "updateBody() 3g tab");
             setPreferenceTitle(mDataEnabledView, R.string.data_usage_enable_3g);
             setPreferenceTitle(mDisableAtLimitView, R.string.data_usage_disable_3g_limit);
             // TODO: bind mDataEnabled to 3G radio state
-            mTemplate = buildTemplateMobile3gLower(getActiveSubscriberId(context));
 
         } else if (TAB_4G.equals(currentTab)) {
             if (LOGD) Log.d(TAG, "updateBody() 4g tab");
             setPreferenceTitle(mDataEnabledView, R.string.data_usage_enable_4g);
             setPreferenceTitle(mDisableAtLimitView, R.string.data_usage_disable_4g_limit);
             // TODO: bind mDataEnabled to 4G radio state
-            mTemplate = buildTemplateMobile4g(getActiveSubscriberId(context));
 
         } else if (TAB_WIFI.equals(currentTab)) {
             // wifi doesn't have any controls
             if (LOGD) Log.d(TAG, "updateBody() wifi tab");
             mDataEnabledSupported = false;
             mDisableAtLimitSupported = false;
-            mTemplate = buildTemplateWifiWildcard();
 
         } else if (TAB_ETHERNET.equals(currentTab)) {
             // ethernet doesn't have any controls
             if (LOGD) Log.d(TAG, "updateBody() ethernet tab");
             mDataEnabledSupported = false;
             mDisableAtLimitSupported = false;
-            mTemplate = buildTemplateEthernet();
 
         } else {
             if (LOGD) Log.d(TAG, "updateBody() unknown tab");
             throw new IllegalStateException("unknown tab: " + currentTab);
         }
+        mTemplate = buildTemplateForTab(context, currentTab);
 
         // kick off loader for network history
         // TODO: consider chaining two loaders together instead of reloading
@@ -1094,11 +1096,48 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
 
         final Context context = mCycleSpinner.getContext();
 
+        final ArrayList<long[]> cycles = new ArrayList<long[]>();
+        final boolean hasCycles = computeCycles(policy,
+                mChartData != null ? mChartData.network : null, cycles);
+        for (int i = 0; i < cycles.size(); i++) {
+            mCycleAdapter.add(new CycleItem(context, cycles.get(i)[0], cycles.get(i)[1]));
+        }
+
+        // one last cycle entry to modify policy cycle day
+        mCycleAdapter.setChangePossible(hasCycles && isNetworkPolicyModifiable(policy));
+
+        // force pick the current cycle (first item)
+        if (mCycleAdapter.getCount() > 0) {
+            final int position = mCycleAdapter.findNearestPosition(previousItem);
+            mCycleSpinner.setSelection(position);
+
+            // only force-update cycle when changed; skipping preserves any
+            // user-defined inspection region.
+            final CycleItem selectedItem = mCycleAdapter.getItem(position);
+            if (!Objects.equal(selectedItem, previousItem)) {
+                mCycleListener.onItemSelected(mCycleSpinner, null, position, 0);
+            } else {
+                // but still kick off loader for detailed list
+                updateDetailData();
+            }
+        } else {
+            updateDetailData();
+        }
+    }
+
+    /**
+     * Compute the {start, end} of the cycles covering the history, newest first.
+     *
+     * @return true if the cycles are the ones of the policy, false if they are four-week
+     *         periods because there is no policy.
+     */
+    private static boolean computeCycles(NetworkPolicy policy, NetworkStatsHistory history,
+            ArrayList<long[]> cycles) {
         long historyStart = Long.MAX_VALUE;
         long historyEnd = Long.MIN_VALUE;
-        if (mChartData != null) {
-            historyStart = mChartData.network.getStart();
-            historyEnd = mChartData.network.getEnd();
+        if (history != null) {
+            historyStart = history.getStart();
+            historyEnd = history.getEnd();
         }
 
         final long now = System.currentTimeMillis();
@@ -1115,13 +1154,10 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
                 final long cycleStart = computeLastCycleBoundary(cycleEnd, policy);
                 Log.d(TAG, "generating cs=" + cycleStart + " to ce=" + cycleEnd + " waiting for hs="
                         + historyStart);
-                mCycleAdapter.add(new CycleItem(context, cycleStart, cycleEnd));
+                cycles.add(new long[] { cycleStart, cycleEnd });
                 cycleEnd = cycleStart;
                 hasCycles = true;
             }
-
-            // one last cycle entry to modify policy cycle day
-            mCycleAdapter.setChangePossible(isNetworkPolicyModifiable(policy));
         }
 
         if (!hasCycles) {
@@ -1129,30 +1165,11 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             long cycleEnd = historyEnd;
             while (cycleEnd > historyStart) {
                 final long cycleStart = cycleEnd - (DateUtils.WEEK_IN_MILLIS * 4);
-                mCycleAdapter.add(new CycleItem(context, cycleStart, cycleEnd));
+                cycles.add(new long[] { cycleStart, cycleEnd });
                 cycleEnd = cycleStart;
             }
-
-            mCycleAdapter.setChangePossible(false);
-        }
-
-        // force pick the current cycle (first item)
-        if (mCycleAdapter.getCount() > 0) {
-            final int position = mCycleAdapter.findNearestPosition(previousItem);
-            mCycleSpinner.setSelection(position);
-
-            // only force-update cycle when changed; skipping preserves any
-            // user-defined inspection region.
-            final CycleItem selectedItem = mCycleAdapter.getItem(position);
-            if (!Objects.equal(selectedItem, previousItem)) {
-                mCycleListener.onItemSelected(mCycleSpinner, null, position, 0);
-            } else {
-                // but still kick off loader for detailed list
-                updateDetailData();
-            }
-        } else {
-            updateDetailData();
         }
+        return hasCycles;
     }
 
     private void disableDataForOtherSubscriptions(SubscriptionInfo currentSir) {
@@ -1364,6 +1381,7 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             // kick off loader for detailed stats
             getLoaderManager().restartLoader(LOADER_SUMMARY,
                     SummaryForAllUidLoader.buildArgs(mTemplate, start, end), mSummaryCallbacks);
+            prefetchAdjacentCycles();
         }
 
         final long totalBytes = entry != null ? entry.rxBytes + entry.txBytes : 0;
@@ -1385,11 +1403,96 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         ensureLayoutTransitions();
     }
 
+    /**
+     * Build the {@link NetworkTemplate} matching the traffic shown by a tab.
+     */
+    private NetworkTemplate buildTemplateForTab(Context context, String tab) {
+        if (isMobileTab(tab)) {
+            // Match mobile traffic for this subscriber, but normalize it to
+            // catch any other merged subscribers.
+            final NetworkTemplate template = buildTemplateMobileAll(
+                    getActiveSubscriberId(context, getSubId(tab)));
+            return NetworkTemplate.normalize(template,
+                    mTelephonyManager.getMergedSubscriberIds());
+        } else if (TAB_3G.equals(tab)) {
+            return buildTemplateMobile3gLower(getActiveSubscriberId(context));
+        } else if (TAB_4G.equals(tab)) {
+            return buildTemplateMobile4g(getActiveSubscriberId(context));
+        } else if (TAB_WIFI.equals(tab)) {
+            return buildTemplateWifiWildcard();
+        } else if (TAB_ETHERNET.equals(tab)) {
+            return buildTemplateEthernet();
+        } else {
+            throw new IllegalStateException("unknown tab: " + tab);
+        }
+    }
+
+    /**
+     * Load the network history of the other tabs in the background, and then the usage
+     * of all UIDs over the cycle each tab will select, so that switching to them is
+     * immediate.
+     */
+    private void prefetchOtherTabs() {
+        final Context context = getActivity();
+        // A tab selects the cycle nearest the one selected here, see updateCycleList()
+        final CycleItem selected = (CycleItem) mCycleSpinner.getSelectedItem();
+        final CycleItem target = (selected instanceof CycleChangeItem) ? null : selected;
+        for (int i = 0; i < mTabTags.size(); i++) {
+            final String tab = mTabTags.get(i);
+            if (!tab.equals(mCurrentTab)) {
+                final NetworkTemplate template = buildTemplateForTab(context, tab);
+                final NetworkPolicy policy = mPolicyEditor.getPolicy(template);
+                mStatsCache.prefetchChartData(mStatsSession, template);
+                mStatsCache.prefetchSummary(mStatsSession, template,
+                        new NetworkStatsCache.SummaryRange() {
+                    @Override
+                    public long[] compute(ChartData data) {
+                        final ArrayList<long[]> cycles = new ArrayList<long[]>();
+                        computeCycles(policy, data.network, cycles);
+                        return cycles.isEmpty()
+                                ? null : cycles.get(findNearestCycle(cycles, target));
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Same as {@link CycleAdapter#findNearestPosition} for cycles from
+     * {@link #computeCycles}.
+     */
+    private static int findNearestCycle(ArrayList<long[]> cycles, CycleItem target) {
+        if (target != null) {
+            for (int i = cycles.size() - 1; i >= 0; i--) {
+                if (cycles.get(i)[0] >= target.start) {
+                    return i;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Load the usage of all UIDs for the cycles around the selected one in the
+     * background, so that switching to them is immediate.
+     */
+    private void prefetchAdjacentCycles() {
+        final int position = mCycleSpinner.getSelectedItemPosition();
+        if (position == AdapterView.INVALID_POSITION) return;
+        for (int i = position - 1; i <= position + 1; i += 2) {
+            if (i < 0 || i >= mCycleAdapter.getCount()) continue;
+            final CycleItem cycle = mCycleAdapter.getItem(i);
+            if (!(cycle instanceof CycleChangeItem)) {
+                mStatsCache.prefetchSummary(mStatsSession, mTemplate, cycle.start, cycle.end);
+            }
+        }
+    }
+
     private final LoaderCallbacks<ChartData> mChartDataCallbacks = new LoaderCallbacks<
             ChartData>() {
         @Override
         public Loader<ChartData> onCreateLoader(int id, Bundle args) {
-            return new ChartDataLoader(getActivity(), mStatsSession, args);
+            return new ChartDataLoader(getActivity(), mStatsSession, mStatsCache, args);
         }
 
         @Override
@@ -1405,6 +1508,8 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
             // force scroll to top of body when showing detail
             if (mChartData.detail != null) {
                 mListView.smoothScrollToPosition(0);
+            } else {
+                prefetchOtherTabs();
             }
         }
 
@@ -1416,24 +1521,24 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
         }
     };
 
-    private final LoaderCallbacks<NetworkStats> mSummaryCallbacks = new LoaderCallbacks<
-            NetworkStats>() {
+    private final LoaderCallbacks<SummaryForAllUidLoader.Summary> mSummaryCallbacks =
+            new LoaderCallbacks<SummaryForAllUidLoader.Summary>() {
         @Override
-        public Loader<NetworkStats> onCreateLoader(int id, Bundle args) {
-            return new SummaryForAllUidLoader(getActivity(), mStatsSession, args);
+        public Loader<SummaryForAllUidLoader.Summary> onCreateLoader(int id, Bundle args) {
+            return new SummaryForAllUidLoader(getActivity(), mStatsSession, mStatsCache,
+                    UserManager.get(getActivity()), mPolicyManager, args);
         }
 
         @Override
-        public void onLoadFinished(Loader<NetworkStats> loader, NetworkStats data) {
-            final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
-                    POLICY_REJECT_METERED_BACKGROUND);
-            mAdapter.bindStats(data, restrictedUids);
+        public void onLoadFinished(Loader<SummaryForAllUidLoader.Summary> loader,
+                SummaryForAllUidLoader.Summary data) {
+            mAdapter.bindStats(data);
             updateEmptyVisible();
         }
 
         @Override
-        public void onLoaderReset(Loader<NetworkStats> loader) {
-            mAdapter.bindStats(null, new int[0]);
+        public void onLoaderReset(Loader<SummaryForAllUidLoader.Summary> loader) {
+            mAdapter.bindStats(null);
             updateEmptyVisible();
         }
 
@@ -1662,127 +1767,29 @@ public class DataUsageSummary extends HighlightingFragment implements Indexable
     public static class DataUsageAdapter extends BaseAdapter {
         private final UidDetailProvider mProvider;
         private final int mInsetSide;
-        private final UserManager mUm;
 
         private ArrayList<AppItem> mItems = Lists.newArrayList();
         private long mLargest;
 
-        public DataUsageAdapter(final UserManager userManager, UidDetailProvider provider, int insetSide) {
+        public DataUsageAdapter(UidDetailProvider provider, int insetSide) {
             mProvider = checkNotNull(provider);
             mInsetSide = insetSide;
-            mUm = userManager;
         }
 
         /**
-         * Bind the given {@link NetworkStats}, or {@code null} to clear list.
+         * Bind the given {@link SummaryForAllUidLoader.Summary}, or {@code null} to clear
+         * list.
          */
-        public void bindStats(NetworkStats stats, int[] restrictedUids) {
+        public void bindStats(SummaryForAllUidLoader.Summary summary) {
             mItems.clear();
             mLargest = 0;
-
-            final int currentUserId = ActivityManager.getCurrentUser();
-            final List<UserHandle> profiles = mUm.getUserProfiles();
-            final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
-
-            NetworkStats.Entry entry = null;
-            final int size = stats != null ? stats.size() : 0;
-            for (int i = 0; i < size; i++) {
-                entry = stats.getValues(i, entry);
-
-                // Decide how to collapse items together
-                final int uid = entry.uid;
-
-                final int collapseKey;
-                final int category;
-                final int userId = UserHandle.getUserId(uid);
-                if (UserHandle.isApp(uid)) {
-                    if (profiles.contains(new UserHandle(userId))) {
-                        if (userId != currentUserId) {
-                            // Add to a managed user item.
-                            final int managedKey = UidDetailProvider.buildKeyForUser(userId);
-                            accumulate(managedKey, knownItems, entry,
-                                    AppItem.CATEGORY_USER);
-                        }
-                        // Add to app item.
-                        collapseKey = uid;
-                        category = AppItem.CATEGORY_APP;
-                    } else {
-                        // If it is a removed user add it to the removed users' key
-                        final UserInfo info = mUm.getUserInfo(userId);
-                        if (info == null) {
-                            collapseKey = UID_REMOVED;
-                            category = AppItem.CATEGORY_APP;
-                        } else {
-                            // Add to other user item.
-                            collapseKey = UidDetailProvider.buildKeyForUser(userId);
-                            category = AppItem.CATEGORY_USER;
-                        }
-                    }
-                } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
-                    collapseKey = uid;
-                    category = AppItem.CATEGORY_APP;
-                } else {
-                    collapseKey = android.os.Process.SYSTEM_UID;
-                    category = AppItem.CATEGORY_APP;
-                }
-                accumulate(collapseKey, knownItems, entry, category);
+            if (summary != null) {
+                mItems.addAll(summary.items);
+                mLargest = summary.largest;
             }
-
-            final int restrictedUidsMax = restrictedUids.length;
-            for (int i = 0; i < restrictedUidsMax; ++i) {
-                final int uid = restrictedUids[i];
-                // Only splice in restricted state for current user or managed users
-                if (!profiles.contains(new UserHandle(UserHandle.getUserId(uid)))) {
-                    continue;
-                }
-
-                AppItem item = knownItems.get(uid);
-                if (item == null) {
-                    item = new AppItem(uid);
-                    item.total = -1;
-                    mItems.add(item);
-                    knownItems.put(item.key, item);
-                }
-                item.restricted = true;
-            }
-
-            if (!mItems.isEmpty()) {
-                final AppItem title = new AppItem();
-                title.category = AppItem.CATEGORY_APP_TITLE;
-                mItems.add(title);
-            }
-
-            Collections.sort(mItems);
             notifyDataSetChanged();
         }
 
-        /**
-         * Accumulate data usage of a network stats entry for the item mapped by the collapse key.
-         * Creates the item if needed.
-         *
-         * @param collapseKey the collapse key used to map the item.
-         * @param knownItems collection of known (already existing) items.
-         * @param entry the network stats entry to extract data usage from.
-         * @param itemCategory the item is categorized on the list view by this category. Must be
-         *            either AppItem.APP_ITEM_CATEGORY or AppItem.MANAGED_USER_ITEM_CATEGORY
-         */
-        private void accumulate(int collapseKey, final SparseArray<AppItem> knownItems,
-                NetworkStats.Entry entry, int itemCategory) {
-            final int uid = entry.uid;
-            AppItem item = knownItems.get(collapseKey);
-            if (item == null) {
-                item = new AppItem(collapseKey);
-                item.category = itemCategory;
-                mItems.add(item);
-                knownItems.put(item.key, item);
-            }
-            item.addUid(uid);
-            item.total += entry.rxBytes + entry.txBytes;
-            if (mLargest < item.total) {
-                mLargest = item.total;
-            }
-        }
-
         @Override
         public int getCount() {
             return mItems.size();
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent cache of application labels and icons, so that the list of applications can be
+ * shown after a restart without loading every APK's resources again.
+ *
+ * Each package is keyed by its name and the modification time of its APK, which changes when
+ * the package is updated. The whole cache is tied to the locale, density and other parts of
+ * the configuration tracked by {@link InterestingConfigChanges}, and is dropped when they
+ * change. Icons are stored downscaled to the launcher icon size, one PNG file per package.
+ *
+ * All the methods are thread safe. load() and writeIfDirty() do disk I/O and must not be
+ * called from the main thread.
+ */
+class AppLabelCache {
+    private static final String TAG = "AppLabelCache";
+
+    private static final int VERSION = 1;
+    private static final String ICON_SUFFIX = ".png";
+
+    static final class Label {
+        final long apkModified;
+        final String label;
+        final String normalizedLabel;
+        boolean hasIcon;
+
+        Label(long apkModified, String label, String normalizedLabel) {
+            this.apkModified = apkModified;
+            this.label = label;
+            this.normalizedLabel = normalizedLabel;
+        }
+    }
+
+    private final AtomicFile mIndexFile;
+    private final File mIconDir;
+    private final int mIconSize;
+
+    private final HashMap<String, Label> mLabels = new HashMap<String, Label>();
+    private final HashMap<String, Bitmap> mPendingIcons = new HashMap<String, Bitmap>();
+    private final HashSet<String> mRemovedIcons = new HashSet<String>();
+    private String mConfigKey;
+    private boolean mLoaded;
+    private boolean mClearIcons;
+    private boolean mDirty;
+
+    AppLabelCache(File indexFile, File iconDir, int iconSize, String configKey) {
+        mIndexFile = new AtomicFile(indexFile);
+        mIconDir = iconDir;
+        mIconSize = iconSize;
+        mConfigKey = configKey;
+    }
+
+    /**
+     * Drops all the labels and icons if the configuration they were loaded with changed.
+     */
+    synchronized void setConfig(String configKey) {
+        if (configKey.equals(mConfigKey)) {
+            return;
+        }
+        mConfigKey = configKey;
+        mLabels.clear();
+        mPendingIcons.clear();
+        mRemovedIcons.clear();
+        mClearIcons = true;
+        mDirty = true;
+    }
+
+    synchronized Label getLabel(String packageName, long apkModified) {
+        Label label = mLabels.get(packageName);
+        if (label == null || label.apkModified != apkModified) {
+            return null;
+        }
+        return label;
+    }
+
+    synchronized void putLabel(String packageName, long apkModified, String label,
+            String normalizedLabel) {
+        mLabels.put(packageName, new Label(apkModified, label, normalizedLabel));
+        mPendingIcons.remove(packageName);
+        mDirty = true;
+    }
+
+    /**
+     * Returns the cached icon of a package, or null if unknown or out of date.
+     */
+    Drawable getIcon(String packageName, long apkModified, Resources res) {
+        Bitmap bitmap;
+        synchronized (this) {
+            Label label = getLabel(packageName, apkModified);
+            if (label == null) {
+                return null;
+            }
+            bitmap = mPendingIcons.get(packageName);
+            if (bitmap == null && !label.hasIcon) {
+                return null;
+            }
+        }
+        if (bitmap == null) {
+            bitmap = BitmapFactory.decodeFile(getIconFile(packageName).getPath());
+            if (bitmap == null) {
+                return null;
+            }
+        }
+        return new BitmapDrawable(res, bitmap);
+    }
+
+    /**
+     * Remembers the icon of a package.  Its label must have been put first.
+     */
+    void putIcon(String packageName, long apkModified, Drawable icon) {
+        synchronized (this) {
+            if (getLabel(packageName, apkModified) == null) {
+                return;
+            }
+        }
+        Bitmap bitmap = createIconBitmap(icon, mIconSize);
+        synchronized (this) {
+            Label label = getLabel(packageName, apkModified);
+            if (label != null) {
+                label.hasIcon = false;
+                mPendingIcons.put(packageName, bitmap);
+                mDirty = true;
+            }
+        }
+    }
+
+    synchronized void remove(String packageName) {
+        if (mLabels.remove(packageName) != null) {
+            mPendingIcons.remove(packageName);
+            mRemovedIcons.add(packageName);
+            mDirty = true;
+        }
+    }
+
+    /**
+     * Drops the labels and icons of the packages that are no longer installed.
+     */
+    synchronized void retainAll(Set<String> packageNames) {
+        ArrayList<String> removed = null;
+        for (String packageName : mLabels.keySet()) {
+            if (!packageNames.contains(packageName)) {
+                if (removed == null) {
+                    removed = new ArrayList<String>();
+                }
+                removed.add(packageName);
+            }
+        }
+        if (removed != null) {
+            for (int i=0; i<removed.size(); i++) {
+                remove(removed.get(i));
+            }
+        }
+    }
+
+    synchronized void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mIndexFile.openRead()));
+            if (in.readInt() != VERSION || !in.readUTF().equals(mConfigKey)) {
+                // Loaded with another configuration: none of the icons are valid.
+                mClearIcons = true;
+                mDirty = true;
+                return;
+            }
+            final int count = in.readInt();
+            for (int i=0; i<count; i++) {
+                final String packageName = in.readUTF();
+                final Label label = new Label(in.readLong(), in.readUTF(), in.readUTF());
+                label.hasIcon = in.readBoolean();
+                // Labels loaded since we started win over the persisted ones.
+                if (!mLabels.containsKey(packageName)) {
+                    mLabels.put(packageName, label);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing persisted yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read app labels", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    void writeIfDirty() {
+        HashMap<String, Bitmap> icons;
+        String[] removedIcons;
+        boolean clearIcons;
+        synchronized (this) {
+            if (!mDirty) {
+                return;
+            }
+            icons = new HashMap<String, Bitmap>(mPendingIcons);
+            removedIcons = mRemovedIcons.toArray(new String[mRemovedIcons.size()]);
+            clearIcons = mClearIcons;
+            mRemovedIcons.clear();
+            mClearIcons = false;
+        }
+
+        // Compress the icons without holding the lock.
+        mIconDir.mkdirs();
+        if (clearIcons) {
+            File[] files = mIconDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+        }
+        for (String packageName : removedIcons) {
+            getIconFile(packageName).delete();
+        }
+        HashSet<String> written = new HashSet<String>();
+        for (Map.Entry<String, Bitmap> e : icons.entrySet()) {
+            if (writeIcon(e.getKey(), e.getValue())) {
+                written.add(e.getKey());
+            }
+        }
+
+        synchronized (this) {
+            for (String packageName : written) {
+                // Skip icons that were replaced or removed in the meantime.
+                if (mPendingIcons.get(packageName) == icons.get(packageName)) {
+                    mPendingIcons.remove(packageName);
+                    mLabels.get(packageName).hasIcon = true;
+                }
+            }
+            writeIndexLocked();
+        }
+    }
+
+    private void writeIndexLocked() {
+        FileOutputStream fos = null;
+        try {
+            fos = mIndexFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            out.writeUTF(mConfigKey);
+            out.writeInt(mLabels.size());
+            for (Map.Entry<String, Label> e : mLabels.entrySet()) {
+                final Label label = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(label.apkModified);
+                out.writeUTF(label.label);
+                out.writeUTF(label.normalizedLabel);
+                out.writeBoolean(label.hasIcon);
+            }
+            out.flush();
+            mIndexFile.finishWrite(fos);
+            mDirty = !mPendingIcons.isEmpty() || !mRemovedIcons.isEmpty() || mClearIcons;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write app labels", e);
+            if (fos != null) {
+                mIndexFile.failWrite(fos);
+            }
+        }
+    }
+
+    private boolean writeIcon(String packageName, Bitmap bitmap) {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(getIconFile(packageName));
+            return bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write icon of " + packageName, e);
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private File getIconFile(String packageName) {
+        return new File(mIconDir, packageName + ICON_SUFFIX);
+    }
+
+    private static Bitmap createIconBitmap(Drawable icon, int size) {
+        int width = icon.getIntrinsicWidth();
+        int height = icon.getIntrinsicHeight();
+        if (width <= 0 || height <= 0) {
+            width = size;
+            height = size;
+        } else if (width > size || height > size) {
+            final float scale = (float) size / Math.max(width, height);
+            width = Math.max(1, (int) (width * scale));
+            height = Math.max(1, (int) (height * scale));
+        }
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Rect oldBounds = icon.copyBounds();
+        icon.setBounds(0, 0, width, height);
+        icon.draw(canvas);
+        icon.setBounds(oldBounds);
+        return bitmap;
+    }
+}
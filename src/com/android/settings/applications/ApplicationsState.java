@@ -22,6 +22,8 @@ import android.os.UserHandle;
 import android.text.format.Formatter;
 import android.util.Log;
 
+import com.android.settings.R;
+
 import java.io.File;
 import java.text.Collator;
 import java.text.Normalizer;
@@ -31,6 +33,8 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
@@ -59,6 +63,10 @@ public class ApplicationsState {
     static final int SIZE_UNKNOWN = -1;
     static final int SIZE_INVALID = -2;
 
+    static final String SIZE_CACHE_FILE = "app_sizes";
+    static final String LABEL_CACHE_FILE = "app_labels";
+    static final String ICON_CACHE_DIR = "app_icons";
+
     static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -105,7 +113,7 @@ public class ApplicationsState {
         }
 
         // Need to synchronize on 'this' for the following.
-        ApplicationInfo info;
+        volatile ApplicationInfo info;
         Drawable icon;
         String sizeStr;
         String internalSizeStr;
@@ -115,32 +123,66 @@ public class ApplicationsState {
 
         String normalizedLabel;
 
-        AppEntry(Context context, ApplicationInfo info, long id) {
+        AppEntry(Context context, AppLabelCache cache, ApplicationInfo info, long id) {
             apkFile = new File(info.sourceDir);
             this.id = id;
             this.info = info;
             this.size = SIZE_UNKNOWN;
             this.sizeStale = true;
-            ensureLabel(context);
+            ensureLabel(context, cache);
         }
         
-        void ensureLabel(Context context) {
+        void ensureLabel(Context context, AppLabelCache cache) {
             if (this.label == null || !this.mounted) {
                 if (!this.apkFile.exists()) {
                     this.mounted = false;
                     this.label = info.packageName;
                 } else {
                     this.mounted = true;
-                    CharSequence label = info.loadLabel(context.getPackageManager());
-                    this.label = label != null ? label.toString() : info.packageName;
+                    final long apkModified = this.apkFile.lastModified();
+                    AppLabelCache.Label cached = cache.getLabel(info.packageName, apkModified);
+                    if (cached != null) {
+                        this.label = cached.label;
+                        this.normalizedLabel = cached.normalizedLabel;
+                    } else {
+                        // Another screen may have loaded it already.
+                        final UidInfoResolver resolver = UidInfoResolver.getInstance(context);
+                        CharSequence label = resolver.getPackageLabel(info.packageName);
+                        if (label == null) {
+                            label = info.loadLabel(context.getPackageManager());
+                            if (label != null) {
+                                resolver.putPackageLabel(info.packageName, label.toString());
+                            }
+                        }
+                        this.label = label != null ? label.toString() : info.packageName;
+                        this.normalizedLabel = null;
+                        cache.putLabel(info.packageName, apkModified, this.label,
+                                getNormalizedLabel());
+                    }
+                }
+            }
+        }
+
+        private Drawable loadIcon(Context context, PackageManager pm, AppLabelCache cache) {
+            final long apkModified = this.apkFile.lastModified();
+            Drawable icon = cache.getIcon(info.packageName, apkModified,
+                    context.getResources());
+            if (icon == null) {
+                final UidInfoResolver resolver = UidInfoResolver.getInstance(context);
+                icon = resolver.getPackageIcon(info.packageName);
+                if (icon == null) {
+                    icon = this.info.loadIcon(pm);
+                    resolver.putPackageIcon(info.packageName, icon);
                 }
+                cache.putIcon(info.packageName, apkModified, icon);
             }
+            return icon;
         }
         
-        boolean ensureIconLocked(Context context, PackageManager pm) {
+        boolean ensureIconLocked(Context context, PackageManager pm, AppLabelCache cache) {
             if (this.icon == null) {
                 if (this.apkFile.exists()) {
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = loadIcon(context, pm, cache);
                     return true;
                 } else {
                     this.mounted = false;
@@ -152,7 +194,7 @@ public class ApplicationsState {
                 // its icon.
                 if (this.apkFile.exists()) {
                     this.mounted = true;
-                    this.icon = this.info.loadIcon(pm);
+                    this.icon = loadIcon(context, pm, cache);
                     return true;
                 }
             }
@@ -271,17 +313,56 @@ public class ApplicationsState {
     boolean mResumed;
     boolean mHaveDisabledApps;
 
-    // Information about all applications.  Synchronize on mEntriesMap
-    // to protect access to these.
+    /**
+     * Immutable, versioned view of the installed applications.  A new snapshot
+     * is published under mLock every time the list changes, so readers can
+     * iterate it without holding any lock.
+     */
+    static final class AppListSnapshot {
+        final int version;
+        final List<ApplicationInfo> apps;
+        final HashMap<String, ApplicationInfo> appsByName;
+
+        AppListSnapshot(int version, List<ApplicationInfo> apps) {
+            this.version = version;
+            this.apps = Collections.unmodifiableList(apps);
+            appsByName = new HashMap<String, ApplicationInfo>(apps.size());
+            for (int i=0; i<apps.size(); i++) {
+                ApplicationInfo info = apps.get(i);
+                appsByName.put(info.packageName, info);
+            }
+        }
+
+        ApplicationInfo get(String pkgName) {
+            return appsByName.get(pkgName);
+        }
+    }
+
+    // Session bookkeeping and structural changes to the application list.
+    // Synchronize on mLock to protect access to these.
+    final Object mLock = new Object();
     final ArrayList<Session> mSessions = new ArrayList<Session>();
     final ArrayList<Session> mRebuildingSessions = new ArrayList<Session>();
     final InterestingConfigChanges mInterestingConfigChanges = new InterestingConfigChanges();
-    final HashMap<String, AppEntry> mEntriesMap = new HashMap<String, AppEntry>();
-    final ArrayList<AppEntry> mAppEntries = new ArrayList<AppEntry>();
-    List<ApplicationInfo> mApplications = new ArrayList<ApplicationInfo>();
-    long mCurId = 1;
-    String mCurComputingSizePkg;
     boolean mSessionsChanged;
+    // Packages whose size is being computed, with the time the request was made.
+    final HashMap<String, Long> mSizeRequests = new HashMap<String, Long>();
+    // Packages currently on screen, whose size should be computed first.
+    final ArrayList<String> mVisibleSizePackages = new ArrayList<String>();
+
+    final int mMaxSizeRequests;
+    final long mSizeRequestTimeout;
+    final SizeInfoCache mSizeCache;
+    final AppLabelCache mLabelCache;
+
+    // Information about all applications.  These can be read without any
+    // lock; mApplications is only replaced while holding mLock, and updates
+    // to an AppEntry synchronize on that entry.
+    final ConcurrentHashMap<String, AppEntry> mEntriesMap
+            = new ConcurrentHashMap<String, AppEntry>();
+    volatile AppListSnapshot mApplications
+            = new AppListSnapshot(0, new ArrayList<ApplicationInfo>());
+    final AtomicLong mCurId = new AtomicLong(1);
 
     // Temporary for dispatching session callbacks.  Only touched by main thread.
     final ArrayList<Session> mActiveSessions = new ArrayList<Session>();
@@ -344,7 +425,7 @@ public class ApplicationsState {
     }
 
     void rebuildActiveSessions() {
-        synchronized (mEntriesMap) {
+        synchronized (mLock) {
             if (!mSessionsChanged) {
                 return;
             }
@@ -426,6 +507,14 @@ public class ApplicationsState {
     private ApplicationsState(Application app) {
         mContext = app;
         mPm = mContext.getPackageManager();
+        mMaxSizeRequests = Math.max(1,
+                app.getResources().getInteger(R.integer.app_size_max_requests));
+        mSizeRequestTimeout = app.getResources().getInteger(R.integer.app_size_request_timeout);
+        mSizeCache = new SizeInfoCache(new File(app.getCacheDir(), SIZE_CACHE_FILE));
+        mLabelCache = new AppLabelCache(new File(app.getCacheDir(), LABEL_CACHE_FILE),
+                new File(app.getCacheDir(), ICON_CACHE_DIR),
+                app.getResources().getDimensionPixelSize(android.R.dimen.app_icon_size),
+                InterestingConfigChanges.getCacheKey(app.getResources()));
         mThread = new HandlerThread("ApplicationsState.Loader",
                 Process.THREAD_PRIORITY_BACKGROUND);
         mThread.start();
@@ -455,12 +544,14 @@ public class ApplicationsState {
          * here, though, so this little trick will force it to turn into a real
          * lock immediately.
          */
-        synchronized (mEntriesMap) {
+        synchronized (mLock) {
             try {
-                mEntriesMap.wait(1);
+                mLock.wait(1);
             } catch (InterruptedException e) {
             }
         }
+
+        mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_CACHES);
     }
 
     public class Session {
@@ -482,7 +573,7 @@ public class ApplicationsState {
 
         public void resume() {
             if (DEBUG_LOCKING) Log.v(TAG, "resume about to acquire lock...");
-            synchronized (mEntriesMap) {
+            synchronized (mLock) {
                 if (!mResumed) {
                     mResumed = true;
                     mSessionsChanged = true;
@@ -494,7 +585,7 @@ public class ApplicationsState {
 
         public void pause() {
             if (DEBUG_LOCKING) Log.v(TAG, "pause about to acquire lock...");
-            synchronized (mEntriesMap) {
+            synchronized (mLock) {
                 if (mResumed) {
                     mResumed = false;
                     mSessionsChanged = true;
@@ -508,7 +599,7 @@ public class ApplicationsState {
         // Creates a new list of app entries with the given filter and comparator.
         ArrayList<AppEntry> rebuild(AppFilter filter, Comparator<AppEntry> comparator) {
             synchronized (mRebuildSync) {
-                synchronized (mEntriesMap) {
+                synchronized (mLock) {
                     mRebuildingSessions.add(this);
                     mRebuildRequested = true;
                     mRebuildAsync = false;
@@ -563,23 +654,32 @@ public class ApplicationsState {
                 filter.init();
             }
             
-            List<ApplicationInfo> apps;
-            synchronized (mEntriesMap) {
-                apps = new ArrayList<ApplicationInfo>(mApplications);
-            }
+            // Filter a snapshot of the application list; no global lock is
+            // held, entries are only locked while their label is loaded.
+            final AppListSnapshot snapshot = mApplications;
+            final List<ApplicationInfo> apps = snapshot.apps;
 
             ArrayList<AppEntry> filteredApps = new ArrayList<AppEntry>();
-            if (DEBUG) Log.i(TAG, "Rebuilding...");
+            if (DEBUG) Log.i(TAG, "Rebuilding version " + snapshot.version + "...");
             for (int i=0; i<apps.size(); i++) {
                 ApplicationInfo info = apps.get(i);
                 if (filter == null || filter.filterApp(info)) {
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild acquired lock");
-                        AppEntry entry = getEntryLocked(info);
-                        entry.ensureLabel(mContext);
-                        if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
-                        filteredApps.add(entry);
-                        if (DEBUG_LOCKING) Log.v(TAG, "rebuild releasing lock");
+                    AppEntry entry = getOrCreateEntry(info);
+                    synchronized (entry) {
+                        entry.ensureLabel(mContext, mLabelCache);
+                    }
+                    if (DEBUG) Log.i(TAG, "Using " + info.packageName + ": " + entry);
+                    filteredApps.add(entry);
+                }
+            }
+
+            final AppListSnapshot current = mApplications;
+            if (current.version != snapshot.version) {
+                // Packages were removed while we were filtering: don't hand
+                // out entries that are no longer part of the list.
+                for (int i=filteredApps.size()-1; i>=0; i--) {
+                    if (current.get(filteredApps.get(i).info.packageName) == null) {
+                        filteredApps.remove(i);
                     }
                 }
             }
@@ -605,9 +705,20 @@ public class ApplicationsState {
             Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
         }
 
+        /**
+         * Tells which packages are currently shown, so that their sizes are
+         * computed before the others.
+         */
+        public void setVisiblePackages(List<String> packageNames) {
+            synchronized (mLock) {
+                mVisibleSizePackages.clear();
+                mVisibleSizePackages.addAll(packageNames);
+            }
+        }
+
         public void release() {
             pause();
-            synchronized (mEntriesMap) {
+            synchronized (mLock) {
                 mSessions.remove(this);
             }
         }
@@ -615,7 +726,7 @@ public class ApplicationsState {
 
     public Session newSession(Callbacks callbacks) {
         Session s = new Session(callbacks);
-        synchronized (mEntriesMap) {
+        synchronized (mLock) {
             mSessions.add(s);
         }
         return s;
@@ -630,30 +741,33 @@ public class ApplicationsState {
             mPackageIntentReceiver = new PackageIntentReceiver();
             mPackageIntentReceiver.registerReceiver();
         }
-        mApplications = mPm.getInstalledApplications(mRetrieveFlags);
-        if (mApplications == null) {
-            mApplications = new ArrayList<ApplicationInfo>();
+        List<ApplicationInfo> apps = mPm.getInstalledApplications(mRetrieveFlags);
+        if (apps == null) {
+            apps = new ArrayList<ApplicationInfo>();
         }
 
         if (mInterestingConfigChanges.applyNewConfig(mContext.getResources())) {
             // If an interesting part of the configuration has changed, we
             // should completely reload the app entries.
+            mLabelCache.setConfig(InterestingConfigChanges.getCacheKey(mContext.getResources()));
             mEntriesMap.clear();
-            mAppEntries.clear();
         } else {
-            for (int i=0; i<mAppEntries.size(); i++) {
-                mAppEntries.get(i).sizeStale = true;
+            for (AppEntry entry : mEntriesMap.values()) {
+                synchronized (entry) {
+                    entry.sizeStale = true;
+                    entry.sizeLoadStart = 0;
+                }
             }
         }
 
         mHaveDisabledApps = false;
-        for (int i=0; i<mApplications.size(); i++) {
-            final ApplicationInfo info = mApplications.get(i);
+        for (int i=0; i<apps.size(); i++) {
+            final ApplicationInfo info = apps.get(i);
             // Need to trim out any applications that are disabled by
             // something different than the user.
             if (!info.enabled) {
                 if (info.enabledSetting != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
-                    mApplications.remove(i);
+                    apps.remove(i);
                     i--;
                     continue;
                 }
@@ -664,7 +778,8 @@ public class ApplicationsState {
                 entry.info = info;
             }
         }
-        mCurComputingSizePkg = null;
+        publishApplicationsLocked(apps);
+        mSizeRequests.clear();
         if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
             mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
         }
@@ -691,21 +806,14 @@ public class ApplicationsState {
     }
 
     AppEntry getEntry(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "getEntry about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry == null) {
-                for (int i=0; i<mApplications.size(); i++) {
-                    ApplicationInfo info = mApplications.get(i);
-                    if (packageName.equals(info.packageName)) {
-                        entry = getEntryLocked(info);
-                        break;
-                    }
-                }
+        AppEntry entry = mEntriesMap.get(packageName);
+        if (entry == null) {
+            ApplicationInfo info = mApplications.get(packageName);
+            if (info != null) {
+                entry = getOrCreateEntry(info);
             }
-            if (DEBUG_LOCKING) Log.v(TAG, "...getEntry releasing lock");
-            return entry;
         }
+        return entry;
     }
     
     void ensureIcon(AppEntry entry) {
@@ -713,99 +821,98 @@ public class ApplicationsState {
             return;
         }
         synchronized (entry) {
-            entry.ensureIconLocked(mContext, mPm);
+            entry.ensureIconLocked(mContext, mPm, mLabelCache);
         }
     }
     
     void requestSize(String packageName) {
-        if (DEBUG_LOCKING) Log.v(TAG, "requestSize about to acquire lock...");
-        synchronized (mEntriesMap) {
-            AppEntry entry = mEntriesMap.get(packageName);
-            if (entry != null) {
-                mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...requestSize releasing lock");
+        AppEntry entry = mEntriesMap.get(packageName);
+        if (entry != null) {
+            mPm.getPackageSizeInfo(packageName, mBackgroundHandler.mStatsObserver);
         }
     }
 
     long sumCacheSizes() {
         long sum = 0;
-        if (DEBUG_LOCKING) Log.v(TAG, "sumCacheSizes about to acquire lock...");
-        synchronized (mEntriesMap) {
-            if (DEBUG_LOCKING) Log.v(TAG, "-> sumCacheSizes now has lock");
-            for (int i=mAppEntries.size()-1; i>=0; i--) {
-                sum += mAppEntries.get(i).cacheSize;
-            }
-            if (DEBUG_LOCKING) Log.v(TAG, "...sumCacheSizes releasing lock");
+        for (AppEntry entry : mEntriesMap.values()) {
+            sum += entry.cacheSize;
         }
         return sum;
     }
-    
-    int indexOfApplicationInfoLocked(String pkgName) {
-        for (int i=mApplications.size()-1; i>=0; i--) {
-            if (mApplications.get(i).packageName.equals(pkgName)) {
-                return i;
-            }
-        }
-        return -1;
+
+    void publishApplicationsLocked(List<ApplicationInfo> apps) {
+        mApplications = new AppListSnapshot(mApplications.version + 1, apps);
     }
 
     void addPackage(String pkgName) {
+        synchronized (mLock) {
+            if (DEBUG) Log.i(TAG, "Adding package " + pkgName);
+            if (!mResumed) {
+                // If we are not resumed, we will do a full query the
+                // next time we resume, so there is no reason to do work
+                // here.
+                return;
+            }
+            if (mApplications.get(pkgName) != null) {
+                if (DEBUG) Log.i(TAG, "Package already exists!");
+                return;
+            }
+        }
+        ApplicationInfo info;
         try {
-            synchronized (mEntriesMap) {
-                if (DEBUG_LOCKING) Log.v(TAG, "addPackage acquired lock");
-                if (DEBUG) Log.i(TAG, "Adding package " + pkgName);
-                if (!mResumed) {
-                    // If we are not resumed, we will do a full query the
-                    // next time we resume, so there is no reason to do work
-                    // here.
-                    if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: not resumed");
-                    return;
-                }
-                if (indexOfApplicationInfoLocked(pkgName) >= 0) {
-                    if (DEBUG) Log.i(TAG, "Package already exists!");
-                    if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: already exists");
+            info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
+        } catch (NameNotFoundException e) {
+            return;
+        }
+        synchronized (mLock) {
+            if (DEBUG_LOCKING) Log.v(TAG, "addPackage acquired lock");
+            if (!mResumed || mApplications.get(pkgName) != null) {
+                // Raced with a pause or another add of the same package.
+                if (DEBUG_LOCKING) Log.v(TAG, "addPackage release lock: nothing to do");
+                return;
+            }
+            if (!info.enabled) {
+                if (info.enabledSetting
+                        != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
                     return;
                 }
-                ApplicationInfo info = mPm.getApplicationInfo(pkgName, mRetrieveFlags);
-                if (!info.enabled) {
-                    if (info.enabledSetting
-                            != PackageManager.COMPONENT_ENABLED_STATE_DISABLED_USER) {
-                        return;
-                    }
-                    mHaveDisabledApps = true;
-                }
-                mApplications.add(info);
-                if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
-                    mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
-                }
-                if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
-                    mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
-                }
-                if (DEBUG_LOCKING) Log.v(TAG, "addPackage releasing lock");
+                mHaveDisabledApps = true;
             }
-        } catch (NameNotFoundException e) {
+            ArrayList<ApplicationInfo> apps = new ArrayList<ApplicationInfo>(
+                    mApplications.apps.size() + 1);
+            apps.addAll(mApplications.apps);
+            apps.add(info);
+            publishApplicationsLocked(apps);
+            if (!mBackgroundHandler.hasMessages(BackgroundHandler.MSG_LOAD_ENTRIES)) {
+                mBackgroundHandler.sendEmptyMessage(BackgroundHandler.MSG_LOAD_ENTRIES);
+            }
+            if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_LIST_CHANGED)) {
+                mMainHandler.sendEmptyMessage(MainHandler.MSG_PACKAGE_LIST_CHANGED);
+            }
+            if (DEBUG_LOCKING) Log.v(TAG, "addPackage releasing lock");
         }
     }
 
     void removePackage(String pkgName) {
-        synchronized (mEntriesMap) {
+        synchronized (mLock) {
             if (DEBUG_LOCKING) Log.v(TAG, "removePackage acquired lock");
-            int idx = indexOfApplicationInfoLocked(pkgName);
-            if (DEBUG) Log.i(TAG, "removePackage: " + pkgName + " @ " + idx);
-            if (idx >= 0) {
-                AppEntry entry = mEntriesMap.get(pkgName);
+            ApplicationInfo info = mApplications.get(pkgName);
+            if (DEBUG) Log.i(TAG, "removePackage: " + pkgName + " " + info);
+            if (info != null) {
+                ArrayList<ApplicationInfo> apps = new ArrayList<ApplicationInfo>(
+                        mApplications.apps);
+                apps.remove(info);
+                // Publish the new list before dropping the entry, so that a
+                // concurrent getOrCreateEntry() either sees the new list or has
+                // its entry removed here.
+                publishApplicationsLocked(apps);
+                AppEntry entry = mEntriesMap.remove(pkgName);
+                mLabelCache.remove(pkgName);
                 if (DEBUG) Log.i(TAG, "removePackage: " + entry);
-                if (entry != null) {
-                    mEntriesMap.remove(pkgName);
-                    mAppEntries.remove(entry);
-                }
-                ApplicationInfo info = mApplications.get(idx);
-                mApplications.remove(idx);
                 if (!info.enabled) {
                     mHaveDisabledApps = false;
-                    for (int i=0; i<mApplications.size(); i++) {
-                        if (!mApplications.get(i).enabled) {
+                    for (int i=0; i<apps.size(); i++) {
+                        if (!apps.get(i).enabled) {
                             mHaveDisabledApps = true;
                             break;
                         }
@@ -823,21 +930,73 @@ public class ApplicationsState {
         removePackage(pkgName);
         addPackage(pkgName);
     }
-    
-    AppEntry getEntryLocked(ApplicationInfo info) {
+
+    /**
+     * Returns the entry for the given application, creating it if needed.
+     * Does not need any lock: if two threads race to create the same entry,
+     * only the first one to be inserted is kept.
+     */
+    AppEntry getOrCreateEntry(ApplicationInfo info) {
         AppEntry entry = mEntriesMap.get(info.packageName);
         if (DEBUG) Log.i(TAG, "Looking up entry of pkg " + info.packageName + ": " + entry);
         if (entry == null) {
             if (DEBUG) Log.i(TAG, "Creating AppEntry for " + info.packageName);
-            entry = new AppEntry(mContext, info, mCurId++);
-            mEntriesMap.put(info.packageName, entry);
-            mAppEntries.add(entry);
+            AppEntry newEntry = new AppEntry(mContext, mLabelCache, info, mCurId.getAndIncrement());
+            applyCachedSizes(newEntry);
+            entry = mEntriesMap.putIfAbsent(info.packageName, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+                if (mApplications.get(info.packageName) == null) {
+                    // The package was removed while we were creating its entry.
+                    mEntriesMap.remove(info.packageName, newEntry);
+                }
+            }
         } else if (entry.info != info) {
             entry.info = info;
         }
         return entry;
     }
 
+    /**
+     * Fills in the last known sizes of a new entry, if any.  The entry stays
+     * stale so that its real size is still computed.
+     */
+    void applyCachedSizes(AppEntry entry) {
+        SizeInfoCache.Sizes sizes = mSizeCache.get(entry.info.packageName,
+                entry.apkFile.lastModified());
+        if (sizes == null) {
+            return;
+        }
+        synchronized (entry) {
+            if (entry.size != SIZE_UNKNOWN) {
+                return;
+            }
+            entry.size = sizes.size;
+            entry.cacheSize = sizes.cacheSize;
+            entry.codeSize = sizes.codeSize;
+            entry.dataSize = sizes.dataSize;
+            entry.externalCodeSize = sizes.externalCodeSize;
+            entry.externalDataSize = sizes.externalDataSize;
+            entry.externalCacheSize = sizes.externalCacheSize;
+            entry.sizeStr = getSizeStr(entry.size);
+            entry.internalSize = sizes.internalSize;
+            entry.internalSizeStr = getSizeStr(entry.internalSize);
+            entry.externalSize = sizes.externalSize;
+            entry.externalSizeStr = getSizeStr(entry.externalSize);
+        }
+    }
+
+    // Needs mLock.
+    boolean canRequestSizeLocked(AppEntry entry, long now) {
+        if (entry.size != SIZE_UNKNOWN && !entry.sizeStale) {
+            return false;
+        }
+        if (mSizeRequests.containsKey(entry.info.packageName)) {
+            return false;
+        }
+        return entry.sizeLoadStart == 0 || now - entry.sizeLoadStart >= mSizeRequestTimeout;
+    }
+
     // --------------------------------------------------------------
 
     private long getTotalInternalSize(PackageStats ps) {
@@ -872,62 +1031,64 @@ public class ApplicationsState {
         static final int MSG_LOAD_ENTRIES = 2;
         static final int MSG_LOAD_ICONS = 3;
         static final int MSG_LOAD_SIZES = 4;
+        static final int MSG_SIZE_TIMEOUT = 5;
+        static final int MSG_LOAD_CACHES = 6;
 
         boolean mRunning;
 
         final IPackageStatsObserver.Stub mStatsObserver = new IPackageStatsObserver.Stub() {
             public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
                 boolean sizeChanged = false;
-                synchronized (mEntriesMap) {
-                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
-                    AppEntry entry = mEntriesMap.get(stats.packageName);
-                    if (entry != null) {
-                        synchronized (entry) {
-                            entry.sizeStale = false;
-                            entry.sizeLoadStart = 0;
-                            long externalCodeSize = stats.externalCodeSize
-                                    + stats.externalObbSize;
-                            long externalDataSize = stats.externalDataSize
-                                    + stats.externalMediaSize;
-                            long newSize = externalCodeSize + externalDataSize
-                                    + getTotalInternalSize(stats);
-                            if (entry.size != newSize ||
-                                    entry.cacheSize != stats.cacheSize ||
-                                    entry.codeSize != stats.codeSize ||
-                                    entry.dataSize != stats.dataSize ||
-                                    entry.externalCodeSize != externalCodeSize ||
-                                    entry.externalDataSize != externalDataSize ||
-                                    entry.externalCacheSize != stats.externalCacheSize) {
-                                entry.size = newSize;
-                                entry.cacheSize = stats.cacheSize;
-                                entry.codeSize = stats.codeSize;
-                                entry.dataSize = stats.dataSize;
-                                entry.externalCodeSize = externalCodeSize;
-                                entry.externalDataSize = externalDataSize;
-                                entry.externalCacheSize = stats.externalCacheSize;
-                                entry.sizeStr = getSizeStr(entry.size);
-                                entry.internalSize = getTotalInternalSize(stats);
-                                entry.internalSizeStr = getSizeStr(entry.internalSize);
-                                entry.externalSize = getTotalExternalSize(stats);
-                                entry.externalSizeStr = getSizeStr(entry.externalSize);
-                                if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
-                                        + ": " + entry.sizeStr);
-                                sizeChanged = true;
-                            }
-                        }
-                        if (sizeChanged) {
-                            Message msg = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
-                            mMainHandler.sendMessage(msg);
+                AppEntry entry = mEntriesMap.get(stats.packageName);
+                if (entry != null) {
+                    synchronized (entry) {
+                        entry.sizeStale = false;
+                        entry.sizeLoadStart = 0;
+                        long externalCodeSize = stats.externalCodeSize
+                                + stats.externalObbSize;
+                        long externalDataSize = stats.externalDataSize
+                                + stats.externalMediaSize;
+                        long newSize = externalCodeSize + externalDataSize
+                                + getTotalInternalSize(stats);
+                        if (entry.size != newSize ||
+                                entry.cacheSize != stats.cacheSize ||
+                                entry.codeSize != stats.codeSize ||
+                                entry.dataSize != stats.dataSize ||
+                                entry.externalCodeSize != externalCodeSize ||
+                                entry.externalDataSize != externalDataSize ||
+                                entry.externalCacheSize != stats.externalCacheSize) {
+                            entry.size = newSize;
+                            entry.cacheSize = stats.cacheSize;
+                            entry.codeSize = stats.codeSize;
+                            entry.dataSize = stats.dataSize;
+                            entry.externalCodeSize = externalCodeSize;
+                            entry.externalDataSize = externalDataSize;
+                            entry.externalCacheSize = stats.externalCacheSize;
+                            entry.sizeStr = getSizeStr(entry.size);
+                            entry.internalSize = getTotalInternalSize(stats);
+                            entry.internalSizeStr = getSizeStr(entry.internalSize);
+                            entry.externalSize = getTotalExternalSize(stats);
+                            entry.externalSizeStr = getSizeStr(entry.externalSize);
+                            if (DEBUG) Log.i(TAG, "Set size of " + entry.label + " " + entry
+                                    + ": " + entry.sizeStr);
+                            mSizeCache.put(stats.packageName, entry.apkFile.lastModified(),
+                                    entry);
+                            sizeChanged = true;
                         }
                     }
-                    if (mCurComputingSizePkg == null
-                            || mCurComputingSizePkg.equals(stats.packageName)) {
-                        mCurComputingSizePkg = null;
-                        sendEmptyMessage(MSG_LOAD_SIZES);
+                    if (sizeChanged) {
+                        Message msg = mMainHandler.obtainMessage(
+                                MainHandler.MSG_PACKAGE_SIZE_CHANGED, stats.packageName);
+                        mMainHandler.sendMessage(msg);
                     }
+                }
+                synchronized (mLock) {
+                    if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted acquired lock");
+                    mSizeRequests.remove(stats.packageName);
                     if (DEBUG_LOCKING) Log.v(TAG, "onGetStatsCompleted releasing lock");
                 }
+                // A slot is free: start the next request.
+                sendEmptyMessage(MSG_LOAD_SIZES);
             }
         };
 
@@ -939,7 +1100,7 @@ public class ApplicationsState {
         public void handleMessage(Message msg) {
             // Always try rebuilding list first thing, if needed.
             ArrayList<Session> rebuildingSessions = null;
-            synchronized (mEntriesMap) {
+            synchronized (mLock) {
                 if (mRebuildingSessions.size() > 0) {
                     rebuildingSessions = new ArrayList<Session>(mRebuildingSessions);
                     mRebuildingSessions.clear();
@@ -956,22 +1117,19 @@ public class ApplicationsState {
                 } break;
                 case MSG_LOAD_ENTRIES: {
                     int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES acquired lock");
-                        for (int i=0; i<mApplications.size() && numDone<6; i++) {
-                            if (!mRunning) {
-                                mRunning = true;
-                                Message m = mMainHandler.obtainMessage(
-                                        MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                mMainHandler.sendMessage(m);
-                            }
-                            ApplicationInfo info = mApplications.get(i);
-                            if (mEntriesMap.get(info.packageName) == null) {
-                                numDone++;
-                                getEntryLocked(info);
-                            }
+                    final List<ApplicationInfo> apps = mApplications.apps;
+                    for (int i=0; i<apps.size() && numDone<6; i++) {
+                        if (!mRunning) {
+                            mRunning = true;
+                            Message m = mMainHandler.obtainMessage(
+                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                            mMainHandler.sendMessage(m);
+                        }
+                        ApplicationInfo info = apps.get(i);
+                        if (mEntriesMap.get(info.packageName) == null) {
+                            numDone++;
+                            getOrCreateEntry(info);
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ENTRIES releasing lock");
                     }
 
                     if (numDone >= 6) {
@@ -982,25 +1140,23 @@ public class ApplicationsState {
                 } break;
                 case MSG_LOAD_ICONS: {
                     int numDone = 0;
-                    synchronized (mEntriesMap) {
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS acquired lock");
-                        for (int i=0; i<mAppEntries.size() && numDone<2; i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.icon == null || !entry.mounted) {
-                                synchronized (entry) {
-                                    if (entry.ensureIconLocked(mContext, mPm)) {
-                                        if (!mRunning) {
-                                            mRunning = true;
-                                            Message m = mMainHandler.obtainMessage(
-                                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                            mMainHandler.sendMessage(m);
-                                        }
-                                        numDone++;
+                    for (AppEntry entry : mEntriesMap.values()) {
+                        if (numDone >= 2) {
+                            break;
+                        }
+                        if (entry.icon == null || !entry.mounted) {
+                            synchronized (entry) {
+                                if (entry.ensureIconLocked(mContext, mPm, mLabelCache)) {
+                                    if (!mRunning) {
+                                        mRunning = true;
+                                        Message m = mMainHandler.obtainMessage(
+                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
+                                        mMainHandler.sendMessage(m);
                                     }
+                                    numDone++;
                                 }
                             }
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_ICONS releasing lock");
                     }
                     if (numDone > 0) {
                         if (!mMainHandler.hasMessages(MainHandler.MSG_PACKAGE_ICON_CHANGED)) {
@@ -1010,45 +1166,100 @@ public class ApplicationsState {
                     if (numDone >= 2) {
                         sendEmptyMessage(MSG_LOAD_ICONS);
                     } else {
+                        // All labels and icons are loaded, save them for next time.
+                        mLabelCache.retainAll(mApplications.appsByName.keySet());
+                        mLabelCache.writeIfDirty();
                         sendEmptyMessage(MSG_LOAD_SIZES);
                     }
                 } break;
                 case MSG_LOAD_SIZES: {
-                    synchronized (mEntriesMap) {
+                    final long now = SystemClock.uptimeMillis();
+                    final ArrayList<AppEntry> requests = new ArrayList<AppEntry>();
+                    boolean waiting = false;
+                    boolean inFlight;
+                    synchronized (mLock) {
                         if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES acquired lock");
-                        if (mCurComputingSizePkg != null) {
-                            if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: currently computing");
-                            return;
+                        int slots = mMaxSizeRequests - mSizeRequests.size();
+                        // Rows that are on screen go first.
+                        for (int i=0; i<mVisibleSizePackages.size() && slots>0; i++) {
+                            AppEntry entry = mEntriesMap.get(mVisibleSizePackages.get(i));
+                            if (entry != null && canRequestSizeLocked(entry, now)) {
+                                mSizeRequests.put(entry.info.packageName, now);
+                                requests.add(entry);
+                                slots--;
+                            }
                         }
-
-                        long now = SystemClock.uptimeMillis();
-                        for (int i=0; i<mAppEntries.size(); i++) {
-                            AppEntry entry = mAppEntries.get(i);
-                            if (entry.size == SIZE_UNKNOWN || entry.sizeStale) {
-                                if (entry.sizeLoadStart == 0 ||
-                                        (entry.sizeLoadStart < (now-20*1000))) {
-                                    if (!mRunning) {
-                                        mRunning = true;
-                                        Message m = mMainHandler.obtainMessage(
-                                                MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
-                                        mMainHandler.sendMessage(m);
-                                    }
-                                    entry.sizeLoadStart = now;
-                                    mCurComputingSizePkg = entry.info.packageName;
-                                    mPm.getPackageSizeInfo(mCurComputingSizePkg, mStatsObserver);
-                                }
-                                if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing: now computing");
-                                return;
+                        for (AppEntry entry : mEntriesMap.values()) {
+                            if (entry.size != SIZE_UNKNOWN && !entry.sizeStale) {
+                                continue;
+                            }
+                            if (slots > 0 && canRequestSizeLocked(entry, now)) {
+                                mSizeRequests.put(entry.info.packageName, now);
+                                requests.add(entry);
+                                slots--;
+                            } else if (!mSizeRequests.containsKey(entry.info.packageName)) {
+                                waiting = true;
                             }
                         }
-                        if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
-                            mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
-                            mRunning = false;
+                        inFlight = !mSizeRequests.isEmpty();
+                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
+                    }
+
+                    if (requests.size() > 0) {
+                        if (DEBUG) Log.i(TAG, "Requesting " + requests.size() + " sizes");
+                        if (!mRunning) {
+                            mRunning = true;
                             Message m = mMainHandler.obtainMessage(
-                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
+                                    MainHandler.MSG_RUNNING_STATE_CHANGED, 1);
                             mMainHandler.sendMessage(m);
                         }
-                        if (DEBUG_LOCKING) Log.v(TAG, "MSG_LOAD_SIZES releasing lock");
+                        for (int i=0; i<requests.size(); i++) {
+                            AppEntry entry = requests.get(i);
+                            synchronized (entry) {
+                                entry.sizeLoadStart = now;
+                            }
+                            String pkgName = entry.info.packageName;
+                            mPm.getPackageSizeInfo(pkgName, mStatsObserver);
+                            sendMessageDelayed(obtainMessage(MSG_SIZE_TIMEOUT, pkgName),
+                                    mSizeRequestTimeout);
+                        }
+                    } else if (inFlight) {
+                        // Wait for the requests in flight to complete or time out.
+                    } else if (waiting) {
+                        // Some requests timed out recently, try them again later.
+                        if (!hasMessages(MSG_LOAD_SIZES)) {
+                            sendEmptyMessageDelayed(MSG_LOAD_SIZES, mSizeRequestTimeout);
+                        }
+                    } else if (!mMainHandler.hasMessages(MainHandler.MSG_ALL_SIZES_COMPUTED)) {
+                        mMainHandler.sendEmptyMessage(MainHandler.MSG_ALL_SIZES_COMPUTED);
+                        mRunning = false;
+                        Message m = mMainHandler.obtainMessage(
+                                MainHandler.MSG_RUNNING_STATE_CHANGED, 0);
+                        mMainHandler.sendMessage(m);
+                        mSizeCache.retainAll(mApplications.appsByName.keySet());
+                        mSizeCache.writeIfDirty();
+                    }
+                } break;
+                case MSG_SIZE_TIMEOUT: {
+                    final String pkgName = (String) msg.obj;
+                    final long now = SystemClock.uptimeMillis();
+                    synchronized (mLock) {
+                        Long start = mSizeRequests.get(pkgName);
+                        if (start == null || now - start < mSizeRequestTimeout) {
+                            // Already completed, or a newer request is in flight.
+                            break;
+                        }
+                        Log.w(TAG, "Timed out computing size of " + pkgName);
+                        mSizeRequests.remove(pkgName);
+                    }
+                    sendEmptyMessage(MSG_LOAD_SIZES);
+                } break;
+                case MSG_LOAD_CACHES: {
+                    mLabelCache.load();
+                    mSizeCache.load();
+                    // Entries may have been created before the cache was loaded.
+                    for (AppEntry entry : mEntriesMap.values()) {
+                        applyCachedSizes(entry);
                     }
                 } break;
             }
@@ -34,4 +34,14 @@ class InterestingConfigChanges {
         }
         return false;
     }
+
+    /**
+     * Returns a key that changes whenever applyNewConfig() would report a change, for
+     * caching data that depends on the configuration across process restarts.
+     */
+    static String getCacheKey(Resources res) {
+        final Configuration config = res.getConfiguration();
+        return config.locale + "/" + res.getDisplayMetrics().densityDpi + "/" + config.uiMode
+                + "/" + config.screenLayout;
+    }
 }
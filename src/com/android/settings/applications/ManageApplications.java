@@ -265,6 +265,7 @@ public class ManageApplications extends Fragment implements
                 mApplications = new ApplicationsAdapter(mApplicationsState, this, mFilter);
                 mListView.setAdapter(mApplications);
                 mListView.setRecyclerListener(mApplications);
+                mListView.setOnScrollListener(mApplications);
                 //mColorBar = (LinearColorBar)mListContainer.findViewById(R.id.storage_color_bar);
                 //mStorageChartLabel = (TextView)mListContainer.findViewById(R.id.storageChartLabel);
                 //mUsedStorageText = (TextView)mListContainer.findViewById(R.id.usedStorageText);
@@ -544,7 +545,8 @@ public class ManageApplications extends Fragment implements
      * The order of applications in the list is mirrored in mAppLocalList
      */
     static class ApplicationsAdapter extends BaseAdapter implements Filterable,
-            ApplicationsState.Callbacks, AbsListView.RecyclerListener {
+            ApplicationsState.Callbacks, AbsListView.RecyclerListener,
+            AbsListView.OnScrollListener {
         private final ApplicationsState mState;
         private final ApplicationsState.Session mSession;
         private final TabInfo mTab;
@@ -557,6 +559,10 @@ public class ManageApplications extends Fragment implements
         private int mLastSortMode=-1;
         private boolean mWaitingForData;
         private int mWhichSize = SIZE_TOTAL;
+        // Rows last reported as visible to the session.
+        private ArrayList<ApplicationsState.AppEntry> mVisibleEntries;
+        private int mFirstVisible;
+        private int mVisibleCount;
         CharSequence mCurFilterPrefix;
 
         private Filter mFilter = new Filter() {
@@ -836,6 +842,29 @@ public class ManageApplications extends Fragment implements
         public void onMovedToScrapHeap(View view) {
             mActive.remove(view);
         }
+
+        @Override
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
+
+        @Override
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                int totalItemCount) {
+            if (mEntries == null || (mEntries == mVisibleEntries
+                    && firstVisibleItem == mFirstVisible && visibleItemCount == mVisibleCount)) {
+                return;
+            }
+            mVisibleEntries = mEntries;
+            mFirstVisible = firstVisibleItem;
+            mVisibleCount = visibleItemCount;
+            // Have the sizes of the rows on screen computed first.
+            final int end = Math.min(firstVisibleItem + visibleItemCount, mEntries.size());
+            ArrayList<String> packageNames = new ArrayList<String>(visibleItemCount);
+            for (int i=firstVisibleItem; i<end; i++) {
+                packageNames.add(mEntries.get(i).info.packageName);
+            }
+            mSession.setVisiblePackages(packageNames);
+        }
     }
 
     @Override
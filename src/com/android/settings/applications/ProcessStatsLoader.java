@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.android.internal.app.IProcessStats;
+import com.android.internal.app.ProcessStats;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+/**
+ * Reads the process stats over a duration and computes what {@link ProcessStatsUi} shows,
+ * off the main thread.  The parsed stats are kept per duration in a {@link StatsCache}, so
+ * only switching to a new duration or refreshing reads them from the service again.
+ */
+public class ProcessStatsLoader extends AsyncTaskLoader<ProcessStatsUi.StatsResult> {
+    private static final String TAG = ProcessStatsUi.TAG;
+
+    private static final String KEY_DURATION = "duration";
+    private static final String KEY_STATS_TYPE = "stats_type";
+    private static final String KEY_SHOW_SYSTEM = "show_system";
+    private static final String KEY_USE_USS = "use_uss";
+    private static final String KEY_MEM_REGION = "mem_region";
+
+    /**
+     * The stats parsed for each duration.  Thread safe.
+     */
+    static class StatsCache {
+        private final HashMap<Long, ProcessStats> mStats = new HashMap<Long, ProcessStats>();
+
+        synchronized ProcessStats get(long duration) {
+            return mStats.get(duration);
+        }
+
+        synchronized void put(long duration, ProcessStats stats) {
+            mStats.put(duration, stats);
+        }
+
+        synchronized void clear() {
+            mStats.clear();
+        }
+    }
+
+    private final IProcessStats mProcessStats;
+    private final StatsCache mCache;
+    private final Bundle mArgs;
+
+    public static Bundle buildArgs(long duration, int statsType, boolean showSystem,
+            boolean useUss, int memRegion) {
+        final Bundle args = new Bundle();
+        args.putLong(KEY_DURATION, duration);
+        args.putInt(KEY_STATS_TYPE, statsType);
+        args.putBoolean(KEY_SHOW_SYSTEM, showSystem);
+        args.putBoolean(KEY_USE_USS, useUss);
+        args.putInt(KEY_MEM_REGION, memRegion);
+        return args;
+    }
+
+    ProcessStatsLoader(Context context, IProcessStats processStats, StatsCache cache,
+            Bundle args) {
+        super(context);
+        mProcessStats = processStats;
+        mCache = cache;
+        mArgs = args;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        super.onStartLoading();
+        forceLoad();
+    }
+
+    @Override
+    public ProcessStatsUi.StatsResult loadInBackground() {
+        final long duration = mArgs.getLong(KEY_DURATION);
+        int memState = ProcessStats.ADJ_NOTHING;
+        try {
+            memState = mProcessStats.getCurrentMemoryState();
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException:", e);
+        }
+        ProcessStats stats = mCache.get(duration);
+        if (stats == null) {
+            stats = readStats(duration);
+            if (stats == null) {
+                return null;
+            }
+            mCache.put(duration, stats);
+        }
+        // The stats can be shared by loads that overlap.
+        synchronized (stats) {
+            return ProcessStatsUi.computeStats(getContext(), stats, memState,
+                    mArgs.getInt(KEY_STATS_TYPE), mArgs.getBoolean(KEY_SHOW_SYSTEM),
+                    mArgs.getBoolean(KEY_USE_USS), mArgs.getInt(KEY_MEM_REGION));
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        super.onStopLoading();
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        cancelLoad();
+    }
+
+    private ProcessStats readStats(long duration) {
+        try {
+            ParcelFileDescriptor pfd = mProcessStats.getStatsOverTime(duration);
+            ProcessStats stats = new ProcessStats(false);
+            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+            stats.read(is);
+            try {
+                is.close();
+            } catch (IOException e) {
+            }
+            if (stats.mReadError != null) {
+                Log.w(TAG, "Failure reading process stats: " + stats.mReadError);
+            }
+            return stats;
+        } catch (RemoteException e) {
+            Log.e(TAG, "RemoteException:", e);
+            return null;
+        }
+    }
+}
@@ -17,11 +17,12 @@
 package com.android.settings.applications;
 
 import android.app.ActivityManager;
+import android.app.LoaderManager.LoaderCallbacks;
 import android.content.Context;
+import android.content.Loader;
 import android.content.pm.PackageManager;
+import android.graphics.drawable.Drawable;
 import android.os.Bundle;
-import android.os.ParcelFileDescriptor;
-import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemClock;
 import android.os.UserManager;
@@ -45,8 +46,6 @@ import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 import com.android.settings.Utils;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -88,15 +87,15 @@ public class ProcessStatsUi extends PreferenceFragment
         }
     };
 
-    private static ProcessStats sStatsXfer;
+    private static final int LOADER_STATS = 1;
+
+    private static ProcessStatsLoader.StatsCache sStatsXfer;
 
     IProcessStats mProcessStats;
     UserManager mUm;
-    ProcessStats mStats;
-    int mMemState;
+    ProcessStatsLoader.StatsCache mStatsCache;
 
     private long mDuration;
-    private long mLastDuration;
     private boolean mShowSystem;
     private boolean mUseUss;
     private int mStatsType;
@@ -143,9 +142,12 @@ public class ProcessStatsUi extends PreferenceFragment
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
 
-        if (icicle != null) {
-            mStats = sStatsXfer;
+        if (icicle != null && sStatsXfer != null) {
+            mStatsCache = sStatsXfer;
+        } else {
+            mStatsCache = new ProcessStatsLoader.StatsCache();
         }
+        sStatsXfer = null;
 
         addPreferencesFromResource(R.xml.process_stats_summary);
         mProcessStats = IProcessStats.Stub.asInterface(
@@ -188,7 +190,7 @@ public class ProcessStatsUi extends PreferenceFragment
     public void onDestroy() {
         super.onDestroy();
         if (getActivity().isChangingConfigurations()) {
-            sStatsXfer = mStats;
+            sStatsXfer = mStatsCache;
         }
     }
 
@@ -309,7 +311,7 @@ public class ProcessStatsUi extends PreferenceFragment
         final int id = item.getItemId();
         switch (id) {
             case MENU_STATS_REFRESH:
-                mStats = null;
+                mStatsCache.clear();
                 refreshStats();
                 return true;
             case MENU_SHOW_SYSTEM:
@@ -374,7 +376,7 @@ public class ProcessStatsUi extends PreferenceFragment
             ProcessStats.ADJ_MEM_FACTOR_MODERATE
     };
 
-    private String makeDuration(long time) {
+    private static String makeDuration(long time) {
         StringBuilder sb = new StringBuilder(32);
         TimeUtils.formatDuration(time, sb);
         return sb.toString();
@@ -382,132 +384,152 @@ public class ProcessStatsUi extends PreferenceFragment
 
     private void refreshStats() {
         updateMenus();
+        getLoaderManager().restartLoader(LOADER_STATS, ProcessStatsLoader.buildArgs(mDuration,
+                mStatsType, mShowSystem, mUseUss, mMemRegion), mStatsCallbacks);
+    }
 
-        if (mStats == null || mLastDuration != mDuration) {
-            load();
+    private final LoaderCallbacks<StatsResult> mStatsCallbacks
+            = new LoaderCallbacks<StatsResult>() {
+        @Override
+        public Loader<StatsResult> onCreateLoader(int id, Bundle args) {
+            return new ProcessStatsLoader(getActivity(), mProcessStats, mStatsCache, args);
         }
 
-        int[] stats;
-        int statsLabel;
-        if (mStatsType == MENU_TYPE_FOREGROUND) {
-            stats = FOREGROUND_PROC_STATES;
-            statsLabel = R.string.process_stats_type_foreground;
-        } else if (mStatsType == MENU_TYPE_CACHED) {
-            stats = CACHED_PROC_STATES;
-            statsLabel = R.string.process_stats_type_cached;
-        } else {
-            stats = mShowSystem ? BACKGROUND_AND_SYSTEM_PROC_STATES
-                    : ProcessStats.BACKGROUND_PROC_STATES;
-            statsLabel = R.string.process_stats_type_background;
+        @Override
+        public void onLoadFinished(Loader<StatsResult> loader, StatsResult result) {
+            if (result != null) {
+                applyStats(result);
+            }
         }
 
-        mAppListGroup.removeAll();
-        mAppListGroup.setOrderingAsAdded(false);
+        @Override
+        public void onLoaderReset(Loader<StatsResult> loader) {
+        }
+    };
 
-        final long elapsedTime = mStats.mTimePeriodEndRealtime-mStats.mTimePeriodStartRealtime;
+    /**
+     * What the screen shows for a set of options, computed in the background.
+     */
+    static final class StatsResult {
+        int statsLabel;
+        int memState;
+        long elapsedTime;
+        long totalTime;
+        long memTotalTime;
+        final long[] memTimes = new long[ProcessStats.ADJ_MEM_FACTOR_COUNT];
+        final double[] memStateWeights = new double[ProcessStats.STATE_COUNT];
+        double memCachedWeight;
+        double memFreeWeight;
+        double memZRamWeight;
+        double memKernelWeight;
+        double memNativeWeight;
+        double memTotalWeight;
+        int badnessColor;
+        float usedRatio;
+        long maxWeight;
+        // The entries to list, with their ui data and icon already loaded.
+        final ArrayList<ProcStatsEntry> entries = new ArrayList<ProcStatsEntry>();
+        final ArrayList<Drawable> icons = new ArrayList<Drawable>();
+    }
 
-        mMemStatusPref.setOrder(-2);
-        mAppListGroup.addPreference(mMemStatusPref);
-        String durationString = Utils.formatElapsedTime(getActivity(), elapsedTime, false);
-        CharSequence memString;
-        CharSequence[] memStatesStr = getResources().getTextArray(R.array.ram_states);
-        if (mMemState >= 0 && mMemState < memStatesStr.length) {
-            memString = memStatesStr[mMemState];
+    /**
+     * Aggregates the stats for the given options.  Only reads the stats, so it can run off
+     * the main thread with the stats locked.
+     */
+    static StatsResult computeStats(Context context, ProcessStats stats, int memState,
+            int statsType, boolean showSystem, boolean useUss, int memRegion) {
+        final StatsResult result = new StatsResult();
+        result.memState = memState;
+
+        int[] procStates;
+        if (statsType == MENU_TYPE_FOREGROUND) {
+            procStates = FOREGROUND_PROC_STATES;
+            result.statsLabel = R.string.process_stats_type_foreground;
+        } else if (statsType == MENU_TYPE_CACHED) {
+            procStates = CACHED_PROC_STATES;
+            result.statsLabel = R.string.process_stats_type_cached;
         } else {
-            memString = "?";
+            procStates = showSystem ? BACKGROUND_AND_SYSTEM_PROC_STATES
+                    : ProcessStats.BACKGROUND_PROC_STATES;
+            result.statsLabel = R.string.process_stats_type_background;
         }
-        mMemStatusPref.setTitle(getActivity().getString(R.string.process_stats_total_duration,
-                getActivity().getString(statsLabel), durationString));
-        mMemStatusPref.setSummary(getActivity().getString(R.string.process_stats_memory_status,
-                        memString));
-        /*
-        mMemStatusPref.setTitle(DateFormat.format(DateFormat.getBestDateTimePattern(
-                getActivity().getResources().getConfiguration().locale,
-                "MMMM dd, yyyy h:mm a"), mStats.mTimePeriodStartClock));
-        */
-        /*
-        BatteryHistoryPreference hist = new BatteryHistoryPreference(getActivity(), mStats);
-        hist.setOrder(-1);
-        mAppListGroup.addPreference(hist);
-        */
+
+        final long elapsedTime = stats.mTimePeriodEndRealtime-stats.mTimePeriodStartRealtime;
+        result.elapsedTime = elapsedTime;
 
         long now = SystemClock.uptimeMillis();
 
-        final PackageManager pm = getActivity().getPackageManager();
+        final PackageManager pm = context.getPackageManager();
 
-        mTotalTime = ProcessStats.dumpSingleTime(null, null, mStats.mMemFactorDurations,
-                mStats.mMemFactor, mStats.mStartTime, now);
-        if (DEBUG) Log.d(TAG, "Total time of stats: " + makeDuration(mTotalTime));
+        final long totalTime = ProcessStats.dumpSingleTime(null, null, stats.mMemFactorDurations,
+                stats.mMemFactor, stats.mStartTime, now);
+        result.totalTime = totalTime;
+        if (DEBUG) Log.d(TAG, "Total time of stats: " + makeDuration(totalTime));
 
-        for (int i=0; i<mMemTimes.length; i++) {
-            mMemTimes[i] = 0;
-        }
+        final long[] memTimes = result.memTimes;
         for (int iscreen=0; iscreen<ProcessStats.ADJ_COUNT; iscreen+=ProcessStats.ADJ_SCREEN_MOD) {
             for (int imem=0; imem<ProcessStats.ADJ_MEM_FACTOR_COUNT; imem++) {
                 int state = imem+iscreen;
-                mMemTimes[imem] += mStats.mMemFactorDurations[state];
+                memTimes[imem] += stats.mMemFactorDurations[state];
             }
         }
 
         long memTotalTime;
         int[] memStates;
 
-        LinearColorPreference colors = new LinearColorPreference(getActivity());
-        colors.setOrder(-1);
-        switch (mMemRegion) {
+        switch (memRegion) {
             case LinearColorBar.REGION_RED:
-                memTotalTime = mMemTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL];
+                memTotalTime = memTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL];
                 memStates = RED_MEM_STATES;
                 break;
             case LinearColorBar.REGION_YELLOW:
-                memTotalTime = mMemTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL]
-                        + mMemTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]
-                        + mMemTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE];
+                memTotalTime = memTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL]
+                        + memTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]
+                        + memTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE];
                 memStates = YELLOW_MEM_STATES;
                 break;
             default:
-                memTotalTime = mTotalTime;
+                memTotalTime = totalTime;
                 memStates = ProcessStats.ALL_MEM_ADJ;
                 break;
         }
-        colors.setColoredRegions(LinearColorBar.REGION_RED);
+        result.memTotalTime = memTotalTime;
 
         // Compute memory badness for chart color.
         int[] badColors = com.android.settings.Utils.BADNESS_COLORS;
-        long timeGood = mMemTimes[ProcessStats.ADJ_MEM_FACTOR_NORMAL];
-        timeGood += (mMemTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE]*2)/3;
-        timeGood += mMemTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]/3;
-        float memBadness = ((float)timeGood)/mTotalTime;
-        int badnessColor = badColors[1 + Math.round(memBadness*(badColors.length-2))];
-        colors.setColors(badnessColor, badnessColor, badnessColor);
-
-        // We are now going to scale the mMemTimes to match the total elapsed time.
+        long timeGood = memTimes[ProcessStats.ADJ_MEM_FACTOR_NORMAL];
+        timeGood += (memTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE]*2)/3;
+        timeGood += memTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]/3;
+        float memBadness = ((float)timeGood)/totalTime;
+        result.badnessColor = badColors[1 + Math.round(memBadness*(badColors.length-2))];
+
+        // We are now going to scale the memTimes to match the total elapsed time.
         // These are in uptime, so they will often be smaller than the elapsed time,
         // but if the user taps on the bar we want to show the times to them.  It is confusing
         // to see them be smaller than what we told them the measured duration is, so just
         // scaling them up with make things look reasonable with them none the wiser.
         for (int i=0; i<ProcessStats.ADJ_MEM_FACTOR_COUNT; i++) {
-            mMemTimes[i] = (long)((mMemTimes[i]*(double)elapsedTime)/mTotalTime);
+            memTimes[i] = (long)((memTimes[i]*(double)elapsedTime)/totalTime);
         }
 
         ProcessStats.TotalMemoryUseCollection totalMem = new ProcessStats.TotalMemoryUseCollection(
                 ProcessStats.ALL_SCREEN_ADJ, memStates);
-        mStats.computeTotalMemoryUse(totalMem, now);
+        stats.computeTotalMemoryUse(totalMem, now);
         double freeWeight = totalMem.sysMemFreeWeight + totalMem.sysMemCachedWeight;
         double usedWeight = totalMem.sysMemKernelWeight + totalMem.sysMemNativeWeight
                 + totalMem.sysMemZRamWeight;
         double backgroundWeight = 0, persBackgroundWeight = 0;
-        mMemCachedWeight = totalMem.sysMemCachedWeight;
-        mMemFreeWeight = totalMem.sysMemFreeWeight;
-        mMemZRamWeight = totalMem.sysMemZRamWeight;
-        mMemKernelWeight = totalMem.sysMemKernelWeight;
-        mMemNativeWeight = totalMem.sysMemNativeWeight;
+        result.memCachedWeight = totalMem.sysMemCachedWeight;
+        result.memFreeWeight = totalMem.sysMemFreeWeight;
+        result.memZRamWeight = totalMem.sysMemZRamWeight;
+        result.memKernelWeight = totalMem.sysMemKernelWeight;
+        result.memNativeWeight = totalMem.sysMemNativeWeight;
         for (int i=0; i<ProcessStats.STATE_COUNT; i++) {
             if (i == ProcessStats.STATE_SERVICE_RESTARTING) {
                 // These don't really run.
-                mMemStateWeights[i] = 0;
+                result.memStateWeights[i] = 0;
             } else {
-                mMemStateWeights[i] = totalMem.processStateWeight[i];
+                result.memStateWeights[i] = totalMem.processStateWeight[i];
                 if (i >= ProcessStats.STATE_HOME) {
                     freeWeight += totalMem.processStateWeight[i];
                 } else {
@@ -523,16 +545,16 @@ public class ProcessStatsUi extends PreferenceFragment
             }
         }
         if (DEBUG) {
-            Log.i(TAG, "Used RAM: " + Formatter.formatShortFileSize(getActivity(),
+            Log.i(TAG, "Used RAM: " + Formatter.formatShortFileSize(context,
                     (long)((usedWeight * 1024) / memTotalTime)));
-            Log.i(TAG, "Free RAM: " + Formatter.formatShortFileSize(getActivity(),
+            Log.i(TAG, "Free RAM: " + Formatter.formatShortFileSize(context,
                     (long)((freeWeight * 1024) / memTotalTime)));
-            Log.i(TAG, "Total RAM: " + Formatter.formatShortFileSize(getActivity(),
+            Log.i(TAG, "Total RAM: " + Formatter.formatShortFileSize(context,
                     (long)(((freeWeight+usedWeight) * 1024) / memTotalTime)));
-            Log.i(TAG, "Background+Cached RAM: " + Formatter.formatShortFileSize(getActivity(),
+            Log.i(TAG, "Background+Cached RAM: " + Formatter.formatShortFileSize(context,
                     (long)((backgroundWeight * 1024) / memTotalTime)));
         }
-        mMemTotalWeight = freeWeight + usedWeight;
+        result.memTotalWeight = freeWeight + usedWeight;
 
         // For computing the ratio to show, we want to count the baseline cached RAM we
         // need (at which point we start killing processes) as used RAM, so that if we
@@ -550,13 +572,13 @@ public class ProcessStatsUi extends PreferenceFragment
         double realUsedRam = usedRam * totalScale;
         double realFreeRam = freeRam * totalScale;
         if (DEBUG) {
-            Log.i(TAG, "Scaled Used RAM: " + Formatter.formatShortFileSize(getActivity(),
+            Log.i(TAG, "Scaled Used RAM: " + Formatter.formatShortFileSize(context,
                     (long)realUsedRam));
-            Log.i(TAG, "Scaled Free RAM: " + Formatter.formatShortFileSize(getActivity(),
+            Log.i(TAG, "Scaled Free RAM: " + Formatter.formatShortFileSize(context,
                     (long)realFreeRam));
         }
         ActivityManager.MemoryInfo memInfo = new ActivityManager.MemoryInfo();
-        ((ActivityManager)getActivity().getSystemService(Context.ACTIVITY_SERVICE)).getMemoryInfo(
+        ((ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryInfo(
                 memInfo);
         if (memInfo.hiddenAppThreshold >= realFreeRam) {
             realUsedRam = realFreeRam;
@@ -566,52 +588,21 @@ public class ProcessStatsUi extends PreferenceFragment
             realFreeRam -= memInfo.hiddenAppThreshold;
         }
         if (DEBUG) {
-            Log.i(TAG, "Adj Scaled Used RAM: " + Formatter.formatShortFileSize(getActivity(),
+            Log.i(TAG, "Adj Scaled Used RAM: " + Formatter.formatShortFileSize(context,
                     (long)realUsedRam));
-            Log.i(TAG, "Adj Scaled Free RAM: " + Formatter.formatShortFileSize(getActivity(),
+            Log.i(TAG, "Adj Scaled Free RAM: " + Formatter.formatShortFileSize(context,
                     (long)realFreeRam));
         }
 
-        float usedRatio = (float)(realUsedRam/(realFreeRam+realUsedRam));
-        colors.setRatios(usedRatio, 0, 1-usedRatio);
-
-        if (false) {
-            colors.setOnRegionTappedListener(this);
-            switch (mMemRegion) {
-                case LinearColorBar.REGION_RED:
-                    colors.setColoredRegions(LinearColorBar.REGION_RED);
-                    memTotalTime = mMemTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL];
-                    memStates = RED_MEM_STATES;
-                    break;
-                case LinearColorBar.REGION_YELLOW:
-                    colors.setColoredRegions(LinearColorBar.REGION_RED
-                            | LinearColorBar.REGION_YELLOW);
-                    memTotalTime = mMemTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL]
-                            + mMemTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]
-                            + mMemTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE];
-                    memStates = YELLOW_MEM_STATES;
-                    break;
-                default:
-                    colors.setColoredRegions(LinearColorBar.REGION_ALL);
-                    memTotalTime = mTotalTime;
-                    memStates = ProcessStats.ALL_MEM_ADJ;
-                    break;
-            }
-            colors.setRatios(mMemTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL] / (float)mTotalTime,
-                    (mMemTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]
-                            + mMemTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE]) / (float)mTotalTime,
-                    mMemTimes[ProcessStats.ADJ_MEM_FACTOR_NORMAL] / (float)mTotalTime);
-        }
-
-        mAppListGroup.addPreference(colors);
+        result.usedRatio = (float)(realUsedRam/(realFreeRam+realUsedRam));
 
         ProcessStats.ProcessDataCollection totals = new ProcessStats.ProcessDataCollection(
-                ProcessStats.ALL_SCREEN_ADJ, memStates, stats);
+                ProcessStats.ALL_SCREEN_ADJ, memStates, procStates);
 
         ArrayList<ProcStatsEntry> entries = new ArrayList<ProcStatsEntry>();
 
         /*
-        ArrayList<ProcessStats.ProcessState> rawProcs = mStats.collectProcessesLocked(
+        ArrayList<ProcessStats.ProcessState> rawProcs = stats.collectProcessesLocked(
                 ProcessStats.ALL_SCREEN_ADJ, ProcessStats.ALL_MEM_ADJ,
                 ProcessStats.BACKGROUND_PROC_STATES, now, null);
         for (int i=0, N=(rawProcs != null ? rawProcs.size() : 0); i<N; i++) {
@@ -622,16 +613,16 @@ public class ProcessStatsUi extends PreferenceFragment
         if (DEBUG) Log.d(TAG, "-------------------- PULLING PROCESSES");
 
         final ProcessMap<ProcStatsEntry> entriesMap = new ProcessMap<ProcStatsEntry>();
-        for (int ipkg=0, N=mStats.mPackages.getMap().size(); ipkg<N; ipkg++) {
+        for (int ipkg=0, N=stats.mPackages.getMap().size(); ipkg<N; ipkg++) {
             final SparseArray<SparseArray<ProcessStats.PackageState>> pkgUids
-                    = mStats.mPackages.getMap().valueAt(ipkg);
+                    = stats.mPackages.getMap().valueAt(ipkg);
             for (int iu=0; iu<pkgUids.size(); iu++) {
                 final SparseArray<ProcessStats.PackageState> vpkgs = pkgUids.valueAt(iu);
                 for (int iv=0; iv<vpkgs.size(); iv++) {
                     final ProcessStats.PackageState st = vpkgs.valueAt(iv);
                     for (int iproc=0; iproc<st.mProcesses.size(); iproc++) {
                         final ProcessStats.ProcessState pkgProc = st.mProcesses.valueAt(iproc);
-                        final ProcessStats.ProcessState proc = mStats.mProcesses.get(pkgProc.mName,
+                        final ProcessStats.ProcessState proc = stats.mProcesses.get(pkgProc.mName,
                                 pkgProc.mUid);
                         if (proc == null) {
                             Log.w(TAG, "No process found for pkg " + st.mPackageName
@@ -640,8 +631,8 @@ public class ProcessStatsUi extends PreferenceFragment
                         }
                         ProcStatsEntry ent = entriesMap.get(proc.mName, proc.mUid);
                         if (ent == null) {
-                            ent = new ProcStatsEntry(proc, st.mPackageName, totals, mUseUss,
-                                    mStatsType == MENU_TYPE_BACKGROUND);
+                            ent = new ProcStatsEntry(proc, st.mPackageName, totals, useUss,
+                                    statsType == MENU_TYPE_BACKGROUND);
                             if (ent.mDuration > 0) {
                                 if (DEBUG) Log.d(TAG, "Adding proc " + proc.mName + "/"
                                         + proc.mUid + ": time=" + makeDuration(ent.mDuration) + " ("
@@ -661,10 +652,10 @@ public class ProcessStatsUi extends PreferenceFragment
         if (DEBUG) Log.d(TAG, "-------------------- MAPPING SERVICES");
 
         // Add in service info.
-        if (mStatsType == MENU_TYPE_BACKGROUND) {
-            for (int ip=0, N=mStats.mPackages.getMap().size(); ip<N; ip++) {
+        if (statsType == MENU_TYPE_BACKGROUND) {
+            for (int ip=0, N=stats.mPackages.getMap().size(); ip<N; ip++) {
                 SparseArray<SparseArray<ProcessStats.PackageState>> uids
-                        = mStats.mPackages.getMap().valueAt(ip);
+                        = stats.mPackages.getMap().valueAt(ip);
                 for (int iu=0; iu<uids.size(); iu++) {
                     SparseArray<ProcessStats.PackageState> vpkgs = uids.valueAt(iu);
                     for (int iv=0; iv<vpkgs.size(); iv++) {
@@ -689,31 +680,6 @@ public class ProcessStatsUi extends PreferenceFragment
             }
         }
 
-        /*
-        SparseArray<ArrayMap<String, ProcStatsEntry>> processes
-                = new SparseArray<ArrayMap<String, ProcStatsEntry>>();
-        for (int ip=0, N=mStats.mProcesses.getMap().size(); ip<N; ip++) {
-            SparseArray<ProcessStats.ProcessState> uids = mStats.mProcesses.getMap().valueAt(ip);
-            for (int iu=0; iu<uids.size(); iu++) {
-                ProcessStats.ProcessState st = uids.valueAt(iu);
-                ProcStatsEntry ent = new ProcStatsEntry(st, totals, mUseUss,
-                        mStatsType == MENU_TYPE_BACKGROUND);
-                if (ent.mDuration > 0) {
-                    if (DEBUG) Log.d(TAG, "Adding proc " + st.mName + "/" + st.mUid + ": time="
-                            + makeDuration(ent.mDuration) + " ("
-                            + ((((double)ent.mDuration) / memTotalTime) * 100) + "%)");
-                    procs.add(ent);
-                    ArrayMap<String, ProcStatsEntry> uidProcs = processes.get(ent.mUid);
-                    if (uidProcs == null) {
-                        uidProcs = new ArrayMap<String, ProcStatsEntry>();
-                        processes.put(ent.mUid, uidProcs);
-                    }
-                    uidProcs.put(ent.mName, ent);
-                }
-            }
-        }
-        */
-
         Collections.sort(entries, sEntryCompare);
 
         long maxWeight = 1;
@@ -723,45 +689,120 @@ public class ProcessStatsUi extends PreferenceFragment
                 maxWeight = proc.mWeight;
             }
         }
-        if (mStatsType == MENU_TYPE_BACKGROUND) {
-            mMaxWeight = (long)(mShowSystem ? persBackgroundWeight : backgroundWeight);
-            if (mMaxWeight < maxWeight) {
-                mMaxWeight = maxWeight;
+        if (statsType == MENU_TYPE_BACKGROUND) {
+            result.maxWeight = (long)(showSystem ? persBackgroundWeight : backgroundWeight);
+            if (result.maxWeight < maxWeight) {
+                result.maxWeight = maxWeight;
             }
             if (DEBUG) {
-                Log.i(TAG, "Bar max RAM: " + Formatter.formatShortFileSize(getActivity(),
-                        (mMaxWeight * 1024) / memTotalTime));
+                Log.i(TAG, "Bar max RAM: " + Formatter.formatShortFileSize(context,
+                        (result.maxWeight * 1024) / memTotalTime));
             }
         } else {
-            mMaxWeight = maxWeight;
+            result.maxWeight = maxWeight;
         }
 
-        if (DEBUG) Log.d(TAG, "-------------------- BUILDING UI");
-
         // Find where we should stop.  Because we have two properties we are looking at,
         // we need to go from the back looking for the first place either holds.
         int end = entries != null ? entries.size()-1 : -1;
         while (end >= 0) {
             ProcStatsEntry proc = entries.get(end);
-            final double percentOfWeight = (((double)proc.mWeight) / mMaxWeight) * 100;
+            final double percentOfWeight = (((double)proc.mWeight) / result.maxWeight) * 100;
             final double percentOfTime = (((double)proc.mDuration) / memTotalTime) * 100;
             if (percentOfWeight >= 1 || percentOfTime >= 25) {
                 break;
             }
             end--;
         }
-        for (int i=0; i<=end; i++) {
+        for (int i=0; i<=end && i<MAX_ITEMS_TO_LIST; i++) {
             ProcStatsEntry proc = entries.get(i);
+            proc.evaluateTargetPackage(pm, stats, totals, sEntryCompare, useUss,
+                    statsType == MENU_TYPE_BACKGROUND);
+            proc.retrieveUiData(pm);
+            result.entries.add(proc);
+            result.icons.add(proc.mUiTargetApp != null ? proc.mUiTargetApp.loadIcon(pm) : null);
+        }
+        return result;
+    }
+
+    /**
+     * Shows stats computed by {@link #computeStats}.
+     */
+    private void applyStats(StatsResult result) {
+        mAppListGroup.removeAll();
+        mAppListGroup.setOrderingAsAdded(false);
+
+        mMemStatusPref.setOrder(-2);
+        mAppListGroup.addPreference(mMemStatusPref);
+        String durationString = Utils.formatElapsedTime(getActivity(), result.elapsedTime, false);
+        CharSequence memString;
+        CharSequence[] memStatesStr = getResources().getTextArray(R.array.ram_states);
+        if (result.memState >= 0 && result.memState < memStatesStr.length) {
+            memString = memStatesStr[result.memState];
+        } else {
+            memString = "?";
+        }
+        mMemStatusPref.setTitle(getActivity().getString(R.string.process_stats_total_duration,
+                getActivity().getString(result.statsLabel), durationString));
+        mMemStatusPref.setSummary(getActivity().getString(R.string.process_stats_memory_status,
+                        memString));
+        /*
+        BatteryHistoryPreference hist = new BatteryHistoryPreference(getActivity(), mStats);
+        hist.setOrder(-1);
+        mAppListGroup.addPreference(hist);
+        */
+
+        mTotalTime = result.totalTime;
+        mMaxWeight = result.maxWeight;
+        System.arraycopy(result.memTimes, 0, mMemTimes, 0, mMemTimes.length);
+        System.arraycopy(result.memStateWeights, 0, mMemStateWeights, 0,
+                mMemStateWeights.length);
+        mMemCachedWeight = result.memCachedWeight;
+        mMemFreeWeight = result.memFreeWeight;
+        mMemZRamWeight = result.memZRamWeight;
+        mMemKernelWeight = result.memKernelWeight;
+        mMemNativeWeight = result.memNativeWeight;
+        mMemTotalWeight = result.memTotalWeight;
+
+        LinearColorPreference colors = new LinearColorPreference(getActivity());
+        colors.setOrder(-1);
+        colors.setColoredRegions(LinearColorBar.REGION_RED);
+        colors.setColors(result.badnessColor, result.badnessColor, result.badnessColor);
+        colors.setRatios(result.usedRatio, 0, 1-result.usedRatio);
+
+        if (false) {
+            colors.setOnRegionTappedListener(this);
+            switch (mMemRegion) {
+                case LinearColorBar.REGION_RED:
+                    colors.setColoredRegions(LinearColorBar.REGION_RED);
+                    break;
+                case LinearColorBar.REGION_YELLOW:
+                    colors.setColoredRegions(LinearColorBar.REGION_RED
+                            | LinearColorBar.REGION_YELLOW);
+                    break;
+                default:
+                    colors.setColoredRegions(LinearColorBar.REGION_ALL);
+                    break;
+            }
+            colors.setRatios(mMemTimes[ProcessStats.ADJ_MEM_FACTOR_CRITICAL] / (float)mTotalTime,
+                    (mMemTimes[ProcessStats.ADJ_MEM_FACTOR_LOW]
+                            + mMemTimes[ProcessStats.ADJ_MEM_FACTOR_MODERATE]) / (float)mTotalTime,
+                    mMemTimes[ProcessStats.ADJ_MEM_FACTOR_NORMAL] / (float)mTotalTime);
+        }
+
+        mAppListGroup.addPreference(colors);
+
+        if (DEBUG) Log.d(TAG, "-------------------- BUILDING UI");
+
+        for (int i=0; i<result.entries.size(); i++) {
+            ProcStatsEntry proc = result.entries.get(i);
             final double percentOfWeight = (((double)proc.mWeight) / mMaxWeight) * 100;
-            final double percentOfTime = (((double)proc.mDuration) / memTotalTime) * 100;
+            final double percentOfTime = (((double)proc.mDuration) / result.memTotalTime) * 100;
             ProcessStatsPreference pref = new ProcessStatsPreference(getActivity());
             pref.init(null, proc);
-            proc.evaluateTargetPackage(pm, mStats, totals, sEntryCompare, mUseUss,
-                    mStatsType == MENU_TYPE_BACKGROUND);
-            proc.retrieveUiData(pm);
             pref.setTitle(proc.mUiLabel);
-            if (proc.mUiTargetApp != null) {
-                pref.setIcon(proc.mUiTargetApp.loadIcon(pm));
+            if (result.icons.get(i) != null) {
+                pref.setIcon(result.icons.get(i));
             }
             pref.setOrder(i);
             pref.setPercent(percentOfWeight, percentOfTime);
@@ -770,36 +811,12 @@ public class ProcessStatsUi extends PreferenceFragment
                 if (DEBUG) {
                     Log.i(TAG, "App " + proc.mUiLabel + ": weightedRam="
                             + Formatter.formatShortFileSize(getActivity(),
-                                    (proc.mWeight * 1024) / memTotalTime)
+                                    (proc.mWeight * 1024) / result.memTotalTime)
                             + ", avgRam=" + Formatter.formatShortFileSize(getActivity(),
                                     (proc.mAvgPss*1024)));
                 }
 
             }
-            if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST+1)) {
-                if (DEBUG) Log.d(TAG, "Done with UI, hit item limit!");
-                break;
-            }
-        }
-    }
-
-    private void load() {
-        try {
-            mLastDuration = mDuration;
-            mMemState = mProcessStats.getCurrentMemoryState();
-            ParcelFileDescriptor pfd = mProcessStats.getStatsOverTime(mDuration);
-            mStats = new ProcessStats(false);
-            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
-            mStats.read(is);
-            try {
-                is.close();
-            } catch (IOException e) {
-            }
-            if (mStats.mReadError != null) {
-                Log.w(TAG, "Failure reading process stats: " + mStats.mReadError);
-            }
-        } catch (RemoteException e) {
-            Log.e(TAG, "RemoteException:", e);
         }
     }
 }
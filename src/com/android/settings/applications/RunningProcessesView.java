@@ -498,7 +498,7 @@ public class RunningProcessesView extends FrameLayout
     }
 
     @Override
-    public void onRefreshUi(int what) {
+    public void onRefreshUi(int what, int changes) {
         switch (what) {
             case REFRESH_TIME:
                 updateTimes();
@@ -508,7 +508,10 @@ public class RunningProcessesView extends FrameLayout
                 updateTimes();
                 break;
             case REFRESH_STRUCTURE:
-                refreshUi(true);
+                // Only rebind the list when the items it shows changed.
+                final int shownItems = mAdapter.getShowBackground()
+                        ? RunningState.CHANGED_BACKGROUND_ITEMS : RunningState.CHANGED_ITEMS;
+                refreshUi((changes & shownItems) != 0);
                 updateTimes();
                 break;
         }
@@ -627,7 +627,7 @@ public class RunningServiceDetails extends Fragment
     }
 
     @Override
-    public void onRefreshUi(int what) {
+    public void onRefreshUi(int what, int changes) {
         if (getActivity() == null) return;
         switch (what) {
             case REFRESH_TIME:
@@ -37,6 +37,7 @@ import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.text.format.Formatter;
@@ -61,6 +62,7 @@ import java.util.List;
 public class RunningState {
     static final String TAG = "RunningState";
     static final boolean DEBUG_COMPARE = false;
+    static final boolean DEBUG_POLLING = false;
 
     static Object sGlobalLock = new Object();
     static RunningState sInstance;
@@ -70,8 +72,23 @@ public class RunningState {
     static final int MSG_REFRESH_UI = 3;
     static final int MSG_UPDATE_TIME = 4;
 
+    // What changed in a poll, reported in the arg1 of MSG_REFRESH_UI and passed on to
+    // OnRefreshUiListener.  The items lists change structure, sizes only change data.
+    static final int CHANGED_ITEMS = 1<<0;
+    static final int CHANGED_BACKGROUND_ITEMS = 1<<1;
+    static final int CHANGED_SIZES = 1<<2;
+    static final int CHANGED_STRUCTURE = CHANGED_ITEMS | CHANGED_BACKGROUND_ITEMS;
+
     static final long TIME_UPDATE_DELAY = 1000;
+    // Polling starts at CONTENTS_UPDATE_DELAY, and backs off up to CONTENTS_UPDATE_MAX_DELAY
+    // while the set of processes and services doesn't change.  After the user acted on a
+    // service, the next FAST_UPDATE_COUNT polls use CONTENTS_UPDATE_MIN_DELAY.
+    static final long CONTENTS_UPDATE_MIN_DELAY = 500;
     static final long CONTENTS_UPDATE_DELAY = 2000;
+    static final long CONTENTS_UPDATE_MAX_DELAY = 16000;
+    static final int FAST_UPDATE_COUNT = 4;
+    // How long the sizes of an unchanged set of processes can be kept.
+    static final long PSS_MAX_AGE = 6000;
 
     static final int MAX_SERVICES = 100;
 
@@ -128,17 +145,24 @@ public class RunningState {
     final SparseArray<UserState> mUsers = new SparseArray<UserState>();
 
     static class AppProcessInfo {
-        final ActivityManager.RunningAppProcessInfo info;
+        ActivityManager.RunningAppProcessInfo info;
         boolean hasServices;
         boolean hasForegroundServices;
 
-        AppProcessInfo(ActivityManager.RunningAppProcessInfo _info) {
+        void set(ActivityManager.RunningAppProcessInfo _info) {
             info = _info;
+            hasServices = false;
+            hasForegroundServices = false;
         }
     }
 
-    // Temporary structure used when updating above information.
+    // Temporary structures used when updating above information.  They are only used by
+    // the background thread and reused across updates, so that polling doesn't allocate
+    // when nothing changed.
     final SparseArray<AppProcessInfo> mTmpAppProcesses = new SparseArray<AppProcessInfo>();
+    final ArrayList<AppProcessInfo> mAppProcessInfoPool = new ArrayList<AppProcessInfo>();
+    final ArrayList<ProcessItem> mTmpSortedProcesses = new ArrayList<ProcessItem>();
+    int[] mTmpPids = new int[0];
 
     int mSequence = 0;
 
@@ -221,6 +245,19 @@ public class RunningState {
     int mNumServiceProcesses;
     long mServiceProcessMemory;
 
+    long mUpdateDelay = CONTENTS_UPDATE_DELAY;
+    int mFastUpdatesLeft;
+
+    // Counters of the queries made to the activity manager, to measure the load we put on it.
+    int mNumPolls;
+    int mNumStructuralChanges;
+    int mNumPssQueries;
+
+    // ----- following only used by the background thread -----
+
+    int mLastPssPidsHash;
+    long mLastPssTime;
+
     // ----- BACKGROUND MONITORING THREAD -----
 
     final HandlerThread mBackgroundThread;
@@ -241,12 +278,13 @@ public class RunningState {
                             return;
                         }
                     }
+                    final int changes = update(mApplicationContext, mAm);
                     Message cmd = mHandler.obtainMessage(MSG_REFRESH_UI);
-                    cmd.arg1 = update(mApplicationContext, mAm) ? 1 : 0;
+                    cmd.arg1 = changes;
                     mHandler.sendMessage(cmd);
                     removeMessages(MSG_UPDATE_CONTENTS);
                     msg = obtainMessage(MSG_UPDATE_CONTENTS);
-                    sendMessageDelayed(msg, CONTENTS_UPDATE_DELAY);
+                    sendMessageDelayed(msg, nextUpdateDelay(changes != 0));
                     break;
             }
         }
@@ -256,12 +294,16 @@ public class RunningState {
 
     final Handler mHandler = new Handler() {
         int mNextUpdate = OnRefreshUiListener.REFRESH_TIME;
+        int mNextChanges;
 
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_REFRESH_UI:
-                    mNextUpdate = msg.arg1 != 0
+                    // Several polls can happen between two ticks: don't lose a structural
+                    // change to a later poll that only updated data.
+                    mNextChanges |= msg.arg1;
+                    mNextUpdate = (mNextChanges & CHANGED_STRUCTURE) != 0
                             ? OnRefreshUiListener.REFRESH_STRUCTURE
                             : OnRefreshUiListener.REFRESH_DATA;
                     break;
@@ -278,8 +320,9 @@ public class RunningState {
                     if (mRefreshUiListener != null) {
                         //Log.i("foo", "Refresh UI: " + mNextUpdate
                         //        + " @ " + SystemClock.uptimeMillis());
-                        mRefreshUiListener.onRefreshUi(mNextUpdate);
+                        mRefreshUiListener.onRefreshUi(mNextUpdate, mNextChanges);
                         mNextUpdate = OnRefreshUiListener.REFRESH_TIME;
+                        mNextChanges = 0;
                     }
                     break;
             }
@@ -293,7 +336,11 @@ public class RunningState {
         public static final int REFRESH_DATA = 1;
         public static final int REFRESH_STRUCTURE = 2;
 
-        public void onRefreshUi(int what);
+        /**
+         * @param changes the CHANGED_* flags of what changed since the last refresh, so that
+         *                a structural refresh can skip the lists that didn't change.
+         */
+        public void onRefreshUi(int what, int changes);
     }
 
     static class UserState {
@@ -316,6 +363,8 @@ public class RunningState {
         long mActiveSince;
         long mSize;
         String mSizeStr;
+        // The size mSizeStr was formatted from.
+        long mSizeStrSize = -1;
         String mCurSizeStr;
         boolean mNeedDivider;
         boolean mBackground;
@@ -515,7 +564,8 @@ public class RunningState {
         
         boolean updateSize(Context context, long pss, int curSeq) {
             mSize = pss * 1024;
-            if (mCurSeq == curSeq) {
+            if (mCurSeq == curSeq && mSizeStrSize != mSize) {
+                mSizeStrSize = mSize;
                 String sizeStr = Formatter.formatShortFileSize(
                         context, mSize);
                 if (!sizeStr.equals(mSizeStr)){
@@ -659,6 +709,10 @@ public class RunningState {
                 }
             }
             
+            if (mSizeStrSize == mSize) {
+                return false;
+            }
+            mSizeStrSize = mSize;
             String sizeStr = Formatter.formatShortFileSize(
                     context, mSize);
             if (!sizeStr.equals(mSizeStr)){
@@ -764,20 +818,70 @@ public class RunningState {
                 mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
                 mBackgroundHandler.sendEmptyMessage(MSG_RESET_CONTENTS);
             }
-            if (!mBackgroundHandler.hasMessages(MSG_UPDATE_CONTENTS)) {
-                mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
-            }
+            // The next poll may have backed off while nobody was looking: poll now.
+            mUpdateDelay = CONTENTS_UPDATE_DELAY;
+            mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
+            mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
             mHandler.sendEmptyMessage(MSG_UPDATE_TIME);
         }
     }
 
     void updateNow() {
         synchronized (mLock) {
+            // The user did something: follow its effects closely for a bit.
+            mFastUpdatesLeft = FAST_UPDATE_COUNT;
             mBackgroundHandler.removeMessages(MSG_UPDATE_CONTENTS);
             mBackgroundHandler.sendEmptyMessage(MSG_UPDATE_CONTENTS);
         }
     }
 
+    /**
+     * Returns how long to wait before the next poll, given whether the last one found a
+     * structural change.
+     */
+    private long nextUpdateDelay(boolean changed) {
+        synchronized (mLock) {
+            mNumPolls++;
+            if (changed) {
+                mNumStructuralChanges++;
+            }
+            if (DEBUG_POLLING) Log.d(TAG, "Poll #" + mNumPolls + ": changed=" + changed
+                    + ", structural changes=" + mNumStructuralChanges
+                    + ", pss queries=" + mNumPssQueries);
+            if (mFastUpdatesLeft > 0) {
+                mFastUpdatesLeft--;
+                mUpdateDelay = CONTENTS_UPDATE_DELAY;
+                return CONTENTS_UPDATE_MIN_DELAY;
+            }
+            if (changed) {
+                mUpdateDelay = CONTENTS_UPDATE_DELAY;
+            } else {
+                final long delay = mUpdateDelay;
+                mUpdateDelay = Math.min(mUpdateDelay * 2, CONTENTS_UPDATE_MAX_DELAY);
+                return delay;
+            }
+            return mUpdateDelay;
+        }
+    }
+
+    int getNumPolls() {
+        synchronized (mLock) {
+            return mNumPolls;
+        }
+    }
+
+    int getNumStructuralChanges() {
+        synchronized (mLock) {
+            return mNumStructuralChanges;
+        }
+    }
+
+    int getNumPssQueries() {
+        synchronized (mLock) {
+            return mNumPssQueries;
+        }
+    }
+
     boolean hasData() {
         synchronized (mLock) {
             return mHaveData;
@@ -860,7 +964,11 @@ public class RunningState {
         userItem.mChildren.add(newItem);
     }
 
-    private boolean update(Context context, ActivityManager am) {
+    /**
+     * Polls the running services and processes, and updates the items in place.  Returns
+     * the CHANGED_* flags of the lists that changed structure and of the sizes, or 0.
+     */
+    private int update(Context context, ActivityManager am) {
         final PackageManager pm = context.getPackageManager();
 
         mSequence++;
@@ -900,9 +1008,14 @@ public class RunningState {
                 = am.getRunningAppProcesses();
         final int NP = processes != null ? processes.size() : 0;
         mTmpAppProcesses.clear();
+        while (mAppProcessInfoPool.size() < NP) {
+            mAppProcessInfoPool.add(new AppProcessInfo());
+        }
         for (int i=0; i<NP; i++) {
             ActivityManager.RunningAppProcessInfo pi = processes.get(i);
-            mTmpAppProcesses.put(pi.pid, new AppProcessInfo(pi));
+            AppProcessInfo ainfo = mAppProcessInfoPool.get(i);
+            ainfo.set(pi);
+            mTmpAppProcesses.put(pi.pid, ainfo);
         }
 
         // Initial iteration through running services to collect per-process
@@ -1077,8 +1190,7 @@ public class RunningState {
         }
         
         // Look for services and their primary processes that no longer exist...
-        ArrayList<Integer> uidToDelete = null;
-        for (int i=0; i<mServiceProcessesByName.size(); i++) {
+        for (int i=mServiceProcessesByName.size()-1; i>=0; i--) {
             HashMap<String, ProcessItem> procs = mServiceProcessesByName.valueAt(i);
             Iterator<ProcessItem> pit = procs.values().iterator();
             while (pit.hasNext()) {
@@ -1093,12 +1205,6 @@ public class RunningState {
                 } else {
                     changed = true;
                     pit.remove();
-                    if (procs.size() == 0) {
-                        if (uidToDelete == null) {
-                            uidToDelete = new ArrayList<Integer>();
-                        }
-                        uidToDelete.add(mServiceProcessesByName.keyAt(i));
-                    }
                     if (pi.mPid != 0) {
                         mServiceProcessesByPid.remove(pi.mPid);
                     }
@@ -1113,18 +1219,16 @@ public class RunningState {
                     }
                 }
             }
-        }
-        
-        if (uidToDelete != null) {
-            for (int i = 0; i < uidToDelete.size(); i++) {
-                int uid = uidToDelete.get(i);
-                mServiceProcessesByName.remove(uid);
+            if (procs.size() == 0) {
+                // Iterating backwards, so removing doesn't skip anything.
+                mServiceProcessesByName.removeAt(i);
             }
         }
 
         if (changed) {
             // First determine an order for the services.
-            ArrayList<ProcessItem> sortedProcesses = new ArrayList<ProcessItem>();
+            final ArrayList<ProcessItem> sortedProcesses = mTmpSortedProcesses;
+            sortedProcesses.clear();
             for (int i=0; i<mServiceProcessesByName.size(); i++) {
                 for (ProcessItem pi : mServiceProcessesByName.valueAt(i).values()) {
                     pi.mIsSystem = false;
@@ -1238,11 +1342,14 @@ public class RunningState {
                 }
             }
 
+            sortedProcesses.clear();
+
             synchronized (mLock) {
                 mItems = newItems;
                 mMergedItems = newMergedItems;
             }
         }
+        int changes = changed ? CHANGED_ITEMS : 0;
         
         // Count number of interesting other (non-active) processes, and
         // build a list of all processes we will retrieve memory for.
@@ -1282,16 +1389,35 @@ public class RunningState {
         boolean diffUsers = false;
         try {
             final int numProc = mAllProcessItems.size();
-            int[] pids = new int[numProc];
+            if (mTmpPids.length != numProc) {
+                mTmpPids = new int[numProc];
+            }
+            final int[] pids = mTmpPids;
+            int pidsHash = numProc;
             for (int i=0; i<numProc; i++) {
                 pids[i] = mAllProcessItems.get(i).mPid;
+                pidsHash = pidsHash*31 + pids[i];
+            }
+            // Measuring the processes is the expensive part: when they are the same as last
+            // time, keep the sizes we have for a while.
+            long[] pss = null;
+            final long now = SystemClock.uptimeMillis();
+            if (changed || pidsHash != mLastPssPidsHash || now - mLastPssTime >= PSS_MAX_AGE) {
+                pss = ActivityManagerNative.getDefault().getProcessPss(pids);
+                mLastPssPidsHash = pidsHash;
+                mLastPssTime = now;
+                synchronized (mLock) {
+                    mNumPssQueries++;
+                }
             }
-            long[] pss = ActivityManagerNative.getDefault()
-                    .getProcessPss(pids);
             int bgIndex = 0;
             for (int i=0; i<pids.length; i++) {
                 ProcessItem proc = mAllProcessItems.get(i);
-                changed |= proc.updateSize(context, pss[i], mSequence);
+                if (pss != null) {
+                    if (proc.updateSize(context, pss[i], mSequence)) {
+                        changes |= CHANGED_SIZES;
+                    }
+                }
                 if (proc.mCurSeq == mSequence) {
                     serviceProcessMemory += proc.mSize;
                 } else if (proc.mRunningProcessInfo.importance >=
@@ -1391,7 +1517,7 @@ public class RunningState {
                 mBackgroundItems = newBackgroundItems;
                 mUserBackgroundItems = newUserBackgroundItems;
                 if (mWatchingBackgroundItems) {
-                    changed = true;
+                    changes |= CHANGED_BACKGROUND_ITEMS;
                 }
             }
             if (!mHaveData) {
@@ -1400,7 +1526,7 @@ public class RunningState {
             }
         }
         
-        return changed;
+        return changes;
     }
     
     ArrayList<BaseItem> getCurrentItems() {
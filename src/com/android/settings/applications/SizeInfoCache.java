@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent cache of the last known size of each application.
+ *
+ * Sizes are keyed by package name and only returned while the modification time of the
+ * package's APK still matches, so they can be shown right away on the next launch while the
+ * real sizes are computed again in the background. All the methods are thread safe; load()
+ * and writeIfDirty() do disk I/O and must not be called from the main thread.
+ */
+class SizeInfoCache {
+    private static final String TAG = "SizeInfoCache";
+
+    private static final int VERSION = 1;
+
+    static final class Sizes {
+        final long apkModified;
+        final long size;
+        final long internalSize;
+        final long externalSize;
+        final long cacheSize;
+        final long codeSize;
+        final long dataSize;
+        final long externalCodeSize;
+        final long externalDataSize;
+        final long externalCacheSize;
+
+        Sizes(long apkModified, ApplicationsState.AppEntry entry) {
+            this.apkModified = apkModified;
+            size = entry.size;
+            internalSize = entry.internalSize;
+            externalSize = entry.externalSize;
+            cacheSize = entry.cacheSize;
+            codeSize = entry.codeSize;
+            dataSize = entry.dataSize;
+            externalCodeSize = entry.externalCodeSize;
+            externalDataSize = entry.externalDataSize;
+            externalCacheSize = entry.externalCacheSize;
+        }
+
+        Sizes(DataInputStream in) throws IOException {
+            apkModified = in.readLong();
+            size = in.readLong();
+            internalSize = in.readLong();
+            externalSize = in.readLong();
+            cacheSize = in.readLong();
+            codeSize = in.readLong();
+            dataSize = in.readLong();
+            externalCodeSize = in.readLong();
+            externalDataSize = in.readLong();
+            externalCacheSize = in.readLong();
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeLong(apkModified);
+            out.writeLong(size);
+            out.writeLong(internalSize);
+            out.writeLong(externalSize);
+            out.writeLong(cacheSize);
+            out.writeLong(codeSize);
+            out.writeLong(dataSize);
+            out.writeLong(externalCodeSize);
+            out.writeLong(externalDataSize);
+            out.writeLong(externalCacheSize);
+        }
+    }
+
+    private final AtomicFile mFile;
+    private final HashMap<String, Sizes> mSizes = new HashMap<String, Sizes>();
+    private boolean mLoaded;
+    private boolean mDirty;
+
+    SizeInfoCache(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /**
+     * Returns the cached sizes of a package, or null if unknown or out of date.
+     */
+    synchronized Sizes get(String packageName, long apkModified) {
+        Sizes sizes = mSizes.get(packageName);
+        if (sizes == null || sizes.apkModified != apkModified) {
+            return null;
+        }
+        return sizes;
+    }
+
+    synchronized void put(String packageName, long apkModified,
+            ApplicationsState.AppEntry entry) {
+        mSizes.put(packageName, new Sizes(apkModified, entry));
+        mDirty = true;
+    }
+
+    /**
+     * Drops the sizes of the packages that are no longer installed.
+     */
+    synchronized void retainAll(Set<String> packageNames) {
+        if (mSizes.keySet().retainAll(packageNames)) {
+            mDirty = true;
+        }
+    }
+
+    synchronized void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            final int count = in.readInt();
+            for (int i=0; i<count; i++) {
+                final String packageName = in.readUTF();
+                final Sizes sizes = new Sizes(in);
+                // Sizes computed since we started win over the persisted ones.
+                if (!mSizes.containsKey(packageName)) {
+                    mSizes.put(packageName, sizes);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing persisted yet.
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read app sizes", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    synchronized void writeIfDirty() {
+        if (!mDirty) {
+            return;
+        }
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            out.writeInt(mSizes.size());
+            for (Map.Entry<String, Sizes> e : mSizes.entrySet()) {
+                out.writeUTF(e.getKey());
+                e.getValue().writeTo(out);
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+            mDirty = false;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write app sizes", e);
+            if (fos != null) {
+                mFile.failWrite(fos);
+            }
+        }
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.applications;
+
+import android.app.AppGlobals;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.IPackageManager;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.UserHandle;
+import android.util.Log;
+import android.util.LruCache;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide resolver of the packages, labels and icons behind a uid, shared by the
+ * screens that list applications (battery usage, data usage and the application list) so
+ * that each label and icon is only loaded from the package manager once.
+ *
+ * Uids are resolved on a small pool of background threads. Concurrent requests for the same
+ * uid share a single load, and requests for visible rows go ahead of the others. Results are
+ * kept in caches bounded by the size of their icons, which are dropped when a package
+ * changes or the locale changes, and trimmed when memory runs low.
+ */
+public class UidInfoResolver implements ComponentCallbacks2 {
+    private static final String TAG = "UidInfoResolver";
+    private static final boolean DEBUG = false;
+
+    private static final int NUM_THREADS = 2;
+    private static final int MAX_PACKAGES = 512;
+    // Bytes of icons kept by each of the uid and icon caches.
+    private static final int MAX_ICON_BYTES = 4 * 1024 * 1024;
+
+    /** Priority of rows that are not on screen. */
+    public static final int PRIORITY_BACKGROUND = 0;
+    /** Priority of rows that are on screen. */
+    public static final int PRIORITY_VISIBLE = 1;
+
+    public interface Callback {
+        /**
+         * Called on a background thread once a requested uid was resolved.
+         */
+        void onUidInfoResolved(UidInfo info);
+    }
+
+    /**
+     * What is known about a uid.  Immutable.
+     */
+    public static final class UidInfo {
+        public final int uid;
+        /** The packages running as the uid, or null if there are none. */
+        public final String[] packages;
+        /** The label of each package, or its name if it has no label. */
+        public final CharSequence[] packageLabels;
+        /** The first package with an icon, and that icon, or null. */
+        public final String iconPackage;
+        public final Drawable icon;
+        /** The label of the shared user, its package and icon, or null. */
+        public final CharSequence sharedUserLabel;
+        public final String sharedUserPackage;
+        public final Drawable sharedUserIcon;
+
+        UidInfo(int uid, String[] packages, CharSequence[] packageLabels, String iconPackage,
+                Drawable icon, CharSequence sharedUserLabel, String sharedUserPackage,
+                Drawable sharedUserIcon) {
+            this.uid = uid;
+            this.packages = packages;
+            this.packageLabels = packageLabels;
+            this.iconPackage = iconPackage;
+            this.icon = icon;
+            this.sharedUserLabel = sharedUserLabel;
+            this.sharedUserPackage = sharedUserPackage;
+            this.sharedUserIcon = sharedUserIcon;
+        }
+    }
+
+    private static UidInfoResolver sInstance;
+
+    public static synchronized UidInfoResolver getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new UidInfoResolver(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private final Context mContext;
+    private final PackageManager mPm;
+    private final IPackageManager mIpm;
+    private final ThreadPoolExecutor mExecutor;
+
+    // The caches are thread safe on their own, mLock keeps them consistent with mPending.
+    private final Object mLock = new Object();
+    private final LruCache<Integer, UidInfo> mUids;
+    private final LruCache<String, CharSequence> mLabels
+            = new LruCache<String, CharSequence>(MAX_PACKAGES);
+    private final LruCache<String, Drawable> mIcons;
+    private final SparseArray<Request> mPending = new SparseArray<Request>();
+    private long mNextSeq;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_LOCALE_CHANGED.equals(intent.getAction())) {
+                clearCaches();
+                return;
+            }
+            final String packageName = intent.getData() != null
+                    ? intent.getData().getSchemeSpecificPart() : null;
+            final int uid = intent.getIntExtra(Intent.EXTRA_UID, -1);
+            if (packageName != null) {
+                invalidate(packageName, uid);
+            }
+        }
+    };
+
+    private UidInfoResolver(Context context) {
+        mContext = context;
+        mPm = context.getPackageManager();
+        mIpm = AppGlobals.getPackageManager();
+        final int maxIconBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 32,
+                MAX_ICON_BYTES);
+        mUids = new LruCache<Integer, UidInfo>(maxIconBytes) {
+            @Override
+            protected int sizeOf(Integer uid, UidInfo info) {
+                // Count each entry, even without icons.
+                return 1 + getByteCount(info.icon) + getByteCount(info.sharedUserIcon);
+            }
+        };
+        mIcons = new LruCache<String, Drawable>(maxIconBytes) {
+            @Override
+            protected int sizeOf(String key, Drawable icon) {
+                return 1 + getByteCount(icon);
+            }
+        };
+        mExecutor = new ThreadPoolExecutor(NUM_THREADS, NUM_THREADS, 0, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int mCount;
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread("UidInfoResolver #" + (++mCount)) {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        };
+                    }
+                });
+
+        IntentFilter filter = new IntentFilter(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(mReceiver, filter);
+        context.registerReceiver(mReceiver, new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
+        context.registerComponentCallbacks(this);
+    }
+
+    /**
+     * Returns what is known about a uid if it was already resolved.  Otherwise returns null,
+     * and resolves it in the background before calling the callback, if any.
+     */
+    public UidInfo getUidInfo(int uid, int priority, Callback callback) {
+        synchronized (mLock) {
+            final UidInfo info = mUids.get(uid);
+            if (info != null) {
+                return info;
+            }
+            Request request = mPending.get(uid);
+            if (request == null) {
+                request = newRequestLocked(uid, priority);
+                mExecutor.execute(request);
+            } else if (priority > request.mPriority && mExecutor.remove(request)) {
+                // Queue it again, ahead of the requests with a lower priority.
+                request.mPriority = priority;
+                mExecutor.execute(request);
+            }
+            if (callback != null) {
+                request.mCallbacks.add(callback);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns what is known about a uid, resolving it on the calling thread if needed.
+     * Must not be called from the main thread.
+     */
+    public UidInfo getUidInfoBlocking(int uid) {
+        final Request request;
+        synchronized (mLock) {
+            final UidInfo info = mUids.get(uid);
+            if (info != null) {
+                return info;
+            }
+            final Request pending = mPending.get(uid);
+            if (pending == null) {
+                request = newRequestLocked(uid, PRIORITY_VISIBLE);
+            } else if (mExecutor.remove(pending)) {
+                request = pending;
+            } else {
+                // Already being resolved by a worker.
+                return waitFor(pending);
+            }
+        }
+        request.run();
+        return waitFor(request);
+    }
+
+    /**
+     * Stops calling the given callback.  The uids it requested are still resolved.
+     */
+    public void removeCallback(Callback callback) {
+        synchronized (mLock) {
+            for (int i=0; i<mPending.size(); i++) {
+                mPending.valueAt(i).mCallbacks.remove(callback);
+            }
+        }
+    }
+
+    /**
+     * Returns the label of a package of the current user if it was already loaded.
+     */
+    public CharSequence getPackageLabel(String packageName) {
+        return mLabels.get(getPackageKey(packageName, UserHandle.myUserId()));
+    }
+
+    public void putPackageLabel(String packageName, CharSequence label) {
+        mLabels.put(getPackageKey(packageName, UserHandle.myUserId()), label);
+    }
+
+    /**
+     * Returns the icon of a package of the current user if it was already loaded.
+     */
+    public Drawable getPackageIcon(String packageName) {
+        return mIcons.get(getPackageKey(packageName, UserHandle.myUserId()));
+    }
+
+    public void putPackageIcon(String packageName, Drawable icon) {
+        mIcons.put(getPackageKey(packageName, UserHandle.myUserId()), icon);
+    }
+
+    void invalidate(String packageName, int uid) {
+        final int userId = uid >= 0 ? UserHandle.getUserId(uid) : UserHandle.myUserId();
+        synchronized (mLock) {
+            mLabels.remove(getPackageKey(packageName, userId));
+            mIcons.remove(getPackageKey(packageName, userId));
+            if (uid >= 0) {
+                mUids.remove(uid);
+                // A load in flight may have seen the old package: don't cache it.
+                mPending.remove(uid);
+            }
+        }
+    }
+
+    void clearCaches() {
+        synchronized (mLock) {
+            mLabels.evictAll();
+            mIcons.evictAll();
+            mUids.evictAll();
+            mPending.clear();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimCaches(0);
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trimCaches(mIcons.maxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        trimCaches(0);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /**
+     * Trims the caches holding icons down to the given number of bytes.  The loads in
+     * flight are kept.
+     */
+    private void trimCaches(int maxBytes) {
+        if (DEBUG) Log.d(TAG, "Trimming caches to " + maxBytes + " bytes");
+        synchronized (mLock) {
+            mIcons.trimToSize(maxBytes);
+            mUids.trimToSize(maxBytes);
+        }
+    }
+
+    private static int getByteCount(Drawable icon) {
+        if (icon instanceof BitmapDrawable) {
+            final Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+            if (bitmap != null) {
+                return bitmap.getByteCount();
+            }
+        }
+        if (icon != null) {
+            // Assume it is drawn at its intrinsic size, with 4 bytes per pixel.
+            return Math.max(icon.getIntrinsicWidth(), 0)
+                    * Math.max(icon.getIntrinsicHeight(), 0) * 4;
+        }
+        return 0;
+    }
+
+    private Request newRequestLocked(final int uid, int priority) {
+        final Request request = new Request(uid, priority, mNextSeq++, new Callable<UidInfo>() {
+            @Override
+            public UidInfo call() {
+                return loadUidInfo(uid);
+            }
+        });
+        mPending.put(uid, request);
+        return request;
+    }
+
+    private UidInfo waitFor(Request request) {
+        try {
+            return request.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Unable to resolve uid " + request.mUid, e.getCause());
+        }
+        return null;
+    }
+
+    private static String getPackageKey(String packageName, int userId) {
+        return userId + ":" + packageName;
+    }
+
+    private UidInfo loadUidInfo(int uid) {
+        final String[] packages = mPm.getPackagesForUid(uid);
+        if (packages == null) {
+            return new UidInfo(uid, null, null, null, null, null, null, null);
+        }
+        if (DEBUG) Log.d(TAG, "Resolving uid " + uid);
+
+        final int userId = UserHandle.getUserId(uid);
+        final CharSequence[] labels = new CharSequence[packages.length];
+        String iconPackage = null;
+        Drawable icon = null;
+        for (int i=0; i<packages.length; i++) {
+            final String packageName = packages[i];
+            final String key = getPackageKey(packageName, userId);
+            labels[i] = packageName;
+            try {
+                final ApplicationInfo ai = mIpm.getApplicationInfo(packageName, 0, userId);
+                if (ai == null) {
+                    continue;
+                }
+                CharSequence label = mLabels.get(key);
+                if (label == null) {
+                    label = ai.loadLabel(mPm);
+                    if (label != null) {
+                        label = label.toString();
+                        mLabels.put(key, label);
+                    }
+                }
+                if (label != null) {
+                    labels[i] = label;
+                }
+                if (icon == null && ai.icon != 0) {
+                    iconPackage = packageName;
+                    icon = loadIcon(key, ai);
+                }
+            } catch (RemoteException e) {
+                Log.w(TAG, "Error while retrieving app info for " + packageName, e);
+            }
+        }
+
+        CharSequence sharedUserLabel = null;
+        String sharedUserPackage = null;
+        Drawable sharedUserIcon = null;
+        if (packages.length > 1) {
+            // Look for an official name for this uid.
+            for (String packageName : packages) {
+                try {
+                    final PackageInfo pi = mIpm.getPackageInfo(packageName, 0, userId);
+                    if (pi == null || pi.sharedUserLabel == 0) {
+                        continue;
+                    }
+                    final CharSequence name = mPm.getText(packageName, pi.sharedUserLabel,
+                            pi.applicationInfo);
+                    if (name != null) {
+                        sharedUserLabel = name.toString();
+                        sharedUserPackage = packageName;
+                        if (pi.applicationInfo.icon != 0) {
+                            sharedUserIcon = loadIcon(getPackageKey(packageName, userId),
+                                    pi.applicationInfo);
+                        }
+                        break;
+                    }
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Error while retrieving package info for " + packageName, e);
+                }
+            }
+        }
+        return new UidInfo(uid, packages, labels, iconPackage, icon, sharedUserLabel,
+                sharedUserPackage, sharedUserIcon);
+    }
+
+    private Drawable loadIcon(String key, ApplicationInfo ai) {
+        Drawable icon = mIcons.get(key);
+        if (icon == null) {
+            icon = ai.loadIcon(mPm);
+            mIcons.put(key, icon);
+        }
+        return icon;
+    }
+
+    private final class Request extends FutureTask<UidInfo> implements Comparable<Request> {
+        final int mUid;
+        final long mSeq;
+        // Only changed while not queued, with mLock held.
+        int mPriority;
+        final ArrayList<Callback> mCallbacks = new ArrayList<Callback>();
+
+        Request(int uid, int priority, long seq, Callable<UidInfo> callable) {
+            super(callable);
+            mUid = uid;
+            mPriority = priority;
+            mSeq = seq;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (mPriority != other.mPriority) {
+                return mPriority > other.mPriority ? -1 : 1;
+            }
+            return mSeq < other.mSeq ? -1 : (mSeq > other.mSeq ? 1 : 0);
+        }
+
+        @Override
+        protected void done() {
+            UidInfo info = waitFor(this);
+            final boolean failed = info == null && !isCancelled();
+            final ArrayList<Callback> callbacks;
+            synchronized (mLock) {
+                if (mPending.get(mUid) == this) {
+                    mPending.remove(mUid);
+                    if (info != null) {
+                        mUids.put(mUid, info);
+                    }
+                }
+                callbacks = new ArrayList<Callback>(mCallbacks);
+                mCallbacks.clear();
+            }
+            if (failed) {
+                // Not cached, so that it is tried again.  The callers still get an answer,
+                // they wait for one per uid.
+                info = new UidInfo(mUid, null, null, null, null, null, null, null);
+            }
+            if (info != null) {
+                for (int i=0; i<callbacks.size(); i++) {
+                    callbacks.get(i).onUidInfoResolved(info);
+                }
+            }
+        }
+    }
+}
@@ -54,6 +54,8 @@ public final class BluetoothDevicePreference extends Preference implements
 
     private OnClickListener mOnSettingsClickListener;
 
+    private DeviceListUpdateBatcher mUpdateBatcher;
+
     private AlertDialog mDisconnectDialog;
 
     public BluetoothDevicePreference(Context context, CachedBluetoothDevice cachedDevice) {
@@ -78,7 +80,7 @@ public final class BluetoothDevicePreference extends Preference implements
 
         mCachedDevice.registerCallback(this);
 
-        onDeviceAttributesChanged();
+        refresh();
     }
 
     CachedBluetoothDevice getCachedDevice() {
@@ -89,6 +91,14 @@ public final class BluetoothDevicePreference extends Preference implements
         mOnSettingsClickListener = listener;
     }
 
+    /**
+     * Makes the attribute changes go through the list's batcher, instead of
+     * refreshing the preference for each of them.
+     */
+    void setUpdateBatcher(DeviceListUpdateBatcher batcher) {
+        mUpdateBatcher = batcher;
+    }
+
     @Override
     protected void onPrepareForRemoval() {
         super.onPrepareForRemoval();
@@ -100,6 +110,14 @@ public final class BluetoothDevicePreference extends Preference implements
     }
 
     public void onDeviceAttributesChanged() {
+        if (mUpdateBatcher != null) {
+            mUpdateBatcher.refresh(this);
+        } else {
+            refresh();
+        }
+    }
+
+    void refresh() {
         /*
          * The preference framework takes care of making sure the value has
          * changed before proceeding. It will also call notifyChanged() if
@@ -184,6 +184,9 @@ final class BluetoothEventManager {
                 }
             }
             mDeviceManager.onScanningStateChanged(mStarted);
+            for (CachedBluetoothDevice cachedDevice : mDeviceManager.evictStaleDevices()) {
+                dispatchDeviceDeleted(cachedDevice);
+            }
             LocalBluetoothPreferences.persistDiscoveringTimestamp(context);
         }
     }
@@ -228,11 +231,15 @@ final class BluetoothEventManager {
                 return;
             }
             if (CachedBluetoothDeviceManager.onDeviceDisappeared(cachedDevice)) {
-                synchronized (mCallbacks) {
-                    for (BluetoothCallback callback : mCallbacks) {
-                        callback.onDeviceDeleted(cachedDevice);
-                    }
-                }
+                dispatchDeviceDeleted(cachedDevice);
+            }
+        }
+    }
+
+    private void dispatchDeviceDeleted(CachedBluetoothDevice cachedDevice) {
+        synchronized (mCallbacks) {
+            for (BluetoothCallback callback : mCallbacks) {
+                callback.onDeviceDeleted(cachedDevice);
             }
         }
     }
@@ -65,6 +65,9 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
 
     private boolean mVisible;
 
+    // Last time the device was found by discovery, or created
+    private long mLastSeenTime;
+
     private int mPhonebookPermissionChoice;
 
     private int mMessagePermissionChoice;
@@ -167,6 +170,7 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
         mProfileManager = profileManager;
         mDevice = device;
         mProfileConnectionState = new HashMap<LocalBluetoothProfile, Integer>();
+        mLastSeenTime = SystemClock.elapsedRealtime();
         fillData();
     }
 
@@ -424,12 +428,19 @@ final class CachedBluetoothDevice implements Comparable<CachedBluetoothDevice> {
     }
 
     void setVisible(boolean visible) {
+        if (visible) {
+            mLastSeenTime = SystemClock.elapsedRealtime();
+        }
         if (mVisible != visible) {
             mVisible = visible;
             dispatchAttributesChanged();
         }
     }
 
+    long getLastSeenTime() {
+        return mLastSeenTime;
+    }
+
     int getBondState() {
         return mDevice.getBondState();
     }
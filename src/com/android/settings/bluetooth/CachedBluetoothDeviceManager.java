@@ -19,29 +19,48 @@ package com.android.settings.bluetooth;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * CachedBluetoothDeviceManager manages the set of remote Bluetooth devices.
+ * <p>
+ * Devices are kept by address, so that looking one up for every event from
+ * discovery doesn't depend on the number of devices around. The registry is
+ * concurrent: lookups and iteration don't lock. Iteration is only weakly
+ * consistent, it may or may not see the devices added or removed while it
+ * runs, and never sees a device twice.
  */
 final class CachedBluetoothDeviceManager {
     private static final String TAG = "CachedBluetoothDeviceManager";
     private static final boolean DEBUG = Utils.D;
 
+    /**
+     * How long a device that isn't bonded is kept after it was last seen by
+     * discovery, when it isn't visible anymore.
+     */
+    private static final long STALE_DEVICE_AGE_MS = 5 * 60 * 1000;
+
     private Context mContext;
-    private final List<CachedBluetoothDevice> mCachedDevices =
-            new ArrayList<CachedBluetoothDevice>();
+    private final ConcurrentHashMap<String, CachedBluetoothDevice> mCachedDevices =
+            new ConcurrentHashMap<String, CachedBluetoothDevice>();
 
     CachedBluetoothDeviceManager(Context context) {
         mContext = context;
     }
 
-    public synchronized Collection<CachedBluetoothDevice> getCachedDevicesCopy() {
-        return new ArrayList<CachedBluetoothDevice>(mCachedDevices);
+    /**
+     * Returns a copy of the devices, in no particular order: unlike the list
+     * this used to be, the devices aren't kept in the order they were added.
+     */
+    public Collection<CachedBluetoothDevice> getCachedDevicesCopy() {
+        return new ArrayList<CachedBluetoothDevice>(mCachedDevices.values());
     }
 
     public static boolean onDeviceDisappeared(CachedBluetoothDevice cachedDevice) {
@@ -67,12 +86,11 @@ final class CachedBluetoothDeviceManager {
      *   not been previously seen
      */
     CachedBluetoothDevice findDevice(BluetoothDevice device) {
-        for (CachedBluetoothDevice cachedDevice : mCachedDevices) {
-            if (cachedDevice.getDevice().equals(device)) {
-                return cachedDevice;
-            }
+        // Broadcasts without EXTRA_DEVICE get here with a null device
+        if (device == null) {
+            return null;
         }
-        return null;
+        return mCachedDevices.get(device.getAddress());
     }
 
     /**
@@ -86,10 +104,9 @@ final class CachedBluetoothDeviceManager {
             BluetoothDevice device) {
         CachedBluetoothDevice newDevice = new CachedBluetoothDevice(mContext, adapter,
             profileManager, device);
-        synchronized (mCachedDevices) {
-            mCachedDevices.add(newDevice);
-        }
-        return newDevice;
+        CachedBluetoothDevice existing = mCachedDevices.putIfAbsent(device.getAddress(),
+                newDevice);
+        return existing != null ? existing : newDevice;
     }
 
     /**
@@ -112,49 +129,79 @@ final class CachedBluetoothDeviceManager {
         return device.getAddress();
     }
 
-    public synchronized void clearNonBondedDevices() {
-        for (int i = mCachedDevices.size() - 1; i >= 0; i--) {
-            CachedBluetoothDevice cachedDevice = mCachedDevices.get(i);
+    public void clearNonBondedDevices() {
+        for (Iterator<CachedBluetoothDevice> it = mCachedDevices.values().iterator();
+                it.hasNext(); ) {
+            CachedBluetoothDevice cachedDevice = it.next();
             if (cachedDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
-                mCachedDevices.remove(i);
+                it.remove();
             }
         }
     }
 
-    public synchronized void onScanningStateChanged(boolean started) {
+    public void onScanningStateChanged(boolean started) {
         if (!started) return;
 
         // If starting a new scan, clear old visibility
-        // Iterate in reverse order since devices may be removed.
-        for (int i = mCachedDevices.size() - 1; i >= 0; i--) {
-            CachedBluetoothDevice cachedDevice = mCachedDevices.get(i);
+        for (CachedBluetoothDevice cachedDevice : mCachedDevices.values()) {
             cachedDevice.setVisible(false);
         }
     }
 
-    public synchronized void onBtClassChanged(BluetoothDevice device) {
+    /**
+     * Removes the devices that aren't bonded nor visible, and that weren't
+     * seen by discovery for a while, so that the registry doesn't keep every
+     * device ever seen in a crowded place.
+     *
+     * @return the devices removed
+     */
+    public List<CachedBluetoothDevice> evictStaleDevices() {
+        final long now = SystemClock.elapsedRealtime();
+        List<CachedBluetoothDevice> evicted = null;
+        for (Iterator<CachedBluetoothDevice> it = mCachedDevices.values().iterator();
+                it.hasNext(); ) {
+            CachedBluetoothDevice cachedDevice = it.next();
+            if (!cachedDevice.isVisible()
+                    && cachedDevice.getBondState() == BluetoothDevice.BOND_NONE
+                    && now - cachedDevice.getLastSeenTime() > STALE_DEVICE_AGE_MS) {
+                it.remove();
+                if (evicted == null) {
+                    evicted = new ArrayList<CachedBluetoothDevice>();
+                }
+                evicted.add(cachedDevice);
+            }
+        }
+        if (evicted == null) {
+            return new ArrayList<CachedBluetoothDevice>(0);
+        }
+        log("Evicted " + evicted.size() + " stale devices");
+        return evicted;
+    }
+
+    public void onBtClassChanged(BluetoothDevice device) {
         CachedBluetoothDevice cachedDevice = findDevice(device);
         if (cachedDevice != null) {
             cachedDevice.refreshBtClass();
         }
     }
 
-    public synchronized void onUuidChanged(BluetoothDevice device) {
+    public void onUuidChanged(BluetoothDevice device) {
         CachedBluetoothDevice cachedDevice = findDevice(device);
         if (cachedDevice != null) {
             cachedDevice.onUuidChanged();
         }
     }
 
-    public synchronized void onBluetoothStateChanged(int bluetoothState) {
+    public void onBluetoothStateChanged(int bluetoothState) {
         // When Bluetooth is turning off, we need to clear the non-bonded devices
         // Otherwise, they end up showing up on the next BT enable
         if (bluetoothState == BluetoothAdapter.STATE_TURNING_OFF) {
-            for (int i = mCachedDevices.size() - 1; i >= 0; i--) {
-                CachedBluetoothDevice cachedDevice = mCachedDevices.get(i);
+            for (Iterator<CachedBluetoothDevice> it = mCachedDevices.values().iterator();
+                    it.hasNext(); ) {
+                CachedBluetoothDevice cachedDevice = it.next();
                 if (cachedDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
                     cachedDevice.setVisible(false);
-                    mCachedDevices.remove(i);
+                    it.remove();
                 } else {
                     // For bonded devices, we need to clear the connection status so that
                     // when BT is enabled next time, device connection status shall be retrieved
@@ -38,7 +38,8 @@ import java.util.WeakHashMap;
  * @see DevicePickerFragment
  */
 public abstract class DeviceListPreferenceFragment extends
-        RestrictedSettingsFragment implements BluetoothCallback {
+        RestrictedSettingsFragment implements BluetoothCallback,
+        DeviceListUpdateBatcher.Target {
 
     private static final String TAG = "DeviceListPreferenceFragment";
 
@@ -54,6 +55,9 @@ public abstract class DeviceListPreferenceFragment extends
 
     private PreferenceGroup mDeviceListGroup;
 
+    // Coalesces the devices found and attribute changes while scanning
+    private DeviceListUpdateBatcher mUpdateBatcher;
+
     final WeakHashMap<CachedBluetoothDevice, BluetoothDevicePreference> mDevicePreferenceMap =
             new WeakHashMap<CachedBluetoothDevice, BluetoothDevicePreference>();
 
@@ -80,6 +84,8 @@ public abstract class DeviceListPreferenceFragment extends
             return;
         }
         mLocalAdapter = mLocalManager.getBluetoothAdapter();
+        mUpdateBatcher = new DeviceListUpdateBatcher(this,
+                DeviceListUpdateBatcher.DEFAULT_WINDOW_MS);
 
         addPreferencesForActivity();
 
@@ -118,6 +124,7 @@ public abstract class DeviceListPreferenceFragment extends
 
     void removeAllDevices() {
         mLocalAdapter.stopScanning();
+        mUpdateBatcher.clear();
         mDevicePreferenceMap.clear();
         mDeviceListGroup.removeAll();
     }
@@ -126,7 +133,7 @@ public abstract class DeviceListPreferenceFragment extends
         Collection<CachedBluetoothDevice> cachedDevices =
                 mLocalManager.getCachedDeviceManager().getCachedDevicesCopy();
         for (CachedBluetoothDevice cachedDevice : cachedDevices) {
-            onDeviceAdded(cachedDevice);
+            addDevicePreference(cachedDevice);
         }
     }
 
@@ -154,6 +161,11 @@ public abstract class DeviceListPreferenceFragment extends
     }
 
     public void onDeviceAdded(CachedBluetoothDevice cachedDevice) {
+        // Devices come in bursts while scanning, add them together
+        mUpdateBatcher.addDevice(cachedDevice);
+    }
+
+    public void addDevicePreference(CachedBluetoothDevice cachedDevice) {
         if (mDevicePreferenceMap.get(cachedDevice) != null) {
             return;
         }
@@ -177,6 +189,7 @@ public abstract class DeviceListPreferenceFragment extends
                 getActivity(), cachedDevice);
 
         initDevicePreference(preference);
+        preference.setUpdateBatcher(mUpdateBatcher);
         mDeviceListGroup.addPreference(preference);
         mDevicePreferenceMap.put(cachedDevice, preference);
     }
@@ -190,6 +203,7 @@ public abstract class DeviceListPreferenceFragment extends
     }
 
     public void onDeviceDeleted(CachedBluetoothDevice cachedDevice) {
+        mUpdateBatcher.remove(cachedDevice);
         BluetoothDevicePreference preference = mDevicePreferenceMap.remove(cachedDevice);
         if (preference != null) {
             mDeviceListGroup.removePreference(preference);
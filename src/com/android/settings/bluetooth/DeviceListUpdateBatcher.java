@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.os.Handler;
+import android.os.Message;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Coalesces the updates that discovery makes to a list of Bluetooth devices.
+ * <p>
+ * Every device found and every RSSI, name or class update would otherwise add or
+ * redraw a preference, and make the list sort itself again. Instead, the devices
+ * found and the preferences to refresh are buffered by address for a short
+ * window, and applied together once the window is over. Must be used from the
+ * main thread.
+ */
+final class DeviceListUpdateBatcher implements Handler.Callback {
+    private static final String TAG = "DeviceListUpdateBatcher";
+    private static final boolean DEBUG = Utils.D;
+
+    /** About one frame. */
+    static final long DEFAULT_WINDOW_MS = 16;
+
+    private static final int MSG_FLUSH = 1;
+
+    interface Target {
+        /** Adds the preference for a device found, if it should be listed. */
+        void addDevicePreference(CachedBluetoothDevice cachedDevice);
+    }
+
+    private final Handler mHandler = new Handler(this);
+    private final Target mTarget;
+    private final long mWindowMs;
+
+    private final LinkedHashMap<String, CachedBluetoothDevice> mPendingDevices =
+            new LinkedHashMap<String, CachedBluetoothDevice>();
+    private final LinkedHashMap<String, BluetoothDevicePreference> mPendingPreferences =
+            new LinkedHashMap<String, BluetoothDevicePreference>();
+
+    // Events received, and adds or refreshes applied, since the last clear()
+    private int mEventsIn;
+    private int mUpdatesOut;
+
+    DeviceListUpdateBatcher(Target target, long windowMs) {
+        mTarget = target;
+        mWindowMs = windowMs;
+    }
+
+    void addDevice(CachedBluetoothDevice cachedDevice) {
+        mEventsIn++;
+        mPendingDevices.put(cachedDevice.getDevice().getAddress(), cachedDevice);
+        scheduleFlush();
+    }
+
+    void refresh(BluetoothDevicePreference preference) {
+        mEventsIn++;
+        mPendingPreferences.put(preference.getCachedDevice().getDevice().getAddress(),
+                preference);
+        scheduleFlush();
+    }
+
+    /** Drops the updates pending for a device that is being removed. */
+    void remove(CachedBluetoothDevice cachedDevice) {
+        final String address = cachedDevice.getDevice().getAddress();
+        mPendingDevices.remove(address);
+        mPendingPreferences.remove(address);
+    }
+
+    /** Drops all the pending updates, when the list is emptied. */
+    void clear() {
+        mHandler.removeMessages(MSG_FLUSH);
+        mPendingDevices.clear();
+        mPendingPreferences.clear();
+        if (DEBUG && mEventsIn > 0) {
+            Log.d(TAG, "Coalesced " + mEventsIn + " events into " + mUpdatesOut + " updates");
+        }
+        mEventsIn = 0;
+        mUpdatesOut = 0;
+    }
+
+    int getEventsIn() {
+        return mEventsIn;
+    }
+
+    int getUpdatesOut() {
+        return mUpdatesOut;
+    }
+
+    private void scheduleFlush() {
+        if (!mHandler.hasMessages(MSG_FLUSH)) {
+            mHandler.sendEmptyMessageDelayed(MSG_FLUSH, mWindowMs);
+        }
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        if (msg.what == MSG_FLUSH) {
+            flush();
+            return true;
+        }
+        return false;
+    }
+
+    private void flush() {
+        // Copy first, adding or refreshing a preference can post new updates
+        final ArrayList<CachedBluetoothDevice> devices =
+                new ArrayList<CachedBluetoothDevice>(mPendingDevices.values());
+        final ArrayList<BluetoothDevicePreference> preferences =
+                new ArrayList<BluetoothDevicePreference>(mPendingPreferences.values());
+        mPendingDevices.clear();
+        mPendingPreferences.clear();
+
+        for (int i = 0; i < devices.size(); i++) {
+            mTarget.addDevicePreference(devices.get(i));
+        }
+        // The preference group re-sorts once for all of the refreshes
+        for (int i = 0; i < preferences.size(); i++) {
+            preferences.get(i).refresh();
+        }
+        mUpdatesOut += devices.size() + preferences.size();
+    }
+}
@@ -26,6 +26,9 @@ import android.database.Cursor;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -70,18 +73,65 @@ public class SearchResultsSummary extends Fragment {
 
     private boolean mShowResults;
 
+    private final Handler mHandler = new Handler();
+    // Delay after the last keystroke before running the query
+    private int mQueryDebounceDelay;
+
+    private final Runnable mUpdateSearchResultsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startUpdateSearchResultsTask();
+        }
+    };
+
+    private final Runnable mUpdateSuggestionsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startUpdateSuggestionsTask();
+        }
+    };
+
+    /**
+     * A basic AsyncTask for running a query that can be canceled while it is running
+     */
+    private abstract class QueryTask extends AsyncTask<String, Void, Cursor> {
+        protected final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+        public void cancelQuery() {
+            cancel(false);
+            mCancellationSignal.cancel();
+        }
+
+        @Override
+        protected void onCancelled(Cursor cursor) {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     /**
      * A basic AsyncTask for updating the query results cursor
      */
-    private class UpdateSearchResultsTask extends AsyncTask<String, Void, Cursor> {
+    private class UpdateSearchResultsTask extends QueryTask {
+        private final Context mContext;
+
+        public UpdateSearchResultsTask(Context context) {
+            mContext = context;
+        }
+
         @Override
         protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).search(params[0]);
+            try {
+                return Index.getInstance(mContext).search(params[0], mCancellationSignal);
+            } catch (OperationCanceledException e) {
+                return null;
+            }
         }
 
         @Override
         protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
+            if (!isCancelled() && cursor != null) {
                 setResultsCursor(cursor);
                 setResultsVisibility(cursor.getCount() > 0);
             } else if (cursor != null) {
@@ -93,15 +143,26 @@ public class SearchResultsSummary extends Fragment {
     /**
      * A basic AsyncTask for updating the suggestions cursor
      */
-    private class UpdateSuggestionsTask extends AsyncTask<String, Void, Cursor> {
+    private class UpdateSuggestionsTask extends QueryTask {
+        private final Context mContext;
+
+        public UpdateSuggestionsTask(Context context) {
+            mContext = context;
+        }
+
         @Override
         protected Cursor doInBackground(String... params) {
-            return Index.getInstance(getActivity()).getSuggestions(params[0]);
+            try {
+                return Index.getInstance(mContext).getSuggestions(params[0],
+                        mCancellationSignal);
+            } catch (OperationCanceledException e) {
+                return null;
+            }
         }
 
         @Override
         protected void onPostExecute(Cursor cursor) {
-            if (!isCancelled()) {
+            if (!isCancelled() && cursor != null) {
                 setSuggestionsCursor(cursor);
                 setSuggestionsVisibility(cursor.getCount() > 0);
             } else if (cursor != null) {
@@ -117,6 +178,8 @@ public class SearchResultsSummary extends Fragment {
         mResultsAdapter = new SearchResultsAdapter(getActivity());
         mSuggestionsAdapter = new SuggestionsAdapter(getActivity());
 
+        mQueryDebounceDelay = getResources().getInteger(R.integer.search_query_debounce_delay);
+
         if (savedInstanceState != null) {
             mShowResults = savedInstanceState.getBoolean(SAVE_KEY_SHOW_RESULTS);
         }
@@ -277,7 +340,8 @@ public class SearchResultsSummary extends Fragment {
         mQuery = getFilteredQueryString(query);
         mShowResults = true;
         setSuggestionsVisibility(false);
-        updateSearchResults();
+        // No need to wait for more keystrokes
+        updateSearchResults(false);
         saveQueryToDatabase();
 
         return false;
@@ -291,11 +355,11 @@ public class SearchResultsSummary extends Fragment {
         if (TextUtils.isEmpty(mQuery)) {
             mShowResults = false;
             setResultsVisibility(false);
-            updateSuggestions();
+            updateSuggestions(true);
         } else {
             mShowResults = true;
             setSuggestionsVisibility(false);
-            updateSearchResults();
+            updateSearchResults(true);
         }
 
         return true;
@@ -304,12 +368,13 @@ public class SearchResultsSummary extends Fragment {
     public void showSomeSuggestions() {
         setResultsVisibility(false);
         mQuery = EMPTY_QUERY;
-        updateSuggestions();
+        updateSuggestions(false);
     }
 
     private void clearSuggestions() {
+        mHandler.removeCallbacks(mUpdateSuggestionsRunnable);
         if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
+            mUpdateSuggestionsTask.cancelQuery();
             mUpdateSuggestionsTask = null;
         }
         setSuggestionsCursor(null);
@@ -326,8 +391,9 @@ public class SearchResultsSummary extends Fragment {
     }
 
     private void clearResults() {
+        mHandler.removeCallbacks(mUpdateSearchResultsRunnable);
         if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
+            mUpdateSearchResultsTask.cancelQuery();
             mUpdateSearchResultsTask = null;
         }
         setResultsCursor(null);
@@ -359,35 +425,63 @@ public class SearchResultsSummary extends Fragment {
     }
 
     private void clearAllTasks() {
+        mHandler.removeCallbacks(mUpdateSearchResultsRunnable);
+        mHandler.removeCallbacks(mUpdateSuggestionsRunnable);
         if (mUpdateSearchResultsTask != null) {
-            mUpdateSearchResultsTask.cancel(false);
+            mUpdateSearchResultsTask.cancelQuery();
             mUpdateSearchResultsTask = null;
         }
         if (mUpdateSuggestionsTask != null) {
-            mUpdateSuggestionsTask.cancel(false);
+            mUpdateSuggestionsTask.cancelQuery();
             mUpdateSuggestionsTask = null;
         }
     }
 
-    private void updateSuggestions() {
+    /**
+     * @param debounce true means that the query is run only if no other update is requested
+     *                 during the debounce delay (typically while the user is typing).
+     */
+    private void updateSuggestions(boolean debounce) {
         clearAllTasks();
         if (mQuery == null) {
             setSuggestionsCursor(null);
+        } else if (debounce) {
+            mHandler.postDelayed(mUpdateSuggestionsRunnable, mQueryDebounceDelay);
         } else {
-            mUpdateSuggestionsTask = new UpdateSuggestionsTask();
-            mUpdateSuggestionsTask.execute(mQuery);
+            startUpdateSuggestionsTask();
         }
     }
 
-    private void updateSearchResults() {
+    private void startUpdateSuggestionsTask() {
+        if (mQuery == null || getActivity() == null) {
+            return;
+        }
+        mUpdateSuggestionsTask = new UpdateSuggestionsTask(getActivity());
+        mUpdateSuggestionsTask.execute(mQuery);
+    }
+
+    /**
+     * @param debounce true means that the query is run only if no other update is requested
+     *                 during the debounce delay (typically while the user is typing).
+     */
+    private void updateSearchResults(boolean debounce) {
         clearAllTasks();
         if (TextUtils.isEmpty(mQuery)) {
             setResultsVisibility(false);
             setResultsCursor(null);
+        } else if (debounce) {
+            mHandler.postDelayed(mUpdateSearchResultsRunnable, mQueryDebounceDelay);
         } else {
-            mUpdateSearchResultsTask = new UpdateSearchResultsTask();
-            mUpdateSearchResultsTask.execute(mQuery);
+            startUpdateSearchResultsTask();
+        }
+    }
+
+    private void startUpdateSearchResultsTask() {
+        if (TextUtils.isEmpty(mQuery) || getActivity() == null) {
+            return;
         }
+        mUpdateSearchResultsTask = new UpdateSearchResultsTask(getActivity());
+        mUpdateSearchResultsTask.execute(mQuery);
     }
 
     private static class SuggestionItem {
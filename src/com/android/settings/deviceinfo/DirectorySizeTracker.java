@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import com.google.android.collect.Maps;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Remembers the sizes of the directories measured by {@link StorageMeasurement},
+ * and watches them for changes, so that measuring again only walks the
+ * directories that changed since.
+ * <p>
+ * A directory is watched recursively once measured. Any change in its subtree
+ * drops its size and its watches; they are set up again the next time it is
+ * measured. Directories with too many subdirectories to watch are not
+ * remembered at all, nor walked again to find out until {@link #clear}. The
+ * watches of all the trackers are capped, as they come out of the inotify
+ * budget of the whole uid. All the methods are thread safe.
+ */
+class DirectorySizeTracker {
+    private static final String TAG = "DirectorySizeTracker";
+
+    /** Limit on the inotify watches used for a single measured directory. */
+    static final int MAX_WATCHED_DIRECTORIES = 512;
+    /** Limit on the inotify watches used by all the trackers together. */
+    static final int MAX_TOTAL_WATCHES = 2048;
+
+    private static final Object sWatchLock = new Object();
+    private static int sWatchCount;
+
+    private static final int WATCH_EVENTS = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.CLOSE_WRITE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO
+            | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private static final long SIZE_UNKNOWN = -1;
+
+    private class Entry {
+        final ArrayList<FileObserver> observers = new ArrayList<FileObserver>();
+        long size = SIZE_UNKNOWN;
+        /** Incremented on every change, to tell whether a measurement is still valid. */
+        int generation;
+
+        void stopWatching() {
+            for (int i = 0; i < observers.size(); i++) {
+                observers.get(i).stopWatching();
+            }
+            releaseWatches(observers.size());
+            observers.clear();
+        }
+    }
+
+    private final HashMap<String, Entry> mEntries = Maps.newHashMap();
+    // Directories found to have too many subdirectories to watch.
+    private final HashSet<String> mTooLarge = new HashSet<String>();
+
+    /**
+     * Returns the size of a directory measured before and unchanged since, or
+     * -1 if it needs to be measured.
+     */
+    synchronized long getSize(File dir) {
+        final Entry entry = mEntries.get(dir.getPath());
+        return entry != null ? entry.size : SIZE_UNKNOWN;
+    }
+
+    /**
+     * Starts watching a directory about to be measured. Changes made while
+     * measuring are caught as well. Returns the token to pass to
+     * {@link #setSize}, or -1 if the directory can't be watched.
+     */
+    int startMeasuring(File dir) {
+        final String path = dir.getPath();
+        synchronized (this) {
+            final Entry entry = mEntries.get(path);
+            if (entry != null && !entry.observers.isEmpty()) {
+                return entry.generation;
+            }
+            if (mTooLarge.contains(path)) {
+                return -1;
+            }
+        }
+        if (getFreeWatches() <= 0) {
+            if (StorageMeasurement.LOGV) {
+                Log.v(TAG, "No watches left for " + dir);
+            }
+            return -1;
+        }
+
+        // Watch the whole subtree before measuring, without holding the lock
+        final ArrayList<String> dirs = new ArrayList<String>();
+        if (!collectDirectories(dir, dirs)) {
+            if (StorageMeasurement.LOGV) {
+                Log.v(TAG, "Too many directories to watch under " + dir);
+            }
+            synchronized (this) {
+                mTooLarge.add(path);
+            }
+            return -1;
+        }
+        synchronized (this) {
+            Entry entry = mEntries.get(path);
+            if (entry == null) {
+                entry = new Entry();
+                mEntries.put(path, entry);
+            }
+            if (entry.observers.isEmpty()) {
+                if (!reserveWatches(dirs.size())) {
+                    if (StorageMeasurement.LOGV) {
+                        Log.v(TAG, "Not enough watches left for " + dir);
+                    }
+                    return -1;
+                }
+                for (int i = 0; i < dirs.size(); i++) {
+                    final FileObserver observer = new Observer(path, dirs.get(i));
+                    observer.startWatching();
+                    entry.observers.add(observer);
+                }
+            }
+            return entry.generation;
+        }
+    }
+
+    /**
+     * Remembers the size of a directory, unless it changed since
+     * {@link #startMeasuring} returned the given token.
+     */
+    synchronized void setSize(File dir, long size, int token) {
+        final Entry entry = mEntries.get(dir.getPath());
+        if (entry != null && token >= 0 && entry.generation == token
+                && !entry.observers.isEmpty()) {
+            entry.size = size;
+        }
+    }
+
+    /**
+     * Forgets every size and stops watching.
+     */
+    synchronized void clear() {
+        for (Entry entry : mEntries.values()) {
+            entry.stopWatching();
+        }
+        mEntries.clear();
+        mTooLarge.clear();
+    }
+
+    private synchronized void onChanged(String root) {
+        final Entry entry = mEntries.get(root);
+        if (entry != null) {
+            entry.generation++;
+            entry.size = SIZE_UNKNOWN;
+            entry.stopWatching();
+        }
+    }
+
+    private static int getFreeWatches() {
+        synchronized (sWatchLock) {
+            return MAX_TOTAL_WATCHES - sWatchCount;
+        }
+    }
+
+    private static boolean reserveWatches(int count) {
+        synchronized (sWatchLock) {
+            if (sWatchCount + count > MAX_TOTAL_WATCHES) {
+                return false;
+            }
+            sWatchCount += count;
+            return true;
+        }
+    }
+
+    private static void releaseWatches(int count) {
+        synchronized (sWatchLock) {
+            sWatchCount -= count;
+        }
+    }
+
+    private static boolean collectDirectories(File dir, ArrayList<String> dirs) {
+        dirs.add(dir.getPath());
+        for (int i = 0; i < dirs.size(); i++) {
+            final File[] files = new File(dirs.get(i)).listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    if (dirs.size() >= MAX_WATCHED_DIRECTORIES) {
+                        return false;
+                    }
+                    dirs.add(file.getPath());
+                }
+            }
+        }
+        return true;
+    }
+
+    private class Observer extends FileObserver {
+        private final String mRoot;
+
+        Observer(String root, String path) {
+            super(path, WATCH_EVENTS);
+            mRoot = root;
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            onChanged(mRoot);
+        }
+    }
+}
@@ -17,9 +17,14 @@
 package com.android.settings.deviceinfo;
 
 import android.app.Activity;
+import android.app.Fragment;
 import android.app.ListActivity;
+import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.DialogInterface;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.os.storage.StorageVolume;
 import android.text.format.Formatter;
 import android.util.Log;
@@ -43,18 +48,43 @@ import com.android.settings.deviceinfo.StorageMeasurement.FileInfo;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.PriorityQueue;
 
 /**
  * This class handles the selection and removal of Misc files.
+ * <p>
+ * The top level misc files measured by {@link StorageMeasurement} are shown
+ * first, while their trees are scanned in the background for the largest
+ * files and directories, which replace them as the scan goes. Selected files
+ * are deleted in the background as well, by a retained {@link DeleteFragment}
+ * so that the deletion goes on across configuration changes.
  */
 public class MiscFilesHandler extends ListActivity {
     private static final String TAG = "MemorySettings";
+
+    /** Number of largest files and directories listed. */
+    private static final int MAX_LARGEST_ENTRIES = 100;
+    /** Minimum time between two updates of the list while scanning. */
+    private static final long PUBLISH_INTERVAL_MS = 500;
+
     private String mNumSelectedFormat;
     private String mNumBytesSelectedFormat;
     private MemoryMearurementAdapter mAdapter;
     private LayoutInflater mInflater;
 
+    /** The top level misc files, where the scan starts. */
+    private ArrayList<FileInfo> mRoots;
+    private ScanTask mScanTask;
+    private DeleteFragment mDeleteFragment;
+    private ProgressDialog mDeleteDialog;
+
+    /** Non null while selecting, when scan results are held in {@link #mPendingData}. */
+    private ActionMode mActionMode;
+    private ArrayList<FileInfo> mPendingData;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -70,20 +100,413 @@ public class MiscFilesHandler extends ListActivity {
         lv.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
         lv.setMultiChoiceModeListener(new ModeCallback(this));
         setListAdapter(mAdapter);
-    } 
+
+        mRoots = new ArrayList<FileInfo>(mAdapter.mData);
+        mDeleteFragment = (DeleteFragment) getFragmentManager().findFragmentByTag(
+                DeleteFragment.TAG);
+        if (mDeleteFragment == null) {
+            startScan();
+        } else if (mDeleteFragment.isFinished()) {
+            onDeleteFinished(mDeleteFragment);
+        } else {
+            // Still deleting what was selected before the configuration changed
+            showDeleteDialog(mDeleteFragment.getProgress());
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // The callbacks of the tasks check these, and bail once they are null.
+        // The deletion itself is stopped by its fragment, unless the activity
+        // is only recreated.
+        if (mScanTask != null) {
+            mScanTask.cancel(false);
+            mScanTask = null;
+        }
+        mDeleteFragment = null;
+        if (mDeleteDialog != null) {
+            mDeleteDialog.dismiss();
+            mDeleteDialog = null;
+        }
+    }
+
+    private void startScan() {
+        if (mScanTask != null) {
+            mScanTask.cancel(false);
+        }
+        mScanTask = new ScanTask(mRoots, mAdapter.mData);
+        mScanTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void setData(ArrayList<FileInfo> data) {
+        if (mActionMode != null) {
+            // Don't move items around while the user is selecting them
+            mPendingData = data;
+        } else {
+            mAdapter.setData(data);
+        }
+    }
+
+    private void delete(ArrayList<FileInfo> toDelete) {
+        if (mScanTask != null) {
+            mScanTask.cancel(false);
+            mScanTask = null;
+        }
+        mDeleteFragment = new DeleteFragment();
+        getFragmentManager().beginTransaction().add(mDeleteFragment, DeleteFragment.TAG)
+                .commit();
+        mDeleteFragment.start(toDelete, mAdapter.mData, mRoots);
+        showDeleteDialog(0);
+    }
+
+    private void showDeleteDialog(int progress) {
+        mDeleteDialog = new ProgressDialog(this);
+        mDeleteDialog.setMessage(getString(R.string.misc_files_deleting));
+        mDeleteDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mDeleteDialog.setMax(100);
+        mDeleteDialog.setCancelable(false);
+        mDeleteDialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+                getString(android.R.string.cancel), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (mDeleteFragment != null) {
+                            mDeleteFragment.cancel();
+                        }
+                    }
+                });
+        mDeleteDialog.setProgress(progress);
+        mDeleteDialog.show();
+    }
+
+    private void onDeleteProgress(DeleteFragment fragment, int progress) {
+        if (mDeleteFragment == fragment && mDeleteDialog != null) {
+            mDeleteDialog.setProgress(progress);
+        }
+    }
+
+    private void onDeleteFinished(DeleteFragment fragment) {
+        if (mDeleteFragment != fragment) {
+            return;
+        }
+        mDeleteFragment = null;
+        getFragmentManager().beginTransaction().remove(fragment).commitAllowingStateLoss();
+        if (mDeleteDialog != null) {
+            mDeleteDialog.dismiss();
+            mDeleteDialog = null;
+        }
+        final DeleteTask task = fragment.mTask;
+        mAdapter.setData(task.mRemainingData);
+        mRoots = task.mRemainingRoots;
+        // Directories partially deleted need to be measured again
+        startScan();
+    }
+
+    /**
+     * Whether {@code path} is in the directory {@code dir}.
+     */
+    private static boolean isUnder(String path, String dir) {
+        return path.length() > dir.length() && path.startsWith(dir)
+                && path.charAt(dir.length()) == File.separatorChar;
+    }
+
+    /**
+     * Sum of the sizes of the given files, not counting the ones under another
+     * directory of the list twice.
+     */
+    private static long totalSize(List<FileInfo> files) {
+        long total = 0;
+        for (int i = 0; i < files.size(); i++) {
+            final FileInfo info = files.get(i);
+            boolean nested = false;
+            for (int j = 0; j < files.size() && !nested; j++) {
+                nested = isUnder(info.mFileName, files.get(j).mFileName);
+            }
+            if (!nested) {
+                total += info.mSize;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Walks the misc files recursively, and keeps the largest files and
+     * directories in a bounded heap, published as the walk goes.
+     */
+    private class ScanTask extends AsyncTask<Void, ArrayList<FileInfo>, ArrayList<FileInfo>> {
+        private final ArrayList<FileInfo> mScanRoots;
+        /** Ids of the entries by path, so they are stable while the list updates. */
+        private final HashMap<String, Long> mIds = new HashMap<String, Long>();
+        private long mNextId;
+        /** The largest entries found so far, smallest first. */
+        private final PriorityQueue<FileInfo> mLargest = new PriorityQueue<FileInfo>(
+                MAX_LARGEST_ENTRIES + 1, Collections.<FileInfo>reverseOrder());
+        private long mLastPublish;
+
+        ScanTask(List<FileInfo> roots, List<FileInfo> shown) {
+            mScanRoots = new ArrayList<FileInfo>(roots);
+            for (FileInfo info : shown) {
+                mIds.put(info.mFileName, info.mId);
+                mNextId = Math.max(mNextId, info.mId + 1);
+            }
+        }
+
+        @Override
+        protected ArrayList<FileInfo> doInBackground(Void... params) {
+            mLastPublish = SystemClock.uptimeMillis();
+            for (FileInfo root : mScanRoots) {
+                scan(new File(root.mFileName));
+            }
+            return getLargest();
+        }
+
+        private long scan(File file) {
+            if (isCancelled()) {
+                return 0;
+            }
+            long size = 0;
+            if (file.isDirectory()) {
+                final File[] children = file.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        size += scan(child);
+                    }
+                }
+            } else if (file.isFile()) {
+                size = file.length();
+            } else {
+                // Non directory, non file: not listed
+                return 0;
+            }
+            offer(file.getAbsolutePath(), size);
+            return size;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void offer(String path, long size) {
+            if (mLargest.size() < MAX_LARGEST_ENTRIES) {
+                mLargest.add(new FileInfo(path, size, getId(path)));
+            } else if (size > mLargest.peek().mSize) {
+                mLargest.poll();
+                mLargest.add(new FileInfo(path, size, getId(path)));
+            } else {
+                return;
+            }
+
+            final long now = SystemClock.uptimeMillis();
+            if (now - mLastPublish >= PUBLISH_INTERVAL_MS) {
+                mLastPublish = now;
+                publishProgress(getLargest());
+            }
+        }
+
+        private long getId(String path) {
+            Long id = mIds.get(path);
+            if (id == null) {
+                id = mNextId++;
+                mIds.put(path, id);
+            }
+            return id;
+        }
+
+        private ArrayList<FileInfo> getLargest() {
+            final ArrayList<FileInfo> largest = new ArrayList<FileInfo>(mLargest);
+            // sort in descending order of their sizes
+            Collections.sort(largest);
+            return largest;
+        }
+
+        @Override
+        protected void onProgressUpdate(ArrayList<FileInfo>... values) {
+            if (mScanTask == this) {
+                setData(values[0]);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(ArrayList<FileInfo> result) {
+            if (mScanTask == this) {
+                mScanTask = null;
+                setData(result);
+            }
+        }
+    }
+
+    /**
+     * Holds the {@link DeleteTask} across configuration changes, and hands its
+     * progress and result to the activity currently showing it, if any.
+     * Stops the deletion once the activity is finished.
+     */
+    public static class DeleteFragment extends Fragment {
+        static final String TAG = "MiscFilesDelete";
+
+        DeleteTask mTask;
+        private int mProgress;
+        private boolean mFinished;
+
+        @Override
+        public void onCreate(Bundle savedInstanceState) {
+            super.onCreate(savedInstanceState);
+            setRetainInstance(true);
+        }
+
+        @Override
+        public void onDestroy() {
+            super.onDestroy();
+            cancel();
+        }
+
+        void start(ArrayList<FileInfo> toDelete, List<FileInfo> data, List<FileInfo> roots) {
+            mTask = new DeleteTask(this, toDelete, data, roots);
+            mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+
+        void cancel() {
+            if (mTask != null) {
+                mTask.cancel(false);
+            }
+        }
+
+        int getProgress() {
+            return mProgress;
+        }
+
+        boolean isFinished() {
+            return mFinished;
+        }
+
+        void onProgress(int progress) {
+            mProgress = progress;
+            final MiscFilesHandler activity = (MiscFilesHandler) getActivity();
+            if (activity != null) {
+                activity.onDeleteProgress(this, progress);
+            }
+        }
+
+        void onFinished() {
+            // Picked up by the next activity if none is showing it
+            mFinished = true;
+            final MiscFilesHandler activity = (MiscFilesHandler) getActivity();
+            if (activity != null) {
+                activity.onDeleteFinished(this);
+            }
+        }
+    }
+
+    /**
+     * Deletes files and directories, reporting progress in bytes deleted.
+     */
+    private static class DeleteTask extends AsyncTask<Void, Integer, Void> {
+        private final DeleteFragment mFragment;
+        private final ArrayList<FileInfo> mToDelete;
+        private final ArrayList<FileInfo> mData;
+        private final ArrayList<FileInfo> mRoots;
+        private final long mTotalSize;
+        private long mDeletedSize;
+        private int mLastProgress;
+
+        ArrayList<FileInfo> mRemainingData;
+        ArrayList<FileInfo> mRemainingRoots;
+
+        DeleteTask(DeleteFragment fragment, ArrayList<FileInfo> toDelete, List<FileInfo> data,
+                List<FileInfo> roots) {
+            mFragment = fragment;
+            mToDelete = toDelete;
+            mData = new ArrayList<FileInfo>(data);
+            mRoots = new ArrayList<FileInfo>(roots);
+            mTotalSize = totalSize(toDelete);
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            for (FileInfo info : mToDelete) {
+                if (isCancelled()) {
+                    break;
+                }
+                if (StorageMeasurement.LOGV) {
+                    Log.i(TAG, "deleting: " + info);
+                }
+                deleteRecursive(new File(info.mFileName));
+            }
+
+            // Whatever was selected may be partially deleted if cancelled, and
+            // deleting a directory also deletes the entries listed under it
+            mRemainingData = keepExisting(mData);
+            mRemainingRoots = keepExisting(mRoots);
+            return null;
+        }
+
+        private ArrayList<FileInfo> keepExisting(ArrayList<FileInfo> files) {
+            final ArrayList<FileInfo> existing = new ArrayList<FileInfo>(files.size());
+            for (FileInfo info : files) {
+                if (new File(info.mFileName).exists()) {
+                    existing.add(info);
+                }
+            }
+            return existing;
+        }
+
+        // Deletes all files and subdirectories under given dir.
+        // Returns true if all deletions were successful.
+        // If a deletion fails or the task is cancelled, the method stops
+        // attempting to delete and returns false.
+        private boolean deleteRecursive(File file) {
+            if (isCancelled()) {
+                return false;
+            }
+            if (file.isDirectory()) {
+                String[] children = file.list();
+                if (children != null) {
+                    for (int i=0; i < children.length; i++) {
+                        boolean success = deleteRecursive(new File(file, children[i]));
+                        if (!success) {
+                            return false;
+                        }
+                    }
+                }
+                // The directory is now empty so delete it
+                return file.delete();
+            }
+            final long size = file.length();
+            if (!file.delete()) {
+                return false;
+            }
+            mDeletedSize += size;
+            final int progress = mTotalSize > 0 ? (int) (mDeletedSize * 100 / mTotalSize) : 0;
+            if (progress != mLastProgress) {
+                mLastProgress = progress;
+                publishProgress(progress);
+            }
+            return true;
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            mFragment.onProgress(values[0]);
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            mFragment.onFinished();
+        }
+
+        @Override
+        protected void onCancelled(Void result) {
+            mFragment.onFinished();
+        }
+    }
 
     private class ModeCallback implements ListView.MultiChoiceModeListener {
-        private int mDataCount;
         private final Context mContext;
 
         public ModeCallback(Context context) {
             mContext = context;
-            mDataCount = mAdapter.getCount();
         }
 
         public boolean onCreateActionMode(ActionMode mode, Menu menu) {
             final MenuInflater inflater = getMenuInflater();
             inflater.inflate(R.menu.misc_files_menu, menu);
+            mActionMode = mode;
             return true;
         }
 
@@ -93,44 +516,31 @@ public class MiscFilesHandler extends ListActivity {
 
         public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
             ListView lv = getListView();
+            final int dataCount = mAdapter.getCount();
             switch (item.getItemId()) {
             case R.id.action_delete:
                 // delete the files selected
                 SparseBooleanArray checkedItems = lv.getCheckedItemPositions();
                 int checkedCount = getListView().getCheckedItemCount();
-                if (checkedCount > mDataCount) {
+                if (checkedCount > dataCount) {
                     throw new IllegalStateException("checked item counts do not match. " +
-                            "checkedCount: " + checkedCount + ", dataSize: " + mDataCount);
+                            "checkedCount: " + checkedCount + ", dataSize: " + dataCount);
                 }
-                if (mDataCount > 0) {
-                    ArrayList<Object> toRemove = new ArrayList<Object>();
-                    for (int i = 0; i < mDataCount; i++) {
-                        if (!checkedItems.get(i)) {
-                            //item not selected
-                            continue;
-                        }
-                        if (StorageMeasurement.LOGV) {
-                            Log.i(TAG, "deleting: " + mAdapter.getItem(i));
-                        }
-                        // delete the file
-                        File file = new File(mAdapter.getItem(i).mFileName);
-                        if (file.isDirectory()) {
-                            deleteDir(file);
-                        } else {
-                            file.delete();                            
-                        }
-                        toRemove.add(mAdapter.getItem(i));
+                final ArrayList<FileInfo> toDelete = new ArrayList<FileInfo>();
+                for (int i = 0; i < dataCount; i++) {
+                    if (checkedItems.get(i)) {
+                        toDelete.add(mAdapter.getItem(i));
                     }
-                    mAdapter.removeAll(toRemove);
-                    mAdapter.notifyDataSetChanged();
-                    mDataCount = mAdapter.getCount();
                 }
                 mode.finish();
+                if (!toDelete.isEmpty()) {
+                    delete(toDelete);
+                }
                 break;
 
             case R.id.action_select_all:
                 // check ALL items
-                for (int i = 0; i < mDataCount; i++) {
+                for (int i = 0; i < dataCount; i++) {
                     lv.setItemChecked(i, true);
                 }
                 // update the title and subtitle with number selected and numberBytes selected
@@ -140,25 +550,12 @@ public class MiscFilesHandler extends ListActivity {
             return true;
         }
 
-        // Deletes all files and subdirectories under given dir.
-        // Returns true if all deletions were successful.
-        // If a deletion fails, the method stops attempting to delete and returns false.
-        private boolean deleteDir(File dir) {
-            String[] children = dir.list();
-            if (children != null) {
-                for (int i=0; i < children.length; i++) {
-                    boolean success = deleteDir(new File(dir, children[i]));
-                    if (!success) {
-                        return false;
-                    }
-                }
-            }
-            // The directory is now empty so delete it
-            return dir.delete();
-        }
-
         public void onDestroyActionMode(ActionMode mode) {
-            // This block intentionally left blank
+            mActionMode = null;
+            if (mPendingData != null) {
+                mAdapter.setData(mPendingData);
+                mPendingData = null;
+            }
         }
 
         public void onItemCheckedStateChanged(ActionMode mode, int position, long id,
@@ -169,23 +566,22 @@ public class MiscFilesHandler extends ListActivity {
 
             // total the sizes of all items selected so far
             SparseBooleanArray checkedItems = lv.getCheckedItemPositions();
-            long selectedDataSize = 0;
-            if (numChecked > 0) {
-                for (int i = 0; i < mDataCount; i++) {
-                    if (checkedItems.get(i)) {
-                        // item is checked
-                        selectedDataSize += mAdapter.getItem(i).mSize;
-                    }
+            final ArrayList<FileInfo> selected = new ArrayList<FileInfo>(numChecked);
+            for (int i = 0; i < mAdapter.getCount(); i++) {
+                if (checkedItems.get(i)) {
+                    // item is checked
+                    selected.add(mAdapter.getItem(i));
                 }
             }
             mode.setSubtitle(String.format(mNumBytesSelectedFormat,
-                    Formatter.formatFileSize(mContext, selectedDataSize),
+                    Formatter.formatFileSize(mContext, totalSize(selected)),
                     Formatter.formatFileSize(mContext, mAdapter.getDataSize())));
         }
     }
 
     class MemoryMearurementAdapter extends BaseAdapter {
-        private ArrayList<StorageMeasurement.FileInfo> mData = null;
+        private ArrayList<StorageMeasurement.FileInfo> mData =
+                new ArrayList<StorageMeasurement.FileInfo>();
         private long mDataSize = 0;
         private Context mContext;
 
@@ -196,22 +592,28 @@ public class MiscFilesHandler extends ListActivity {
             StorageMeasurement mMeasurement = StorageMeasurement.getInstance(
                     activity, storageVolume);
             if (mMeasurement == null) return;
-            mData = (ArrayList<StorageMeasurement.FileInfo>) mMeasurement.mFileInfoForMisc;
-            if (mData != null) {
-                for (StorageMeasurement.FileInfo info : mData) {
-                    mDataSize += info.mSize;
-                }
+            final List<StorageMeasurement.FileInfo> data = mMeasurement.mFileInfoForMisc;
+            if (data != null) {
+                // copy, since the list changes as files are found and deleted
+                mData.addAll(data);
+                mDataSize = totalSize(mData);
             }
         }
 
+        public void setData(ArrayList<StorageMeasurement.FileInfo> data) {
+            mData = data;
+            mDataSize = totalSize(data);
+            notifyDataSetChanged();
+        }
+
         @Override
         public int getCount() {
-            return (mData == null) ? 0 : mData.size();
+            return mData.size();
         }
 
         @Override
         public StorageMeasurement.FileInfo getItem(int position) {
-            if (mData == null || mData.size() <= position) {
+            if (mData.size() <= position) {
                 return null;
             }
             return mData.get(position);
@@ -219,31 +621,22 @@ public class MiscFilesHandler extends ListActivity {
 
         @Override
         public long getItemId(int position) {
-            if (mData == null || mData.size() <= position) {
+            if (mData.size() <= position) {
                 return 0;
             }
             return mData.get(position).mId;
         }
 
-        public void removeAll(List<Object> objs) {
-            if (mData == null) {
-                return;
-            }
-            for (Object o : objs) {
-                mData.remove(o);
-                mDataSize -= ((StorageMeasurement.FileInfo) o).mSize;
-            }
+        @Override
+        public boolean hasStableIds() {
+            // Keeps the selection on the same files when the list is updated
+            return true;
         }
 
         public long getDataSize() {
             return mDataSize;
         }
 
-        @Override
-        public void notifyDataSetChanged() {
-            super.notifyDataSetChanged();
-        }
-
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
             final FileItemInfoLayout view = (convertView == null) ?
@@ -33,23 +33,43 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageVolume;
+import android.util.AtomicFile;
 import android.util.Log;
+import android.util.SparseArray;
 import android.util.SparseLongArray;
 
 import com.android.internal.app.IMediaContainerService;
 import com.google.android.collect.Maps;
 import com.google.android.collect.Sets;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.concurrent.GuardedBy;
 
@@ -57,6 +77,13 @@ import javax.annotation.concurrent.GuardedBy;
  * Utility for measuring the disk usage of internal storage or a physical
  * {@link StorageVolume}. Connects with a remote {@link IMediaContainerService}
  * and delivers results to {@link MeasurementReceiver}.
+ * <p>
+ * Directories are measured in parallel. The last measurement is persisted, and
+ * delivered as soon as a new measurement starts, as long as the directories it
+ * measured weren't modified since; the receiver then gets refined results as
+ * they come in. Directories are watched once measured, see
+ * {@link DirectorySizeTracker}, so that measuring again only walks the ones
+ * that changed.
  */
 public class StorageMeasurement {
     private static final String TAG = "StorageMeasurement";
@@ -77,9 +104,18 @@ public class StorageMeasurement {
             Environment.DIRECTORY_RINGTONES, Environment.DIRECTORY_PODCASTS,
             Environment.DIRECTORY_DOWNLOADS, Environment.DIRECTORY_ANDROID);
 
+    private static final int MEASURE_THREADS = 4;
+    private static final int MEASURE_THREAD_KEEP_ALIVE_SECONDS = 5;
+
+    private static final String SNAPSHOT_PREFIX = "storage_measurement_";
+    private static final int SNAPSHOT_VERSION = 1;
+
     @GuardedBy("sInstances")
     private static HashMap<StorageVolume, StorageMeasurement> sInstances = Maps.newHashMap();
 
+    @GuardedBy("StorageMeasurement.class")
+    private static ThreadPoolExecutor sMeasureExecutor;
+
     /**
      * Obtain shared instance of {@link StorageMeasurement} for given physical
      * {@link StorageVolume}, or internal storage if {@code null}.
@@ -158,6 +194,8 @@ public class StorageMeasurement {
 
     private final MeasurementHandler mHandler;
 
+    private final DirectorySizeTracker mDirectorySizes = new DirectorySizeTracker();
+
     private long mTotalSize;
     private long mAvailSize;
 
@@ -196,6 +234,16 @@ public class StorageMeasurement {
         mHandler.sendEmptyMessage(MeasurementHandler.MSG_INVALIDATE);
     }
 
+    /**
+     * Like {@link #invalidate()}, but also forgets the size of every directory,
+     * for changes the directory watches may have missed, e.g. made through
+     * another view of the storage.
+     */
+    public void invalidateAll() {
+        mDirectorySizes.clear();
+        invalidate();
+    }
+
     private void sendInternalApproximateUpdate() {
         MeasurementReceiver receiver = (mReceiver != null) ? mReceiver.get() : null;
         if (receiver == null) {
@@ -215,36 +263,52 @@ public class StorageMeasurement {
         receiver.updateDetails(this, details);
     }
 
+    /**
+     * Accumulates package stats without locking: the callbacks of all the
+     * packages come in concurrently on binder threads.
+     */
     private static class StatsObserver extends IPackageStatsObserver.Stub {
         private final boolean mIsInternal;
         private final MeasurementDetails mDetails;
         private final int mCurrentUser;
         private final Message mFinished;
 
-        private int mRemaining;
+        private final AtomicInteger mRemaining;
+        private final AtomicLong mAppsSize = new AtomicLong();
+        private final AtomicLong mCacheSize = new AtomicLong();
+        /** Data size per user. Only read once built, so safe to share. */
+        private final SparseArray<AtomicLong> mUsersSize = new SparseArray<AtomicLong>();
 
         public StatsObserver(boolean isInternal, MeasurementDetails details, int currentUser,
-                Message finished, int remaining) {
+                List<UserInfo> users, Message finished, int remaining) {
             mIsInternal = isInternal;
             mDetails = details;
             mCurrentUser = currentUser;
             mFinished = finished;
-            mRemaining = remaining;
+            mRemaining = new AtomicInteger(remaining);
+            for (UserInfo user : users) {
+                mUsersSize.put(user.id, new AtomicLong());
+            }
         }
 
         @Override
         public void onGetStatsCompleted(PackageStats stats, boolean succeeded) {
-            synchronized (mDetails) {
-                if (succeeded) {
-                    addStatsLocked(stats);
-                }
-                if (--mRemaining == 0) {
-                    mFinished.sendToTarget();
+            if (succeeded) {
+                addStats(stats);
+            }
+            if (mRemaining.decrementAndGet() == 0) {
+                // Every other callback is done with the accumulators by now
+                mDetails.appsSize += mAppsSize.get();
+                mDetails.cacheSize += mCacheSize.get();
+                for (int i = 0; i < mUsersSize.size(); i++) {
+                    addValue(mDetails.usersSize, mUsersSize.keyAt(i),
+                            mUsersSize.valueAt(i).get());
                 }
+                mFinished.sendToTarget();
             }
         }
 
-        private void addStatsLocked(PackageStats stats) {
+        private void addStats(PackageStats stats) {
             if (mIsInternal) {
                 long codeSize = stats.codeSize;
                 long dataSize = stats.dataSize;
@@ -259,26 +323,61 @@ public class StorageMeasurement {
 
                 // Count code and data for current user
                 if (stats.userHandle == mCurrentUser) {
-                    mDetails.appsSize += codeSize;
-                    mDetails.appsSize += dataSize;
+                    mAppsSize.addAndGet(codeSize + dataSize);
                 }
 
                 // User summary only includes data (code is only counted once
                 // for the current user)
-                addValue(mDetails.usersSize, stats.userHandle, dataSize);
+                final AtomicLong userSize = mUsersSize.get(stats.userHandle);
+                if (userSize != null) {
+                    userSize.addAndGet(dataSize);
+                }
 
                 // Include cache for all users
-                mDetails.cacheSize += cacheSize;
+                mCacheSize.addAndGet(cacheSize);
 
             } else {
                 // Physical storage; only count external sizes
-                mDetails.appsSize += stats.externalCodeSize + stats.externalDataSize
-                        + stats.externalMediaSize + stats.externalObbSize;
-                mDetails.cacheSize += stats.externalCacheSize;
+                mAppsSize.addAndGet(stats.externalCodeSize + stats.externalDataSize
+                        + stats.externalMediaSize + stats.externalObbSize);
+                mCacheSize.addAndGet(stats.externalCacheSize);
             }
         }
     }
 
+    /**
+     * A measurement persisted with the modification times of the directories
+     * it measured.
+     */
+    private static class Snapshot {
+        final int userId;
+        final MeasurementDetails details;
+        final HashMap<String, Long> dirModified;
+
+        Snapshot(int userId, MeasurementDetails details, HashMap<String, Long> dirModified) {
+            this.userId = userId;
+            this.details = details;
+            this.dirModified = dirModified;
+        }
+
+        /**
+         * Whether none of the measured directories was modified since. This
+         * only catches entries added or removed at their top level, which is
+         * enough to tell whether the snapshot is worth showing while measuring.
+         */
+        boolean isUpToDate(int currentUser) {
+            if (userId != currentUser) {
+                return false;
+            }
+            for (Map.Entry<String, Long> e : dirModified.entrySet()) {
+                if (new File(e.getKey()).lastModified() != e.getValue()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
     private class MeasurementHandler extends Handler {
         public static final int MSG_MEASURE = 1;
         public static final int MSG_CONNECTED = 2;
@@ -293,6 +392,11 @@ public class StorageMeasurement {
         private volatile boolean mBound = false;
 
         private MeasurementDetails mCached;
+        /** Modification times of the directories measured for mCached. */
+        private HashMap<String, Long> mCachedDirModified;
+
+        /** The persisted measurement shown while measuring again, if any. */
+        private MeasurementDetails mPreview;
 
         private final WeakReference<Context> mContext;
 
@@ -332,6 +436,19 @@ public class StorageMeasurement {
                         return;
                     }
 
+                    // Show the last measurement until the new one completes
+                    if (mPreview == null) {
+                        final Snapshot snapshot = readSnapshot(context);
+                        if (snapshot != null
+                                && snapshot.isUpToDate(ActivityManager.getCurrentUser())) {
+                            mPreview = snapshot.details;
+                            mTotalSize = mPreview.totalSize;
+                            mAvailSize = mPreview.availSize;
+                            sendInternalApproximateUpdate();
+                            sendExactUpdate(mPreview);
+                        }
+                    }
+
                     synchronized (mLock) {
                         if (mBound) {
                             removeMessages(MSG_DISCONNECT);
@@ -366,7 +483,13 @@ public class StorageMeasurement {
                 }
                 case MSG_COMPLETED: {
                     mCached = (MeasurementDetails) msg.obj;
+                    mPreview = null;
                     sendExactUpdate(mCached);
+                    final Context context = (mContext != null) ? mContext.get() : null;
+                    if (context != null && mCachedDirModified != null) {
+                        writeSnapshot(context, new Snapshot(ActivityManager.getCurrentUser(),
+                                mCached, mCachedDirModified));
+                    }
                     break;
                 }
                 case MSG_INVALIDATE: {
@@ -410,30 +533,71 @@ public class StorageMeasurement {
             final UserEnvironment currentEnv = new UserEnvironment(currentUser);
 
             // Measure media types for emulated storage, or for primary physical
-            // external volume
+            // external volume, along with misc files not counted under media
+            // and the emulated storage of all users, all in parallel. Internal
+            // apps data will be spliced in later.
             final boolean measureMedia = (mIsInternal && Environment.isExternalStorageEmulated())
                     || mIsPrimary;
+            final HashMap<String, Long> dirModified = Maps.newHashMap();
+            final HashMap<String, Future<Long>> mediaSizes = Maps.newHashMap();
+            List<Future<FileInfo>> miscSizes = null;
             if (measureMedia) {
                 for (String type : sMeasureMediaTypes) {
                     final File path = currentEnv.getExternalStoragePublicDirectory(type);
-                    final long size = getDirectorySize(imcs, path);
-                    details.mediaSize.put(type, size);
+                    dirModified.put(path.getPath(), path.lastModified());
+                    mediaSizes.put(type, measureDirectoryAsync(imcs, path));
                 }
-            }
-
-            // Measure misc files not counted under media
-            if (measureMedia) {
                 final File path = mIsInternal ? currentEnv.getExternalStorageDirectory()
                         : mVolume.getPathFile();
-                details.miscSize = measureMisc(imcs, path);
+                dirModified.put(path.getPath(), path.lastModified());
+                miscSizes = measureChildrenAsync(imcs, path, sMeasureMediaTypes);
             }
-
-            // Measure total emulated storage of all users; internal apps data
-            // will be spliced in later
+            // The emulated storage of the current user is made of the media and
+            // misc nodes measured above. The one of other users is measured by
+            // its top level nodes as well: a whole user has too many directories
+            // to be tracked, and would be walked again on every measurement.
+            final boolean userFromMedia = measureMedia && mIsInternal;
+            final SparseArray<List<Future<FileInfo>>> usersSizes =
+                    new SparseArray<List<Future<FileInfo>>>();
             for (UserInfo user : users) {
+                if (userFromMedia && user.id == currentUser) {
+                    continue;
+                }
                 final UserEnvironment userEnv = new UserEnvironment(user.id);
-                final long size = getDirectorySize(imcs, userEnv.getExternalStorageDirectory());
-                addValue(details.usersSize, user.id, size);
+                usersSizes.put(user.id, measureChildrenAsync(imcs,
+                        userEnv.getExternalStorageDirectory(), Collections.<String>emptySet()));
+            }
+
+            long mediaTotal = 0;
+            for (Map.Entry<String, Future<Long>> e : mediaSizes.entrySet()) {
+                final long size = getResult(e.getValue(), 0L);
+                details.mediaSize.put(e.getKey(), size);
+                mediaTotal += size;
+            }
+            if (miscSizes != null) {
+                details.miscSize = collectMisc(miscSizes);
+            }
+            if (userFromMedia) {
+                addValue(details.usersSize, currentUser, mediaTotal + details.miscSize);
+            }
+            for (int i = 0; i < usersSizes.size(); i++) {
+                addValue(details.usersSize, usersSizes.keyAt(i),
+                        sumSizes(usersSizes.valueAt(i)));
+            }
+            mCachedDirModified = dirModified;
+
+            if (mPreview != null) {
+                // Refine what is shown with the directories, while apps are
+                // still being measured
+                final MeasurementDetails refined = new MeasurementDetails();
+                refined.totalSize = details.totalSize;
+                refined.availSize = details.availSize;
+                refined.appsSize = mPreview.appsSize;
+                refined.cacheSize = mPreview.cacheSize;
+                refined.mediaSize.putAll(details.mediaSize);
+                refined.miscSize = details.miscSize;
+                refined.usersSize = mPreview.usersSize;
+                sendExactUpdate(refined);
             }
 
             // Measure all apps for all users
@@ -444,8 +608,12 @@ public class StorageMeasurement {
                         | PackageManager.GET_DISABLED_COMPONENTS);
 
                 final int count = users.size() * apps.size();
+                if (count == 0) {
+                    finished.sendToTarget();
+                    return;
+                }
                 final StatsObserver observer = new StatsObserver(
-                        mIsInternal, details, currentUser, finished, count);
+                        mIsInternal, details, currentUser, users, finished, count);
 
                 for (UserInfo user : users) {
                     for (ApplicationInfo app : apps) {
@@ -470,42 +638,225 @@ public class StorageMeasurement {
         }
     }
 
-    private long measureMisc(IMediaContainerService imcs, File dir) {
-        mFileInfoForMisc = new ArrayList<FileInfo>();
+    private static synchronized ThreadPoolExecutor getMeasureExecutor() {
+        if (sMeasureExecutor == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    MEASURE_THREADS, MEASURE_THREADS,
+                    MEASURE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "StorageMeasurement #" + mCount.getAndIncrement());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sMeasureExecutor = executor;
+        }
+        return sMeasureExecutor;
+    }
 
+    private Future<Long> measureDirectoryAsync(final IMediaContainerService imcs,
+            final File path) {
+        return getMeasureExecutor().submit(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return getTrackedDirectorySize(imcs, path);
+            }
+        });
+    }
+
+    /**
+     * Returns the size of a directory, only walking it if it changed since it
+     * was last measured.
+     */
+    private long getTrackedDirectorySize(IMediaContainerService imcs, File path) {
+        long size = mDirectorySizes.getSize(path);
+        if (size < 0) {
+            final int token = mDirectorySizes.startMeasuring(path);
+            size = getDirectorySize(imcs, path);
+            mDirectorySizes.setSize(path, size, token);
+        } else if (LOGV) {
+            Log.v(TAG, "Unchanged since measured: " + path);
+        }
+        return size;
+    }
+
+    private static <T> T getResult(Future<T> future, T defaultValue) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return defaultValue;
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Problem measuring storage", e.getCause());
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Start measuring the top level nodes of a directory except the skipped
+     * ones, each directory being tracked on its own.
+     */
+    private List<Future<FileInfo>> measureChildrenAsync(final IMediaContainerService imcs,
+            File dir, Set<String> skipped) {
+        final List<Future<FileInfo>> results = new ArrayList<Future<FileInfo>>();
         final File[] files = dir.listFiles();
-        if (files == null) return 0;
+        if (files == null) return results;
 
-        // Get sizes of all top level nodes except the ones already computed
         long counter = 0;
-        long miscSize = 0;
-
-        for (File file : files) {
-            final String path = file.getAbsolutePath();
+        for (final File file : files) {
             final String name = file.getName();
-            if (sMeasureMediaTypes.contains(name)) {
+            if (skipped.contains(name)) {
                 continue;
             }
 
-            if (file.isFile()) {
-                final long fileSize = file.length();
-                mFileInfoForMisc.add(new FileInfo(path, fileSize, counter++));
-                miscSize += fileSize;
-            } else if (file.isDirectory()) {
-                final long dirSize = getDirectorySize(imcs, file);
-                mFileInfoForMisc.add(new FileInfo(path, dirSize, counter++));
-                miscSize += dirSize;
-            } else {
-                // Non directory, non file: not listed
+            final long id = counter++;
+            results.add(getMeasureExecutor().submit(new Callable<FileInfo>() {
+                @Override
+                public FileInfo call() {
+                    final String path = file.getAbsolutePath();
+                    if (file.isFile()) {
+                        return new FileInfo(path, file.length(), id);
+                    } else if (file.isDirectory()) {
+                        return new FileInfo(path, getTrackedDirectorySize(imcs, file), id);
+                    } else {
+                        // Non directory, non file: not listed
+                        return null;
+                    }
+                }
+            }));
+        }
+        return results;
+    }
+
+    private static long sumSizes(List<Future<FileInfo>> results) {
+        long size = 0;
+        for (Future<FileInfo> result : results) {
+            final FileInfo info = getResult(result, null);
+            if (info != null) {
+                size += info.mSize;
+            }
+        }
+        return size;
+    }
+
+    private long collectMisc(List<Future<FileInfo>> results) {
+        final ArrayList<FileInfo> fileInfos = new ArrayList<FileInfo>(results.size());
+        long miscSize = 0;
+        for (Future<FileInfo> result : results) {
+            final FileInfo info = getResult(result, null);
+            if (info != null) {
+                fileInfos.add(info);
+                miscSize += info.mSize;
             }
         }
 
         // sort the list of FileInfo objects collected above in descending order of their sizes
-        Collections.sort(mFileInfoForMisc);
+        Collections.sort(fileInfos);
+        mFileInfoForMisc = fileInfos;
 
         return miscSize;
     }
 
+    private File getSnapshotFile(Context context) {
+        final String name = mIsInternal ? "internal" : mVolume.getPath().replace('/', '_');
+        return new File(context.getCacheDir(), SNAPSHOT_PREFIX + name);
+    }
+
+    private Snapshot readSnapshot(Context context) {
+        final AtomicFile file = new AtomicFile(getSnapshotFile(context));
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(file.openRead()));
+            if (in.readInt() != SNAPSHOT_VERSION) {
+                return null;
+            }
+            final int userId = in.readInt();
+            final MeasurementDetails details = new MeasurementDetails();
+            details.totalSize = in.readLong();
+            details.availSize = in.readLong();
+            details.appsSize = in.readLong();
+            details.cacheSize = in.readLong();
+            details.miscSize = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                details.mediaSize.put(in.readUTF(), in.readLong());
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                details.usersSize.put(in.readInt(), in.readLong());
+            }
+            final HashMap<String, Long> dirModified = Maps.newHashMap();
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                dirModified.put(in.readUTF(), in.readLong());
+            }
+            return new Snapshot(userId, details, dirModified);
+        } catch (FileNotFoundException e) {
+            // Nothing measured yet
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read storage snapshot", e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void writeSnapshot(Context context, Snapshot snapshot) {
+        final AtomicFile file = new AtomicFile(getSnapshotFile(context));
+        final MeasurementDetails details = snapshot.details;
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(snapshot.userId);
+            out.writeLong(details.totalSize);
+            out.writeLong(details.availSize);
+            out.writeLong(details.appsSize);
+            out.writeLong(details.cacheSize);
+            out.writeLong(details.miscSize);
+            out.writeInt(details.mediaSize.size());
+            for (Map.Entry<String, Long> e : details.mediaSize.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.writeInt(details.usersSize.size());
+            for (int i = 0; i < details.usersSize.size(); i++) {
+                out.writeInt(details.usersSize.keyAt(i));
+                out.writeLong(details.usersSize.valueAt(i));
+            }
+            out.writeInt(snapshot.dirModified.size());
+            for (Map.Entry<String, Long> e : snapshot.dirModified.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.flush();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write storage snapshot", e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+        }
+    }
+
     static class FileInfo implements Comparable<FileInfo> {
         final String mFileName;
         final long mSize;
@@ -362,33 +362,43 @@ public class StorageVolumePreferenceCategory extends PreferenceCategory {
         }
     }
 
-    private void measure() {
-        mMeasure.invalidate();
+    /**
+     * Measure again, only walking the directories changed since the last
+     * measurement unless {@code all}.
+     */
+    private void measure(boolean all) {
+        if (all) {
+            mMeasure.invalidateAll();
+        } else {
+            mMeasure.invalidate();
+        }
         mMeasure.measure();
     }
 
     public void onResume() {
         mMeasure.setReceiver(mReceiver);
-        measure();
+        measure(false);
     }
 
     public void onStorageStateChanged() {
         init();
-        measure();
+        measure(true);
     }
 
     public void onUsbStateChanged(boolean isUsbConnected, String usbFunction) {
         mUsbConnected = isUsbConnected;
         mUsbFunction = usbFunction;
-        measure();
+        measure(true);
     }
 
     public void onMediaScannerFinished() {
-        measure();
+        // Files transferred over MTP aren't written through the path we watch
+        measure(true);
     }
 
     public void onCacheCleared() {
-        measure();
+        // Caches are cleared without going through the path we watch
+        measure(true);
     }
 
     public void onPause() {
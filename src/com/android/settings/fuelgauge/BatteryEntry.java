@@ -16,27 +16,20 @@
 
 package com.android.settings.fuelgauge;
 
-import android.app.AppGlobals;
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.IPackageManager;
-import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
 import android.graphics.drawable.Drawable;
 import android.os.BatteryStats;
 import android.os.Handler;
-import android.os.RemoteException;
-import android.os.UserHandle;
 import android.os.UserManager;
-import android.util.Log;
 
 import com.android.internal.os.BatterySipper;
 import com.android.settings.R;
 import com.android.settings.Utils;
+import com.android.settings.applications.UidInfoResolver;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 /**
  * Wraps the power usage data of a BatterySipper with information about package name
@@ -46,54 +39,59 @@ public class BatteryEntry {
     public static final int MSG_UPDATE_NAME_ICON = 1;
     public static final int MSG_REPORT_FULLY_DRAWN = 2;
 
-    static final HashMap<String,UidToDetail> sUidCache = new HashMap<String,UidToDetail>();
-
+    // Entries waiting for the name and icon of their uid.
     static final ArrayList<BatteryEntry> mRequestQueue = new ArrayList<BatteryEntry>();
     static Handler sHandler;
 
-    static private class NameAndIconLoader extends Thread {
-        private boolean mAbort = false;
-
-        public NameAndIconLoader() {
-            super("BatteryUsage Icon Loader");
-        }
-
-        public void abort() {
-            mAbort = true;
-        }
-
+    private static final UidInfoResolver.Callback sResolverCallback
+            = new UidInfoResolver.Callback() {
         @Override
-        public void run() {
-            while (true) {
-                BatteryEntry be;
-                synchronized (mRequestQueue) {
-                    if (mRequestQueue.isEmpty() || mAbort) {
-                        if (sHandler != null) {
-                            sHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
-                        }
-                        mRequestQueue.clear();
-                        return;
+        public void onUidInfoResolved(UidInfoResolver.UidInfo info) {
+            final ArrayList<BatteryEntry> resolved = new ArrayList<BatteryEntry>();
+            final Handler handler;
+            final boolean done;
+            synchronized (mRequestQueue) {
+                for (int i=mRequestQueue.size()-1; i>=0; i--) {
+                    final BatteryEntry be = mRequestQueue.get(i);
+                    if (be.sipper.getUid() == info.uid) {
+                        resolved.add(be);
+                        mRequestQueue.remove(i);
                     }
-                    be = mRequestQueue.remove(0);
                 }
-                be.loadNameAndIcon();
+                handler = sHandler;
+                done = mRequestQueue.isEmpty();
+            }
+            for (int i=0; i<resolved.size(); i++) {
+                resolved.get(i).setNameAndIcon(info);
+                if (handler != null) {
+                    handler.sendMessage(handler.obtainMessage(MSG_UPDATE_NAME_ICON,
+                            resolved.get(i)));
+                }
+            }
+            if (done && handler != null && !resolved.isEmpty()) {
+                handler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
             }
         }
-    }
-
-    private static NameAndIconLoader mRequestThread;
+    };
 
     public static void startRequestQueue() {
         if (sHandler != null) {
             synchronized (mRequestQueue) {
-                if (!mRequestQueue.isEmpty()) {
-                    if (mRequestThread != null) {
-                        mRequestThread.abort();
+                for (int i=0; i<mRequestQueue.size(); i++) {
+                    final BatteryEntry be = mRequestQueue.get(i);
+                    // All the rows are shown at once.
+                    UidInfoResolver.UidInfo info = UidInfoResolver.getInstance(be.context)
+                            .getUidInfo(be.sipper.getUid(), UidInfoResolver.PRIORITY_VISIBLE,
+                                    sResolverCallback);
+                    if (info != null) {
+                        // Resolved for another screen since it was queued.
+                        be.setNameAndIcon(info);
+                        sHandler.sendMessage(sHandler.obtainMessage(MSG_UPDATE_NAME_ICON, be));
+                        mRequestQueue.remove(i--);
                     }
-                    mRequestThread = new NameAndIconLoader();
-                    mRequestThread.setPriority(Thread.MIN_PRIORITY);
-                    mRequestThread.start();
-                    mRequestQueue.notify();
+                }
+                if (mRequestQueue.isEmpty()) {
+                    sHandler.sendEmptyMessage(MSG_REPORT_FULLY_DRAWN);
                 }
             }
         }
@@ -101,31 +99,25 @@ public class BatteryEntry {
 
     public static void stopRequestQueue() {
         synchronized (mRequestQueue) {
-            if (mRequestThread != null) {
-                mRequestThread.abort();
-                mRequestThread = null;
-                sHandler = null;
+            if (!mRequestQueue.isEmpty()) {
+                UidInfoResolver.getInstance(mRequestQueue.get(0).context)
+                        .removeCallback(sResolverCallback);
+                mRequestQueue.clear();
             }
+            sHandler = null;
         }
     }
 
-    public static void clearUidCache() {
-        sUidCache.clear();
-    }
-
     public final Context context;
-    public final BatterySipper sipper;
+    // Swapped by the main thread on a refresh, read by the name and icon callbacks.
+    public volatile BatterySipper sipper;
 
     public String name;
     public Drawable icon;
     public int iconId; // For passing to the detail screen.
     public String defaultPackageName;
-
-    static class UidToDetail {
-        String name;
-        String packageName;
-        Drawable icon;
-    }
+    // Set once the name and icon of the uid are final.
+    private volatile boolean mNameIconResolved;
 
     public BatteryEntry(Context context, Handler handler, UserManager um, BatterySipper sipper) {
         sHandler = handler;
@@ -191,6 +183,19 @@ public class BatteryEntry {
         }
     }
 
+    /**
+     * Points this entry to the sipper of a newer stats snapshot with the same uid and
+     * drain type, keeping what was already loaded for the old one.
+     */
+    void updateSipper(BatterySipper newSipper) {
+        synchronized (this) {
+            if (newSipper.mPackages == null) {
+                newSipper.mPackages = sipper.mPackages;
+            }
+            sipper = newSipper;
+        }
+    }
+
     public Drawable getIcon() {
         return icon;
     }
@@ -204,16 +209,14 @@ public class BatteryEntry {
 
     void getQuickNameIconForUid(BatteryStats.Uid uidObj) {
         final int uid = uidObj.getUid();
-        final String uidString = Integer.toString(uid);
-        if (sUidCache.containsKey(uidString)) {
-            UidToDetail utd = sUidCache.get(uidString);
-            defaultPackageName = utd.packageName;
-            name = utd.name;
-            icon = utd.icon;
+        UidInfoResolver.UidInfo info = UidInfoResolver.getInstance(context).getUidInfo(uid,
+                UidInfoResolver.PRIORITY_BACKGROUND, null);
+        if (info != null && info.packages != null) {
+            setNameAndIcon(info);
             return;
         }
         PackageManager pm = context.getPackageManager();
-        String[] packages = pm.getPackagesForUid(uid);
+        String[] packages = info != null ? info.packages : pm.getPackagesForUid(uid);
         icon = pm.getDefaultActivityIcon();
         if (packages == null) {
             //name = Integer.toString(uid);
@@ -224,6 +227,7 @@ public class BatteryEntry {
             }
             iconId = R.drawable.ic_power_system;
             icon = context.getDrawable(iconId);
+            mNameIconResolved = true;
             return;
         } else {
             //name = packages[0];
@@ -236,93 +240,46 @@ public class BatteryEntry {
     }
 
     /**
-     * Loads the app label and icon image and stores into the cache.
+     * Queues this entry again if its name and icon were still loading when the queue was
+     * stopped.  Call startRequestQueue() once all the entries are queued.
      */
-    public void loadNameAndIcon() {
-        // Bail out if the current sipper is not an App sipper.
-        if (sipper.uidObj == null) {
-            return;
-        }
-        PackageManager pm = context.getPackageManager();
-        final int uid = sipper.uidObj.getUid();
-        final Drawable defaultActivityIcon = pm.getDefaultActivityIcon();
-        sipper.mPackages = pm.getPackagesForUid(uid);
-        if (sipper.mPackages == null) {
-            name = Integer.toString(uid);
-            return;
-        }
-
-        String[] packageLabels = new String[sipper.mPackages.length];
-        System.arraycopy(sipper.mPackages, 0, packageLabels, 0, sipper.mPackages.length);
-
-        // Convert package names to user-facing labels where possible
-        IPackageManager ipm = AppGlobals.getPackageManager();
-        final int userId = UserHandle.getUserId(uid);
-        for (int i = 0; i < packageLabels.length; i++) {
-            try {
-                final ApplicationInfo ai = ipm.getApplicationInfo(packageLabels[i],
-                        0 /* no flags */, userId);
-                if (ai == null) {
-                    Log.d(PowerUsageSummary.TAG, "Retrieving null app info for package "
-                            + packageLabels[i] + ", user " + userId);
-                    continue;
-                }
-                CharSequence label = ai.loadLabel(pm);
-                if (label != null) {
-                    packageLabels[i] = label.toString();
-                }
-                if (ai.icon != 0) {
-                    defaultPackageName = sipper.mPackages[i];
-                    icon = ai.loadIcon(pm);
-                    break;
+    void requeueIfUnresolved(Handler handler) {
+        sHandler = handler;
+        if (!mNameIconResolved && sipper.uidObj != null) {
+            synchronized (mRequestQueue) {
+                if (mRequestQueue.contains(this)) {
+                    return;
                 }
-            } catch (RemoteException e) {
-                Log.d(PowerUsageSummary.TAG, "Error while retrieving app info for package "
-                        + packageLabels[i] + ", user " + userId, e);
             }
+            getQuickNameIconForUid(sipper.uidObj);
         }
-        if (icon == null) {
-            icon = defaultActivityIcon;
-        }
+    }
 
-        if (packageLabels.length == 1) {
-            name = packageLabels[0];
-        } else {
-            // Look for an official name for this UID.
-            for (String pkgName : sipper.mPackages) {
-                try {
-                    final PackageInfo pi = ipm.getPackageInfo(pkgName, 0 /* no flags */, userId);
-                    if (pi == null) {
-                        Log.d(PowerUsageSummary.TAG, "Retrieving null package info for package "
-                                + pkgName + ", user " + userId);
-                        continue;
-                    }
-                    if (pi.sharedUserLabel != 0) {
-                        final CharSequence nm = pm.getText(pkgName,
-                                pi.sharedUserLabel, pi.applicationInfo);
-                        if (nm != null) {
-                            name = nm.toString();
-                            if (pi.applicationInfo.icon != 0) {
-                                defaultPackageName = pkgName;
-                                icon = pi.applicationInfo.loadIcon(pm);
-                            }
-                            break;
-                        }
-                    }
-                } catch (RemoteException e) {
-                    Log.d(PowerUsageSummary.TAG, "Error while retrieving package info for package "
-                            + pkgName + ", user " + userId, e);
-                }
+    /**
+     * Takes the app label and icon image of the uid of this entry.
+     */
+    void setNameAndIcon(UidInfoResolver.UidInfo info) {
+        synchronized (this) {
+            sipper.mPackages = info.packages;
+        }
+        mNameIconResolved = true;
+        if (info.packages == null) {
+            name = Integer.toString(info.uid);
+            return;
+        }
+        icon = info.icon;
+        defaultPackageName = info.iconPackage;
+        if (info.packages.length == 1) {
+            name = info.packageLabels[0].toString();
+        } else if (info.sharedUserLabel != null) {
+            name = info.sharedUserLabel.toString();
+            if (info.sharedUserIcon != null) {
+                defaultPackageName = info.sharedUserPackage;
+                icon = info.sharedUserIcon;
             }
         }
-        final String uidString = Integer.toString(sipper.uidObj.getUid());
-        UidToDetail utd = new UidToDetail();
-        utd.name = name;
-        utd.icon = icon;
-        utd.packageName = defaultPackageName;
-        sUidCache.put(uidString, utd);
-        if (sHandler != null) {
-            sHandler.sendMessage(sHandler.obtainMessage(MSG_UPDATE_NAME_ICON, this));
+        if (icon == null) {
+            icon = context.getPackageManager().getDefaultActivityIcon();
         }
     }
 }
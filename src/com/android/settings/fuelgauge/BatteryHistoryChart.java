@@ -19,12 +19,15 @@ package com.android.settings.fuelgauge;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.DashPathEffect;
+import android.os.AsyncTask;
 import android.os.BatteryManager;
+import android.os.Parcel;
 import android.provider.Settings;
 import android.text.format.DateFormat;
 import android.text.format.Formatter;
 import android.util.Log;
 import android.util.TimeUtils;
+import com.android.internal.os.BatteryStatsImpl;
 import com.android.settings.R;
 import com.android.settings.Utils;
 
@@ -222,8 +225,20 @@ public class BatteryHistoryChart extends View {
     final ArrayList<TimeLabel> mTimeLabels = new ArrayList<TimeLabel>();
     final ArrayList<DateLabel> mDateLabels = new ArrayList<DateLabel>();
 
-    Bitmap mBitmap;
-    Canvas mCanvas;
+    long mRemainingTimeUs;
+    BatteryHistoryModel mModel;
+    LoadHistoryTask mLoadTask;
+
+    // Range of battery levels in the pixel column being laid out.
+    int mBucketX;
+    int mBucketMinY;
+    int mBucketMaxY;
+    int mBucketLastY;
+
+    // The last rendered chart, and the size and data version it was rendered for.  Dropped
+    // when the view is detached, so that it does not outlive the screen showing it.
+    Bitmap mChartBitmap;
+    String mChartBitmapKey;
 
     static class TextAttrs {
         ColorStateList textColor = null;
@@ -472,17 +487,56 @@ public class BatteryHistoryChart extends View {
         }
     }
 
+    /**
+     * Shows the stats, reading their history in the background. The history of the stats must
+     * not be iterated by the caller until it is loaded.
+     */
     void setStats(BatteryStats stats, Intent broadcast) {
-        mStats = stats;
-        mBatteryBroadcast = broadcast;
-
         if (DEBUG) Log.d(TAG, "Setting stats...");
 
         final long elapsedRealtimeUs = SystemClock.elapsedRealtime() * 1000;
+        mStats = stats;
+        setTimes(broadcast, stats.computeBatteryRealtime(elapsedRealtimeUs,
+                BatteryStats.STATS_SINCE_CHARGED),
+                stats.computeBatteryTimeRemaining(elapsedRealtimeUs),
+                stats.computeChargeTimeRemaining(elapsedRealtimeUs));
+
+        // Until the history is loaded, just show the current battery level.
+        mModel = null;
+        applyModel(new BatteryHistoryModel());
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+        }
+        mLoadTask = new LoadHistoryTask(stats);
+        mLoadTask.execute();
+    }
+
+    /**
+     * Shows a history that was already loaded, without going through BatteryStats.
+     */
+    void setSnapshot(BatteryHistorySnapshot snapshot, Intent broadcast) {
+        if (DEBUG) Log.d(TAG, "Setting snapshot " + snapshot.mVersion);
 
-        long uSecTime = mStats.computeBatteryRealtime(elapsedRealtimeUs,
-                BatteryStats.STATS_SINCE_CHARGED);
-        mStatsPeriod = uSecTime;
+        mStats = null;
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
+        setTimes(broadcast, snapshot.mStatsPeriodUs, snapshot.mDrainTimeUs,
+                snapshot.mChargeTimeUs);
+        mModel = snapshot.mModel;
+        applyModel(mModel);
+        requestLayout();
+        if (mLastWidth > 0 && mLastHeight > 0) {
+            rebuildChart(mLastWidth, mLastHeight);
+        }
+        invalidate();
+    }
+
+    private void setTimes(Intent broadcast, long statsPeriodUs, long drainTime,
+            long chargeTime) {
+        mBatteryBroadcast = broadcast;
+        mStatsPeriod = statsPeriodUs;
         mChargingLabel = getContext().getString(R.string.battery_stats_charging_label);
         mScreenOnLabel = getContext().getString(R.string.battery_stats_screen_on_label);
         mGpsOnLabel = getContext().getString(R.string.battery_stats_gps_on_label);
@@ -498,7 +552,6 @@ public class BatteryHistoryChart extends View {
         long remainingTimeUs = 0;
         mDischarging = true;
         if (mBatteryBroadcast.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) == 0) {
-            final long drainTime = mStats.computeBatteryTimeRemaining(elapsedRealtimeUs);
             if (drainTime > 0) {
                 remainingTimeUs = drainTime;
                 String timeString = Formatter.formatShortElapsedTime(getContext(),
@@ -509,7 +562,6 @@ public class BatteryHistoryChart extends View {
                 mChargeLabelString = batteryPercentString;
             }
         } else {
-            final long chargeTime = mStats.computeChargeTimeRemaining(elapsedRealtimeUs);
             final String statusLabel = com.android.settings.Utils.getBatteryStatus(getResources(),
                     mBatteryBroadcast);
             final int status = mBatteryBroadcast.getIntExtra(BatteryManager.EXTRA_STATUS,
@@ -541,72 +593,82 @@ public class BatteryHistoryChart extends View {
         mChargeDurationString = "";
         setContentDescription(mChargeLabelString);
 
-        int pos = 0;
-        int lastInteresting = 0;
-        byte lastLevel = -1;
-        mBatLow = 0;
-        mBatHigh = 100;
-        mStartWallTime = 0;
-        mEndDataWallTime = 0;
-        mEndWallTime = 0;
-        mHistStart = 0;
-        mHistEnd = 0;
-        long lastWallTime = 0;
-        long lastRealtime = 0;
-        int aggrStates = 0;
-        int aggrStates2 = 0;
-        boolean first = true;
-        if (stats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (stats.getNextHistoryLocked(rec)) {
-                pos++;
-                if (first) {
-                    first = false;
-                    mHistStart = rec.time;
-                }
-                if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                        || rec.cmd == HistoryItem.CMD_RESET) {
-                    // If there is a ridiculously large jump in time, then we won't be
-                    // able to create a good chart with that data, so just ignore the
-                    // times we got before and pretend like our data extends back from
-                    // the time we have now.
-                    // Also, if we are getting a time change and we are less than 5 minutes
-                    // since the start of the history real time, then also use this new
-                    // time to compute the base time, since whatever time we had before is
-                    // pretty much just noise.
-                    if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
-                            || rec.time < (mHistStart+(5*60*1000L))) {
-                        mStartWallTime = 0;
-                    }
-                    lastWallTime = rec.currentTime;
-                    lastRealtime = rec.time;
-                    if (mStartWallTime == 0) {
-                        mStartWallTime = lastWallTime - (lastRealtime-mHistStart);
-                    }
-                }
-                if (rec.isDeltaData()) {
-                    if (rec.batteryLevel != lastLevel || pos == 1) {
-                        lastLevel = rec.batteryLevel;
-                    }
-                    lastInteresting = pos;
-                    mHistDataEnd = rec.time;
-                    aggrStates |= rec.states;
-                    aggrStates2 |= rec.states2;
-                }
+        mRemainingTimeUs = remainingTimeUs;
+        if (!com.android.settings.Utils.isWifiOnly(getContext())) {
+            mHavePhoneSignal = true;
+        }
+    }
+
+    /**
+     * Reads the history of the stats in the background.
+     */
+    private class LoadHistoryTask extends AsyncTask<Void, Void, BatteryHistoryModel> {
+        private final BatteryStats mSourceStats;
+
+        LoadHistoryTask(BatteryStats stats) {
+            mSourceStats = stats;
+        }
+
+        @Override
+        protected BatteryHistoryModel doInBackground(Void... params) {
+            final long start = SystemClock.uptimeMillis();
+            // Iterating the history moves its read position, read a copy so that the
+            // caller can keep using the original. Copying is only a read of the original.
+            BatteryHistoryModel model = BatteryHistoryModel.load(copyStats(mSourceStats));
+            if (DEBUG) Log.d(TAG, "Loaded " + model.mCount + " history records in "
+                    + (SystemClock.uptimeMillis() - start) + "ms");
+            return model;
+        }
+
+        @Override
+        protected void onPostExecute(BatteryHistoryModel model) {
+            if (mLoadTask != this || mStats != mSourceStats) {
+                return;
             }
+            mLoadTask = null;
+            mModel = model;
+            applyModel(model);
+            // The offsets depend on the states present in the history.
+            requestLayout();
+            if (mLastWidth > 0 && mLastHeight > 0) {
+                rebuildChart(mLastWidth, mLastHeight);
+            }
+            invalidate();
+        }
+    }
+
+    /**
+     * Copies the stats through a parcel, history included.
+     */
+    private static BatteryStats copyStats(BatteryStats stats) {
+        if (!(stats instanceof BatteryStatsImpl)) {
+            return stats;
         }
-        mHistEnd = mHistDataEnd + (remainingTimeUs/1000);
-        mEndDataWallTime = lastWallTime + mHistDataEnd - lastRealtime;
-        mEndWallTime = mEndDataWallTime + (remainingTimeUs/1000);
-        mNumHist = lastInteresting;
-        mHaveGps = (aggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
-        mHaveWifi = (aggrStates2&HistoryItem.STATE2_WIFI_RUNNING_FLAG) != 0
-                || (aggrStates&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+        final Parcel parcel = Parcel.obtain();
+        try {
+            ((BatteryStatsImpl) stats).writeToParcelWithoutUids(parcel, 0);
+            parcel.setDataPosition(0);
+            return BatteryStatsImpl.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    void applyModel(BatteryHistoryModel model) {
+        mBatLow = 0;
+        mBatHigh = 100;
+        mHistStart = model.mHistStart;
+        mHistDataEnd = model.mHistDataEnd;
+        mStartWallTime = model.mStartWallTime;
+        mEndDataWallTime = model.mEndDataWallTime;
+        mHistEnd = mHistDataEnd + (mRemainingTimeUs/1000);
+        mEndWallTime = mEndDataWallTime + (mRemainingTimeUs/1000);
+        mNumHist = model.mCount;
+        mHaveGps = (model.mAggrStates&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+        mHaveWifi = (model.mAggrStates2&HistoryItem.STATE2_WIFI_RUNNING_FLAG) != 0
+                || (model.mAggrStates&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
                         |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
                         |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0;
-        if (!com.android.settings.Utils.isWifiOnly(getContext())) {
-            mHavePhoneSignal = true;
-        }
         if (mHistEnd <= mHistStart) mHistEnd = mHistStart+1;
     }
 
@@ -686,12 +748,16 @@ public class BatteryHistoryChart extends View {
             return;
         }
 
-        if (DEBUG) Log.d(TAG, "Rebuilding chart for: " + w + "x" + h);
-
         mLastWidth = w;
         mLastHeight = h;
-        mBitmap = null;
-        mCanvas = null;
+        rebuildChart(w, h);
+    }
+
+    /**
+     * Lays out the paths and labels of the chart for the given size.
+     */
+    void rebuildChart(int w, int h) {
+        if (DEBUG) Log.d(TAG, "Rebuilding chart for: " + w + "x" + h);
 
         int textHeight = mTextDescent - mTextAscent;
         if (h > ((textHeight*10)+mChartMinHeight)) {
@@ -765,9 +831,6 @@ public class BatteryHistoryChart extends View {
         final long walltimeStart = mStartWallTime;
         final long walltimeChange = mEndWallTime > walltimeStart
                 ? (mEndWallTime-walltimeStart) : 1;
-        long curWalltime = mStartWallTime;
-        long lastRealtime = 0;
-
         final int batLow = mBatLow;
         final int batChange = mBatHigh-mBatLow;
 
@@ -775,19 +838,22 @@ public class BatteryHistoryChart extends View {
         mLevelBottom = mLevelTop + levelh;
 
         int x = mLevelLeft, y = 0, startX = mLevelLeft, lastX = -1, lastY = -1;
-        int i = 0;
         Path curLevelPath = null;
         Path lastLinePath = null;
         boolean lastCharging = false, lastScreenOn = false, lastGpsOn = false;
         boolean lastWifiRunning = false, lastWifiSupplRunning = false, lastCpuRunning = false;
         int lastWifiSupplState = BatteryStats.WIFI_SUPPL_STATE_INVALID;
-        final int N = mNumHist;
-        if (mEndDataWallTime > mStartWallTime && mStats.startIteratingHistoryLocked()) {
-            final HistoryItem rec = new HistoryItem();
-            while (mStats.getNextHistoryLocked(rec) && i < N) {
-                if (rec.isDeltaData()) {
-                    curWalltime += rec.time-lastRealtime;
-                    lastRealtime = rec.time;
+        final BatteryHistoryModel model = mModel;
+        final int N = model != null ? mNumHist : 0;
+        mBucketX = -1;
+        if (mEndDataWallTime > mStartWallTime) {
+            for (int i = 0; i < N; i++) {
+                final byte type = model.mTypes[i];
+                if (type == BatteryHistoryModel.REC_DELTA) {
+                    final byte batteryLevel = model.mLevels[i];
+                    final int states = model.mStates[i];
+                    final int states2 = model.mStates2[i];
+                    final long curWalltime = model.mWallTimes[i];
                     x = mLevelLeft + (int)(((curWalltime-walltimeStart)*levelWidth)/walltimeChange);
                     if (x < 0) {
                         x = 0;
@@ -802,14 +868,25 @@ public class BatteryHistoryChart extends View {
                         sb.append(x);
                         Log.d("foo", sb.toString());
                     }
-                    y = mLevelTop + levelh - ((rec.batteryLevel-batLow)*(levelh-1))/batChange;
+                    y = mLevelTop + levelh - ((batteryLevel-batLow)*(levelh-1))/batChange;
+
+                    if (x != mBucketX) {
+                        // Moved to a new pixel column: finish the previous one.
+                        lastY = flushLevelBucket(curLevelPath, lastX, lastY);
+                        mBucketX = x;
+                        mBucketMinY = mBucketMaxY = mBucketLastY = y;
+                    } else {
+                        mBucketMinY = Math.min(mBucketMinY, y);
+                        mBucketMaxY = Math.max(mBucketMaxY, y);
+                        mBucketLastY = y;
+                    }
 
                     if (lastX != x) {
                         // We have moved by at least a pixel.
                         if (lastY != y) {
                             // Don't plot changes within a pixel.
                             Path path;
-                            byte value = rec.batteryLevel;
+                            byte value = batteryLevel;
                             if (value <= mBatteryCriticalLevel) path = mBatCriticalPath;
                             else if (value <= mBatteryWarnLevel) path = mBatWarnPath;
                             else path = null; //mBatGoodPath;
@@ -840,7 +917,7 @@ public class BatteryHistoryChart extends View {
 
                     if (mLargeMode) {
                         final boolean charging =
-                            (rec.states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
+                            (states&HistoryItem.STATE_BATTERY_PLUGGED_FLAG) != 0;
                         if (charging != lastCharging) {
                             if (charging) {
                                 mChargingPath.moveTo(x, h-mChargingOffset);
@@ -851,7 +928,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean screenOn =
-                            (rec.states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_SCREEN_ON_FLAG) != 0;
                         if (screenOn != lastScreenOn) {
                             if (screenOn) {
                                 mScreenOnPath.moveTo(x, h-mScreenOnOffset);
@@ -862,7 +939,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean gpsOn =
-                            (rec.states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
+                            (states&HistoryItem.STATE_GPS_ON_FLAG) != 0;
                         if (gpsOn != lastGpsOn) {
                             if (gpsOn) {
                                 mGpsOnPath.moveTo(x, h-mGpsOnOffset);
@@ -873,7 +950,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final int wifiSupplState =
-                            ((rec.states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
+                            ((states2&HistoryItem.STATE2_WIFI_SUPPL_STATE_MASK)
                                     >> HistoryItem.STATE2_WIFI_SUPPL_STATE_SHIFT);
                         boolean wifiRunning;
                         if (lastWifiSupplState != wifiSupplState) {
@@ -894,7 +971,7 @@ public class BatteryHistoryChart extends View {
                         } else {
                             wifiRunning = lastWifiSupplRunning;
                         }
-                        if ((rec.states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
+                        if ((states&(HistoryItem.STATE_WIFI_FULL_LOCK_FLAG
                                 |HistoryItem.STATE_WIFI_MULTICAST_ON_FLAG
                                 |HistoryItem.STATE_WIFI_SCAN_FLAG)) != 0) {
                             wifiRunning = true;
@@ -909,7 +986,7 @@ public class BatteryHistoryChart extends View {
                         }
 
                         final boolean cpuRunning =
-                            (rec.states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
+                            (states&HistoryItem.STATE_CPU_RUNNING_FLAG) != 0;
                         if (cpuRunning != lastCpuRunning) {
                             if (cpuRunning) {
                                 mCpuRunningPath.moveTo(x, h - mCpuRunningOffset);
@@ -921,14 +998,14 @@ public class BatteryHistoryChart extends View {
 
                         if (mLargeMode && mHavePhoneSignal) {
                             int bin;
-                            if (((rec.states&HistoryItem.STATE_PHONE_STATE_MASK)
+                            if (((states&HistoryItem.STATE_PHONE_STATE_MASK)
                                     >> HistoryItem.STATE_PHONE_STATE_SHIFT)
                                     == ServiceState.STATE_POWER_OFF) {
                                 bin = 0;
-                            } else if ((rec.states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
+                            } else if ((states&HistoryItem.STATE_PHONE_SCANNING_FLAG) != 0) {
                                 bin = 1;
                             } else {
-                                bin = (rec.states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
+                                bin = (states&HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_MASK)
                                         >> HistoryItem.STATE_PHONE_SIGNAL_STRENGTH_SHIFT;
                                 bin += 2;
                             }
@@ -936,36 +1013,21 @@ public class BatteryHistoryChart extends View {
                         }
                     }
 
-                } else {
-                    long lastWalltime = curWalltime;
-                    if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
-                            || rec.cmd == HistoryItem.CMD_RESET) {
-                        if (rec.currentTime >= mStartWallTime) {
-                            curWalltime = rec.currentTime;
-                        } else {
-                            curWalltime = mStartWallTime + (rec.time-mHistStart);
-                        }
-                        lastRealtime = rec.time;
-                    }
-
-                    if (rec.cmd != HistoryItem.CMD_OVERFLOW
-                            && (rec.cmd != HistoryItem.CMD_CURRENT_TIME
-                                    || Math.abs(lastWalltime-curWalltime) > (60*60*1000))) {
-                        if (curLevelPath != null) {
-                            finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
-                                    lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
-                                    lastCpuRunning, lastLinePath);
-                            lastX = lastY = -1;
-                            curLevelPath = null;
-                            lastLinePath = null;
-                            lastCharging = lastScreenOn = lastGpsOn = lastCpuRunning = false;
-                        }
+                } else if (type == BatteryHistoryModel.REC_BREAK) {
+                    lastY = flushLevelBucket(curLevelPath, lastX, lastY);
+                    mBucketX = -1;
+                    if (curLevelPath != null) {
+                        finishPaths(x+1, h, levelh, startX, lastY, curLevelPath, lastX,
+                                lastCharging, lastScreenOn, lastGpsOn, lastWifiRunning,
+                                lastCpuRunning, lastLinePath);
+                        lastX = lastY = -1;
+                        curLevelPath = null;
+                        lastLinePath = null;
+                        lastCharging = lastScreenOn = lastGpsOn = lastCpuRunning = false;
                     }
                 }
-                
-                i++;
             }
-            mStats.finishIteratingHistoryLocked();
+            lastY = flushLevelBucket(curLevelPath, lastX, lastY);
         }
 
         if (lastY < 0 || lastX < 0) {
@@ -1083,6 +1145,27 @@ public class BatteryHistoryChart extends View {
         }
     }
 
+    /**
+     * Draws the range of levels seen in the current pixel column as a vertical span,
+     * instead of only keeping the first sample of the column.  Returns the new last y.
+     */
+    int flushLevelBucket(Path curLevelPath, int lastX, int lastY) {
+        if (curLevelPath == null || mBucketX < 0 || lastX != mBucketX) {
+            return lastY;
+        }
+        if (mBucketMinY == lastY && mBucketMaxY == lastY) {
+            return lastY;
+        }
+        if (mBucketMinY < lastY) {
+            curLevelPath.lineTo(mBucketX, mBucketMinY);
+        }
+        if (mBucketMaxY > lastY) {
+            curLevelPath.lineTo(mBucketX, mBucketMaxY);
+        }
+        curLevelPath.lineTo(mBucketX, mBucketLastY);
+        return mBucketLastY;
+    }
+
     void addTimeLabel(Calendar cal, int levelLeft, int levelRight, boolean is24hr) {
         final long walltimeStart = mStartWallTime;
         final long walltimeChange = mEndWallTime-walltimeStart;
@@ -1108,24 +1191,40 @@ public class BatteryHistoryChart extends View {
         final int width = getWidth();
         final int height = getHeight();
 
-        //buildBitmap(width, height);
-
         if (DEBUG) Log.d(TAG, "onDraw: " + width + "x" + height);
-        //canvas.drawBitmap(mBitmap, 0, 0, null);
-        drawChart(canvas, width, height);
-    }
-
-    void buildBitmap(int width, int height) {
-        if (mBitmap != null && width == mBitmap.getWidth() && height == mBitmap.getHeight()) {
+        if (mModel == null || width <= 0 || height <= 0) {
+            // Still loading the history, nothing worth caching yet.
+            drawChart(canvas, width, height);
             return;
         }
+        canvas.drawBitmap(getChartBitmap(width, height), 0, 0, null);
+    }
 
-        if (DEBUG) Log.d(TAG, "buildBitmap: " + width + "x" + height);
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mChartBitmap = null;
+        mChartBitmapKey = null;
+    }
 
-        mBitmap = Bitmap.createBitmap(getResources().getDisplayMetrics(), width, height,
-                Bitmap.Config.ARGB_8888);
-        mCanvas = new Canvas(mBitmap);
-        drawChart(mCanvas, width, height);
+    Bitmap getChartBitmap(int width, int height) {
+        final String key = width + "x" + height + ":" + isLayoutRtl() + ":"
+                + mTextPaint.getColor() + ":" + mTextPaint.getTextSize() + ":"
+                + mBatteryLevel + ":" + mChargeLabelString + ":" + mEndWallTime + ":"
+                + mModel.getVersion();
+        if (mChartBitmap == null || !key.equals(mChartBitmapKey)) {
+            if (DEBUG) Log.d(TAG, "buildBitmap: " + width + "x" + height);
+            if (mChartBitmap == null || mChartBitmap.getWidth() != width
+                    || mChartBitmap.getHeight() != height) {
+                mChartBitmap = Bitmap.createBitmap(getResources().getDisplayMetrics(), width,
+                        height, Bitmap.Config.ARGB_8888);
+            } else {
+                mChartBitmap.eraseColor(0);
+            }
+            drawChart(new Canvas(mChartBitmap), width, height);
+            mChartBitmapKey = key;
+        }
+        return mChartBitmap;
     }
 
     void drawChart(Canvas canvas, int width, int height) {
@@ -17,9 +17,12 @@
 package com.android.settings.fuelgauge;
 
 import android.app.Fragment;
+import android.content.Context;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.os.BatteryStats;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -27,27 +30,98 @@ import android.view.ViewGroup;
 import com.android.internal.os.BatteryStatsHelper;
 import com.android.settings.R;
 
+import java.io.File;
+
 public class BatteryHistoryDetail extends Fragment {
+    private static final String TAG = "BatteryHistoryDetail";
+
+    /** Path of the {@link BatteryHistorySnapshot} to show, if one was written. */
     public static final String EXTRA_STATS = "stats";
+    /** Version of the snapshot when the detail was opened. */
+    public static final String EXTRA_VERSION = "version";
     public static final String EXTRA_BROADCAST = "broadcast";
 
-    private BatteryStats mStats;
+    // Loaded from the stats when there is no snapshot of the expected version.
+    private BatteryHistorySnapshot mSnapshot;
+    private LoadStatsTask mLoadTask;
     private Intent mBatteryBroadcast;
+    private BatteryHistoryChart mChart;
 
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
-        String histFile = getArguments().getString(EXTRA_STATS);
-        mStats = BatteryStatsHelper.statsFromFile(getActivity(), histFile);
         mBatteryBroadcast = getArguments().getParcelable(EXTRA_BROADCAST);
+        String histFile = getArguments().getString(EXTRA_STATS);
+        if (histFile != null) {
+            mSnapshot = BatteryHistorySnapshot.read(new File(histFile));
+            if (mSnapshot == null) {
+                Log.w(TAG, "Unable to read history " + histFile + ", loading stats");
+            } else if (!mSnapshot.mVersion.equals(getArguments().getString(EXTRA_VERSION))) {
+                Log.i(TAG, "History changed to " + mSnapshot.mVersion + ", loading stats");
+                mSnapshot = null;
+            }
+        }
+        if (mSnapshot == null) {
+            mLoadTask = new LoadStatsTask(getActivity().getApplicationContext());
+            mLoadTask.execute();
+        }
     }
-    
+
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.battery_history_chart, null);
-        BatteryHistoryChart chart = (BatteryHistoryChart)view.findViewById(
-                R.id.battery_history_chart);
-        chart.setStats(mStats, mBatteryBroadcast);
+        mChart = (BatteryHistoryChart)view.findViewById(R.id.battery_history_chart);
+        if (mSnapshot != null) {
+            mChart.setSnapshot(mSnapshot, mBatteryBroadcast);
+        }
         return view;
     }
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        mChart = null;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
+    }
+
+    /**
+     * Loads the stats from the battery service and reads their history, when there is no
+     * snapshot to show.
+     */
+    private class LoadStatsTask extends AsyncTask<Void, Void, BatteryHistorySnapshot> {
+        private final Context mContext;
+
+        LoadStatsTask(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        protected BatteryHistorySnapshot doInBackground(Void... params) {
+            final BatteryStatsHelper helper = new BatteryStatsHelper(mContext, false);
+            helper.create((Bundle) null);
+            // The stats are only used by this task, their history can be read as is.
+            final BatteryStats stats = helper.getStats();
+            return new BatteryHistorySnapshot(stats, BatteryHistoryModel.load(stats));
+        }
+
+        @Override
+        protected void onPostExecute(BatteryHistorySnapshot snapshot) {
+            if (mLoadTask != this) {
+                return;
+            }
+            mLoadTask = null;
+            mSnapshot = snapshot;
+            if (mChart != null) {
+                mChart.setSnapshot(snapshot, mBatteryBroadcast);
+            }
+        }
+    }
 }
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.BatteryStats.HistoryItem;
+
+/**
+ * Compact copy of the battery history drawn by {@link BatteryHistoryChart}.
+ *
+ * The history is read from BatteryStats in a single pass, which can take a while with
+ * several days of data, so {@link #load} should be called off the main thread. The records
+ * are kept in primitive arrays with their wall clock time already computed, so the chart can
+ * lay them out for any size without going through BatteryStats again.
+ */
+class BatteryHistoryModel {
+    /** A battery level/state sample. */
+    static final byte REC_DELTA = 0;
+    /** A discontinuity in the history: the chart starts new paths after it. */
+    static final byte REC_BREAK = 1;
+    /** A record that doesn't affect the chart. */
+    static final byte REC_SKIP = 2;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    int mCount;
+    byte[] mTypes = new byte[INITIAL_CAPACITY];
+    long[] mWallTimes = new long[INITIAL_CAPACITY];
+    byte[] mLevels = new byte[INITIAL_CAPACITY];
+    int[] mStates = new int[INITIAL_CAPACITY];
+    int[] mStates2 = new int[INITIAL_CAPACITY];
+
+    long mHistStart;
+    long mHistDataEnd;
+    long mStartWallTime;
+    long mEndDataWallTime;
+    int mAggrStates;
+    int mAggrStates2;
+
+    /**
+     * Identifies the data: two models with the same version draw the same chart.
+     */
+    String getVersion() {
+        return mCount + "/" + mHistStart + "/" + mHistDataEnd + "/" + mStartWallTime + "/"
+                + mEndDataWallTime;
+    }
+
+    static BatteryHistoryModel load(BatteryStats stats) {
+        final BatteryHistoryModel model = new BatteryHistoryModel();
+        // Commands and current times, only needed while loading.
+        long[] currentTimes = new long[INITIAL_CAPACITY];
+        int numHist = 0;
+        long lastWallTime = 0;
+        long lastRealtime = 0;
+        boolean first = true;
+        if (stats.startIteratingHistoryLocked()) {
+            final HistoryItem rec = new HistoryItem();
+            int pos = 0;
+            while (stats.getNextHistoryLocked(rec)) {
+                if (pos == model.mTypes.length) {
+                    model.grow();
+                    currentTimes = grow(currentTimes, model.mTypes.length);
+                }
+                model.mTypes[pos] = rec.cmd;
+                model.mWallTimes[pos] = rec.time;
+                model.mLevels[pos] = rec.batteryLevel;
+                model.mStates[pos] = rec.states;
+                model.mStates2[pos] = rec.states2;
+                currentTimes[pos] = rec.currentTime;
+                pos++;
+
+                if (first) {
+                    first = false;
+                    model.mHistStart = rec.time;
+                }
+                if (rec.cmd == HistoryItem.CMD_CURRENT_TIME
+                        || rec.cmd == HistoryItem.CMD_RESET) {
+                    // If there is a ridiculously large jump in time, then we won't be
+                    // able to create a good chart with that data, so just ignore the
+                    // times we got before and pretend like our data extends back from
+                    // the time we have now.
+                    // Also, if we are getting a time change and we are less than 5 minutes
+                    // since the start of the history real time, then also use this new
+                    // time to compute the base time, since whatever time we had before is
+                    // pretty much just noise.
+                    if (rec.currentTime > (lastWallTime+(180*24*60*60*1000L))
+                            || rec.time < (model.mHistStart+(5*60*1000L))) {
+                        model.mStartWallTime = 0;
+                    }
+                    lastWallTime = rec.currentTime;
+                    lastRealtime = rec.time;
+                    if (model.mStartWallTime == 0) {
+                        model.mStartWallTime = lastWallTime - (lastRealtime-model.mHistStart);
+                    }
+                }
+                if (rec.isDeltaData()) {
+                    numHist = pos;
+                    model.mHistDataEnd = rec.time;
+                    model.mAggrStates |= rec.states;
+                    model.mAggrStates2 |= rec.states2;
+                }
+            }
+            stats.finishIteratingHistoryLocked();
+        }
+        model.mEndDataWallTime = lastWallTime + model.mHistDataEnd - lastRealtime;
+        model.mCount = numHist;
+        model.computeWallTimes(currentTimes);
+        return model;
+    }
+
+    /**
+     * Turns the record times into wall clock times, and the commands into record types.
+     */
+    private void computeWallTimes(long[] currentTimes) {
+        long curWalltime = mStartWallTime;
+        long lastRealtime = 0;
+        for (int i=0; i<mCount; i++) {
+            final byte cmd = mTypes[i];
+            final long time = mWallTimes[i];
+            if (cmd == HistoryItem.CMD_UPDATE) {
+                curWalltime += time-lastRealtime;
+                lastRealtime = time;
+                mTypes[i] = REC_DELTA;
+                mWallTimes[i] = curWalltime;
+                continue;
+            }
+            final long lastWalltime = curWalltime;
+            if (cmd == HistoryItem.CMD_CURRENT_TIME || cmd == HistoryItem.CMD_RESET) {
+                if (currentTimes[i] >= mStartWallTime) {
+                    curWalltime = currentTimes[i];
+                } else {
+                    curWalltime = mStartWallTime + (time-mHistStart);
+                }
+                lastRealtime = time;
+            }
+            if (cmd != HistoryItem.CMD_OVERFLOW
+                    && (cmd != HistoryItem.CMD_CURRENT_TIME
+                            || Math.abs(lastWalltime-curWalltime) > (60*60*1000))) {
+                mTypes[i] = REC_BREAK;
+            } else {
+                mTypes[i] = REC_SKIP;
+            }
+            mWallTimes[i] = curWalltime;
+        }
+    }
+
+    private void grow() {
+        final int size = mTypes.length * 2;
+        byte[] types = new byte[size];
+        System.arraycopy(mTypes, 0, types, 0, mTypes.length);
+        mTypes = types;
+        mWallTimes = grow(mWallTimes, size);
+        byte[] levels = new byte[size];
+        System.arraycopy(mLevels, 0, levels, 0, mLevels.length);
+        mLevels = levels;
+        int[] states = new int[size];
+        System.arraycopy(mStates, 0, states, 0, mStates.length);
+        mStates = states;
+        int[] states2 = new int[size];
+        System.arraycopy(mStates2, 0, states2, 0, mStates2.length);
+        mStates2 = states2;
+    }
+
+    private static long[] grow(long[] array, int size) {
+        long[] newArray = new long[size];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+}
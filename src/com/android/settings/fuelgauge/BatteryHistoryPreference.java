@@ -37,6 +37,7 @@ public class BatteryHistoryPreference extends Preference {
 
     final private BatteryStats mStats;
     final private Intent mBatteryBroadcast;
+    private BatteryHistorySnapshot mSnapshot;
 
     private boolean mHideLabels;
     private View mLabelHeader;
@@ -53,6 +54,13 @@ public class BatteryHistoryPreference extends Preference {
         return mStats;
     }
 
+    /**
+     * Draws the chart from an already loaded history instead of reading it from the stats.
+     */
+    void setSnapshot(BatteryHistorySnapshot snapshot) {
+        mSnapshot = snapshot;
+    }
+
     public void setHideLabels(boolean hide) {
         if (mHideLabels != hide) {
             mHideLabels = hide;
@@ -70,7 +78,11 @@ public class BatteryHistoryPreference extends Preference {
                 R.id.battery_history_chart);
         if (mChart == null) {
             // First time: use and initialize this chart.
-            chart.setStats(mStats, mBatteryBroadcast);
+            if (mSnapshot != null) {
+                chart.setSnapshot(mSnapshot, mBatteryBroadcast);
+            } else {
+                chart.setStats(mStats, mBatteryBroadcast);
+            }
             mChart = chart;
         } else {
             // All future times: forget the newly inflated chart, re-use the
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.fuelgauge;
+
+import android.os.BatteryStats;
+import android.os.SystemClock;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary snapshot of what {@link BatteryHistoryChart} needs to draw the battery history,
+ * handed from {@link PowerUsageSummary} to {@link BatteryHistoryDetail}.
+ *
+ * The snapshot is written once per stats refresh, in the background, and only if the
+ * history changed since the last one: each snapshot carries the version of its data. It is
+ * read back by memory-mapping the file and bulk-copying the arrays, instead of parsing the
+ * full stats again.
+ */
+class BatteryHistorySnapshot {
+    private static final String TAG = "BatteryHistorySnapshot";
+
+    private static final int MAGIC = 0x42485331; // "BHS1"
+    private static final int FORMAT_VERSION = 1;
+
+    final String mVersion;
+    final long mStatsPeriodUs;
+    final long mDrainTimeUs;
+    final long mChargeTimeUs;
+    final BatteryHistoryModel mModel;
+
+    BatteryHistorySnapshot(BatteryStats stats, BatteryHistoryModel model) {
+        final long elapsedRealtimeUs = SystemClock.elapsedRealtime() * 1000;
+        mVersion = model.getVersion();
+        mStatsPeriodUs = stats.computeBatteryRealtime(elapsedRealtimeUs,
+                BatteryStats.STATS_SINCE_CHARGED);
+        mDrainTimeUs = stats.computeBatteryTimeRemaining(elapsedRealtimeUs);
+        mChargeTimeUs = stats.computeChargeTimeRemaining(elapsedRealtimeUs);
+        mModel = model;
+    }
+
+    private BatteryHistorySnapshot(String version, long statsPeriodUs, long drainTimeUs,
+            long chargeTimeUs, BatteryHistoryModel model) {
+        mVersion = version;
+        mStatsPeriodUs = statsPeriodUs;
+        mDrainTimeUs = drainTimeUs;
+        mChargeTimeUs = chargeTimeUs;
+        mModel = model;
+    }
+
+    void write(File file) throws IOException {
+        final BatteryHistoryModel model = mModel;
+        final int count = model.mCount;
+        final byte[] version = mVersion.getBytes(StandardCharsets.UTF_8);
+        final int headerSize = align(4 + 4 + 4 + version.length, 8)
+                + 8 * 7 + 4 * 3;
+        final int size = align(headerSize + count, 8) + 8 * count
+                + align(count, 4) + 4 * count * 2;
+        final ByteBuffer buf = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+        buf.putInt(MAGIC);
+        buf.putInt(FORMAT_VERSION);
+        buf.putInt(version.length);
+        buf.put(version);
+        buf.position(align(buf.position(), 8));
+        buf.putLong(mStatsPeriodUs);
+        buf.putLong(mDrainTimeUs);
+        buf.putLong(mChargeTimeUs);
+        buf.putLong(model.mHistStart);
+        buf.putLong(model.mHistDataEnd);
+        buf.putLong(model.mStartWallTime);
+        buf.putLong(model.mEndDataWallTime);
+        buf.putInt(model.mAggrStates);
+        buf.putInt(model.mAggrStates2);
+        buf.putInt(count);
+        buf.put(model.mTypes, 0, count);
+        buf.position(align(buf.position(), 8));
+        buf.asLongBuffer().put(model.mWallTimes, 0, count);
+        buf.position(buf.position() + 8 * count);
+        buf.put(model.mLevels, 0, count);
+        buf.position(align(buf.position(), 4));
+        buf.asIntBuffer().put(model.mStates, 0, count);
+        buf.position(buf.position() + 4 * count);
+        buf.asIntBuffer().put(model.mStates2, 0, count);
+
+        final AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream fos = null;
+        try {
+            fos = atomicFile.startWrite();
+            fos.write(buf.array(), 0, size);
+            atomicFile.finishWrite(fos);
+        } catch (IOException e) {
+            if (fos != null) {
+                atomicFile.failWrite(fos);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a snapshot, or returns null if there is none or it can't be read.
+     */
+    static BatteryHistorySnapshot read(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            buf.order(ByteOrder.nativeOrder());
+            if (buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION) {
+                Log.w(TAG, "Unknown snapshot format in " + file);
+                return null;
+            }
+            final byte[] versionBytes = new byte[buf.getInt()];
+            buf.get(versionBytes);
+            buf.position(align(buf.position(), 8));
+            final long statsPeriodUs = buf.getLong();
+            final long drainTimeUs = buf.getLong();
+            final long chargeTimeUs = buf.getLong();
+            final BatteryHistoryModel model = new BatteryHistoryModel();
+            model.mHistStart = buf.getLong();
+            model.mHistDataEnd = buf.getLong();
+            model.mStartWallTime = buf.getLong();
+            model.mEndDataWallTime = buf.getLong();
+            model.mAggrStates = buf.getInt();
+            model.mAggrStates2 = buf.getInt();
+            final int count = buf.getInt();
+            model.mCount = count;
+            model.mTypes = new byte[count];
+            model.mWallTimes = new long[count];
+            model.mLevels = new byte[count];
+            model.mStates = new int[count];
+            model.mStates2 = new int[count];
+            buf.get(model.mTypes);
+            buf.position(align(buf.position(), 8));
+            buf.asLongBuffer().get(model.mWallTimes);
+            buf.position(buf.position() + 8 * count);
+            buf.get(model.mLevels);
+            buf.position(align(buf.position(), 4));
+            buf.asIntBuffer().get(model.mStates);
+            buf.position(buf.position() + 4 * count);
+            buf.asIntBuffer().get(model.mStates2);
+            return new BatteryHistorySnapshot(new String(versionBytes, StandardCharsets.UTF_8),
+                    statsPeriodUs, drainTimeUs, chargeTimeUs, model);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Unable to read snapshot " + file, e);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static int align(int position, int alignment) {
+        return (position + alignment - 1) & ~(alignment - 1);
+    }
+}
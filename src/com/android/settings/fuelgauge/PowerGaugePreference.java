@@ -20,6 +20,7 @@ import android.content.Context;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.preference.Preference;
+import android.text.TextUtils;
 import android.view.View;
 import android.widget.ProgressBar;
 import android.widget.TextView;
@@ -47,8 +48,13 @@ public class PowerGaugePreference extends Preference {
     }
 
     public void setPercent(double percentOfMax, double percentOfTotal) {
-        mProgress = (int) Math.ceil(percentOfMax);
-        mProgressText = Utils.formatPercentage((int) (percentOfTotal + 0.5));
+        final int progress = (int) Math.ceil(percentOfMax);
+        final CharSequence progressText = Utils.formatPercentage((int) (percentOfTotal + 0.5));
+        if (progress == mProgress && TextUtils.equals(progressText, mProgressText)) {
+            return;
+        }
+        mProgress = progress;
+        mProgressText = progressText;
         notifyChanged();
     }
 
@@ -22,6 +22,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.BatteryStats;
 import android.os.Build;
 import android.os.Bundle;
@@ -34,6 +35,7 @@ import android.preference.PreferenceFragment;
 import android.preference.PreferenceGroup;
 import android.preference.PreferenceScreen;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -45,6 +47,10 @@ import com.android.settings.HelpUtils;
 import com.android.settings.R;
 import com.android.settings.SettingsActivity;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -59,7 +65,9 @@ public class PowerUsageSummary extends PreferenceFragment {
 
     private static final String KEY_APP_LIST = "app_list";
 
-    private static final String BATTERY_HISTORY_FILE = "tmp_bat_history.bin";
+    private static final String BATTERY_HISTORY_FILE = "battery_history.snapshot";
+    // The full stats dump that older versions wrote in the files dir
+    private static final String OLD_BATTERY_HISTORY_FILE = "tmp_bat_history.bin";
 
     private static final int MENU_STATS_TYPE = Menu.FIRST;
     private static final int MENU_STATS_REFRESH = Menu.FIRST + 1;
@@ -69,7 +77,11 @@ public class PowerUsageSummary extends PreferenceFragment {
     private UserManager mUm;
 
     private BatteryHistoryPreference mHistPref;
+    private Preference mNotAvailablePref;
     private PreferenceGroup mAppListGroup;
+    // The rows currently shown, by sipper key.
+    private final HashMap<String, PowerGaugePreference> mGaugePrefs
+            = new HashMap<String, PowerGaugePreference>();
     private String mBatteryLevel;
     private String mBatteryStatus;
 
@@ -80,7 +92,25 @@ public class PowerUsageSummary extends PreferenceFragment {
     private static final int MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP = 10;
     private static final int SECONDS_IN_HOUR = 60 * 60;
 
+    // The helper whose stats are shown, only touched by the main thread, and the one
+    // RefreshStatsTask loads the next stats into.  They are swapped once a refresh is done.
     private BatteryStatsHelper mStatsHelper;
+    private BatteryStatsHelper mPendingStatsHelper;
+
+    // Whether the history file of older versions, in the files dir, was deleted.
+    private static boolean sOldHistoryFileDropped;
+
+    private RefreshStatsTask mRefreshTask;
+    private boolean mRefreshPending;
+    // Whether the battery changed since the stats shown were loaded, and the stats type
+    // the rows were computed for, or -1 if none are shown yet.
+    private boolean mStatsStale = true;
+    private int mShownStatsType = -1;
+
+    // The history handed to BatteryHistoryDetail, rewritten by RefreshStatsTask when it changes.
+    private File mHistoryFile;
+    private String mWrittenHistoryVersion;
+    private BatteryHistorySnapshot mHistorySnapshot;
 
     private BroadcastReceiver mBatteryInfoReceiver = new BroadcastReceiver() {
 
@@ -101,12 +131,15 @@ public class PowerUsageSummary extends PreferenceFragment {
         super.onAttach(activity);
         mUm = (UserManager) activity.getSystemService(Context.USER_SERVICE);
         mStatsHelper = new BatteryStatsHelper(activity, true);
+        mPendingStatsHelper = new BatteryStatsHelper(activity, true);
+        mHistoryFile = new File(activity.getCacheDir(), BATTERY_HISTORY_FILE);
     }
 
     @Override
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
         mStatsHelper.create(icicle);
+        mPendingStatsHelper.create((Bundle) null);
 
         addPreferencesFromResource(R.xml.power_usage_summary);
         mAppListGroup = (PreferenceGroup) findPreference(KEY_APP_LIST);
@@ -116,18 +149,17 @@ public class PowerUsageSummary extends PreferenceFragment {
     @Override
     public void onStart() {
         super.onStart();
-        mStatsHelper.clearStats();
+        mStatsStale = true;
     }
 
     @Override
     public void onResume() {
         super.onResume();
-        BatteryStatsHelper.dropFile(getActivity(), BATTERY_HISTORY_FILE);
         updateBatteryStatus(getActivity().registerReceiver(mBatteryInfoReceiver,
                 new IntentFilter(Intent.ACTION_BATTERY_CHANGED)));
         if (mHandler.hasMessages(MSG_REFRESH_STATS)) {
             mHandler.removeMessages(MSG_REFRESH_STATS);
-            mStatsHelper.clearStats();
+            mStatsStale = true;
         }
         refreshStats();
     }
@@ -144,6 +176,11 @@ public class PowerUsageSummary extends PreferenceFragment {
     public void onStop() {
         super.onStop();
         mHandler.removeMessages(MSG_REFRESH_STATS);
+        if (mRefreshTask != null) {
+            mRefreshTask.cancel(false);
+            mRefreshTask = null;
+        }
+        mRefreshPending = false;
     }
 
     @Override
@@ -151,16 +188,19 @@ public class PowerUsageSummary extends PreferenceFragment {
         super.onDestroy();
         if (getActivity().isChangingConfigurations()) {
             mStatsHelper.storeState();
-            BatteryEntry.clearUidCache();
         }
     }
 
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
         if (preference instanceof BatteryHistoryPreference) {
-            mStatsHelper.storeStatsHistoryInFile(BATTERY_HISTORY_FILE);
+            // The snapshot was written by the refresh, nothing to serialize here.  Without
+            // one yet, the detail loads the history from the stats itself.
             Bundle args = new Bundle();
-            args.putString(BatteryHistoryDetail.EXTRA_STATS, BATTERY_HISTORY_FILE);
+            if (mHistorySnapshot != null) {
+                args.putString(BatteryHistoryDetail.EXTRA_STATS, mHistoryFile.getPath());
+                args.putString(BatteryHistoryDetail.EXTRA_VERSION, mHistorySnapshot.mVersion);
+            }
             args.putParcelable(BatteryHistoryDetail.EXTRA_BROADCAST,
                     mStatsHelper.getBatteryBroadcast());
             SettingsActivity sa = (SettingsActivity) getActivity();
@@ -213,7 +253,7 @@ public class PowerUsageSummary extends PreferenceFragment {
                 refreshStats();
                 return true;
             case MENU_STATS_REFRESH:
-                mStatsHelper.clearStats();
+                mStatsStale = true;
                 refreshStats();
                 mHandler.removeMessages(MSG_REFRESH_STATS);
                 return true;
@@ -227,13 +267,6 @@ public class PowerUsageSummary extends PreferenceFragment {
         }
     }
 
-    private void addNotAvailableMessage() {
-        Preference notAvailable = new Preference(getActivity());
-        notAvailable.setTitle(R.string.power_usage_not_available);
-        mHistPref.setHideLabels(true);
-        mAppListGroup.addPreference(notAvailable);
-    }
-
     private boolean updateBatteryStatus(Intent intent) {
         if (intent != null) {
             String batteryLevel = com.android.settings.Utils.getBatteryPercentage(intent);
@@ -248,89 +281,276 @@ public class PowerUsageSummary extends PreferenceFragment {
         return false;
     }
 
-    private void refreshStats() {
-        mAppListGroup.removeAll();
-        mAppListGroup.setOrderingAsAdded(false);
-        mHistPref = new BatteryHistoryPreference(getActivity(), mStatsHelper.getStats(),
-                mStatsHelper.getBatteryBroadcast());
-        mHistPref.setOrder(-1);
-        mAppListGroup.addPreference(mHistPref);
-        boolean addedSome = false;
+    /**
+     * A row of the list, computed in the background from a stats snapshot.
+     */
+    private static final class UsageRow {
+        final String key;
+        final BatterySipper sipper;
+        final double percentOfMax;
+        final double percentOfTotal;
+
+        UsageRow(String key, BatterySipper sipper, double percentOfMax, double percentOfTotal) {
+            this.key = key;
+            this.sipper = sipper;
+            this.percentOfMax = percentOfMax;
+            this.percentOfTotal = percentOfTotal;
+        }
+    }
 
-        final PowerProfile powerProfile = mStatsHelper.getPowerProfile();
-        final BatteryStats stats = mStatsHelper.getStats();
+    /**
+     * Identifies a sipper across refreshes: same drain type and same uid (or user).
+     */
+    static String getSipperKey(BatterySipper sipper) {
+        if (sipper.uidObj != null) {
+            return sipper.drainType + ":" + sipper.uidObj.getUid();
+        } else if (sipper.drainType == BatterySipper.DrainType.USER) {
+            return sipper.drainType + ":" + sipper.userId;
+        }
+        return sipper.drainType.toString();
+    }
+
+    /**
+     * Loads fresh stats into a helper.  Only touches the helper it is given, so it can run
+     * off the main thread.
+     */
+    private static void loadStats(BatteryStatsHelper helper, List<UserHandle> profiles) {
+        helper.clearStats();
+        helper.getStats();
+        if (hasPowerProfile(helper)) {
+            helper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, profiles);
+        }
+    }
+
+    private static boolean hasPowerProfile(BatteryStatsHelper helper) {
+        final PowerProfile powerProfile = helper.getPowerProfile();
         final double averagePower = powerProfile.getAveragePower(PowerProfile.POWER_SCREEN_FULL);
-        if (averagePower >= MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP) {
-            final List<UserHandle> profiles = mUm.getUserProfiles();
+        return averagePower >= MIN_AVERAGE_POWER_THRESHOLD_MILLI_AMP;
+    }
 
-            mStatsHelper.refreshStats(BatteryStats.STATS_SINCE_CHARGED, profiles);
+    /**
+     * Computes the rows to show from the stats loaded by a helper.
+     */
+    private static ArrayList<UsageRow> computeUsageRows(BatteryStatsHelper helper,
+            int statsType) {
+        final ArrayList<UsageRow> rows = new ArrayList<UsageRow>();
+        if (!hasPowerProfile(helper)) {
+            return rows;
+        }
+        final BatteryStats stats = helper.getStats();
 
-            final List<BatterySipper> usageList = mStatsHelper.getUsageList();
+        final List<BatterySipper> usageList = helper.getUsageList();
 
-            final int dischargeAmount = stats != null ? stats.getDischargeAmount(mStatsType) : 0;
-            final int numSippers = usageList.size();
-            for (int i = 0; i < numSippers; i++) {
-                final BatterySipper sipper = usageList.get(i);
-                if ((sipper.value * SECONDS_IN_HOUR) < MIN_POWER_THRESHOLD_MILLI_AMP) {
+        final int dischargeAmount = stats != null ? stats.getDischargeAmount(statsType) : 0;
+        final int numSippers = usageList.size();
+        for (int i = 0; i < numSippers; i++) {
+            final BatterySipper sipper = usageList.get(i);
+            if ((sipper.value * SECONDS_IN_HOUR) < MIN_POWER_THRESHOLD_MILLI_AMP) {
+                continue;
+            }
+            final double percentOfTotal =
+                    ((sipper.value / helper.getTotalPower()) * dischargeAmount);
+            if (((int) (percentOfTotal + .5)) < 1) {
+                continue;
+            }
+            if (sipper.drainType == BatterySipper.DrainType.OVERCOUNTED) {
+                // Don't show over-counted unless it is at least 2/3 the size of
+                // the largest real entry, and its percent of total is more significant
+                if (sipper.value < ((helper.getMaxRealPower()*2)/3)) {
                     continue;
                 }
-                final double percentOfTotal =
-                        ((sipper.value / mStatsHelper.getTotalPower()) * dischargeAmount);
-                if (((int) (percentOfTotal + .5)) < 1) {
+                if (percentOfTotal < 10) {
                     continue;
                 }
-                if (sipper.drainType == BatterySipper.DrainType.OVERCOUNTED) {
-                    // Don't show over-counted unless it is at least 2/3 the size of
-                    // the largest real entry, and its percent of total is more significant
-                    if (sipper.value < ((mStatsHelper.getMaxRealPower()*2)/3)) {
-                        continue;
-                    }
-                    if (percentOfTotal < 10) {
-                        continue;
-                    }
-                    if ("user".equals(Build.TYPE)) {
-                        continue;
-                    }
+                if ("user".equals(Build.TYPE)) {
+                    continue;
                 }
-                if (sipper.drainType == BatterySipper.DrainType.UNACCOUNTED) {
-                    // Don't show over-counted unless it is at least 1/2 the size of
-                    // the largest real entry, and its percent of total is more significant
-                    if (sipper.value < (mStatsHelper.getMaxRealPower()/2)) {
-                        continue;
-                    }
-                    if (percentOfTotal < 5) {
-                        continue;
-                    }
-                    if ("user".equals(Build.TYPE)) {
-                        continue;
-                    }
+            }
+            if (sipper.drainType == BatterySipper.DrainType.UNACCOUNTED) {
+                // Don't show over-counted unless it is at least 1/2 the size of
+                // the largest real entry, and its percent of total is more significant
+                if (sipper.value < (helper.getMaxRealPower()/2)) {
+                    continue;
+                }
+                if (percentOfTotal < 5) {
+                    continue;
+                }
+                if ("user".equals(Build.TYPE)) {
+                    continue;
+                }
+            }
+            final double percentOfMax = (sipper.value * 100) / helper.getMaxPower();
+            sipper.percent = percentOfTotal;
+            rows.add(new UsageRow(getSipperKey(sipper), sipper, percentOfMax, percentOfTotal));
+            if (rows.size() > MAX_ITEMS_TO_LIST) {
+                break;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Computes the stats in the background, so that the battery broadcasts don't block
+     * the main thread.
+     */
+    private class RefreshStatsTask extends AsyncTask<Void, Void, ArrayList<UsageRow>> {
+        private final Context mContext;
+        private final BatteryStatsHelper mHelper;
+        private final List<UserHandle> mProfiles;
+        private final int mType;
+        private BatteryHistorySnapshot mSnapshot;
+
+        RefreshStatsTask(BatteryStatsHelper helper, List<UserHandle> profiles, int statsType) {
+            mContext = getActivity().getApplicationContext();
+            mHelper = helper;
+            mProfiles = profiles;
+            mType = statsType;
+        }
+
+        @Override
+        protected ArrayList<UsageRow> doInBackground(Void... params) {
+            if (!sOldHistoryFileDropped) {
+                BatteryStatsHelper.dropFile(mContext, OLD_BATTERY_HISTORY_FILE);
+                sOldHistoryFileDropped = true;
+            }
+            loadStats(mHelper, mProfiles);
+            final ArrayList<UsageRow> rows = computeUsageRows(mHelper, mType);
+            mSnapshot = loadHistorySnapshot(mHelper.getStats());
+            return rows;
+        }
+
+        @Override
+        protected void onPostExecute(ArrayList<UsageRow> rows) {
+            if (mRefreshTask != this) {
+                return;
+            }
+            mRefreshTask = null;
+            if (getActivity() == null) {
+                return;
+            }
+            // Publish the new stats, the old helper gets the next refresh.
+            mPendingStatsHelper = mStatsHelper;
+            mStatsHelper = mHelper;
+            mHistorySnapshot = mSnapshot;
+            mShownStatsType = mType;
+            applyUsageRows(rows);
+            if (mRefreshPending) {
+                mRefreshPending = false;
+                refreshStats();
+            }
+        }
+    }
+
+    /**
+     * Reads the history of the stats, and writes it for BatteryHistoryDetail if it changed
+     * since the last refresh.  Only called from RefreshStatsTask, which runs serially.
+     */
+    private BatteryHistorySnapshot loadHistorySnapshot(BatteryStats stats) {
+        if (stats == null) {
+            return null;
+        }
+        final BatteryHistorySnapshot snapshot = new BatteryHistorySnapshot(stats,
+                BatteryHistoryModel.load(stats));
+        if (!snapshot.mVersion.equals(mWrittenHistoryVersion)) {
+            try {
+                snapshot.write(mHistoryFile);
+                mWrittenHistoryVersion = snapshot.mVersion;
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to write battery history", e);
+            }
+        }
+        return snapshot;
+    }
+
+    private void refreshStats() {
+        if (mRefreshTask != null) {
+            // Refresh again with the latest stats once this one is done.
+            mRefreshPending = true;
+            return;
+        }
+        if (!mStatsStale) {
+            // The stats shown are still current, only recompute the rows if the type changed.
+            if (mShownStatsType != mStatsType) {
+                mShownStatsType = mStatsType;
+                applyUsageRows(computeUsageRows(mStatsHelper, mStatsType));
+            } else {
+                // The queue was stopped on pause, ask again for what was still loading.
+                for (PowerGaugePreference pref : mGaugePrefs.values()) {
+                    pref.getInfo().requeueIfUnresolved(mHandler);
                 }
-                final UserHandle userHandle = new UserHandle(UserHandle.getUserId(sipper.getUid()));
-                final BatteryEntry entry = new BatteryEntry(getActivity(), mHandler, mUm, sipper);
+                BatteryEntry.startRequestQueue();
+            }
+            return;
+        }
+        mStatsStale = false;
+        mRefreshTask = new RefreshStatsTask(mPendingStatsHelper, mUm.getUserProfiles(),
+                mStatsType);
+        mRefreshTask.execute();
+    }
+
+    /**
+     * Updates the list to show the given rows, only touching the preferences that changed.
+     */
+    private void applyUsageRows(ArrayList<UsageRow> rows) {
+        mAppListGroup.setOrderingAsAdded(false);
+        if (mHistPref != null) {
+            mAppListGroup.removePreference(mHistPref);
+        }
+        mHistPref = new BatteryHistoryPreference(getActivity(), mStatsHelper.getStats(),
+                mStatsHelper.getBatteryBroadcast());
+        mHistPref.setSnapshot(mHistorySnapshot);
+        mHistPref.setOrder(-1);
+        mAppListGroup.addPreference(mHistPref);
+
+        final HashMap<String, PowerGaugePreference> oldPrefs
+                = new HashMap<String, PowerGaugePreference>(mGaugePrefs);
+        mGaugePrefs.clear();
+        int added = 0;
+        final int numRows = rows.size();
+        for (int i = 0; i < numRows; i++) {
+            final UsageRow row = rows.get(i);
+            PowerGaugePreference pref = oldPrefs.remove(row.key);
+            if (pref != null) {
+                pref.getInfo().updateSipper(row.sipper);
+                pref.getInfo().requeueIfUnresolved(mHandler);
+            } else {
+                final UserHandle userHandle =
+                        new UserHandle(UserHandle.getUserId(row.sipper.getUid()));
+                final BatteryEntry entry = new BatteryEntry(getActivity(), mHandler, mUm,
+                        row.sipper);
                 final Drawable badgedIcon = mUm.getBadgedIconForUser(entry.getIcon(),
                         userHandle);
-                final CharSequence contentDescription = mUm.getBadgedLabelForUser(entry.getLabel(),
-                        userHandle);
-                final PowerGaugePreference pref = new PowerGaugePreference(getActivity(),
-                        badgedIcon, contentDescription, entry);
-
-                final double percentOfMax = (sipper.value * 100) / mStatsHelper.getMaxPower();
-                sipper.percent = percentOfTotal;
+                final CharSequence contentDescription = mUm.getBadgedLabelForUser(
+                        entry.getLabel(), userHandle);
+                pref = new PowerGaugePreference(getActivity(), badgedIcon, contentDescription,
+                        entry);
                 pref.setTitle(entry.getLabel());
-                pref.setOrder(i + 1);
-                pref.setPercent(percentOfMax, percentOfTotal);
-                if (sipper.uidObj != null) {
-                    pref.setKey(Integer.toString(sipper.uidObj.getUid()));
-                }
-                addedSome = true;
+                pref.setKey(row.key);
                 mAppListGroup.addPreference(pref);
-                if (mAppListGroup.getPreferenceCount() > (MAX_ITEMS_TO_LIST + 1)) {
-                    break;
-                }
+                added++;
             }
+            pref.setOrder(i + 1);
+            pref.setPercent(row.percentOfMax, row.percentOfTotal);
+            mGaugePrefs.put(row.key, pref);
         }
-        if (!addedSome) {
-            addNotAvailableMessage();
+        for (PowerGaugePreference pref : oldPrefs.values()) {
+            mAppListGroup.removePreference(pref);
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Refreshed stats: " + numRows + " rows, " + added + " added, "
+                    + oldPrefs.size() + " removed");
+        }
+
+        if (numRows == 0) {
+            if (mNotAvailablePref == null) {
+                mNotAvailablePref = new Preference(getActivity());
+                mNotAvailablePref.setTitle(R.string.power_usage_not_available);
+                mAppListGroup.addPreference(mNotAvailablePref);
+            }
+            mHistPref.setHideLabels(true);
+        } else if (mNotAvailablePref != null) {
+            mAppListGroup.removePreference(mNotAvailablePref);
+            mNotAvailablePref = null;
         }
 
         BatteryEntry.startRequestQueue();
@@ -345,9 +565,7 @@ public class PowerUsageSummary extends PreferenceFragment {
             switch (msg.what) {
                 case BatteryEntry.MSG_UPDATE_NAME_ICON:
                     BatteryEntry entry = (BatteryEntry) msg.obj;
-                    PowerGaugePreference pgp =
-                            (PowerGaugePreference) findPreference(
-                                    Integer.toString(entry.sipper.uidObj.getUid()));
+                    PowerGaugePreference pgp = mGaugePrefs.get(getSipperKey(entry.sipper));
                     if (pgp != null) {
                         final int userId = UserHandle.getUserId(entry.sipper.getUid());
                         final UserHandle userHandle = new UserHandle(userId);
@@ -362,7 +580,7 @@ public class PowerUsageSummary extends PreferenceFragment {
                     }
                     break;
                 case MSG_REFRESH_STATS:
-                    mStatsHelper.clearStats();
+                    mStatsStale = true;
                     refreshStats();
             }
             super.handleMessage(msg);
@@ -26,22 +26,39 @@ import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
 
 import com.android.settings.DataUsageSummary.AppItem;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
 /**
- * Loader for historical chart data for both network and UID details.
+ * Loader for historical chart data for both network and UID details. Results are kept in
+ * a {@link NetworkStatsCache}.
  */
 public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
+    private static final String TAG = "ChartDataLoader";
+    private static final boolean LOGD = false;
+
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_APP = "app";
     private static final String KEY_FIELDS = "fields";
 
+    // Latency of the loads that missed the cache, for this process.
+    private static final Object sStatsLock = new Object();
+    private static int sNumLoads;
+    private static long sTotalLoadMillis;
+    private static long sMaxLoadMillis;
+
     private final INetworkStatsSession mSession;
+    private final NetworkStatsCache mCache;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, AppItem app) {
@@ -56,9 +73,11 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         return args;
     }
 
-    public ChartDataLoader(Context context, INetworkStatsSession session, Bundle args) {
+    public ChartDataLoader(Context context, INetworkStatsSession session,
+            NetworkStatsCache cache, Bundle args) {
         super(context);
         mSession = session;
+        mCache = cache;
         mArgs = args;
     }
 
@@ -74,8 +93,20 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         final AppItem app = mArgs.getParcelable(KEY_APP);
         final int fields = mArgs.getInt(KEY_FIELDS);
 
+        ChartData data = mCache.getChartData(template, app, fields);
+        if (data != null) {
+            return data;
+        }
+        final int generation = mCache.getGeneration();
         try {
-            return loadInBackground(template, app, fields);
+            final long startTime = SystemClock.elapsedRealtime();
+            data = load(mSession, template, app, fields);
+            final long loadMillis = SystemClock.elapsedRealtime() - startTime;
+            recordLoad(loadMillis);
+            if (LOGD) Log.d(TAG, "Loaded history for " + (app != null ? app.uids.size() : 0)
+                    + " uids in " + loadMillis + " ms");
+            mCache.putChartData(template, app, fields, data, generation);
+            return data;
         } catch (RemoteException e) {
             // since we can't do much without history, and we don't want to
             // leave with half-baked UI, we bail hard.
@@ -83,26 +114,33 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         }
     }
 
-    private ChartData loadInBackground(NetworkTemplate template, AppItem app, int fields)
-            throws RemoteException {
+    static ChartData load(INetworkStatsSession session, NetworkTemplate template, AppItem app,
+            int fields) throws RemoteException {
         final ChartData data = new ChartData();
-        data.network = mSession.getHistoryForNetwork(template, fields);
+        data.network = session.getHistoryForNetwork(template, fields);
 
         if (app != null) {
-            // load stats for current uid and template
+            // load stats for current uid and template, for all uids before
+            // merging anything
             final int size = app.uids.size();
+            final ArrayList<NetworkStatsHistory> defaults =
+                    new ArrayList<NetworkStatsHistory>(size);
+            final ArrayList<NetworkStatsHistory> foregrounds =
+                    new ArrayList<NetworkStatsHistory>(size);
             for (int i = 0; i < size; i++) {
                 final int uid = app.uids.keyAt(i);
-                data.detailDefault = collectHistoryForUid(
-                        template, uid, SET_DEFAULT, data.detailDefault);
-                data.detailForeground = collectHistoryForUid(
-                        template, uid, SET_FOREGROUND, data.detailForeground);
+                defaults.add(getHistoryForUid(session, template, uid, SET_DEFAULT));
+                foregrounds.add(getHistoryForUid(session, template, uid, SET_FOREGROUND));
             }
 
             if (size > 0) {
-                data.detail = new NetworkStatsHistory(data.detailForeground.getBucketDuration());
-                data.detail.recordEntireHistory(data.detailDefault);
-                data.detail.recordEntireHistory(data.detailForeground);
+                data.detailDefault = mergeHistories(defaults);
+                data.detailForeground = mergeHistories(foregrounds);
+                final ArrayList<NetworkStatsHistory> details =
+                        new ArrayList<NetworkStatsHistory>(2);
+                details.add(data.detailDefault);
+                details.add(data.detailForeground);
+                data.detail = mergeHistories(details);
             } else {
                 data.detailDefault = new NetworkStatsHistory(HOUR_IN_MILLIS);
                 data.detailForeground = new NetworkStatsHistory(HOUR_IN_MILLIS);
@@ -113,6 +151,45 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         return data;
     }
 
+    private static void recordLoad(long loadMillis) {
+        synchronized (sStatsLock) {
+            sNumLoads++;
+            sTotalLoadMillis += loadMillis;
+            sMaxLoadMillis = Math.max(sMaxLoadMillis, loadMillis);
+        }
+    }
+
+    /** Number of loads that read the stats session. */
+    static int getNumLoads() {
+        synchronized (sStatsLock) {
+            return sNumLoads;
+        }
+    }
+
+    /** Total time spent in the loads that read the stats session. */
+    static long getTotalLoadMillis() {
+        synchronized (sStatsLock) {
+            return sTotalLoadMillis;
+        }
+    }
+
+    /** Longest load that read the stats session. */
+    static long getMaxLoadMillis() {
+        synchronized (sStatsLock) {
+            return sMaxLoadMillis;
+        }
+    }
+
+    /**
+     * Prints the load latency, for dumpsys.
+     */
+    public static void dumpLoadStats(String prefix, PrintWriter writer) {
+        synchronized (sStatsLock) {
+            writer.println(prefix + "Chart loads: " + sNumLoads + " total=" + sTotalLoadMillis
+                    + "ms max=" + sMaxLoadMillis + "ms");
+        }
+    }
+
     @Override
     protected void onStopLoading() {
         super.onStopLoading();
@@ -125,21 +202,80 @@ public class ChartDataLoader extends AsyncTaskLoader<ChartData> {
         cancelLoad();
     }
 
+    private static NetworkStatsHistory getHistoryForUid(INetworkStatsSession session,
+            NetworkTemplate template, int uid, int set) throws RemoteException {
+        return session.getHistoryForUid(
+                template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
+    }
+
     /**
-     * Collect {@link NetworkStatsHistory} for the requested UID, combining with
-     * an existing {@link NetworkStatsHistory} if provided.
+     * Merge the byte counts of several {@link NetworkStatsHistory}. Histories with the same
+     * bucket duration are merged in a single pass over their buckets, which are sorted by start
+     * time, so that every merged bucket is appended instead of inserted.
      */
-    private NetworkStatsHistory collectHistoryForUid(
-            NetworkTemplate template, int uid, int set, NetworkStatsHistory existing)
-            throws RemoteException {
-        final NetworkStatsHistory history = mSession.getHistoryForUid(
-                template, uid, set, TAG_NONE, FIELD_RX_BYTES | FIELD_TX_BYTES);
+    static NetworkStatsHistory mergeHistories(ArrayList<NetworkStatsHistory> histories) {
+        final int count = histories.size();
+        if (count == 1) {
+            return histories.get(0);
+        }
+
+        final long bucketDuration = histories.get(0).getBucketDuration();
+        int maxBuckets = 0;
+        boolean sameDuration = true;
+        for (int i = 0; i < count; i++) {
+            final NetworkStatsHistory history = histories.get(i);
+            maxBuckets = Math.max(maxBuckets, history.size());
+            sameDuration &= history.getBucketDuration() == bucketDuration;
+        }
+        if (!sameDuration) {
+            final NetworkStatsHistory merged = new NetworkStatsHistory(bucketDuration);
+            for (int i = 0; i < count; i++) {
+                merged.recordEntireHistory(histories.get(i));
+            }
+            return merged;
+        }
 
-        if (existing != null) {
-            existing.recordEntireHistory(history);
-            return existing;
-        } else {
-            return history;
+        final NetworkStatsHistory merged = new NetworkStatsHistory(bucketDuration, maxBuckets,
+                FIELD_RX_BYTES | FIELD_TX_BYTES);
+        // Current bucket of each history, or null once it is exhausted.
+        final NetworkStatsHistory.Entry[] heads = new NetworkStatsHistory.Entry[count];
+        final int[] positions = new int[count];
+        for (int i = 0; i < count; i++) {
+            if (histories.get(i).size() > 0) {
+                heads[i] = histories.get(i).getValues(0, null);
+            }
+        }
+        final NetworkStats.Entry sum = new NetworkStats.Entry();
+        while (true) {
+            long bucketStart = Long.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                if (heads[i] != null && heads[i].bucketStart < bucketStart) {
+                    bucketStart = heads[i].bucketStart;
+                }
+            }
+            if (bucketStart == Long.MAX_VALUE) {
+                break;
+            }
+
+            sum.rxBytes = 0;
+            sum.txBytes = 0;
+            for (int i = 0; i < count; i++) {
+                final NetworkStatsHistory.Entry head = heads[i];
+                if (head == null || head.bucketStart != bucketStart) {
+                    continue;
+                }
+                // fields that weren't requested are reported as unknown
+                sum.rxBytes += Math.max(head.rxBytes, 0);
+                sum.txBytes += Math.max(head.txBytes, 0);
+                final NetworkStatsHistory history = histories.get(i);
+                if (++positions[i] < history.size()) {
+                    history.getValues(positions[i], head);
+                } else {
+                    heads[i] = null;
+                }
+            }
+            merged.recordData(bucketStart, bucketStart + bucketDuration, sum);
         }
+        return merged;
     }
 }
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStatsHistory.FIELD_RX_BYTES;
+import static android.net.NetworkStatsHistory.FIELD_TX_BYTES;
+
+import android.net.INetworkStatsSession;
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.os.Process;
+import android.os.RemoteException;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of what {@link ChartDataLoader} and {@link SummaryForAllUidLoader} read from the
+ * stats session, so that switching back to a tab, cycle or app already shown doesn't query
+ * the session again.
+ *
+ * The data only changes when the stats service polls, so the owner calls
+ * {@link #invalidate()} after forcing a poll. Loads that started before are not cached.
+ * Entries can also be prefetched on a background thread. All the methods are thread safe.
+ */
+public class NetworkStatsCache {
+    private static final String TAG = "NetworkStatsCache";
+
+    private static final int MAX_CHART_DATA = 16;
+    private static final int MAX_SUMMARIES = 16;
+
+    private static final int PREFETCH_THREAD_KEEP_ALIVE_SECONDS = 5;
+
+    /**
+     * Picks the cycle of a summary to prefetch, once the network history of its template
+     * is known. Called on the prefetch thread.
+     */
+    public interface SummaryRange {
+        /**
+         * @return the {start, end} of the summary to prefetch, or null for none.
+         */
+        long[] compute(ChartData data);
+    }
+
+    private static final class Key {
+        final NetworkTemplate template;
+        final int[] uids;
+        final int fields;
+        final long start;
+        final long end;
+
+        Key(NetworkTemplate template, int[] uids, int fields, long start, long end) {
+            this.template = template;
+            this.uids = uids;
+            this.fields = fields;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return template.equals(other.template) && Arrays.equals(uids, other.uids)
+                    && fields == other.fields && start == other.start && end == other.end;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = template.hashCode();
+            result = 31 * result + Arrays.hashCode(uids);
+            result = 31 * result + fields;
+            result = 31 * result + (int) (start ^ (start >>> 32));
+            result = 31 * result + (int) (end ^ (end >>> 32));
+            return result;
+        }
+    }
+
+    private final LruCache<Key, ChartData> mChartData =
+            new LruCache<Key, ChartData>(MAX_CHART_DATA);
+    private final LruCache<Key, NetworkStats> mSummaries =
+            new LruCache<Key, NetworkStats>(MAX_SUMMARIES);
+    private int mGeneration;
+
+    private final ThreadPoolExecutor mPrefetchExecutor;
+
+    public NetworkStatsCache() {
+        mPrefetchExecutor = new ThreadPoolExecutor(1, 1,
+                PREFETCH_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG);
+                    }
+                });
+        mPrefetchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Returns the generation of the cached data, to pass to the put methods.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Drops everything, e.g. after the stats service polled.
+     */
+    public void invalidate() {
+        synchronized (this) {
+            mGeneration++;
+        }
+        mChartData.evictAll();
+        mSummaries.evictAll();
+    }
+
+    public ChartData getChartData(NetworkTemplate template, AppItem app, int fields) {
+        return mChartData.get(chartKey(template, app, fields));
+    }
+
+    public void putChartData(NetworkTemplate template, AppItem app, int fields,
+            ChartData data, int generation) {
+        synchronized (this) {
+            if (generation != mGeneration || data == null) {
+                return;
+            }
+            mChartData.put(chartKey(template, app, fields), data);
+        }
+    }
+
+    public NetworkStats getSummary(NetworkTemplate template, long start, long end) {
+        return mSummaries.get(summaryKey(template, start, end));
+    }
+
+    public void putSummary(NetworkTemplate template, long start, long end, NetworkStats stats,
+            int generation) {
+        synchronized (this) {
+            if (generation != mGeneration || stats == null) {
+                return;
+            }
+            mSummaries.put(summaryKey(template, start, end), stats);
+        }
+    }
+
+    /**
+     * Loads the network history of a template in the background, if not cached yet.
+     */
+    public void prefetchChartData(final INetworkStatsSession session,
+            final NetworkTemplate template) {
+        final int fields = FIELD_RX_BYTES | FIELD_TX_BYTES;
+        mPrefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (getChartData(template, null, fields) != null) {
+                    return;
+                }
+                final int generation = getGeneration();
+                try {
+                    putChartData(template, null, fields,
+                            ChartDataLoader.load(session, template, null, fields), generation);
+                } catch (RemoteException | RuntimeException e) {
+                    // The session may have been closed in the meantime.
+                    Log.w(TAG, "Unable to prefetch history for " + template, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads the usage of all UIDs over a cycle in the background, if not cached yet.
+     */
+    public void prefetchSummary(final INetworkStatsSession session,
+            final NetworkTemplate template, final long start, final long end) {
+        mPrefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                loadSummary(session, template, start, end);
+            }
+        });
+    }
+
+    /**
+     * Loads the usage of all UIDs over a cycle of a template in the background, if not cached
+     * yet. The cycle is picked from the network history of the template, which has to be
+     * prefetched first with {@link #prefetchChartData}.
+     */
+    public void prefetchSummary(final INetworkStatsSession session,
+            final NetworkTemplate template, final SummaryRange range) {
+        mPrefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ChartData data = getChartData(template, null,
+                        FIELD_RX_BYTES | FIELD_TX_BYTES);
+                if (data == null) {
+                    // The history could not be prefetched
+                    return;
+                }
+                final long[] cycle = range.compute(data);
+                if (cycle != null) {
+                    loadSummary(session, template, cycle[0], cycle[1]);
+                }
+            }
+        });
+    }
+
+    private void loadSummary(INetworkStatsSession session, NetworkTemplate template,
+            long start, long end) {
+        if (getSummary(template, start, end) != null) {
+            return;
+        }
+        final int generation = getGeneration();
+        try {
+            putSummary(template, start, end,
+                    session.getSummaryForAllUid(template, start, end, false), generation);
+        } catch (RemoteException | RuntimeException e) {
+            Log.w(TAG, "Unable to prefetch summary for " + template, e);
+        }
+    }
+
+    /**
+     * Drops the prefetches that didn't start yet.
+     */
+    public void cancelPrefetch() {
+        mPrefetchExecutor.getQueue().clear();
+    }
+
+    private static Key chartKey(NetworkTemplate template, AppItem app, int fields) {
+        int[] uids = null;
+        if (app != null) {
+            uids = new int[app.uids.size()];
+            for (int i = 0; i < uids.length; i++) {
+                uids[i] = app.uids.keyAt(i);
+            }
+        }
+        return new Key(template, uids, fields, 0, 0);
+    }
+
+    private static Key summaryKey(NetworkTemplate template, long start, long end) {
+        return new Key(template, null, 0, start, end);
+    }
+}
@@ -16,20 +16,67 @@
 
 package com.android.settings.net;
 
+import static android.net.NetworkPolicyManager.POLICY_REJECT_METERED_BACKGROUND;
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.app.ActivityManager;
 import android.content.AsyncTaskLoader;
 import android.content.Context;
 import android.net.INetworkStatsSession;
+import android.net.NetworkPolicyManager;
 import android.net.NetworkStats;
 import android.net.NetworkTemplate;
 import android.os.Bundle;
+import android.os.OperationCanceledException;
 import android.os.RemoteException;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseLongArray;
+
+import com.android.settings.DataUsageSummary.AppItem;
 
-public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Loader for the data usage of all UIDs over a cycle, collapsed into the sorted
+ * {@link AppItem} list shown by the data usage summary.
+ *
+ * The collapsing happens in the background as well: the stats are first summed per uid,
+ * so that user lookups are done once per uid rather than once per stats row. Restarting the
+ * loader, e.g. when the cycle changes, cancels an aggregation in progress. The stats read
+ * from the session are kept in a {@link NetworkStatsCache}.
+ */
+public class SummaryForAllUidLoader extends AsyncTaskLoader<SummaryForAllUidLoader.Summary> {
     private static final String KEY_TEMPLATE = "template";
     private static final String KEY_START = "start";
     private static final String KEY_END = "end";
 
+    /** How many stats rows are aggregated between two checks for cancellation. */
+    private static final int CANCEL_CHECK_INTERVAL = 256;
+
+    /**
+     * Usage collapsed into {@link AppItem}s, sorted for display.
+     */
+    public static class Summary {
+        public final ArrayList<AppItem> items;
+        /** The largest usage of any item. */
+        public final long largest;
+
+        public Summary(ArrayList<AppItem> items, long largest) {
+            this.items = items;
+            this.largest = largest;
+        }
+    }
+
     private final INetworkStatsSession mSession;
+    private final NetworkStatsCache mCache;
+    private final UserManager mUserManager;
+    private final NetworkPolicyManager mPolicyManager;
     private final Bundle mArgs;
 
     public static Bundle buildArgs(NetworkTemplate template, long start, long end) {
@@ -40,9 +87,14 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
         return args;
     }
 
-    public SummaryForAllUidLoader(Context context, INetworkStatsSession session, Bundle args) {
+    public SummaryForAllUidLoader(Context context, INetworkStatsSession session,
+            NetworkStatsCache cache, UserManager userManager, NetworkPolicyManager policyManager,
+            Bundle args) {
         super(context);
         mSession = session;
+        mCache = cache;
+        mUserManager = userManager;
+        mPolicyManager = policyManager;
         mArgs = args;
     }
 
@@ -53,15 +105,160 @@ public class SummaryForAllUidLoader extends AsyncTaskLoader<NetworkStats> {
     }
 
     @Override
-    public NetworkStats loadInBackground() {
+    public Summary loadInBackground() {
         final NetworkTemplate template = mArgs.getParcelable(KEY_TEMPLATE);
         final long start = mArgs.getLong(KEY_START);
         final long end = mArgs.getLong(KEY_END);
 
-        try {
-            return mSession.getSummaryForAllUid(template, start, end, false);
-        } catch (RemoteException e) {
-            return null;
+        NetworkStats stats = mCache.getSummary(template, start, end);
+        if (stats == null) {
+            final int generation = mCache.getGeneration();
+            try {
+                stats = mSession.getSummaryForAllUid(template, start, end, false);
+                mCache.putSummary(template, start, end, stats, generation);
+            } catch (RemoteException e) {
+                stats = null;
+            }
+        }
+        checkCanceled();
+        final int[] restrictedUids = mPolicyManager.getUidsWithPolicy(
+                POLICY_REJECT_METERED_BACKGROUND);
+        return collapse(stats, restrictedUids);
+    }
+
+    Summary collapse(NetworkStats stats, int[] restrictedUids) {
+        final ArrayList<AppItem> items = new ArrayList<AppItem>();
+        final int currentUserId = ActivityManager.getCurrentUser();
+        final SparseBooleanArray profiles = new SparseBooleanArray();
+        final List<UserHandle> userProfiles = mUserManager.getUserProfiles();
+        for (int i = 0; i < userProfiles.size(); i++) {
+            profiles.put(userProfiles.get(i).getIdentifier(), true);
+        }
+
+        // Sum the rows of each uid, which differ by set and interface.
+        final SparseLongArray uidBytes = new SparseLongArray();
+        NetworkStats.Entry entry = null;
+        final int size = stats != null ? stats.size() : 0;
+        for (int i = 0; i < size; i++) {
+            if (i % CANCEL_CHECK_INTERVAL == 0) {
+                checkCanceled();
+            }
+            entry = stats.getValues(i, entry);
+            final int index = uidBytes.indexOfKey(entry.uid);
+            final long bytes = entry.rxBytes + entry.txBytes;
+            if (index >= 0) {
+                uidBytes.put(entry.uid, uidBytes.valueAt(index) + bytes);
+            } else {
+                uidBytes.put(entry.uid, bytes);
+            }
+        }
+        checkCanceled();
+
+        // Decide how to collapse uids together.
+        final SparseArray<AppItem> knownItems = new SparseArray<AppItem>();
+        // Whether each user that isn't a profile still exists.
+        final SparseBooleanArray usersExist = new SparseBooleanArray();
+        final int numUids = uidBytes.size();
+        for (int i = 0; i < numUids; i++) {
+            final int uid = uidBytes.keyAt(i);
+            final long bytes = uidBytes.valueAt(i);
+
+            final int collapseKey;
+            final int category;
+            final int userId = UserHandle.getUserId(uid);
+            if (UserHandle.isApp(uid)) {
+                if (profiles.get(userId)) {
+                    if (userId != currentUserId) {
+                        // Add to a managed user item.
+                        final int managedKey = UidDetailProvider.buildKeyForUser(userId);
+                        accumulate(items, knownItems, managedKey, AppItem.CATEGORY_USER,
+                                uid, bytes);
+                    }
+                    // Add to app item.
+                    collapseKey = uid;
+                    category = AppItem.CATEGORY_APP;
+                } else {
+                    // If it is a removed user add it to the removed users' key
+                    final int index = usersExist.indexOfKey(userId);
+                    final boolean exists;
+                    if (index >= 0) {
+                        exists = usersExist.valueAt(index);
+                    } else {
+                        exists = mUserManager.getUserInfo(userId) != null;
+                        usersExist.put(userId, exists);
+                    }
+                    if (!exists) {
+                        collapseKey = UID_REMOVED;
+                        category = AppItem.CATEGORY_APP;
+                    } else {
+                        // Add to other user item.
+                        collapseKey = UidDetailProvider.buildKeyForUser(userId);
+                        category = AppItem.CATEGORY_USER;
+                    }
+                }
+            } else if (uid == UID_REMOVED || uid == UID_TETHERING) {
+                collapseKey = uid;
+                category = AppItem.CATEGORY_APP;
+            } else {
+                collapseKey = android.os.Process.SYSTEM_UID;
+                category = AppItem.CATEGORY_APP;
+            }
+            accumulate(items, knownItems, collapseKey, category, uid, bytes);
+        }
+
+        long largest = 0;
+        for (int i = 0; i < items.size(); i++) {
+            largest = Math.max(largest, items.get(i).total);
+        }
+
+        final int restrictedUidsMax = restrictedUids.length;
+        for (int i = 0; i < restrictedUidsMax; ++i) {
+            final int uid = restrictedUids[i];
+            // Only splice in restricted state for current user or managed users
+            if (!profiles.get(UserHandle.getUserId(uid))) {
+                continue;
+            }
+
+            AppItem item = knownItems.get(uid);
+            if (item == null) {
+                item = new AppItem(uid);
+                item.total = -1;
+                items.add(item);
+                knownItems.put(item.key, item);
+            }
+            item.restricted = true;
+        }
+
+        if (!items.isEmpty()) {
+            final AppItem title = new AppItem();
+            title.category = AppItem.CATEGORY_APP_TITLE;
+            items.add(title);
+        }
+
+        Collections.sort(items);
+        return new Summary(items, largest);
+    }
+
+    /**
+     * Accumulate data usage of a uid for the item mapped by the collapse key.
+     * Creates the item if needed.
+     */
+    private static void accumulate(ArrayList<AppItem> items, SparseArray<AppItem> knownItems,
+            int collapseKey, int itemCategory, int uid, long bytes) {
+        AppItem item = knownItems.get(collapseKey);
+        if (item == null) {
+            item = new AppItem(collapseKey);
+            item.category = itemCategory;
+            items.add(item);
+            knownItems.put(item.key, item);
+        }
+        item.addUid(uid);
+        item.total += bytes;
+    }
+
+    private void checkCanceled() {
+        if (isLoadInBackgroundCanceled()) {
+            throw new OperationCanceledException();
         }
     }
 
@@ -34,6 +34,7 @@ import android.print.PrintManager;
 import android.printservice.PrintService;
 import android.printservice.PrintServiceInfo;
 import android.provider.UserDictionary;
+import android.util.Log;
 import android.view.accessibility.AccessibilityManager;
 import android.view.inputmethod.InputMethodInfo;
 import android.view.inputmethod.InputMethodManager;
@@ -43,32 +44,55 @@ import com.android.settings.inputmethod.InputMethodAndLanguageSettings;
 import com.android.settings.print.PrintSettingsFragment;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Keeps the Index up to date with the accessibility, print and input method services, the input
+ * devices and the user dictionary.
+ *
+ * Changes are batched: the events received during DELAY_PROCESS_CHANGES are merged by package
+ * and deduplicated by affected indexable class, and then applied with a single Index update. This
+ * avoids re-indexing the same fragments over and over during bulk package updates.
+ *
+ * All the events are received on the main thread.
+ */
 public final class DynamicIndexableContentMonitor extends PackageMonitor implements
         InputManager.InputDeviceListener {
 
-    private static final long DELAY_PROCESS_PACKAGE_CHANGE = 2000;
+    private static final String LOG_TAG = "DynamicIndexableContentMonitor";
+
+    private static final long DELAY_PROCESS_CHANGES = 2000;
 
-    private static final int MSG_PACKAGE_AVAILABLE = 1;
-    private static final int MSG_PACKAGE_UNAVAILABLE = 2;
+    private static final int MSG_PROCESS_CHANGES = 1;
+
+    // Package events of a batch
+    private static final int PACKAGE_UNAVAILABLE = 1 << 0;
+    private static final int PACKAGE_AVAILABLE = 1 << 1;
 
     private final List<String> mAccessibilityServices = new ArrayList<String>();
     private final List<String> mPrintServices = new ArrayList<String>();
     private final List<String> mImeServices = new ArrayList<String>();
 
+    // Package events of the batch for each package: PACKAGE_UNAVAILABLE if the package went away
+    // at some point, and PACKAGE_AVAILABLE if it is available at the end of the batch
+    private final Map<String, Integer> mPendingPackages = new LinkedHashMap<String, Integer>();
+    // Indexable classes to update at the end of the batch: true if their data should be deleted
+    // from the Index first
+    private final Map<String, Boolean> mPendingClassNames = new LinkedHashMap<String, Boolean>();
+
+    // Metrics
+    private int mBatchEventCount;
+    private int mTotalEventCount;
+    private int mTotalReindexCount;
+
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
-                case MSG_PACKAGE_AVAILABLE: {
-                    String packageName = (String) msg.obj;
-                    handlePackageAvailable(packageName);
-                } break;
-
-                case MSG_PACKAGE_UNAVAILABLE: {
-                    String packageName = (String) msg.obj;
-                    handlePackageUnavailable(packageName);
+                case MSG_PROCESS_CHANGES: {
+                    processChanges();
                 } break;
             }
         }
@@ -172,6 +196,11 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 Context.INPUT_SERVICE);
         inputManager.unregisterInputDeviceListener(this);
 
+        mHandler.removeMessages(MSG_PROCESS_CHANGES);
+        mPendingPackages.clear();
+        mPendingClassNames.clear();
+        mBatchEventCount = 0;
+
         if (mHasFeatureIme) {
             mContext.getContentResolver().unregisterContentObserver(
                     mUserDictionaryContentObserver);
@@ -185,13 +214,13 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
     // Covers installed, appeared external storage with the package, upgraded.
     @Override
     public void onPackageAppeared(String packageName, int uid) {
-        postMessage(MSG_PACKAGE_AVAILABLE, packageName);
+        postPackageChange(packageName, true);
     }
 
     // Covers uninstalled, removed external storage with the package.
     @Override
     public void onPackageDisappeared(String packageName, int uid) {
-        postMessage(MSG_PACKAGE_UNAVAILABLE, packageName);
+        postPackageChange(packageName, false);
     }
 
     // Covers enabled, disabled.
@@ -202,16 +231,15 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 packageName);
         if (state == PackageManager.COMPONENT_ENABLED_STATE_DEFAULT
                 || state ==  PackageManager.COMPONENT_ENABLED_STATE_ENABLED) {
-            postMessage(MSG_PACKAGE_AVAILABLE, packageName);
+            postPackageChange(packageName, true);
         } else {
-            postMessage(MSG_PACKAGE_UNAVAILABLE, packageName);
+            postPackageChange(packageName, false);
         }
     }
 
     @Override
     public void onInputDeviceAdded(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), false, true);
+        postClassNameChange(InputMethodAndLanguageSettings.class.getName(), false);
     }
 
     @Override
@@ -221,13 +249,66 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
 
     @Override
     public void onInputDeviceChanged(int deviceId) {
-        Index.getInstance(mContext).updateFromClassNameResource(
-                InputMethodAndLanguageSettings.class.getName(), true, true);
+        postClassNameChange(InputMethodAndLanguageSettings.class.getName(), true);
+    }
+
+    private void postPackageChange(String packageName, boolean available) {
+        // An update makes the package disappear and appear again: its services are then
+        // removed and added back, so that the ones it dropped go away
+        final Integer pending = mPendingPackages.get(packageName);
+        int events = (pending != null) ? pending : 0;
+        if (available) {
+            events |= PACKAGE_AVAILABLE;
+        } else {
+            events = (events & ~PACKAGE_AVAILABLE) | PACKAGE_UNAVAILABLE;
+        }
+        mPendingPackages.put(packageName, events);
+        onEventReceived();
     }
 
-    private void postMessage(int what, String packageName) {
-        Message message = mHandler.obtainMessage(what, packageName);
-        mHandler.sendMessageDelayed(message, DELAY_PROCESS_PACKAGE_CHANGE);
+    private void postClassNameChange(String className, boolean rebuild) {
+        addPendingClassName(className, rebuild);
+        onEventReceived();
+    }
+
+    private void addPendingClassName(String className, boolean rebuild) {
+        final Boolean pendingRebuild = mPendingClassNames.get(className);
+        mPendingClassNames.put(className, rebuild
+                || (pendingRebuild != null && pendingRebuild.booleanValue()));
+    }
+
+    private void onEventReceived() {
+        mBatchEventCount++;
+        mTotalEventCount++;
+        if (!mHandler.hasMessages(MSG_PROCESS_CHANGES)) {
+            mHandler.sendEmptyMessageDelayed(MSG_PROCESS_CHANGES, DELAY_PROCESS_CHANGES);
+        }
+    }
+
+    private void processChanges() {
+        for (Map.Entry<String, Integer> entry : mPendingPackages.entrySet()) {
+            final int events = entry.getValue();
+            if ((events & PACKAGE_UNAVAILABLE) != 0) {
+                handlePackageUnavailable(entry.getKey());
+            }
+            if ((events & PACKAGE_AVAILABLE) != 0) {
+                handlePackageAvailable(entry.getKey());
+            }
+        }
+        mPendingPackages.clear();
+
+        if (!mPendingClassNames.isEmpty()) {
+            mTotalReindexCount++;
+            Index.getInstance(mContext).updateFromClassNameResources(
+                    new LinkedHashMap<String, Boolean>(mPendingClassNames), true);
+        }
+
+        Log.d(LOG_TAG, "Processed " + mBatchEventCount + " event(s) into " +
+                mPendingClassNames.size() + " class update(s); " + mTotalEventCount +
+                " event(s) received and " + mTotalReindexCount + " reindex pass(es) so far");
+
+        mPendingClassNames.clear();
+        mBatchEventCount = 0;
     }
 
     private void handlePackageAvailable(String packageName) {
@@ -235,8 +316,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
             final Intent intent = getAccessibilityServiceIntent(packageName);
             if (!mContext.getPackageManager().queryIntentServices(intent, 0).isEmpty()) {
                 mAccessibilityServices.add(packageName);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        AccessibilitySettings.class.getName(), false, true);
+                addPendingClassName(AccessibilitySettings.class.getName(), false);
             }
         }
 
@@ -245,8 +325,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 final Intent intent = getPrintServiceIntent(packageName);
                 if (!mContext.getPackageManager().queryIntentServices(intent, 0).isEmpty()) {
                     mPrintServices.add(packageName);
-                    Index.getInstance(mContext).updateFromClassNameResource(
-                            PrintSettingsFragment.class.getName(), false, true);
+                    addPendingClassName(PrintSettingsFragment.class.getName(), false);
                 }
             }
         }
@@ -256,8 +335,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
                 Intent intent = getIMEServiceIntent(packageName);
                 if (!mContext.getPackageManager().queryIntentServices(intent, 0).isEmpty()) {
                     mImeServices.add(packageName);
-                    Index.getInstance(mContext).updateFromClassNameResource(
-                            InputMethodAndLanguageSettings.class.getName(), false, true);
+                    addPendingClassName(InputMethodAndLanguageSettings.class.getName(), false);
                 }
             }
         }
@@ -267,16 +345,14 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         final int accessibilityIndex = mAccessibilityServices.indexOf(packageName);
         if (accessibilityIndex >= 0) {
             mAccessibilityServices.remove(accessibilityIndex);
-            Index.getInstance(mContext).updateFromClassNameResource(
-                    AccessibilitySettings.class.getName(), true, true);
+            addPendingClassName(AccessibilitySettings.class.getName(), true);
         }
 
         if (mHasFeaturePrinting) {
             final int printIndex = mPrintServices.indexOf(packageName);
             if (printIndex >= 0) {
                 mPrintServices.remove(printIndex);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        PrintSettingsFragment.class.getName(), true, true);
+                addPendingClassName(PrintSettingsFragment.class.getName(), true);
             }
         }
 
@@ -284,8 +360,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
             final int imeIndex = mImeServices.indexOf(packageName);
             if (imeIndex >= 0) {
                 mImeServices.remove(imeIndex);
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                addPendingClassName(InputMethodAndLanguageSettings.class.getName(), true);
             }
         }
     }
@@ -299,8 +374,7 @@ public final class DynamicIndexableContentMonitor extends PackageMonitor impleme
         @Override
         public void onChange(boolean selfChange, Uri uri) {
             if (UserDictionary.Words.CONTENT_URI.equals(uri)) {
-                Index.getInstance(mContext).updateFromClassNameResource(
-                        InputMethodAndLanguageSettings.class.getName(), true, true);
+                postClassNameChange(InputMethodAndLanguageSettings.class.getName(), true);
             }
         };
     }
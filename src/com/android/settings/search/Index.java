@@ -24,14 +24,21 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.content.res.Configuration;
 import android.content.res.TypedArray;
 import android.content.res.XmlResourceParser;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.CancellationSignal;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.Process;
 import android.provider.SearchIndexableData;
 import android.provider.SearchIndexableResource;
 import android.provider.SearchIndexablesContract;
@@ -51,11 +58,22 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import static android.provider.SearchIndexablesContract.COLUMN_INDEX_NON_INDEXABLE_KEYS_KEY_VALUE;
@@ -84,6 +102,7 @@ import static android.provider.SearchIndexablesContract.COLUMN_INDEX_XML_RES_INT
 
 import static com.android.settings.search.IndexDatabaseHelper.Tables;
 import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+import static com.android.settings.search.IndexDatabaseHelper.SourceFingerprintsColumns;
 
 public class Index {
 
@@ -109,7 +128,7 @@ public class Index {
     public static final String ENTRIES_SEPARATOR = "|";
 
     // If you change the order of columns here, you SHOULD change the COLUMN_INDEX_XXX values
-    private static final String[] SELECT_COLUMNS = new String[] {
+    static final String[] SELECT_COLUMNS = new String[] {
             IndexColumns.DATA_RANK,               // 0
             IndexColumns.DATA_TITLE,              // 1
             IndexColumns.DATA_SUMMARY_ON,         // 2
@@ -126,13 +145,13 @@ public class Index {
             IndexColumns.DATA_KEY_REF             // 13
     };
 
-    private static final String[] MATCH_COLUMNS_PRIMARY = {
+    static final String[] MATCH_COLUMNS_PRIMARY = {
             IndexColumns.DATA_TITLE,
             IndexColumns.DATA_TITLE_NORMALIZED,
             IndexColumns.DATA_KEYWORDS
     };
 
-    private static final String[] MATCH_COLUMNS_SECONDARY = {
+    static final String[] MATCH_COLUMNS_SECONDARY = {
             IndexColumns.DATA_SUMMARY_ON,
             IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
             IndexColumns.DATA_SUMMARY_OFF,
@@ -141,12 +160,45 @@ public class Index {
     };
 
     // Max number of saved search queries (who will be used for proposing suggestions)
-    private static long MAX_SAVED_SEARCH_QUERY = 64;
+    private static final int MAX_SAVED_SEARCH_QUERY = 64;
     // Max number of proposed suggestions
     private static final int MAX_PROPOSED_SUGGESTIONS = 5;
 
+    private static final String[] SUGGESTIONS_COLUMNS = new String[] {
+            IndexDatabaseHelper.SavedQueriesColums.QUERY
+    };
+
+    private static final String SELECT_SAVED_QUERIES_SQL =
+            "SELECT " + IndexDatabaseHelper.SavedQueriesColums.QUERY +
+            " FROM " + Tables.TABLE_SAVED_QUERIES +
+            " ORDER BY " + IndexDatabaseHelper.SavedQueriesColums.TIME_STAMP + " DESC" +
+            " LIMIT ?";
+
+    private static final String UPDATE_SAVED_QUERY_SQL =
+            "UPDATE " + Tables.TABLE_SAVED_QUERIES +
+            " SET " + IndexDatabaseHelper.SavedQueriesColums.TIME_STAMP + " = ?" +
+            " WHERE " + IndexDatabaseHelper.SavedQueriesColums.QUERY + " = ?";
+
+    private static final String INSERT_SAVED_QUERY_SQL =
+            "INSERT INTO " + Tables.TABLE_SAVED_QUERIES +
+            " (" + IndexDatabaseHelper.SavedQueriesColums.QUERY + ", " +
+            IndexDatabaseHelper.SavedQueriesColums.TIME_STAMP + ") VALUES (?, ?)";
+
+    // Only keep the most recent saved queries
+    private static final String EVICT_SAVED_QUERIES_SQL =
+            "DELETE FROM " + Tables.TABLE_SAVED_QUERIES +
+            " WHERE rowId NOT IN (SELECT rowId FROM " + Tables.TABLE_SAVED_QUERIES +
+            " ORDER BY " + IndexDatabaseHelper.SavedQueriesColums.TIME_STAMP + " DESC" +
+            " LIMIT " + MAX_SAVED_SEARCH_QUERY + ")";
+
     private static final String BASE_AUTHORITY = "com.android.settings";
 
+    private static final String SHARED_PREFS_NAME = "search_index";
+    private static final String PREF_KEY_RECENT_LOCALES = "recent_locales";
+    private static final String LOCALES_SEPARATOR = ",";
+    // Max number of recently used locales (including the current one) kept indexed
+    private static final int MAX_RECENT_LOCALES = 3;
+
     private static final String EMPTY = "";
     private static final String NON_BREAKING_HYPHEN = "\u2011";
     private static final String HYPHEN = "-";
@@ -162,6 +214,13 @@ public class Index {
 
     private static Index sInstance;
 
+    // Number of threads used for parsing the XML resources to index
+    private static final int INDEXING_THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long INDEXING_THREAD_KEEP_ALIVE_SECONDS = 5;
+
+    private static ExecutorService sIndexingExecutor;
+
     private static final Pattern REMOVE_DIACRITICALS_PATTERN
             = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
 
@@ -172,20 +231,31 @@ public class Index {
         public List<SearchIndexableData> dataToUpdate;
         public List<SearchIndexableData> dataToDelete;
         public Map<String, List<String>> nonIndexableKeys;
+        public List<SourceFingerprint> fingerprints;
+        // Packages whose rows are replaced, and sources that are gone
+        public List<String> packagesToReplace;
+        public List<String> sourcesToRemove;
 
-        public boolean forceUpdate = false;
+        // True to query the SearchIndexablesProviders that changed before updating
+        public boolean updateProviders;
 
         public UpdateData() {
             dataToUpdate = new ArrayList<SearchIndexableData>();
             dataToDelete = new ArrayList<SearchIndexableData>();
             nonIndexableKeys = new HashMap<String, List<String>>();
+            fingerprints = new ArrayList<SourceFingerprint>();
+            packagesToReplace = new ArrayList<String>();
+            sourcesToRemove = new ArrayList<String>();
         }
 
         public UpdateData(UpdateData other) {
             dataToUpdate = new ArrayList<SearchIndexableData>(other.dataToUpdate);
             dataToDelete = new ArrayList<SearchIndexableData>(other.dataToDelete);
             nonIndexableKeys = new HashMap<String, List<String>>(other.nonIndexableKeys);
-            forceUpdate = other.forceUpdate;
+            fingerprints = new ArrayList<SourceFingerprint>(other.fingerprints);
+            packagesToReplace = new ArrayList<String>(other.packagesToReplace);
+            sourcesToRemove = new ArrayList<String>(other.sourcesToRemove);
+            updateProviders = other.updateProviders;
         }
 
         public UpdateData copy() {
@@ -196,12 +266,91 @@ public class Index {
             dataToUpdate.clear();
             dataToDelete.clear();
             nonIndexableKeys.clear();
-            forceUpdate = false;
+            fingerprints.clear();
+            packagesToReplace.clear();
+            sourcesToRemove.clear();
+            updateProviders = false;
+        }
+    }
+
+    /**
+     * A private class describing the state of a SearchIndexablesProvider when it was indexed.
+     *
+     * The XML resources of a provider can only change when its APK is updated, so the location
+     * and the last update time of the APK stand in for a checksum of the resources.
+     */
+    private static class SourceFingerprint {
+        public final String source;
+        public final String packageName;
+        public final String locale;
+        public final int versionCode;
+        public final long resourcesChecksum;
+        public final int nonIndexableKeysHash;
+
+        public SourceFingerprint(String source, String packageName, String locale,
+                int versionCode, long resourcesChecksum, int nonIndexableKeysHash) {
+            this.source = source;
+            this.packageName = packageName;
+            this.locale = locale;
+            this.versionCode = versionCode;
+            this.resourcesChecksum = resourcesChecksum;
+            this.nonIndexableKeysHash = nonIndexableKeysHash;
+        }
+
+        public boolean matches(SourceFingerprint other) {
+            return other != null
+                    && source.equals(other.source)
+                    && TextUtils.equals(packageName, other.packageName)
+                    && locale.equals(other.locale)
+                    && versionCode == other.versionCode
+                    && resourcesChecksum == other.resourcesChecksum
+                    && nonIndexableKeysHash == other.nonIndexableKeysHash;
+        }
+    }
+
+    /**
+     * Lazily create the pool of threads parsing the XML resources to index. The threads are
+     * released when there is nothing left to index.
+     */
+    private static synchronized ExecutorService getIndexingExecutor() {
+        if (sIndexingExecutor == null) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    INDEXING_THREADS, INDEXING_THREADS,
+                    INDEXING_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "Index #" + mCount.getAndIncrement());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sIndexingExecutor = executor;
         }
+        return sIndexingExecutor;
     }
 
     private final AtomicBoolean mIsAvailable = new AtomicBoolean(false);
     private final UpdateData mDataToProcess = new UpdateData();
+    // Fingerprints of the sources indexed (or being indexed) for mSourceFingerprintsLocale
+    private final Map<String, SourceFingerprint> mSourceFingerprints =
+            new HashMap<String, SourceFingerprint>();
+    private String mSourceFingerprintsLocale;
+    // In-memory copy of the Index for the current locale. Refreshed after each Index update
+    private final Object mSearchEngineLock = new Object();
+    private IndexSearchEngine mSearchEngine;
+    // Most recently used saved queries first
+    private final List<String> mSavedQueries = new ArrayList<String>();
+    private boolean mSavedQueriesLoaded;
     private Context mContext;
     private final String mBaseAuthority;
 
@@ -231,77 +380,241 @@ public class Index {
     }
 
     public Cursor search(String query) {
+        return search(query, null);
+    }
+
+    /**
+     * Search the Index.
+     *
+     * @param cancellationSignal a signal to cancel the query, or null if none.
+     * @throws android.os.OperationCanceledException if the query has been canceled.
+     */
+    public Cursor search(String query, CancellationSignal cancellationSignal) {
+        final IndexSearchEngine engine = getSearchEngine(Locale.getDefault().toString());
+        if (engine != null) {
+            return engine.search(query, cancellationSignal);
+        }
+        return searchDatabase(query, cancellationSignal);
+    }
+
+    private Cursor searchDatabase(String query, CancellationSignal cancellationSignal) {
         final SQLiteDatabase database = getReadableDatabase();
+        final String tableName = IndexDatabaseHelper.getPrefsIndexTable(database,
+                Locale.getDefault().toString());
         final Cursor[] cursors = new Cursor[2];
 
-        final String primarySql = buildSearchSQL(query, MATCH_COLUMNS_PRIMARY, true);
+        final String primarySql = buildSearchSQL(tableName, query, MATCH_COLUMNS_PRIMARY, true);
         Log.d(LOG_TAG, "Search primary query: " + primarySql);
-        cursors[0] = database.rawQuery(primarySql, null);
+        cursors[0] = database.rawQuery(primarySql, null, cancellationSignal);
 
         // We need to use an EXCEPT operator as negate MATCH queries do not work.
         StringBuilder sql = new StringBuilder(
-                buildSearchSQL(query, MATCH_COLUMNS_SECONDARY, false));
+                buildSearchSQL(tableName, query, MATCH_COLUMNS_SECONDARY, false));
         sql.append(" EXCEPT ");
         sql.append(primarySql);
 
         final String secondarySql = sql.toString();
         Log.d(LOG_TAG, "Search secondary query: " + secondarySql);
-        cursors[1] = database.rawQuery(secondarySql, null);
+        try {
+            cursors[1] = database.rawQuery(secondarySql, null, cancellationSignal);
+        } catch (RuntimeException e) {
+            cursors[0].close();
+            throw e;
+        }
 
         return new MergeCursor(cursors);
     }
 
+    /**
+     * Get the in-memory search engine for the locale, loading it from the database if needed.
+     *
+     * @return null if the engine cannot be loaded.
+     */
+    private IndexSearchEngine getSearchEngine(String localeStr) {
+        synchronized (mSearchEngineLock) {
+            if (mSearchEngine == null || !mSearchEngine.getLocale().equals(localeStr)) {
+                mSearchEngine = loadSearchEngine(getReadableDatabase(), localeStr);
+            }
+            return mSearchEngine;
+        }
+    }
+
+    private void refreshSearchEngine(SQLiteDatabase database, String localeStr) {
+        synchronized (mSearchEngineLock) {
+            mSearchEngine = loadSearchEngine(database, localeStr);
+        }
+    }
+
+    private static IndexSearchEngine loadSearchEngine(SQLiteDatabase database, String localeStr) {
+        try {
+            return IndexSearchEngine.load(database, localeStr, SELECT_COLUMNS,
+                    MATCH_COLUMNS_PRIMARY, MATCH_COLUMNS_SECONDARY);
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Cannot load search engine for locale: " + localeStr, e);
+            return null;
+        }
+    }
+
     public Cursor getSuggestions(String query) {
-        final String sql = buildSuggestionsSQL(query);
-        Log.d(LOG_TAG, "Suggestions query: " + sql);
-        return getReadableDatabase().rawQuery(sql, null);
+        return getSuggestions(query, null);
     }
 
-    private String buildSuggestionsSQL(String query) {
-        StringBuilder sb = new StringBuilder();
+    /**
+     * Get the most recent saved queries starting with the given query. The saved queries are
+     * kept in memory, so only the first call may read the database.
+     *
+     * @param cancellationSignal a signal to cancel the query, or null if none.
+     * @throws android.os.OperationCanceledException if the query has been canceled.
+     */
+    public Cursor getSuggestions(String query, CancellationSignal cancellationSignal) {
+        final MatrixCursor cursor = new MatrixCursor(SUGGESTIONS_COLUMNS);
+        synchronized (mSavedQueries) {
+            loadSavedQueriesIfNeeded(cancellationSignal);
+
+            final boolean hasQuery = !TextUtils.isEmpty(query);
+            final int count = mSavedQueries.size();
+            for (int n = 0; n < count && cursor.getCount() < MAX_PROPOSED_SUGGESTIONS; n++) {
+                final String savedQuery = mSavedQueries.get(n);
+                if (!hasQuery || savedQuery.regionMatches(true, 0, query, 0, query.length())) {
+                    cursor.addRow(new Object[] { savedQuery });
+                }
+            }
+        }
+        return cursor;
+    }
 
-        sb.append("SELECT ");
-        sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-        sb.append(" FROM ");
-        sb.append(Tables.TABLE_SAVED_QUERIES);
+    private void loadSavedQueriesIfNeeded(CancellationSignal cancellationSignal) {
+        if (mSavedQueriesLoaded) {
+            return;
+        }
+        final Cursor cursor = getReadableDatabase().rawQuery(SELECT_SAVED_QUERIES_SQL,
+                new String[] { Long.toString(MAX_SAVED_SEARCH_QUERY) }, cancellationSignal);
+        try {
+            // Queries saved before the loading are more recent than the ones of the database
+            while (cursor.moveToNext()) {
+                final String savedQuery = cursor.getString(0);
+                if (!mSavedQueries.contains(savedQuery)
+                        && mSavedQueries.size() < MAX_SAVED_SEARCH_QUERY) {
+                    mSavedQueries.add(savedQuery);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        mSavedQueriesLoaded = true;
+    }
 
+    /**
+     * Save a query for proposing it as a suggestion. The in-memory list of saved queries is
+     * updated right away and the database is updated in the background.
+     */
+    public void addSavedQuery(String query) {
         if (TextUtils.isEmpty(query)) {
-            sb.append(" ORDER BY rowId DESC");
-        } else {
-            sb.append(" WHERE ");
-            sb.append(IndexDatabaseHelper.SavedQueriesColums.QUERY);
-            sb.append(" LIKE ");
-            sb.append("'");
-            sb.append(query);
-            sb.append("%");
-            sb.append("'");
+            return;
         }
+        synchronized (mSavedQueries) {
+            mSavedQueries.remove(query);
+            mSavedQueries.add(0, query);
+            if (mSavedQueries.size() > MAX_SAVED_SEARCH_QUERY) {
+                mSavedQueries.remove(mSavedQueries.size() - 1);
+            }
+        }
+        final SaveSearchQueryTask task = new SaveSearchQueryTask();
+        task.execute(query);
+    }
 
-        sb.append(" LIMIT ");
-        sb.append(MAX_PROPOSED_SUGGESTIONS);
+    /**
+     * Update the Index with the data of all the well known SearchIndexablesProviders.
+     *
+     * Only the providers that changed since they were indexed for the current locale are
+     * queried and re-indexed; the rows of the other providers are left untouched. The
+     * providers are queried by the update task, off the main thread.
+     */
+    public void update() {
+        synchronized (mDataToProcess) {
+            mDataToProcess.updateProviders = true;
+        }
+        updateInternal();
+    }
 
-        return sb.toString();
+    /**
+     * Remember the locales used recently, so that they can be pre-indexed. Reads the shared
+     * preferences, so should not be called from the main thread.
+     *
+     * @return the other locales used recently.
+     */
+    private List<String> addRecentLocale(String localeStr) {
+        final List<String> locales = getRecentLocales();
+        if (locales.isEmpty() || !locales.get(0).equals(localeStr)) {
+            locales.remove(localeStr);
+            locales.add(0, localeStr);
+            while (locales.size() > MAX_RECENT_LOCALES) {
+                locales.remove(locales.size() - 1);
+            }
+            mContext.getSharedPreferences(SHARED_PREFS_NAME, Context.MODE_PRIVATE).edit()
+                    .putString(PREF_KEY_RECENT_LOCALES,
+                            TextUtils.join(LOCALES_SEPARATOR, locales))
+                    .apply();
+        }
+        locales.remove(localeStr);
+        return locales;
     }
 
-    public long addSavedQuery(String query){
-        final SaveSearchQueryTask task = new SaveSearchQueryTask();
-        task.execute(query);
+    private List<String> getRecentLocales() {
+        final String value = mContext.getSharedPreferences(SHARED_PREFS_NAME,
+                Context.MODE_PRIVATE).getString(PREF_KEY_RECENT_LOCALES, null);
+        final List<String> locales = new ArrayList<String>();
+        if (!TextUtils.isEmpty(value)) {
+            Collections.addAll(locales, TextUtils.split(value, LOCALES_SEPARATOR));
+        }
+        return locales;
+    }
+
+    /**
+     * Pre-index the other recently used locales, once the main thread is idle, so that search
+     * is available right away when switching back to one of them.
+     */
+    private void schedulePreIndexing(final String[] params) {
+        if (params == null || params.length == 0 || Looper.myLooper() == null) {
+            return;
+        }
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                new PreIndexLocalesTask().execute(params);
+                return false;
+            }
+        });
+    }
+
+    private void logIndexSizes(SQLiteDatabase database) {
         try {
-            return task.get();
-        } catch (InterruptedException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1 ;
-        } catch (ExecutionException e) {
-            Log.e(LOG_TAG, "Cannot insert saved query: " + query, e);
-            return -1;
+            final Map<String, Long> sizes = IndexDatabaseHelper.getPrefsIndexTableSizes(database);
+            for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+                Log.d(LOG_TAG, "Index table '" + entry.getKey() + "' uses " + entry.getValue() +
+                        " bytes");
+            }
+        } catch (Exception e) {
+            Log.w(LOG_TAG, "Cannot compute Index sizes", e);
         }
     }
 
-    public void update() {
+    /**
+     * Add the data of the SearchIndexablesProviders that changed since they were indexed for
+     * the locale, replacing all of their rows, and forget the providers that are gone. Called
+     * by the update task.
+     */
+    private void addChangedRemoteProviders(SQLiteDatabase database, String localeStr,
+            UpdateData data) {
         final Intent intent = new Intent(SearchIndexablesContract.PROVIDER_INTERFACE);
         List<ResolveInfo> list =
                 mContext.getPackageManager().queryIntentContentProviders(intent, 0);
 
+        final Map<String, SourceFingerprint> previousFingerprints =
+                getSourceFingerprints(database, localeStr);
+        final List<SourceFingerprint> providers = new ArrayList<SourceFingerprint>();
+        final HashSet<String> changedPackageNames = new HashSet<String>();
+
         final int size = list.size();
         for (int n = 0; n < size; n++) {
             final ResolveInfo info = list.get(n);
@@ -311,40 +624,167 @@ public class Index {
             final String authority = info.providerInfo.authority;
             final String packageName = info.providerInfo.packageName;
 
-            addIndexablesFromRemoteProvider(packageName, authority);
-            addNonIndexablesKeysFromRemoteProvider(packageName, authority);
+            final List<String> keys =
+                    getNonIndexablesKeysFromRemoteProvider(packageName, authority);
+            data.nonIndexableKeys.put(packageName, keys);
+
+            SourceFingerprint fingerprint =
+                    buildSourceFingerprint(authority, packageName, localeStr, keys);
+            final SourceFingerprint previous = previousFingerprints.remove(authority);
+            if (fingerprint == null || !fingerprint.matches(previous)) {
+                changedPackageNames.add(packageName);
+            }
+            if (fingerprint == null) {
+                // Never matches, so the provider is indexed again next time
+                fingerprint = new SourceFingerprint(authority, packageName, localeStr, 0, 0, 0);
+            }
+            providers.add(fingerprint);
         }
 
-        updateInternal();
+        // The providers left have been uninstalled or disabled: drop the rows of their package
+        for (SourceFingerprint previous : previousFingerprints.values()) {
+            Log.d(LOG_TAG, "Provider '" + previous.source + "' is gone for locale '" +
+                    localeStr + "'");
+            data.sourcesToRemove.add(previous.source);
+            removeSourceFingerprint(previous);
+            if (previous.packageName != null) {
+                changedPackageNames.add(previous.packageName);
+            }
+        }
+
+        // All the rows of a package that changed are replaced, so that the rows its providers
+        // do not return anymore go away
+        final int count = providers.size();
+        for (int n = 0; n < count; n++) {
+            final SourceFingerprint fingerprint = providers.get(n);
+            if (!changedPackageNames.contains(fingerprint.packageName)) {
+                Log.d(LOG_TAG, "Provider '" + fingerprint.source + "' is already indexed " +
+                        "for locale '" + localeStr + "'");
+                continue;
+            }
+            final List<SearchIndexableData> indexables =
+                    getIndexablesFromRemoteProvider(fingerprint.packageName, fingerprint.source);
+            if (indexables != null) {
+                data.dataToUpdate.addAll(indexables);
+                data.fingerprints.add(fingerprint);
+                addSourceFingerprint(fingerprint);
+            }
+        }
+        data.packagesToReplace.addAll(changedPackageNames);
     }
 
     private boolean addIndexablesFromRemoteProvider(String packageName, String authority) {
+        final List<SearchIndexableData> list =
+                getIndexablesFromRemoteProvider(packageName, authority);
+        if (list == null) {
+            return false;
+        }
+        synchronized (mDataToProcess) {
+            mDataToProcess.dataToUpdate.addAll(list);
+        }
+        return true;
+    }
+
+    private List<SearchIndexableData> getIndexablesFromRemoteProvider(String packageName,
+            String authority) {
         try {
             final int baseRank = Ranking.getBaseRankForAuthority(authority);
 
             final Context context = mBaseAuthority.equals(authority) ?
                     mContext : mContext.createPackageContext(packageName, 0);
 
+            final List<SearchIndexableData> list = new ArrayList<SearchIndexableData>();
+
             final Uri uriForResources = buildUriForXmlResources(authority);
             addIndexablesForXmlResourceUri(context, packageName, uriForResources,
-                    SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS, baseRank);
+                    SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS, baseRank, list);
 
             final Uri uriForRawData = buildUriForRawData(authority);
             addIndexablesForRawDataUri(context, packageName, uriForRawData,
-                    SearchIndexablesContract.INDEXABLES_RAW_COLUMNS, baseRank);
-            return true;
+                    SearchIndexablesContract.INDEXABLES_RAW_COLUMNS, baseRank, list);
+
+            return list;
         } catch (PackageManager.NameNotFoundException e) {
             Log.w(LOG_TAG, "Could not create context for " + packageName + ": "
                     + Log.getStackTraceString(e));
-            return false;
+            return null;
+        }
+    }
+
+    private SourceFingerprint buildSourceFingerprint(String authority, String packageName,
+            String localeStr, List<String> nonIndexableKeys) {
+        final PackageManager pm = mContext.getPackageManager();
+        try {
+            final PackageInfo packInfo = pm.getPackageInfo(packageName, 0);
+            final String sourceDir = packInfo.applicationInfo.sourceDir;
+            final long resourcesChecksum = 31 * packInfo.lastUpdateTime +
+                    ((sourceDir != null) ? sourceDir.hashCode() : 0);
+            // The order of the keys is not relevant
+            final int nonIndexableKeysHash = new HashSet<String>(nonIndexableKeys).hashCode();
+            return new SourceFingerprint(authority, packageName, localeStr, packInfo.versionCode,
+                    resourcesChecksum, nonIndexableKeysHash);
+        } catch (PackageManager.NameNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return a copy of the fingerprints of the sources indexed for the locale, keyed by source.
+     */
+    private Map<String, SourceFingerprint> getSourceFingerprints(SQLiteDatabase database,
+            String localeStr) {
+        synchronized (mSourceFingerprints) {
+            if (!localeStr.equals(mSourceFingerprintsLocale)) {
+                mSourceFingerprints.clear();
+                loadSourceFingerprints(database, localeStr);
+                mSourceFingerprintsLocale = localeStr;
+            }
+            return new HashMap<String, SourceFingerprint>(mSourceFingerprints);
+        }
+    }
+
+    private void addSourceFingerprint(SourceFingerprint fingerprint) {
+        synchronized (mSourceFingerprints) {
+            if (fingerprint.locale.equals(mSourceFingerprintsLocale)) {
+                mSourceFingerprints.put(fingerprint.source, fingerprint);
+            }
         }
     }
 
-    private void addNonIndexablesKeysFromRemoteProvider(String packageName,
-                                                        String authority) {
-        final List<String> keys =
-                getNonIndexablesKeysFromRemoteProvider(packageName, authority);
-        addNonIndexableKeys(packageName, keys);
+    private void removeSourceFingerprint(SourceFingerprint fingerprint) {
+        synchronized (mSourceFingerprints) {
+            if (fingerprint.locale.equals(mSourceFingerprintsLocale)) {
+                mSourceFingerprints.remove(fingerprint.source);
+            }
+        }
+    }
+
+    private void loadSourceFingerprints(SQLiteDatabase database, String localeStr) {
+        Cursor cursor = null;
+        try {
+            cursor = database.query(Tables.TABLE_SOURCE_FINGERPRINTS,
+                    new String[] {
+                            SourceFingerprintsColumns.SOURCE,
+                            SourceFingerprintsColumns.PACKAGE,
+                            SourceFingerprintsColumns.VERSION_CODE,
+                            SourceFingerprintsColumns.RESOURCES_CHECKSUM,
+                            SourceFingerprintsColumns.NON_INDEXABLE_KEYS_HASH
+                    },
+                    SourceFingerprintsColumns.LOCALE + " = ?", new String[] { localeStr },
+                    null, null, null);
+            while (cursor.moveToNext()) {
+                final SourceFingerprint fingerprint = new SourceFingerprint(
+                        cursor.getString(0), cursor.getString(1), localeStr, cursor.getInt(2),
+                        cursor.getLong(3), cursor.getInt(4));
+                mSourceFingerprints.put(fingerprint.source, fingerprint);
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "Cannot load source fingerprints for locale: " + localeStr, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
     }
 
     private List<String> getNonIndexablesKeysFromRemoteProvider(String packageName,
@@ -473,10 +913,52 @@ public class Index {
         if (className == null) {
             throw new IllegalArgumentException("class name cannot be null!");
         }
+        final SearchIndexableResource res = addClassNameResource(className, rebuild,
+                includeInSearchResults);
+        if (res == null) {
+            return;
+        }
+        updateInternal();
+        res.enabled = false;
+    }
+
+    /**
+     * Update the Index for several class name resources at once
+     *
+     * @param classNames the class names (typically fragment names), each mapped to true if you
+     *                   want to delete its data from the Index first.
+     * @param includeInSearchResults true means that you want the bit "enabled" set so that the
+     *                               data will be seen included into the search results
+     */
+    public void updateFromClassNameResources(Map<String, Boolean> classNames,
+            boolean includeInSearchResults) {
+        final List<SearchIndexableResource> resources = new ArrayList<SearchIndexableResource>();
+        for (Map.Entry<String, Boolean> entry : classNames.entrySet()) {
+            if (entry.getKey() == null) {
+                throw new IllegalArgumentException("class name cannot be null!");
+            }
+            final SearchIndexableResource res = addClassNameResource(entry.getKey(),
+                    entry.getValue(), includeInSearchResults);
+            if (res != null) {
+                resources.add(res);
+            }
+        }
+        if (resources.isEmpty()) {
+            return;
+        }
+        updateInternal();
+        final int count = resources.size();
+        for (int n = 0; n < count; n++) {
+            resources.get(n).enabled = false;
+        }
+    }
+
+    private SearchIndexableResource addClassNameResource(String className, boolean rebuild,
+            boolean includeInSearchResults) {
         final SearchIndexableResource res = SearchIndexableResources.getResourceByName(className);
         if (res == null ) {
             Log.e(LOG_TAG, "Cannot find SearchIndexableResources for class name: " + className);
-            return;
+            return null;
         }
         res.context = mContext;
         res.enabled = includeInSearchResults;
@@ -484,14 +966,11 @@ public class Index {
             deleteIndexableData(res);
         }
         addIndexableData(res);
-        mDataToProcess.forceUpdate = true;
-        updateInternal();
-        res.enabled = false;
+        return res;
     }
 
     public void updateFromSearchIndexableData(SearchIndexableData data) {
         addIndexableData(data);
-        mDataToProcess.forceUpdate = true;
         updateInternal();
     }
 
@@ -528,7 +1007,7 @@ public class Index {
     }
 
     private void addIndexablesForXmlResourceUri(Context packageContext, String packageName,
-            Uri uri, String[] projection, int baseRank) {
+            Uri uri, String[] projection, int baseRank, List<SearchIndexableData> out) {
 
         final ContentResolver resolver = packageContext.getContentResolver();
         final Cursor cursor = resolver.query(uri, projection, null, null, null);
@@ -566,7 +1045,7 @@ public class Index {
                     sir.intentTargetPackage = targetPackage;
                     sir.intentTargetClass = targetClass;
 
-                    addIndexableData(sir);
+                    out.add(sir);
                 }
             }
         } finally {
@@ -575,7 +1054,7 @@ public class Index {
     }
 
     private void addIndexablesForRawDataUri(Context packageContext, String packageName,
-            Uri uri, String[] projection, int baseRank) {
+            Uri uri, String[] projection, int baseRank, List<SearchIndexableData> out) {
 
         final ContentResolver resolver = packageContext.getContentResolver();
         final Cursor cursor = resolver.query(uri, projection, null, null, null);
@@ -629,7 +1108,7 @@ public class Index {
                     data.key = key;
                     data.userId = userId;
 
-                    addIndexableData(data);
+                    out.add(data);
                 }
             }
         } finally {
@@ -637,9 +1116,10 @@ public class Index {
         }
     }
 
-    private String buildSearchSQL(String query, String[] colums, boolean withOrderBy) {
+    private String buildSearchSQL(String tableName, String query, String[] colums,
+            boolean withOrderBy) {
         StringBuilder sb = new StringBuilder();
-        sb.append(buildSearchSQLForColumn(query, colums));
+        sb.append(buildSearchSQLForColumn(tableName, query, colums));
         if (withOrderBy) {
             sb.append(" ORDER BY ");
             sb.append(IndexColumns.DATA_RANK);
@@ -647,7 +1127,8 @@ public class Index {
         return sb.toString();
     }
 
-    private String buildSearchSQLForColumn(String query, String[] columnNames) {
+    private String buildSearchSQLForColumn(String tableName, String query,
+            String[] columnNames) {
         StringBuilder sb = new StringBuilder();
         sb.append("SELECT ");
         for (int n = 0; n < SELECT_COLUMNS.length; n++) {
@@ -657,15 +1138,16 @@ public class Index {
             }
         }
         sb.append(" FROM ");
-        sb.append(Tables.TABLE_PREFS_INDEX);
+        sb.append(tableName);
         sb.append(" WHERE ");
-        sb.append(buildSearchWhereStringForColumns(query, columnNames));
+        sb.append(buildSearchWhereStringForColumns(tableName, query, columnNames));
 
         return sb.toString();
     }
 
-    private String buildSearchWhereStringForColumns(String query, String[] columnNames) {
-        final StringBuilder sb = new StringBuilder(Tables.TABLE_PREFS_INDEX);
+    private String buildSearchWhereStringForColumns(String tableName, String query,
+            String[] columnNames) {
+        final StringBuilder sb = new StringBuilder(tableName);
         sb.append(" MATCH ");
         DatabaseUtils.appendEscapedSQLString(sb,
                 buildSearchMatchStringForColumns(query, columnNames));
@@ -694,23 +1176,29 @@ public class Index {
         return sb.toString();
     }
 
-    private void indexOneSearchIndexableData(SQLiteDatabase database, String localeStr,
-            SearchIndexableData data, Map<String, List<String>> nonIndexableKeys) {
+    /**
+     * Index one SearchIndexableData. The XML resources to parse are not parsed right away but
+     * added to xmlTasks, so that they can be parsed in parallel.
+     */
+    private void indexOneSearchIndexableData(List<ContentValues> rows, String localeStr,
+            SearchIndexableData data, Map<String, List<String>> nonIndexableKeys,
+            List<ParseXmlResourceTask> xmlTasks) {
         if (data instanceof SearchIndexableResource) {
-            indexOneResource(database, localeStr, (SearchIndexableResource) data, nonIndexableKeys);
+            indexOneResource(rows, localeStr, (SearchIndexableResource) data, nonIndexableKeys,
+                    xmlTasks);
         } else if (data instanceof SearchIndexableRaw) {
-            indexOneRaw(database, localeStr, (SearchIndexableRaw) data);
+            indexOneRaw(rows, localeStr, (SearchIndexableRaw) data);
         }
     }
 
-    private void indexOneRaw(SQLiteDatabase database, String localeStr,
+    private void indexOneRaw(List<ContentValues> rows, String localeStr,
                              SearchIndexableRaw raw) {
         // Should be the same locale as the one we are processing
         if (!raw.locale.toString().equalsIgnoreCase(localeStr)) {
             return;
         }
 
-        updateOneRowWithFilteredData(database, localeStr,
+        updateOneRowWithFilteredData(rows, localeStr,
                 raw.title,
                 raw.summaryOn,
                 raw.summaryOff,
@@ -728,6 +1216,14 @@ public class Index {
                 raw.userId);
     }
 
+    private static void setSourcePackage(List<ContentValues> rows, int start,
+            String packageName) {
+        final int count = rows.size();
+        for (int n = start; n < count; n++) {
+            rows.get(n).put(IndexColumns.SOURCE_PACKAGE, packageName);
+        }
+    }
+
     private static boolean isIndexableClass(final Class<?> clazz) {
         return (clazz != null) && Indexable.class.isAssignableFrom(clazz);
     }
@@ -743,8 +1239,9 @@ public class Index {
         return isIndexableClass(clazz) ? clazz : null;
     }
 
-    private void indexOneResource(SQLiteDatabase database, String localeStr,
-            SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource) {
+    private void indexOneResource(List<ContentValues> rows, String localeStr,
+            SearchIndexableResource sir, Map<String, List<String>> nonIndexableKeysFromResource,
+            List<ParseXmlResourceTask> xmlTasks) {
 
         if (sir == null) {
             Log.e(LOG_TAG, "Cannot index a null resource!");
@@ -759,10 +1256,10 @@ public class Index {
                 nonIndexableKeys.addAll(resNonIndxableKeys);
             }
 
-            indexFromResource(sir.context, database, localeStr,
+            xmlTasks.add(new ParseXmlResourceTask(sir.context, localeStr,
                     sir.xmlResId, sir.className, sir.iconResId, sir.rank,
                     sir.intentAction, sir.intentTargetPackage, sir.intentTargetClass,
-                    nonIndexableKeys);
+                    nonIndexableKeys));
         } else {
             if (TextUtils.isEmpty(sir.className)) {
                 Log.w(LOG_TAG, "Cannot index an empty Search Provider name!");
@@ -785,8 +1282,8 @@ public class Index {
                     nonIndexableKeys.addAll(providerNonIndexableKeys);
                 }
 
-                indexFromProvider(mContext, database, localeStr, provider, sir.className,
-                        sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys);
+                indexFromProvider(mContext, rows, localeStr, provider, sir.className,
+                        sir.iconResId, sir.rank, sir.enabled, nonIndexableKeys, xmlTasks);
             }
         }
     }
@@ -811,7 +1308,7 @@ public class Index {
         return null;
     }
 
-    private void indexFromResource(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromResource(Context context, List<ContentValues> rows, String localeStr,
            int xmlResId, String fragmentName, int iconResId, int rank,
            String intentAction, String intentTargetPackage, String intentTargetClass,
            List<String> nonIndexableKeys) {
@@ -851,7 +1348,7 @@ public class Index {
                 summary = getDataSummary(context, attrs);
                 keywords = getDataKeywords(context, attrs);
 
-                updateOneRowWithFilteredData(database, localeStr, title, summary, null, null,
+                updateOneRowWithFilteredData(rows, localeStr, title, summary, null, null,
                         fragmentName, screenTitle, iconResId, rank,
                         keywords, intentAction, intentTargetPackage, intentTargetClass, true,
                         key, -1 /* default user id */);
@@ -883,7 +1380,7 @@ public class Index {
                     }
 
                     // Insert rows for the child nodes of PreferenceScreen
-                    updateOneRowWithFilteredData(database, localeStr, title, summary, null, entries,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summary, null, entries,
                             fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -895,7 +1392,7 @@ public class Index {
                         summaryOn = getDataSummary(context, attrs);
                     }
 
-                    updateOneRowWithFilteredData(database, localeStr, title, summaryOn, summaryOff,
+                    updateOneRowWithFilteredData(rows, localeStr, title, summaryOn, summaryOff,
                             null, fragmentName, screenTitle, iconResId, rank,
                             keywords, intentAction, intentTargetPackage, intentTargetClass,
                             true, key, -1 /* default user id */);
@@ -911,9 +1408,9 @@ public class Index {
         }
     }
 
-    private void indexFromProvider(Context context, SQLiteDatabase database, String localeStr,
+    private void indexFromProvider(Context context, List<ContentValues> rows, String localeStr,
             Indexable.SearchIndexProvider provider, String className, int iconResId, int rank,
-            boolean enabled, List<String> nonIndexableKeys) {
+            boolean enabled, List<String> nonIndexableKeys, List<ParseXmlResourceTask> xmlTasks) {
 
         if (provider == null) {
             Log.w(LOG_TAG, "Cannot find provider: " + className);
@@ -936,7 +1433,7 @@ public class Index {
                     continue;
                 }
 
-                updateOneRowWithFilteredData(database, localeStr,
+                updateOneRowWithFilteredData(rows, localeStr,
                         raw.title,
                         raw.summaryOn,
                         raw.summaryOff,
@@ -972,15 +1469,15 @@ public class Index {
                 String itemClassName = (TextUtils.isEmpty(item.className))
                         ? className : item.className;
 
-                indexFromResource(context, database, localeStr,
+                xmlTasks.add(new ParseXmlResourceTask(context, localeStr,
                         item.xmlResId, itemClassName, itemIconResId, itemRank,
                         item.intentAction, item.intentTargetPackage,
-                        item.intentTargetClass, nonIndexableKeys);
+                        item.intentTargetClass, nonIndexableKeys));
             }
         }
     }
 
-    private void updateOneRowWithFilteredData(SQLiteDatabase database, String locale,
+    private void updateOneRowWithFilteredData(List<ContentValues> rows, String locale,
             String title, String summaryOn, String summaryOff, String entries,
             String className,
             String screenTitle, int iconResId, int rank, String keywords,
@@ -995,7 +1492,7 @@ public class Index {
         final String normalizedSummaryOn = normalizeString(updatedSummaryOn);
         final String normalizedSummaryOff = normalizeString(updatedSummaryOff);
 
-        updateOneRow(database, locale,
+        updateOneRow(rows, locale,
                 updatedTitle, normalizedTitle, updatedSummaryOn, normalizedSummaryOn,
                 updatedSummaryOff, normalizedSummaryOff, entries,
                 className, screenTitle, iconResId,
@@ -1014,7 +1511,7 @@ public class Index {
         return REMOVE_DIACRITICALS_PATTERN.matcher(normalized).replaceAll("").toLowerCase();
     }
 
-    private void updateOneRow(SQLiteDatabase database, String locale,
+    private void updateOneRow(List<ContentValues> rows, String locale,
             String updatedTitle, String normalizedTitle,
             String updatedSummaryOn, String normalizedSummaryOn,
             String updatedSummaryOff, String normalizedSummaryOff, String entries,
@@ -1054,7 +1551,7 @@ public class Index {
         values.put(IndexColumns.DATA_KEY_REF, key);
         values.put(IndexColumns.USER_ID, userId);
 
-        database.replaceOrThrow(Tables.TABLE_PREFS_INDEX, null, values);
+        rows.add(values);
     }
 
     private String getDataKey(Context context, AttributeSet attrs) {
@@ -1150,6 +1647,9 @@ public class Index {
      */
     private class UpdateIndexTask extends AsyncTask<UpdateData, Integer, Void> {
 
+        // The other recent locales, to pre-index once the providers have been updated
+        private String[] mLocalesToPreIndex;
+
         @Override
         protected void onPreExecute() {
             super.onPreExecute();
@@ -1160,69 +1660,152 @@ public class Index {
         protected void onPostExecute(Void aVoid) {
             super.onPostExecute(aVoid);
             mIsAvailable.set(true);
+            schedulePreIndexing(mLocalesToPreIndex);
         }
 
         @Override
         protected Void doInBackground(UpdateData... params) {
+            final SQLiteDatabase database = getWritableDatabase();
+            final String localeStr = Locale.getDefault().toString();
+            final String tableName = IndexDatabaseHelper.getPrefsIndexTable(database, localeStr);
+
+            if (params[0].updateProviders) {
+                addChangedRemoteProviders(database, localeStr, params[0]);
+                final List<String> locales = addRecentLocale(localeStr);
+                mLocalesToPreIndex = locales.toArray(new String[locales.size()]);
+            }
+
             final List<SearchIndexableData> dataToUpdate = params[0].dataToUpdate;
             final List<SearchIndexableData> dataToDelete = params[0].dataToDelete;
             final Map<String, List<String>> nonIndexableKeys = params[0].nonIndexableKeys;
-
-            final boolean forceUpdate = params[0].forceUpdate;
-
-            final SQLiteDatabase database = getWritableDatabase();
-            final String localeStr = Locale.getDefault().toString();
+            final List<SourceFingerprint> fingerprints = params[0].fingerprints;
+            final List<String> packagesToReplace = params[0].packagesToReplace;
+            final List<String> sourcesToRemove = params[0].sourcesToRemove;
 
             try {
                 database.beginTransaction();
+                final int packageCount = packagesToReplace.size();
+                for (int n = 0; n < packageCount; n++) {
+                    delete(database, tableName, IndexColumns.SOURCE_PACKAGE,
+                            packagesToReplace.get(n));
+                }
                 if (dataToDelete.size() > 0) {
-                    processDataToDelete(database, localeStr, dataToDelete);
+                    processDataToDelete(database, tableName, localeStr, dataToDelete);
                 }
                 if (dataToUpdate.size() > 0) {
-                    processDataToUpdate(database, localeStr, dataToUpdate, nonIndexableKeys,
-                            forceUpdate);
+                    processDataToUpdate(database, tableName, localeStr, dataToUpdate,
+                            nonIndexableKeys);
+                }
+                if (fingerprints.size() > 0 || sourcesToRemove.size() > 0) {
+                    processFingerprints(database, localeStr, fingerprints, sourcesToRemove);
                 }
                 database.setTransactionSuccessful();
             } finally {
                 database.endTransaction();
             }
 
+            // SQLite is the source of truth: reload the search engine from what was committed
+            refreshSearchEngine(database, localeStr);
+
+            logIndexSizes(database);
+
             return null;
         }
 
-        private boolean processDataToUpdate(SQLiteDatabase database, String localeStr,
-                List<SearchIndexableData> dataToUpdate, Map<String, List<String>> nonIndexableKeys,
-                boolean forceUpdate) {
-
-            if (!forceUpdate && isLocaleAlreadyIndexed(database, localeStr)) {
-                Log.d(LOG_TAG, "Locale '" + localeStr + "' is already indexed");
-                return true;
-            }
+        private void processDataToUpdate(SQLiteDatabase database, String tableName,
+                String localeStr, List<SearchIndexableData> dataToUpdate,
+                Map<String, List<String>> nonIndexableKeys) {
 
-            boolean result = false;
             final long current = System.currentTimeMillis();
 
+            // The SearchIndexProviders are only called from this thread, as they don't expect
+            // concurrent calls. Only their XML resources are parsed in parallel by the
+            // indexing threads. The rows are then written by this thread, in the same order
+            // as the data, so that "replace" semantics are kept for rows sharing the same docid.
+            final AtomicLong parseNanos = new AtomicLong();
+            final ExecutorService executor = getIndexingExecutor();
             final int count = dataToUpdate.size();
+            final List<Future<List<ContentValues>>> parsed =
+                    new ArrayList<Future<List<ContentValues>>>(count);
+            final List<String> parsedPackages = new ArrayList<String>(count);
+            final List<ParseXmlResourceTask> xmlTasks = new ArrayList<ParseXmlResourceTask>();
+            long providerNanos = 0;
             for (int n = 0; n < count; n++) {
                 final SearchIndexableData data = dataToUpdate.get(n);
+                // Data added without a package comes from Settings itself
+                final String packageName = (data.packageName != null) ?
+                        data.packageName : mContext.getPackageName();
+
+                final long start = System.nanoTime();
+                final List<ContentValues> rows = new ArrayList<ContentValues>();
                 try {
-                    indexOneSearchIndexableData(database, localeStr, data, nonIndexableKeys);
+                    indexOneSearchIndexableData(rows, localeStr, data, nonIndexableKeys,
+                            xmlTasks);
                 } catch (Exception e) {
                     Log.e(LOG_TAG,
                             "Cannot index: " + data.className + " for locale: " + localeStr, e);
                 }
+                providerNanos += System.nanoTime() - start;
+                parsed.add(newDoneFuture(rows));
+                parsedPackages.add(packageName);
+
+                final int xmlCount = xmlTasks.size();
+                for (int i = 0; i < xmlCount; i++) {
+                    parsed.add(executor.submit(xmlTasks.get(i).setParseNanos(parseNanos)));
+                    parsedPackages.add(packageName);
+                }
+                xmlTasks.clear();
+            }
+
+            final IndexRowWriter writer = new IndexRowWriter(database, tableName);
+            try {
+                final int parsedCount = parsed.size();
+                for (int n = 0; n < parsedCount; n++) {
+                    final List<ContentValues> rows = getParsedRows(parsed.get(n));
+                    if (rows != null) {
+                        setSourcePackage(rows, 0, parsedPackages.get(n));
+                        writer.write(rows);
+                    }
+                }
+            } finally {
+                writer.close();
             }
 
             final long now = System.currentTimeMillis();
             Log.d(LOG_TAG, "Indexing locale '" + localeStr + "' took " +
-                    (now - current) + " millis");
-            return result;
+                    (now - current) + " millis (providers: " + (providerNanos / 1000000) +
+                    " millis, XML: " + (parseNanos.get() / 1000000) +
+                    " millis on " + INDEXING_THREADS + " threads, write: " +
+                    writer.getWriteMillis() + " millis for " + writer.getRowCount() + " rows)");
         }
 
-        private boolean processDataToDelete(SQLiteDatabase database, String localeStr,
-                List<SearchIndexableData> dataToDelete) {
+        private Future<List<ContentValues>> newDoneFuture(final List<ContentValues> rows) {
+            final FutureTask<List<ContentValues>> future = new FutureTask<List<ContentValues>>(
+                    new Callable<List<ContentValues>>() {
+                        @Override
+                        public List<ContentValues> call() {
+                            return rows;
+                        }
+                    });
+            future.run();
+            return future;
+        }
+
+        private List<ContentValues> getParsedRows(Future<List<ContentValues>> future) {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Log.e(LOG_TAG, "Interrupted while waiting for parsed index data", e);
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, "Cannot parse index data", e);
+            }
+            return null;
+        }
+
+        private void processDataToDelete(SQLiteDatabase database, String tableName,
+                String localeStr, List<SearchIndexableData> dataToDelete) {
 
-            boolean result = false;
             final long current = System.currentTimeMillis();
 
             final int count = dataToDelete.size();
@@ -1232,12 +1815,12 @@ public class Index {
                     continue;
                 }
                 if (!TextUtils.isEmpty(data.className)) {
-                    delete(database, IndexColumns.CLASS_NAME, data.className);
+                    delete(database, tableName, IndexColumns.CLASS_NAME, data.className);
                 } else  {
                     if (data instanceof SearchIndexableRaw) {
                         final SearchIndexableRaw raw = (SearchIndexableRaw) data;
                         if (!TextUtils.isEmpty(raw.title)) {
-                            delete(database, IndexColumns.DATA_TITLE, raw.title);
+                            delete(database, tableName, IndexColumns.DATA_TITLE, raw.title);
                         }
                     }
                 }
@@ -1246,75 +1829,272 @@ public class Index {
             final long now = System.currentTimeMillis();
             Log.d(LOG_TAG, "Deleting data for locale '" + localeStr + "' took " +
                     (now - current) + " millis");
-            return result;
         }
 
-        private int delete(SQLiteDatabase database, String columName, String value) {
+        private int delete(SQLiteDatabase database, String tableName, String columName,
+                String value) {
+            // Only the rows of the locale being processed are deleted, as the Index is
+            // partitioned by locale
             final String whereClause = columName + "=?";
             final String[] whereArgs = new String[] { value };
 
-            return database.delete(Tables.TABLE_PREFS_INDEX, whereClause, whereArgs);
+            return database.delete(tableName, whereClause, whereArgs);
+        }
+
+        private void processFingerprints(SQLiteDatabase database, String localeStr,
+                List<SourceFingerprint> fingerprints, List<String> sourcesToRemove) {
+            final int removeCount = sourcesToRemove.size();
+            for (int n = 0; n < removeCount; n++) {
+                database.delete(Tables.TABLE_SOURCE_FINGERPRINTS,
+                        SourceFingerprintsColumns.SOURCE + "=? AND " +
+                                SourceFingerprintsColumns.LOCALE + "=?",
+                        new String[] { sourcesToRemove.get(n), localeStr });
+            }
+
+            final int count = fingerprints.size();
+            for (int n = 0; n < count; n++) {
+                final SourceFingerprint fingerprint = fingerprints.get(n);
+
+                final ContentValues values = new ContentValues();
+                values.put(SourceFingerprintsColumns.SOURCE, fingerprint.source);
+                values.put(SourceFingerprintsColumns.PACKAGE, fingerprint.packageName);
+                values.put(SourceFingerprintsColumns.LOCALE, fingerprint.locale);
+                values.put(SourceFingerprintsColumns.VERSION_CODE, fingerprint.versionCode);
+                values.put(SourceFingerprintsColumns.RESOURCES_CHECKSUM,
+                        fingerprint.resourcesChecksum);
+                values.put(SourceFingerprintsColumns.NON_INDEXABLE_KEYS_HASH,
+                        fingerprint.nonIndexableKeysHash);
+
+                database.replaceOrThrow(Tables.TABLE_SOURCE_FINGERPRINTS, null, values);
+            }
+        }
+    }
+
+    /**
+     * A private class for pre-indexing locales which are not the current one.
+     *
+     * Only the XML resources of the providers are indexed, with a Context configured for the
+     * locale: the raw data and the dynamic data of the local providers are only available for
+     * the current locale. No source fingerprint is recorded, so the locale will be fully indexed
+     * by {@link #update()} once it becomes the current locale.
+     */
+    private class PreIndexLocalesTask extends AsyncTask<String, Void, Void> {
+
+        @Override
+        protected Void doInBackground(String... params) {
+            final SQLiteDatabase database = getWritableDatabase();
+            for (String localeStr : params) {
+                try {
+                    final String tableName =
+                            IndexDatabaseHelper.getPrefsIndexTable(database, localeStr);
+                    if (DatabaseUtils.queryNumEntries(database, tableName) > 0) {
+                        continue;
+                    }
+                    preIndexLocale(database, tableName, localeStr);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Cannot pre-index locale: " + localeStr, e);
+                }
+            }
+            logIndexSizes(database);
+            return null;
         }
 
-        private boolean isLocaleAlreadyIndexed(SQLiteDatabase database, String locale) {
-            Cursor cursor = null;
-            boolean result = false;
-            final StringBuilder sb = new StringBuilder(IndexColumns.LOCALE);
-            sb.append(" = ");
-            DatabaseUtils.appendEscapedSQLString(sb, locale);
+        private void preIndexLocale(SQLiteDatabase database, String tableName,
+                String localeStr) {
+            final long current = System.currentTimeMillis();
+
+            final Configuration configuration =
+                    new Configuration(mContext.getResources().getConfiguration());
+            configuration.locale = toLocale(localeStr);
+
+            final Intent intent = new Intent(SearchIndexablesContract.PROVIDER_INTERFACE);
+            final List<ResolveInfo> list =
+                    mContext.getPackageManager().queryIntentContentProviders(intent, 0);
+
+            final List<ContentValues> rows = new ArrayList<ContentValues>();
+            final int size = list.size();
+            for (int n = 0; n < size; n++) {
+                final ResolveInfo info = list.get(n);
+                if (!isWellKnownProvider(info)) {
+                    continue;
+                }
+                final String authority = info.providerInfo.authority;
+                final String packageName = info.providerInfo.packageName;
+                try {
+                    final Context packageContext = mBaseAuthority.equals(authority) ?
+                            mContext : mContext.createPackageContext(packageName, 0);
+                    final Context localeContext =
+                            packageContext.createConfigurationContext(configuration);
+
+                    final List<String> nonIndexableKeys =
+                            getNonIndexablesKeysFromRemoteProvider(packageName, authority);
+
+                    final List<SearchIndexableData> resources =
+                            new ArrayList<SearchIndexableData>();
+                    addIndexablesForXmlResourceUri(localeContext, packageName,
+                            buildUriForXmlResources(authority),
+                            SearchIndexablesContract.INDEXABLES_XML_RES_COLUMNS,
+                            Ranking.getBaseRankForAuthority(authority), resources);
+
+                    final int firstRow = rows.size();
+                    final int count = resources.size();
+                    for (int i = 0; i < count; i++) {
+                        final SearchIndexableResource sir =
+                                (SearchIndexableResource) resources.get(i);
+                        if (sir.xmlResId <= SearchIndexableResources.NO_DATA_RES_ID) {
+                            continue;
+                        }
+                        indexFromResource(localeContext, rows, localeStr,
+                                sir.xmlResId, sir.className, sir.iconResId, sir.rank,
+                                sir.intentAction, sir.intentTargetPackage,
+                                sir.intentTargetClass, nonIndexableKeys);
+                    }
+                    setSourcePackage(rows, firstRow, packageName);
+                } catch (Exception e) {
+                    Log.w(LOG_TAG, "Cannot pre-index provider '" + authority +
+                            "' for locale: " + localeStr, e);
+                }
+            }
+
+            final IndexRowWriter writer = new IndexRowWriter(database, tableName);
             try {
-                // We care only for 1 row
-                cursor = database.query(Tables.TABLE_PREFS_INDEX, null,
-                        sb.toString(), null, null, null, null, "1");
-                final int count = cursor.getCount();
-                result = (count >= 1);
+                database.beginTransaction();
+                writer.write(rows);
+                database.setTransactionSuccessful();
             } finally {
-                if (cursor != null) {
-                    cursor.close();
-                }
+                database.endTransaction();
+                writer.close();
+            }
+
+            Log.d(LOG_TAG, "Pre-indexing locale '" + localeStr + "' took " +
+                    (System.currentTimeMillis() - current) + " millis for " +
+                    writer.getRowCount() + " rows");
+        }
+
+        private Locale toLocale(String localeStr) {
+            final String[] parts = localeStr.split("_", 3);
+            switch (parts.length) {
+                case 1:
+                    return new Locale(parts[0]);
+                case 2:
+                    return new Locale(parts[0], parts[1]);
+                default:
+                    return new Locale(parts[0], parts[1], parts[2]);
             }
-            return result;
+        }
+    }
+
+    /**
+     * Parse one XML resource into the rows to be written into the Index. Only the resources
+     * are read, so that it can run on any of the indexing threads.
+     */
+    private class ParseXmlResourceTask implements Callable<List<ContentValues>> {
+        private final Context mPackageContext;
+        private final String mLocaleStr;
+        private final int mXmlResId;
+        private final String mFragmentName;
+        private final int mIconResId;
+        private final int mRank;
+        private final String mIntentAction;
+        private final String mIntentTargetPackage;
+        private final String mIntentTargetClass;
+        private final List<String> mNonIndexableKeys;
+        private AtomicLong mParseNanos;
+
+        public ParseXmlResourceTask(Context context, String localeStr, int xmlResId,
+                String fragmentName, int iconResId, int rank, String intentAction,
+                String intentTargetPackage, String intentTargetClass,
+                List<String> nonIndexableKeys) {
+            mPackageContext = context;
+            mLocaleStr = localeStr;
+            mXmlResId = xmlResId;
+            mFragmentName = fragmentName;
+            mIconResId = iconResId;
+            mRank = rank;
+            mIntentAction = intentAction;
+            mIntentTargetPackage = intentTargetPackage;
+            mIntentTargetClass = intentTargetClass;
+            mNonIndexableKeys = nonIndexableKeys;
+        }
+
+        public ParseXmlResourceTask setParseNanos(AtomicLong parseNanos) {
+            mParseNanos = parseNanos;
+            return this;
+        }
+
+        @Override
+        public List<ContentValues> call() {
+            final long start = System.nanoTime();
+            final List<ContentValues> rows = new ArrayList<ContentValues>();
+            try {
+                indexFromResource(mPackageContext, rows, mLocaleStr, mXmlResId, mFragmentName,
+                        mIconResId, mRank, mIntentAction, mIntentTargetPackage,
+                        mIntentTargetClass, mNonIndexableKeys);
+            } catch (Exception e) {
+                Log.e(LOG_TAG,
+                        "Cannot index: " + mFragmentName + " for locale: " + mLocaleStr, e);
+            }
+            if (mParseNanos != null) {
+                mParseNanos.addAndGet(System.nanoTime() - start);
+            }
+            return rows;
         }
     }
 
     /**
      * A basic AsyncTask for saving a Search query into the database
      */
-    private class SaveSearchQueryTask extends AsyncTask<String, Void, Long> {
+    private class SaveSearchQueryTask extends AsyncTask<String, Void, Void> {
 
         @Override
-        protected Long doInBackground(String... params) {
+        protected Void doInBackground(String... params) {
             final long now = new Date().getTime();
 
-            final ContentValues values = new ContentValues();
-            values.put(IndexDatabaseHelper.SavedQueriesColums.QUERY, params[0]);
-            values.put(IndexDatabaseHelper.SavedQueriesColums.TIME_STAMP, now);
-
+            // The statements are compiled for each transaction, as they are bound to the
+            // database they are compiled on, which is replaced if the Index is rebuilt
             final SQLiteDatabase database = getWritableDatabase();
-
-            long lastInsertedRowId = -1;
+            SQLiteStatement updateStatement = null;
+            SQLiteStatement insertStatement = null;
+            SQLiteStatement evictStatement = null;
             try {
-                // First, delete all saved queries that are the same
-                database.delete(Tables.TABLE_SAVED_QUERIES,
-                        IndexDatabaseHelper.SavedQueriesColums.QUERY + " = ?",
-                        new String[] { params[0] });
-
-                // Second, insert the saved query
-                lastInsertedRowId =
-                        database.insertOrThrow(Tables.TABLE_SAVED_QUERIES, null, values);
-
-                // Last, remove "old" saved queries
-                final long delta = lastInsertedRowId - MAX_SAVED_SEARCH_QUERY;
-                if (delta > 0) {
-                    int count = database.delete(Tables.TABLE_SAVED_QUERIES, "rowId <= ?",
-                            new String[] { Long.toString(delta) });
-                    Log.d(LOG_TAG, "Deleted '" + count + "' saved Search query(ies)");
+                database.beginTransaction();
+                try {
+                    // First, refresh the timestamp of the saved query if it already exists
+                    updateStatement = database.compileStatement(UPDATE_SAVED_QUERY_SQL);
+                    updateStatement.bindLong(1, now);
+                    updateStatement.bindString(2, params[0]);
+                    if (updateStatement.executeUpdateDelete() == 0) {
+                        // Second, insert the saved query if it is a new one
+                        insertStatement = database.compileStatement(INSERT_SAVED_QUERY_SQL);
+                        insertStatement.bindString(1, params[0]);
+                        insertStatement.bindLong(2, now);
+                        insertStatement.executeInsert();
+
+                        // Last, remove "old" saved queries
+                        evictStatement = database.compileStatement(EVICT_SAVED_QUERIES_SQL);
+                        final int count = evictStatement.executeUpdateDelete();
+                        if (count > 0) {
+                            Log.d(LOG_TAG, "Deleted '" + count + "' saved Search query(ies)");
+                        }
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                    closeStatement(updateStatement);
+                    closeStatement(insertStatement);
+                    closeStatement(evictStatement);
                 }
             } catch (Exception e) {
                 Log.d(LOG_TAG, "Cannot update saved Search queries", e);
             }
 
-            return lastInsertedRowId;
+            return null;
+        }
+
+        private void closeStatement(SQLiteStatement statement) {
+            if (statement != null) {
+                statement.close();
+            }
         }
     }
 }
@@ -18,22 +18,31 @@ package com.android.settings.search;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.os.Build;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
 public class IndexDatabaseHelper extends SQLiteOpenHelper {
 
     private static final String TAG = "IndexDatabaseHelper";
 
     private static final String DATABASE_NAME = "search_index.db";
-    private static final int DATABASE_VERSION = 115;
+    private static final int DATABASE_VERSION = 119;
 
     public interface Tables {
+        // Prefix of the per locale prefs_index tables. See getPrefsIndexTable()
         public static final String TABLE_PREFS_INDEX = "prefs_index";
         public static final String TABLE_META_INDEX = "meta_index";
         public static final String TABLE_SAVED_QUERIES = "saved_queries";
+        public static final String TABLE_SOURCE_FINGERPRINTS = "source_fingerprints";
     }
 
     public interface IndexColumns {
@@ -57,6 +66,8 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String ENABLED = "enabled";
         public static final String DATA_KEY_REF = "data_key_reference";
         public static final String USER_ID = "user_id";
+        // Package of the SearchIndexablesProvider the row comes from
+        public static final String SOURCE_PACKAGE = "source_package";
     }
 
     public interface MetaColumns {
@@ -68,9 +79,17 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         public static final String TIME_STAMP = "timestamp";
     }
 
-    private static final String CREATE_INDEX_TABLE =
-            "CREATE VIRTUAL TABLE " + Tables.TABLE_PREFS_INDEX + " USING fts4" +
-                    "(" +
+    public interface SourceFingerprintsColumns {
+        public static final String SOURCE = "source";
+        public static final String PACKAGE = "package";
+        public static final String LOCALE = "locale";
+        public static final String VERSION_CODE = "version_code";
+        public static final String RESOURCES_CHECKSUM = "resources_checksum";
+        public static final String NON_INDEXABLE_KEYS_HASH = "non_indexable_keys_hash";
+    }
+
+    private static final String CREATE_INDEX_TABLE_COLUMNS =
+            "(" +
                     IndexColumns.LOCALE +
                     ", " +
                     IndexColumns.DATA_RANK +
@@ -108,8 +127,42 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     IndexColumns.DATA_KEY_REF +
                     ", " +
                     IndexColumns.USER_ID +
+                    ", " +
+                    IndexColumns.SOURCE_PACKAGE +
                     ");";
 
+    // The shadow tables used by FTS4 for storing the content and the full-text index
+    private static final String[] FTS_SHADOW_TABLES_SIZE_QUERIES = new String[] {
+            "SELECT SUM(LENGTH(block)) FROM %s_segments",
+            "SELECT SUM(LENGTH(root)) FROM %s_segdir",
+            "SELECT SUM(LENGTH(size)) FROM %s_docsize",
+            "SELECT SUM(LENGTH(value)) FROM %s_stat"
+    };
+
+    // The columns accounting for most of the content size
+    private static final String[] CONTENT_SIZE_COLUMNS = new String[] {
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES,
+            IndexColumns.DATA_KEYWORDS,
+            IndexColumns.SCREEN_TITLE,
+            IndexColumns.CLASS_NAME,
+            IndexColumns.INTENT_ACTION,
+            IndexColumns.INTENT_TARGET_PACKAGE,
+            IndexColumns.INTENT_TARGET_CLASS,
+            IndexColumns.DATA_KEY_REF,
+            IndexColumns.SOURCE_PACKAGE
+    };
+
+    private static final String SELECT_PREFS_INDEX_TABLES =
+            "SELECT name FROM sqlite_master WHERE type = 'table'" +
+                    " AND sql LIKE 'CREATE VIRTUAL TABLE%'" +
+                    " AND name LIKE '" + Tables.TABLE_PREFS_INDEX + "%'";
+
     private static final String CREATE_META_TABLE =
             "CREATE TABLE " + Tables.TABLE_META_INDEX +
                     "(" +
@@ -124,6 +177,32 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
                     SavedQueriesColums.TIME_STAMP + " INTEGER" +
                     ")";
 
+    private static final String CREATE_SAVED_QUERIES_INDEX =
+            "CREATE INDEX " + Tables.TABLE_SAVED_QUERIES + "_" + SavedQueriesColums.QUERY +
+                    "_index ON " + Tables.TABLE_SAVED_QUERIES +
+                    "(" +
+                    SavedQueriesColums.QUERY +
+                    ")";
+
+    private static final String CREATE_SOURCE_FINGERPRINTS_TABLE =
+            "CREATE TABLE " + Tables.TABLE_SOURCE_FINGERPRINTS +
+                    "(" +
+                    SourceFingerprintsColumns.SOURCE + " VARCHAR(128) NOT NULL" +
+                    ", " +
+                    SourceFingerprintsColumns.PACKAGE + " VARCHAR(128)" +
+                    ", " +
+                    SourceFingerprintsColumns.LOCALE + " VARCHAR(32) NOT NULL" +
+                    ", " +
+                    SourceFingerprintsColumns.VERSION_CODE + " INTEGER" +
+                    ", " +
+                    SourceFingerprintsColumns.RESOURCES_CHECKSUM + " INTEGER" +
+                    ", " +
+                    SourceFingerprintsColumns.NON_INDEXABLE_KEYS_HASH + " INTEGER" +
+                    ", " +
+                    "PRIMARY KEY (" + SourceFingerprintsColumns.SOURCE + ", " +
+                    SourceFingerprintsColumns.LOCALE + ")" +
+                    ")";
+
     private static final String INSERT_BUILD_VERSION =
             "INSERT INTO " + Tables.TABLE_META_INDEX +
                     " VALUES ('" + Build.VERSION.INCREMENTAL + "');";
@@ -133,6 +212,9 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
 
     private static IndexDatabaseHelper sSingleton;
 
+    // The prefs_index tables known to exist, so that they are only created once
+    private static final HashSet<String> sPrefsIndexTables = new HashSet<String>();
+
     public static synchronized IndexDatabaseHelper getInstance(Context context) {
         if (sSingleton == null) {
             sSingleton = new IndexDatabaseHelper(context);
@@ -149,10 +231,78 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
         bootstrapDB(db);
     }
 
+    /**
+     * The Index is partitioned by locale: each locale has its own FTS4 table, so that queries
+     * only touch the rows of their locale. The table is created if needed, the first time it
+     * is asked for.
+     *
+     * @return the name of the prefs_index table for the locale.
+     */
+    public static String getPrefsIndexTable(SQLiteDatabase db, String locale) {
+        final String tableName = getPrefsIndexTableName(locale);
+        synchronized (sPrefsIndexTables) {
+            if (!sPrefsIndexTables.contains(tableName)) {
+                db.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS " + tableName + " USING fts4" +
+                        CREATE_INDEX_TABLE_COLUMNS);
+                sPrefsIndexTables.add(tableName);
+            }
+        }
+        return tableName;
+    }
+
+    private static String getPrefsIndexTableName(String locale) {
+        return Tables.TABLE_PREFS_INDEX + "_" + locale.replaceAll("[^A-Za-z0-9]", "_");
+    }
+
+    /**
+     * Estimate the disk space used by the Index of each locale: the FTS4 content and full-text
+     * index blocks, without the SQLite page overhead.
+     *
+     * @return the number of bytes used, keyed by prefs_index table name.
+     */
+    public static Map<String, Long> getPrefsIndexTableSizes(SQLiteDatabase db) {
+        final Map<String, Long> sizes = new HashMap<String, Long>();
+        final List<String> tableNames = getPrefsIndexTableNames(db);
+        final int count = tableNames.size();
+        for (int n = 0; n < count; n++) {
+            final String tableName = tableNames.get(n);
+            long size = 0;
+            for (String query : FTS_SHADOW_TABLES_SIZE_QUERIES) {
+                size += DatabaseUtils.longForQuery(db, String.format(query, tableName), null);
+            }
+            size += DatabaseUtils.longForQuery(db, buildContentSizeQuery(tableName), null);
+            sizes.put(tableName, size);
+        }
+        return sizes;
+    }
+
+    private static String buildContentSizeQuery(String tableName) {
+        final StringBuilder sb = new StringBuilder("SELECT SUM(0");
+        for (String column : CONTENT_SIZE_COLUMNS) {
+            sb.append(" + IFNULL(LENGTH(").append(column).append("), 0)");
+        }
+        sb.append(") FROM ").append(tableName);
+        return sb.toString();
+    }
+
+    private static List<String> getPrefsIndexTableNames(SQLiteDatabase db) {
+        final List<String> tableNames = new ArrayList<String>();
+        final Cursor cursor = db.rawQuery(SELECT_PREFS_INDEX_TABLES, null);
+        try {
+            while (cursor.moveToNext()) {
+                tableNames.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return tableNames;
+    }
+
     private void bootstrapDB(SQLiteDatabase db) {
-        db.execSQL(CREATE_INDEX_TABLE);
         db.execSQL(CREATE_META_TABLE);
         db.execSQL(CREATE_SAVED_QUERIES_TABLE);
+        db.execSQL(CREATE_SAVED_QUERIES_INDEX);
+        db.execSQL(CREATE_SOURCE_FINGERPRINTS_TABLE);
         db.execSQL(INSERT_BUILD_VERSION);
         Log.i(TAG, "Bootstrapped database");
     }
@@ -216,8 +366,17 @@ public class IndexDatabaseHelper extends SQLiteOpenHelper {
     }
 
     private void dropTables(SQLiteDatabase db) {
+        synchronized (sPrefsIndexTables) {
+            sPrefsIndexTables.clear();
+        }
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_META_INDEX);
-        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_PREFS_INDEX);
+        // Dropping the FTS4 tables also drops their shadow tables
+        final List<String> tableNames = getPrefsIndexTableNames(db);
+        final int count = tableNames.size();
+        for (int n = 0; n < count; n++) {
+            db.execSQL("DROP TABLE IF EXISTS " + tableNames.get(n));
+        }
         db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SAVED_QUERIES);
+        db.execSQL("DROP TABLE IF EXISTS " + Tables.TABLE_SOURCE_FINGERPRINTS);
     }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.List;
+
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+
+/**
+ * Writes the rows produced by the Index parsers into the prefs_index table of a locale.
+ *
+ * A single compiled INSERT OR REPLACE statement is reused for all the rows, so the SQL is only
+ * parsed once per indexing pass. This class is not thread safe: there should be only one writer
+ * per transaction.
+ */
+class IndexRowWriter {
+
+    private static final String[] INSERT_COLUMNS = new String[] {
+            IndexColumns.DOCID,
+            IndexColumns.LOCALE,
+            IndexColumns.DATA_RANK,
+            IndexColumns.DATA_TITLE,
+            IndexColumns.DATA_TITLE_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_ON,
+            IndexColumns.DATA_SUMMARY_ON_NORMALIZED,
+            IndexColumns.DATA_SUMMARY_OFF,
+            IndexColumns.DATA_SUMMARY_OFF_NORMALIZED,
+            IndexColumns.DATA_ENTRIES,
+            IndexColumns.DATA_KEYWORDS,
+            IndexColumns.CLASS_NAME,
+            IndexColumns.SCREEN_TITLE,
+            IndexColumns.INTENT_ACTION,
+            IndexColumns.INTENT_TARGET_PACKAGE,
+            IndexColumns.INTENT_TARGET_CLASS,
+            IndexColumns.ICON,
+            IndexColumns.ENABLED,
+            IndexColumns.DATA_KEY_REF,
+            IndexColumns.USER_ID,
+            IndexColumns.SOURCE_PACKAGE
+    };
+
+    private final SQLiteStatement mStatement;
+
+    private int mRowCount;
+    private long mWriteNanos;
+
+    public IndexRowWriter(SQLiteDatabase database, String tableName) {
+        mStatement = database.compileStatement(buildInsertSQL(tableName));
+    }
+
+    /**
+     * Write the rows. Should be called from inside a transaction.
+     */
+    public void write(List<ContentValues> rows) {
+        final long start = System.nanoTime();
+        final int count = rows.size();
+        for (int n = 0; n < count; n++) {
+            final ContentValues values = rows.get(n);
+            mStatement.clearBindings();
+            for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+                // SQLite binding indices start at 1
+                DatabaseUtils.bindObjectToProgram(mStatement, i + 1,
+                        values.get(INSERT_COLUMNS[i]));
+            }
+            mStatement.executeInsert();
+        }
+        mRowCount += count;
+        mWriteNanos += System.nanoTime() - start;
+    }
+
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+    public long getWriteMillis() {
+        return mWriteNanos / 1000000;
+    }
+
+    public void close() {
+        mStatement.close();
+    }
+
+    private static String buildInsertSQL(String tableName) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("INSERT OR REPLACE INTO ");
+        sb.append(tableName);
+        sb.append(" (");
+        for (int n = 0; n < INSERT_COLUMNS.length; n++) {
+            sb.append(INSERT_COLUMNS[n]);
+            if (n < INSERT_COLUMNS.length - 1) {
+                sb.append(", ");
+            }
+        }
+        sb.append(") VALUES (");
+        for (int n = 0; n < INSERT_COLUMNS.length; n++) {
+            sb.append("?");
+            if (n < INSERT_COLUMNS.length - 1) {
+                sb.append(", ");
+            }
+        }
+        sb.append(")");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.CancellationSignal;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+
+/**
+ * An in-memory snapshot of the enabled prefs_index rows of one locale, used for answering the
+ * search-as-you-type queries without going to SQLite.
+ *
+ * The tokens of the indexed columns are kept in a sorted dictionary, each token pointing to the
+ * rows containing it, so that a prefix lookup is a binary search. Tokens are split and folded the
+ * same way as the FTS4 "simple" tokenizer does.
+ *
+ * Matching mirrors the FTS queries built by {@link Index}, as parsed with the standard FTS query
+ * syntax, where OR binds more tightly than the implicit AND. A single term is matched as a prefix
+ * in any of the primary (or secondary) columns. With several terms, the first one has to be found
+ * in the first primary (or secondary) column, the other ones in any column of the table, and only
+ * the last one is matched as a prefix. Primary results are returned first, ordered by rank,
+ * followed by the secondary results that are not primary results.
+ *
+ * The results of the recent queries are cached, so that typing more characters of the last term
+ * only filters the previous results. The content of an instance never changes, so the cache does
+ * not need to be invalidated: a new instance is loaded when the Index is updated. Instances can be
+ * shared between threads.
+ */
+class IndexSearchEngine {
+
+    private static final String LOG_TAG = "IndexSearchEngine";
+
+    // Where a token was found: the first primary or secondary column, the other ones, or any
+    // other column of the table
+    private static final int MASK_PRIMARY_FIRST = 1;
+    private static final int MASK_PRIMARY = 1 << 1;
+    private static final int MASK_SECONDARY_FIRST = 1 << 2;
+    private static final int MASK_SECONDARY = 1 << 3;
+    private static final int MASK_OTHER = 1 << 4;
+    private static final int MASK_BITS = 5;
+
+    private static final int RESULTS_CACHE_SIZE = 32;
+
+    // The columns of the table that are neither primary nor secondary columns. FTS searches
+    // them too for the terms following the first one
+    private static final String[] MATCH_COLUMNS_OTHER = {
+            IndexColumns.LOCALE,
+            IndexColumns.DATA_RANK,
+            IndexColumns.SCREEN_TITLE,
+            IndexColumns.CLASS_NAME,
+            IndexColumns.ICON,
+            IndexColumns.INTENT_ACTION,
+            IndexColumns.INTENT_TARGET_PACKAGE,
+            IndexColumns.INTENT_TARGET_CLASS,
+            IndexColumns.ENABLED,
+            IndexColumns.DATA_KEY_REF,
+            IndexColumns.USER_ID,
+            IndexColumns.SOURCE_PACKAGE
+    };
+
+    private final String mLocale;
+    private final String[] mColumnNames;
+    private final Object[][] mRows;
+    private final int[] mRanks;
+
+    // Sorted tokens and, for each of them, the sorted (row << MASK_BITS | mask) postings
+    private final String[] mTokens;
+    private final int[][] mPostings;
+
+    // Recent results, keyed by normalized query. LruCache is thread safe
+    private final LruCache<String, Results> mResultsCache =
+            new LruCache<String, Results>(RESULTS_CACHE_SIZE);
+
+    /**
+     * The rows matching a query, each list ordered by rank
+     */
+    private static class Results {
+        public final int[] primary;
+        public final int[] secondary;
+
+        public Results(int[] primary, int[] secondary) {
+            this.primary = primary;
+            this.secondary = secondary;
+        }
+    }
+
+    private IndexSearchEngine(String locale, String[] columnNames, Object[][] rows, int[] ranks,
+            String[] tokens, int[][] postings) {
+        mLocale = locale;
+        mColumnNames = columnNames;
+        mRows = rows;
+        mRanks = ranks;
+        mTokens = tokens;
+        mPostings = postings;
+    }
+
+    public String getLocale() {
+        return mLocale;
+    }
+
+    /**
+     * Load the enabled rows of the given locale.
+     *
+     * @param selectColumns the columns returned by {@link #search(String, CancellationSignal)}. The
+     *                      first one has to be the rank.
+     */
+    public static IndexSearchEngine load(SQLiteDatabase database, String locale,
+            String[] selectColumns, String[] primaryColumns, String[] secondaryColumns) {
+        final long start = System.currentTimeMillis();
+
+        final int selectCount = selectColumns.length;
+        final String[][] matchColumns = {
+                Arrays.copyOfRange(primaryColumns, 0, 1),
+                Arrays.copyOfRange(primaryColumns, 1, primaryColumns.length),
+                Arrays.copyOfRange(secondaryColumns, 0, 1),
+                Arrays.copyOfRange(secondaryColumns, 1, secondaryColumns.length),
+                MATCH_COLUMNS_OTHER
+        };
+        final int[] matchMasks = {
+                MASK_PRIMARY_FIRST, MASK_PRIMARY, MASK_SECONDARY_FIRST, MASK_SECONDARY, MASK_OTHER
+        };
+
+        final List<String> projection = new ArrayList<String>(Arrays.asList(selectColumns));
+        for (String[] columns : matchColumns) {
+            projection.addAll(Arrays.asList(columns));
+        }
+
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        final Map<String, List<Integer>> postings = new HashMap<String, List<Integer>>();
+
+        final Cursor cursor = database.query(
+                IndexDatabaseHelper.getPrefsIndexTable(database, locale),
+                projection.toArray(new String[projection.size()]),
+                IndexColumns.LOCALE + " = ? AND " + IndexColumns.ENABLED + " = 1",
+                new String[] { locale }, null, null, null);
+        try {
+            final Map<String, Integer> rowMasks = new HashMap<String, Integer>();
+            while (cursor.moveToNext()) {
+                final int rowIndex = rows.size();
+                final Object[] row = new Object[selectCount];
+                for (int n = 0; n < selectCount; n++) {
+                    row[n] = getValue(cursor, n);
+                }
+                rows.add(row);
+
+                rowMasks.clear();
+                int column = selectCount;
+                for (int m = 0; m < matchColumns.length; m++) {
+                    for (int n = 0; n < matchColumns[m].length; n++) {
+                        for (String token : tokenize(cursor.getString(column++))) {
+                            final Integer mask = rowMasks.get(token);
+                            rowMasks.put(token, (mask == null) ?
+                                    matchMasks[m] : (mask | matchMasks[m]));
+                        }
+                    }
+                }
+                for (Map.Entry<String, Integer> entry : rowMasks.entrySet()) {
+                    List<Integer> list = postings.get(entry.getKey());
+                    if (list == null) {
+                        list = new ArrayList<Integer>();
+                        postings.put(entry.getKey(), list);
+                    }
+                    list.add((rowIndex << MASK_BITS) | entry.getValue());
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        final int rowCount = rows.size();
+        final int[] ranks = new int[rowCount];
+        for (int n = 0; n < rowCount; n++) {
+            ranks[n] = toInt(rows.get(n)[0]);
+        }
+
+        final String[] tokens = postings.keySet().toArray(new String[postings.size()]);
+        Arrays.sort(tokens);
+        final int[][] tokenPostings = new int[tokens.length][];
+        for (int n = 0; n < tokens.length; n++) {
+            final List<Integer> list = postings.get(tokens[n]);
+            final int[] array = new int[list.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = list.get(i);
+            }
+            tokenPostings[n] = array;
+        }
+
+        Log.d(LOG_TAG, "Loading " + rowCount + " rows and " + tokens.length +
+                " tokens for locale '" + locale + "' took " +
+                (System.currentTimeMillis() - start) + " millis");
+
+        return new IndexSearchEngine(locale, selectColumns,
+                rows.toArray(new Object[rowCount][]), ranks, tokens, tokenPostings);
+    }
+
+    /**
+     * @return a Cursor with the primary results first, followed by the secondary ones.
+     */
+    public Cursor search(String query, CancellationSignal cancellationSignal) {
+        final List<String> terms = tokenize(query);
+        if (terms.size() == 0) {
+            return new MatrixCursor(mColumnNames);
+        }
+
+        final String key = TextUtils.join(" ", terms);
+        Results results = mResultsCache.get(key);
+        if (results == null) {
+            results = match(terms, findPrefixResults(key), cancellationSignal);
+            mResultsCache.put(key, results);
+        }
+
+        final MatrixCursor cursor = new MatrixCursor(mColumnNames,
+                results.primary.length + results.secondary.length);
+        addRows(cursor, results.primary);
+        addRows(cursor, results.secondary);
+        return cursor;
+    }
+
+    /**
+     * When the last term of the query has only been extended, the results of the shorter query
+     * are a superset of the new results. Find the longest such cached query.
+     */
+    private Results findPrefixResults(String key) {
+        final int lastTermStart = key.lastIndexOf(' ') + 1;
+        for (int length = key.length() - 1; length > lastTermStart; length--) {
+            final Results results = mResultsCache.get(key.substring(0, length));
+            if (results != null) {
+                return results;
+            }
+        }
+        return null;
+    }
+
+    private Results match(List<String> terms, Results candidates,
+            CancellationSignal cancellationSignal) {
+        final int termCount = terms.size();
+
+        // For every row, the union of the masks of the columns where the first term was found
+        final int[] firstMasks = collectMasks(terms.get(0), termCount == 1);
+        for (int n = 1; n < termCount; n++) {
+            throwIfCanceled(cancellationSignal);
+            final int[] masks = collectMasks(terms.get(n), n == termCount - 1);
+            for (int row = 0; row < firstMasks.length; row++) {
+                if (masks[row] == 0) {
+                    firstMasks[row] = 0;
+                }
+            }
+        }
+        throwIfCanceled(cancellationSignal);
+
+        // Only a single term can be found in any of the primary or secondary columns
+        final int primaryMask = (termCount == 1) ?
+                (MASK_PRIMARY_FIRST | MASK_PRIMARY) : MASK_PRIMARY_FIRST;
+        final int secondaryMask = (termCount == 1) ?
+                (MASK_SECONDARY_FIRST | MASK_SECONDARY) : MASK_SECONDARY_FIRST;
+        final List<Integer> primary = new ArrayList<Integer>();
+        final List<Integer> secondary = new ArrayList<Integer>();
+        if (candidates != null) {
+            classifyRows(firstMasks, candidates.primary, primaryMask, secondaryMask, primary,
+                    secondary);
+            classifyRows(firstMasks, candidates.secondary, primaryMask, secondaryMask, primary,
+                    secondary);
+        } else {
+            for (int row = 0; row < firstMasks.length; row++) {
+                classifyRow(firstMasks, row, primaryMask, secondaryMask, primary, secondary);
+            }
+        }
+
+        return new Results(sortByRank(primary), sortByRank(secondary));
+    }
+
+    private static void classifyRows(int[] firstMasks, int[] rows, int primaryMask,
+            int secondaryMask, List<Integer> primary, List<Integer> secondary) {
+        for (int n = 0; n < rows.length; n++) {
+            classifyRow(firstMasks, rows[n], primaryMask, secondaryMask, primary, secondary);
+        }
+    }
+
+    private static void classifyRow(int[] firstMasks, int row, int primaryMask,
+            int secondaryMask, List<Integer> primary, List<Integer> secondary) {
+        if ((firstMasks[row] & primaryMask) != 0) {
+            primary.add(row);
+        } else if ((firstMasks[row] & secondaryMask) != 0) {
+            secondary.add(row);
+        }
+    }
+
+    private static void throwIfCanceled(CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+    }
+
+    private int[] collectMasks(String term, boolean isPrefix) {
+        final int[] masks = new int[mRows.length];
+
+        int index = Arrays.binarySearch(mTokens, term);
+        if (index < 0) {
+            if (!isPrefix) {
+                return masks;
+            }
+            index = -(index + 1);
+        }
+        for (int n = index; n < mTokens.length; n++) {
+            if (isPrefix ? !mTokens[n].startsWith(term) : n > index) {
+                break;
+            }
+            final int[] postings = mPostings[n];
+            for (int i = 0; i < postings.length; i++) {
+                masks[postings[i] >>> MASK_BITS] |= (postings[i] & ((1 << MASK_BITS) - 1));
+            }
+        }
+        return masks;
+    }
+
+    private int[] sortByRank(List<Integer> rows) {
+        // Stable sort: rows with the same rank keep the order of the Index
+        final Integer[] sorted = rows.toArray(new Integer[rows.size()]);
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                final int lhsRank = mRanks[lhs];
+                final int rhsRank = mRanks[rhs];
+                return (lhsRank < rhsRank) ? -1 : ((lhsRank == rhsRank) ? 0 : 1);
+            }
+        });
+        final int[] result = new int[sorted.length];
+        for (int n = 0; n < sorted.length; n++) {
+            result[n] = sorted[n];
+        }
+        return result;
+    }
+
+    private void addRows(MatrixCursor cursor, int[] rows) {
+        for (int n = 0; n < rows.length; n++) {
+            cursor.addRow(mRows[rows[n]]);
+        }
+    }
+
+    /**
+     * Split the text the same way as the FTS4 "simple" tokenizer: ASCII characters which are not
+     * letters or digits are separators, and only ASCII characters are folded to lower case.
+     */
+    static List<String> tokenize(String text) {
+        final List<String> tokens = new ArrayList<String>();
+        if (text == null) {
+            return tokens;
+        }
+        final int length = text.length();
+        final StringBuilder sb = new StringBuilder();
+        for (int n = 0; n < length; n++) {
+            char c = text.charAt(n);
+            if (c < 128 && !Character.isLetterOrDigit(c)) {
+                if (sb.length() > 0) {
+                    tokens.add(sb.toString());
+                    sb.setLength(0);
+                }
+                continue;
+            }
+            if (c >= 'A' && c <= 'Z') {
+                c = (char) (c + ('a' - 'A'));
+            }
+            sb.append(c);
+        }
+        if (sb.length() > 0) {
+            tokens.add(sb.toString());
+        }
+        return tokens;
+    }
+
+    private static Object getValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            default:
+                return cursor.getString(column);
+        }
+    }
+
+    private static int toInt(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        try {
+            return (value != null) ? Integer.parseInt(value.toString()) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class DeviceListUpdateBatcherTest extends AndroidTestCase
+        implements DeviceListUpdateBatcher.Target {
+    private static final long WINDOW_MS = 100;
+    private static final long TIMEOUT_MS = 5000;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private DeviceListUpdateBatcher mBatcher;
+
+    private CachedBluetoothDevice mDevice1;
+    private CachedBluetoothDevice mDevice2;
+
+    // Devices passed to addDevicePreference(), on the batcher thread
+    private final ArrayList<CachedBluetoothDevice> mAdded =
+            new ArrayList<CachedBluetoothDevice>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final LocalBluetoothManager manager = LocalBluetoothManager.getInstance(getContext());
+        if (manager == null) {
+            // No Bluetooth on this device
+            return;
+        }
+        mDevice1 = newDevice(manager, "00:11:22:33:44:01");
+        mDevice2 = newDevice(manager, "00:11:22:33:44:02");
+
+        // The batcher posts its flushes on the looper of the thread that creates it
+        mThread = new HandlerThread("DeviceListUpdateBatcherTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        runOnBatcherThread(new Runnable() {
+            @Override
+            public void run() {
+                mBatcher = new DeviceListUpdateBatcher(DeviceListUpdateBatcherTest.this,
+                        WINDOW_MS);
+            }
+        }, 0);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mThread != null) {
+            mThread.quit();
+        }
+        super.tearDown();
+    }
+
+    @Override
+    public void addDevicePreference(CachedBluetoothDevice cachedDevice) {
+        mAdded.add(cachedDevice);
+    }
+
+    public void testCoalescesDevicesByAddress() throws InterruptedException {
+        if (mBatcher == null) {
+            return;
+        }
+        runOnBatcherThread(new Runnable() {
+            @Override
+            public void run() {
+                mBatcher.addDevice(mDevice1);
+                mBatcher.addDevice(mDevice2);
+                mBatcher.addDevice(mDevice1);
+                assertEquals(0, mAdded.size());
+            }
+        }, 0);
+
+        waitForFlush();
+        assertEquals(Arrays.asList(mDevice1, mDevice2), mAdded);
+        assertEquals(3, mBatcher.getEventsIn());
+        assertEquals(2, mBatcher.getUpdatesOut());
+    }
+
+    public void testCoalescesRefreshes() throws InterruptedException {
+        if (mBatcher == null) {
+            return;
+        }
+        final BluetoothDevicePreference preference =
+                new BluetoothDevicePreference(getContext(), mDevice1);
+        runOnBatcherThread(new Runnable() {
+            @Override
+            public void run() {
+                mBatcher.refresh(preference);
+                mBatcher.refresh(preference);
+                mBatcher.refresh(preference);
+            }
+        }, 0);
+
+        waitForFlush();
+        assertEquals(0, mAdded.size());
+        assertEquals(3, mBatcher.getEventsIn());
+        assertEquals(1, mBatcher.getUpdatesOut());
+    }
+
+    public void testRemoveDropsPendingUpdates() throws InterruptedException {
+        if (mBatcher == null) {
+            return;
+        }
+        final BluetoothDevicePreference preference =
+                new BluetoothDevicePreference(getContext(), mDevice1);
+        runOnBatcherThread(new Runnable() {
+            @Override
+            public void run() {
+                mBatcher.addDevice(mDevice1);
+                mBatcher.refresh(preference);
+                mBatcher.addDevice(mDevice2);
+                mBatcher.remove(mDevice1);
+            }
+        }, 0);
+
+        waitForFlush();
+        assertEquals(Arrays.asList(mDevice2), mAdded);
+        assertEquals(1, mBatcher.getUpdatesOut());
+    }
+
+    public void testClearDropsPendingUpdates() throws InterruptedException {
+        if (mBatcher == null) {
+            return;
+        }
+        runOnBatcherThread(new Runnable() {
+            @Override
+            public void run() {
+                mBatcher.addDevice(mDevice1);
+                mBatcher.clear();
+            }
+        }, 0);
+
+        waitForFlush();
+        assertEquals(0, mAdded.size());
+        assertEquals(0, mBatcher.getEventsIn());
+        assertEquals(0, mBatcher.getUpdatesOut());
+    }
+
+    public void testFlushesEveryWindow() throws InterruptedException {
+        if (mBatcher == null) {
+            return;
+        }
+        final Runnable addDevice = new Runnable() {
+            @Override
+            public void run() {
+                mBatcher.addDevice(mDevice1);
+            }
+        };
+        runOnBatcherThread(addDevice, 0);
+        waitForFlush();
+        runOnBatcherThread(addDevice, 0);
+        waitForFlush();
+
+        assertEquals(Arrays.asList(mDevice1, mDevice1), mAdded);
+        assertEquals(2, mBatcher.getEventsIn());
+        assertEquals(2, mBatcher.getUpdatesOut());
+    }
+
+    private CachedBluetoothDevice newDevice(LocalBluetoothManager manager, String address) {
+        return new CachedBluetoothDevice(getContext(), manager.getBluetoothAdapter(),
+                manager.getProfileManager(),
+                BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address));
+    }
+
+    /**
+     * Waits until a pending flush has run, as it is due before a message posted a window later.
+     */
+    private void waitForFlush() throws InterruptedException {
+        runOnBatcherThread(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, WINDOW_MS + 1);
+    }
+
+    private void runOnBatcherThread(final Runnable runnable, long delayMs)
+            throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Throwable[] error = new Throwable[1];
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } catch (Throwable t) {
+                    error[0] = t;
+                } finally {
+                    latch.countDown();
+                }
+            }
+        }, delayMs);
+        assertTrue(latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        if (error[0] != null) {
+            throw new AssertionError(error[0]);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.deviceinfo;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class DirectorySizeTrackerTest extends AndroidTestCase {
+    private static final long EVENT_TIMEOUT_MS = 5000;
+
+    private DirectorySizeTracker mTracker;
+    private File mRoot;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTracker = new DirectorySizeTracker();
+        mRoot = new File(getContext().getCacheDir(), "DirectorySizeTrackerTest");
+        deleteRecursively(mRoot);
+        assertTrue(new File(mRoot, "a/b").mkdirs());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mTracker.clear();
+        deleteRecursively(mRoot);
+        super.tearDown();
+    }
+
+    public void testUnknownUntilMeasured() {
+        assertEquals(-1, mTracker.getSize(mRoot));
+    }
+
+    public void testRemembersSizeUntilChanged() throws IOException {
+        final int token = mTracker.startMeasuring(mRoot);
+        assertTrue(token >= 0);
+        mTracker.setSize(mRoot, 1234, token);
+        assertEquals(1234, mTracker.getSize(mRoot));
+
+        // A change deep in the tree drops the size
+        writeFile(new File(mRoot, "a/b/file"));
+        assertTrue(waitForUnknownSize(mRoot));
+    }
+
+    public void testIgnoresSizeMeasuredDuringChange() throws IOException {
+        final int token = mTracker.startMeasuring(mRoot);
+        assertTrue(token >= 0);
+        writeFile(new File(mRoot, "a/file"));
+
+        // Once the change is seen, watching again gives a new token
+        final long deadline = SystemClock.uptimeMillis() + EVENT_TIMEOUT_MS;
+        int newToken = token;
+        while (newToken == token && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(10);
+            newToken = mTracker.startMeasuring(mRoot);
+        }
+        assertTrue(newToken != token);
+
+        mTracker.setSize(mRoot, 1234, token);
+        assertEquals(-1, mTracker.getSize(mRoot));
+        mTracker.setSize(mRoot, 5678, newToken);
+        assertEquals(5678, mTracker.getSize(mRoot));
+    }
+
+    public void testTooManyDirectories() {
+        for (int i = 0; i < DirectorySizeTracker.MAX_WATCHED_DIRECTORIES; i++) {
+            assertTrue(new File(mRoot, "a/" + i).mkdir());
+        }
+
+        final int token = mTracker.startMeasuring(mRoot);
+        assertEquals(-1, token);
+        mTracker.setSize(mRoot, 1234, token);
+        assertEquals(-1, mTracker.getSize(mRoot));
+
+        // Still not tracked once it shrinks, until the tracker is cleared
+        for (int i = 0; i < 10; i++) {
+            assertTrue(new File(mRoot, "a/" + i).delete());
+        }
+        assertEquals(-1, mTracker.startMeasuring(mRoot));
+        mTracker.clear();
+        assertTrue(mTracker.startMeasuring(mRoot) >= 0);
+    }
+
+    public void testClearForgetsSizes() {
+        final int token = mTracker.startMeasuring(mRoot);
+        mTracker.setSize(mRoot, 1234, token);
+        mTracker.clear();
+        assertEquals(-1, mTracker.getSize(mRoot));
+    }
+
+    private boolean waitForUnknownSize(File dir) {
+        final long deadline = SystemClock.uptimeMillis() + EVENT_TIMEOUT_MS;
+        while (mTracker.getSize(dir) >= 0) {
+            if (SystemClock.uptimeMillis() > deadline) {
+                return false;
+            }
+            SystemClock.sleep(10);
+        }
+        return true;
+    }
+
+    private static void writeFile(File file) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] { 1, 2, 3 });
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
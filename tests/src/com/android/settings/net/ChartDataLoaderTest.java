@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+
+public class ChartDataLoaderTest extends AndroidTestCase {
+    private static final long START = 1400000000000L / DAY_IN_MILLIS * DAY_IN_MILLIS;
+
+    public void testMergeSingleHistory() {
+        final NetworkStatsHistory history = buildHistory(HOUR_IN_MILLIS,
+                new long[] { 0 }, new long[] { 10 }, new long[] { 20 });
+        final ArrayList<NetworkStatsHistory> histories = new ArrayList<NetworkStatsHistory>();
+        histories.add(history);
+
+        assertSame(history, ChartDataLoader.mergeHistories(histories));
+    }
+
+    public void testMergeMatchesRecordEntireHistory() {
+        final ArrayList<NetworkStatsHistory> histories = new ArrayList<NetworkStatsHistory>();
+        // Overlapping, disjoint and empty histories, with gaps between buckets
+        histories.add(buildHistory(HOUR_IN_MILLIS,
+                new long[] { 0, 1, 2, 5 }, new long[] { 10, 20, 30, 40 },
+                new long[] { 1, 2, 3, 4 }));
+        histories.add(buildHistory(HOUR_IN_MILLIS,
+                new long[] { 1, 3, 5, 9 }, new long[] { 100, 200, 300, 400 },
+                new long[] { 10, 20, 30, 40 }));
+        histories.add(buildHistory(HOUR_IN_MILLIS,
+                new long[] { }, new long[] { }, new long[] { }));
+        histories.add(buildHistory(HOUR_IN_MILLIS,
+                new long[] { 7 }, new long[] { 1000 }, new long[] { 100 }));
+
+        final NetworkStatsHistory merged = ChartDataLoader.mergeHistories(histories);
+
+        assertEquals(HOUR_IN_MILLIS, merged.getBucketDuration());
+        assertSameBuckets(recordAll(HOUR_IN_MILLIS, histories), merged);
+    }
+
+    public void testMergeEmptyHistories() {
+        final ArrayList<NetworkStatsHistory> histories = new ArrayList<NetworkStatsHistory>();
+        histories.add(new NetworkStatsHistory(HOUR_IN_MILLIS));
+        histories.add(new NetworkStatsHistory(HOUR_IN_MILLIS));
+
+        assertEquals(0, ChartDataLoader.mergeHistories(histories).size());
+    }
+
+    public void testMergeUsesFirstBucketDuration() {
+        final ArrayList<NetworkStatsHistory> histories = new ArrayList<NetworkStatsHistory>();
+        histories.add(buildHistory(HOUR_IN_MILLIS,
+                new long[] { 0, 2 }, new long[] { 10, 20 }, new long[] { 1, 2 }));
+        histories.add(buildHistory(DAY_IN_MILLIS,
+                new long[] { 0 }, new long[] { 100 }, new long[] { 10 }));
+        histories.add(buildHistory(HOUR_IN_MILLIS,
+                new long[] { 1 }, new long[] { 1000 }, new long[] { 100 }));
+
+        final NetworkStatsHistory merged = ChartDataLoader.mergeHistories(histories);
+
+        assertEquals(HOUR_IN_MILLIS, merged.getBucketDuration());
+        assertSameBuckets(recordAll(HOUR_IN_MILLIS, histories), merged);
+    }
+
+    /**
+     * Builds a history with one bucket per given index, counted from {@link #START}.
+     */
+    private static NetworkStatsHistory buildHistory(long bucketDuration, long[] buckets,
+            long[] rxBytes, long[] txBytes) {
+        final NetworkStatsHistory history = new NetworkStatsHistory(bucketDuration);
+        for (int i = 0; i < buckets.length; i++) {
+            final long start = START + buckets[i] * bucketDuration;
+            history.recordData(start, start + bucketDuration,
+                    new NetworkStats.Entry(rxBytes[i], 0, txBytes[i], 0, 0));
+        }
+        return history;
+    }
+
+    /**
+     * Merges the histories the way the loader used to, one after the other.
+     */
+    private static NetworkStatsHistory recordAll(long bucketDuration,
+            ArrayList<NetworkStatsHistory> histories) {
+        final NetworkStatsHistory expected = new NetworkStatsHistory(bucketDuration);
+        for (NetworkStatsHistory history : histories) {
+            expected.recordEntireHistory(history);
+        }
+        return expected;
+    }
+
+    private static void assertSameBuckets(NetworkStatsHistory expected,
+            NetworkStatsHistory actual) {
+        assertEquals(expected.size(), actual.size());
+        NetworkStatsHistory.Entry expectedEntry = null;
+        NetworkStatsHistory.Entry actualEntry = null;
+        for (int i = 0; i < expected.size(); i++) {
+            expectedEntry = expected.getValues(i, expectedEntry);
+            actualEntry = actual.getValues(i, actualEntry);
+            assertEquals(expectedEntry.bucketStart, actualEntry.bucketStart);
+            assertEquals(expectedEntry.rxBytes, actualEntry.rxBytes);
+            assertEquals(expectedEntry.txBytes, actualEntry.txBytes);
+        }
+    }
+}
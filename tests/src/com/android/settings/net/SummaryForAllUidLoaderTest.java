@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.net;
+
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.SET_FOREGROUND;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.TrafficStats.UID_REMOVED;
+import static android.net.TrafficStats.UID_TETHERING;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.net.NetworkStats;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.os.UserManager;
+import android.test.AndroidTestCase;
+
+import com.android.settings.DataUsageSummary.AppItem;
+
+public class SummaryForAllUidLoaderTest extends AndroidTestCase {
+    // A user that does not exist, for the usage left by removed users
+    private static final int REMOVED_USER_ID = 999;
+
+    private SummaryForAllUidLoader mLoader;
+    private int mAppUid1;
+    private int mAppUid2;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Only the user manager is used to collapse the stats
+        mLoader = new SummaryForAllUidLoader(getContext(), null, null,
+                (UserManager) getContext().getSystemService(Context.USER_SERVICE), null, null);
+        final int userId = ActivityManager.getCurrentUser();
+        mAppUid1 = UserHandle.getUid(userId, Process.FIRST_APPLICATION_UID + 1);
+        mAppUid2 = UserHandle.getUid(userId, Process.FIRST_APPLICATION_UID + 2);
+    }
+
+    public void testNoStats() {
+        final SummaryForAllUidLoader.Summary summary = mLoader.collapse(null, new int[0]);
+        assertEquals(0, summary.items.size());
+        assertEquals(0, summary.largest);
+    }
+
+    public void testSumsRowsOfUid() {
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 4);
+        addValues(stats, "wlan0", mAppUid1, SET_DEFAULT, 100, 50);
+        addValues(stats, "wlan0", mAppUid1, SET_FOREGROUND, 30, 20);
+        addValues(stats, "rmnet0", mAppUid1, SET_DEFAULT, 1, 2);
+
+        final SummaryForAllUidLoader.Summary summary = mLoader.collapse(stats, new int[0]);
+
+        // The title comes before the apps
+        assertEquals(2, summary.items.size());
+        assertEquals(AppItem.CATEGORY_APP_TITLE, summary.items.get(0).category);
+        final AppItem item = summary.items.get(1);
+        assertEquals(mAppUid1, item.key);
+        assertEquals(AppItem.CATEGORY_APP, item.category);
+        assertEquals(203, item.total);
+        assertEquals(1, item.uids.size());
+        assertEquals(203, summary.largest);
+    }
+
+    public void testSortsAppsByUsage() {
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 2);
+        addValues(stats, "wlan0", mAppUid1, SET_DEFAULT, 10, 0);
+        addValues(stats, "wlan0", mAppUid2, SET_DEFAULT, 500, 0);
+
+        final SummaryForAllUidLoader.Summary summary = mLoader.collapse(stats, new int[0]);
+
+        assertEquals(3, summary.items.size());
+        assertEquals(mAppUid2, summary.items.get(1).key);
+        assertEquals(mAppUid1, summary.items.get(2).key);
+        assertEquals(500, summary.largest);
+    }
+
+    public void testCollapsesSystemUids() {
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 5);
+        addValues(stats, "wlan0", Process.ROOT_UID, SET_DEFAULT, 1, 0);
+        addValues(stats, "wlan0", Process.SYSTEM_UID, SET_DEFAULT, 10, 0);
+        addValues(stats, "wlan0", Process.PHONE_UID, SET_DEFAULT, 100, 0);
+        addValues(stats, "wlan0", UID_REMOVED, SET_DEFAULT, 1000, 0);
+        addValues(stats, "wlan0", UID_TETHERING, SET_DEFAULT, 10000, 0);
+
+        final SummaryForAllUidLoader.Summary summary = mLoader.collapse(stats, new int[0]);
+
+        assertEquals(4, summary.items.size());
+        final AppItem system = findItem(summary, Process.SYSTEM_UID);
+        assertEquals(111, system.total);
+        assertEquals(3, system.uids.size());
+        assertEquals(1000, findItem(summary, UID_REMOVED).total);
+        assertEquals(10000, findItem(summary, UID_TETHERING).total);
+    }
+
+    public void testCollapsesRemovedUsers() {
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 3);
+        addValues(stats, "wlan0", UserHandle.getUid(REMOVED_USER_ID,
+                Process.FIRST_APPLICATION_UID + 1), SET_DEFAULT, 10, 0);
+        addValues(stats, "wlan0", UserHandle.getUid(REMOVED_USER_ID,
+                Process.FIRST_APPLICATION_UID + 2), SET_DEFAULT, 20, 0);
+        addValues(stats, "wlan0", UID_REMOVED, SET_DEFAULT, 30, 0);
+
+        final SummaryForAllUidLoader.Summary summary = mLoader.collapse(stats, new int[0]);
+
+        assertEquals(2, summary.items.size());
+        final AppItem removed = findItem(summary, UID_REMOVED);
+        assertEquals(AppItem.CATEGORY_APP, removed.category);
+        assertEquals(60, removed.total);
+        assertEquals(3, removed.uids.size());
+    }
+
+    public void testSplicesRestrictedUids() {
+        final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 1);
+        addValues(stats, "wlan0", mAppUid1, SET_DEFAULT, 10, 0);
+        final int removedUserUid = UserHandle.getUid(REMOVED_USER_ID,
+                Process.FIRST_APPLICATION_UID + 1);
+
+        final SummaryForAllUidLoader.Summary summary = mLoader.collapse(stats,
+                new int[] { mAppUid1, mAppUid2, removedUserUid });
+
+        // Restricted apps without usage are listed too, but not the ones of other users
+        assertEquals(3, summary.items.size());
+        final AppItem used = findItem(summary, mAppUid1);
+        assertTrue(used.restricted);
+        assertEquals(10, used.total);
+        final AppItem unused = findItem(summary, mAppUid2);
+        assertTrue(unused.restricted);
+        assertEquals(-1, unused.total);
+        assertNull(findItem(summary, removedUserUid));
+        assertEquals(10, summary.largest);
+    }
+
+    private static void addValues(NetworkStats stats, String iface, int uid, int set,
+            long rxBytes, long txBytes) {
+        stats.addValues(new NetworkStats.Entry(iface, uid, set, TAG_NONE, rxBytes, 0, txBytes,
+                0, 0));
+    }
+
+    private static AppItem findItem(SummaryForAllUidLoader.Summary summary, int key) {
+        for (AppItem item : summary.items) {
+            if (item.category != AppItem.CATEGORY_APP_TITLE && item.key == key) {
+                return item;
+            }
+        }
+        return null;
+    }
+}
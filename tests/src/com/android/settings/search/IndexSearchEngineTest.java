@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.settings.search;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.android.settings.search.IndexDatabaseHelper.IndexColumns;
+
+public class IndexSearchEngineTest extends AndroidTestCase {
+    // Only words: FTS would parse punctuation, such as a '-' within a word, as query syntax
+    private static final String[] QUERIES = {
+            "w", "wi", "WiFi", "wifi", "net", "network", "wireless", "cast", "flight",
+            "wi fi", "Wi Fi net", "data net", "network data", "wireless net",
+            "wifi settings", "mode wi", "airplane more", "connected net", "devices bluetooth",
+            "reset", "bluetooth wifi", "xyz"
+    };
+
+    // The table names are cached for the whole process, so every test has its own locale
+    private static int sLocaleCount;
+
+    private SQLiteDatabase mDatabase;
+    private String mLocale;
+    private String mTableName;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDatabase = SQLiteDatabase.create(null);
+        mLocale = "zz_ZZ_test" + (sLocaleCount++);
+        mTableName = IndexDatabaseHelper.getPrefsIndexTable(mDatabase, mLocale);
+
+        insertRow(1, "Wi-Fi", "wifi", "Connected to network", null, "wireless, network", null,
+                "Wi-Fi", "com.android.settings.wifi.WifiSettings", true);
+        insertRow(2, "Bluetooth", null, "Visible to nearby devices", "Off", "wireless", null,
+                "Bluetooth", "com.android.settings.bluetooth.BluetoothSettings", true);
+        insertRow(3, "Data usage", null, "Mobile network data", null, "network", null,
+                "Data usage", "com.android.settings.DataUsageSummary", true);
+        insertRow(4, "Wireless display", null, null, "Cast screen", null, "Wi-Fi|Network",
+                "Cast screen", "com.android.settings.wfd.WifiDisplaySettings", true);
+        insertRow(5, "Network reset", null, "Reset Wi-Fi", null, null, null,
+                "Backup & reset", "com.android.settings.ResetNetwork", false);
+        insertRow(6, "Airplane mode", null, "Wi-Fi off", null, "flight", null,
+                "More networks", "com.android.settings.WirelessSettings", true);
+        insertRow(7, "Tethering", null, null, null, "hotspot", "Wi-Fi hotspot|USB",
+                "More networks", "com.android.settings.TetherSettings", true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        super.tearDown();
+    }
+
+    public void testSameResultsAsFts() {
+        final IndexSearchEngine engine = loadEngine();
+        for (String query : QUERIES) {
+            assertEquals(query, searchFts(query), readRows(engine.search(query, null)));
+        }
+    }
+
+    public void testSameResultsAsFtsWhileTyping() {
+        // Every longer query is answered from the results of the previous one
+        final IndexSearchEngine engine = loadEngine();
+        for (String query : new String[] { "n", "ne", "net", "netw", "network",
+                "network d", "network da", "network data" }) {
+            assertEquals(query, searchFts(query), readRows(engine.search(query, null)));
+        }
+    }
+
+    public void testPrimaryResultsFirst() {
+        final List<List<String>> rows = readRows(loadEngine().search("network", null));
+        final List<String> titles = new ArrayList<String>();
+        for (List<String> row : rows) {
+            titles.add(row.get(Index.COLUMN_INDEX_TITLE));
+        }
+        assertEquals(Arrays.asList("Wi-Fi", "Data usage", "Wireless display"), titles);
+    }
+
+    public void testEmptyQuery() {
+        final IndexSearchEngine engine = loadEngine();
+        assertEquals(0, engine.search("", null).getCount());
+        assertEquals(0, engine.search(" - ", null).getCount());
+    }
+
+    public void testTokenize() {
+        assertEquals(Arrays.asList("wi", "fi", "hotspot"),
+                IndexSearchEngine.tokenize(" Wi-Fi  HOTSPOT "));
+        assertEquals(Arrays.asList("café", "Été"),
+                IndexSearchEngine.tokenize("Café, Été"));
+        assertEquals(0, IndexSearchEngine.tokenize(null).size());
+    }
+
+    private IndexSearchEngine loadEngine() {
+        return IndexSearchEngine.load(mDatabase, mLocale, Index.SELECT_COLUMNS,
+                Index.MATCH_COLUMNS_PRIMARY, Index.MATCH_COLUMNS_SECONDARY);
+    }
+
+    private void insertRow(int rank, String title, String titleNormalized, String summaryOn,
+            String summaryOff, String keywords, String entries, String screenTitle,
+            String className, boolean enabled) {
+        final ContentValues values = new ContentValues();
+        values.put(IndexColumns.LOCALE, mLocale);
+        values.put(IndexColumns.DATA_RANK, rank);
+        values.put(IndexColumns.DATA_TITLE, title);
+        values.put(IndexColumns.DATA_TITLE_NORMALIZED, titleNormalized);
+        values.put(IndexColumns.DATA_SUMMARY_ON, summaryOn);
+        values.put(IndexColumns.DATA_SUMMARY_OFF, summaryOff);
+        values.put(IndexColumns.DATA_KEYWORDS, keywords);
+        values.put(IndexColumns.DATA_ENTRIES, entries);
+        values.put(IndexColumns.SCREEN_TITLE, screenTitle);
+        values.put(IndexColumns.CLASS_NAME, className);
+        values.put(IndexColumns.ENABLED, enabled);
+        values.put(IndexColumns.DATA_KEY_REF, "key" + rank);
+        values.put(IndexColumns.USER_ID, -1);
+        assertTrue(mDatabase.insert(mTableName, null, values) >= 0);
+    }
+
+    /**
+     * Run the FTS queries that Index used before the in-memory search engine.
+     */
+    private List<List<String>> searchFts(String query) {
+        final String primarySql = buildSearchSql(query, Index.MATCH_COLUMNS_PRIMARY) +
+                " ORDER BY " + IndexColumns.DATA_RANK;
+        final String secondarySql = buildSearchSql(query, Index.MATCH_COLUMNS_SECONDARY) +
+                " EXCEPT " + primarySql;
+
+        final List<List<String>> rows = readRows(mDatabase.rawQuery(primarySql, null));
+        rows.addAll(readRows(mDatabase.rawQuery(secondarySql, null)));
+        return rows;
+    }
+
+    private String buildSearchSql(String query, String[] columnNames) {
+        final StringBuilder match = new StringBuilder();
+        for (int n = 0; n < columnNames.length; n++) {
+            if (n > 0) {
+                match.append(" OR ");
+            }
+            match.append(columnNames[n]).append(":").append(query).append("*");
+        }
+
+        final StringBuilder sb = new StringBuilder("SELECT ");
+        sb.append(TextUtils.join(", ", Index.SELECT_COLUMNS));
+        sb.append(" FROM ").append(mTableName);
+        sb.append(" WHERE ").append(mTableName).append(" MATCH ");
+        DatabaseUtils.appendEscapedSQLString(sb, match.toString());
+        sb.append(" AND ").append(IndexColumns.LOCALE).append(" = ");
+        DatabaseUtils.appendEscapedSQLString(sb, mLocale);
+        sb.append(" AND ").append(IndexColumns.ENABLED).append(" = 1");
+        return sb.toString();
+    }
+
+    private static List<List<String>> readRows(Cursor cursor) {
+        final List<List<String>> rows = new ArrayList<List<String>>();
+        try {
+            while (cursor.moveToNext()) {
+                final List<String> row = new ArrayList<String>();
+                for (int n = 0; n < cursor.getColumnCount(); n++) {
+                    row.add(cursor.getString(n));
+                }
+                rows.add(row);
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+}